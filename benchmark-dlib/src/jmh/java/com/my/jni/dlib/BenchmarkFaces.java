@@ -0,0 +1,119 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.graphics.RectF;
+
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibFace68;
+import com.my.jni.dlib.data.DLibFaceBuffer;
+import com.my.jni.dlib.data.Messages;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The deterministic faces shared by the benchmarks; every face has 68
+ * landmarks in the normalized coordinates like the detector's output.
+ */
+final class BenchmarkFaces {
+
+    private static final int LANDMARK_COUNT = 68;
+
+    private BenchmarkFaces() {
+        // Utility.
+    }
+
+    static List<DLibFace> createFaces(int count) {
+        final Random random = new Random(count);
+        final List<DLibFace> faces = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final float left = 0.6f * random.nextFloat();
+            final float top = 0.6f * random.nextFloat();
+            final float size = 0.1f + 0.3f * random.nextFloat();
+
+            final List<DLibFace.Landmark> landmarks = new ArrayList<>(LANDMARK_COUNT);
+            for (int j = 0; j < LANDMARK_COUNT; ++j) {
+                landmarks.add(new DLibFace.Landmark(left + size * random.nextFloat(),
+                                                    top + size * random.nextFloat()));
+            }
+
+            final DLibFace68 face = new DLibFace68(new RectF(left, top, left + size, top + size));
+            face.setAllLandmarks(landmarks);
+            faces.add(face);
+        }
+
+        return faces;
+    }
+
+    /**
+     * The faces serialized as the protobuf message the detector used to
+     * return.
+     */
+    static byte[] toFaceList(List<DLibFace> faces) {
+        final Messages.FaceList.Builder list = Messages.FaceList.newBuilder();
+        for (int i = 0; i < faces.size(); ++i) {
+            final DLibFace face = faces.get(i);
+            final Messages.Face.Builder rawFace = Messages.Face.newBuilder()
+                .setBound(Messages.RectF.newBuilder()
+                              .setLeft(face.getBound().left)
+                              .setTop(face.getBound().top)
+                              .setRight(face.getBound().right)
+                              .setBottom(face.getBound().bottom));
+            for (int j = 0; j < face.getAllLandmarks().size(); ++j) {
+                final DLibFace.Landmark landmark = face.getAllLandmarks().get(j);
+                rawFace.addLandmarks(Messages.Landmark.newBuilder()
+                                         .setX(landmark.x)
+                                         .setY(landmark.y));
+            }
+            list.addFaces(rawFace);
+        }
+
+        return list.build().toByteArray();
+    }
+
+    /**
+     * Write the faces to the buffer as the native detector does.
+     */
+    static DLibFaceBuffer toFaceBuffer(List<DLibFace> faces) {
+        final DLibFaceBuffer faceBuffer = new DLibFaceBuffer(faces.size());
+        final ByteBuffer buffer = faceBuffer.getBuffer();
+        buffer.putInt(0, faces.size());
+        buffer.putInt(4, LANDMARK_COUNT);
+        for (int i = 0; i < faces.size(); ++i) {
+            final DLibFace face = faces.get(i);
+            final int offset = DLibFaceBuffer.HEADER_BYTES + i * DLibFaceBuffer.FACE_BYTES;
+            buffer.putFloat(offset, face.getBound().left);
+            buffer.putFloat(offset + 4, face.getBound().top);
+            buffer.putFloat(offset + 8, face.getBound().right);
+            buffer.putFloat(offset + 12, face.getBound().bottom);
+            for (int j = 0; j < LANDMARK_COUNT; ++j) {
+                final DLibFace.Landmark landmark = face.getAllLandmarks().get(j);
+                buffer.putFloat(offset + 16 + 8 * j, landmark.x);
+                buffer.putFloat(offset + 20 + 8 * j, landmark.y);
+            }
+        }
+
+        return faceBuffer;
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.my.jni.dlib.data.DLibFace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Build the request of {@link DLibLandmarks68Detector#findLandmarksFromFaces},
+ * i.e. the face bounds in pixels flattened for the JNI call, the way
+ * {@link DLibFaceTracker} does for the tracked faces.
+ */
+@State(Scope.Thread)
+public class FaceBoundsBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Param({"1", "4"})
+    public int faceCount;
+
+    private List<DLibFace> mFaces;
+    private List<Rect> mBounds;
+    private int[] mFlattenBounds = new int[0];
+
+    @Setup
+    public void setup() {
+        mFaces = BenchmarkFaces.createFaces(faceCount);
+        mBounds = toPixelBounds(mFaces);
+    }
+
+    @Benchmark
+    public int[] flattenBounds() {
+        mFlattenBounds = DLibLandmarks68Detector.flattenFaceBounds(mBounds, mFlattenBounds);
+        return mFlattenBounds;
+    }
+
+    @Benchmark
+    public int[] buildRequest() {
+        final List<Rect> bounds = toPixelBounds(mFaces);
+        mFlattenBounds = DLibLandmarks68Detector.flattenFaceBounds(bounds, mFlattenBounds);
+        return mFlattenBounds;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static List<Rect> toPixelBounds(List<DLibFace> faces) {
+        final List<Rect> bounds = new ArrayList<>(faces.size());
+        for (int i = 0; i < faces.size(); ++i) {
+            final RectF bound = faces.get(i).getBound();
+            bounds.add(new Rect((int) (bound.left * WIDTH),
+                                (int) (bound.top * HEIGHT),
+                                (int) (bound.right * WIDTH),
+                                (int) (bound.bottom * HEIGHT)));
+        }
+
+        return bounds;
+    }
+}
@@ -18,51 +18,37 @@
 // OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
 // THE SOFTWARE.
 
-#ifndef COM_MY_JNI_PROFILER_H
-#define COM_MY_JNI_PROFILER_H
+package com.my.jni.dlib;
 
-#include <stack>
-#include <time.h>
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibFace68;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
 
 /**
- * An util class to profile the performance of code.
- * <br/>
- * Usage:
- * <pre>
- * // Init profiler.
- * Profile profiler;
- *
- * // Start profiling
- * profiler.start();
- *
- * // Run your code...
- *
- * // Stop and calculate the interval in milliseconds.
- * double interval = profiler.stopAndGetInterval();
- * </pre>
+ * Copy a face with the scale, e.g. from the normalized coordinates to the
+ * preview's in FaceLandmarksOverlayView#setFaces().
  */
-class Profiler {
-private:
-
-    std::stack<timespec> mTimespecs;
-
-public:
-
-    Profiler();
-
-    ~Profiler();
-
-    /**
-     * Start profiling. The profiler put a monotonic time-stamp to the stack.
-     */
-    void start();
-
-    /**
-     * Stop profiling and pop the time-stamp, then return the interval in
-     * milliseconds.
-     */
-    double stopAndGetInterval();
-};
-
-
-#endif //COM_MY_JNI_PROFILER_H
+@State(Scope.Thread)
+public class FaceCopyBenchmark {
+
+    private DLibFace mFace;
+
+    @Setup
+    public void setup() {
+        mFace = BenchmarkFaces.createFaces(1).get(0);
+    }
+
+    @Benchmark
+    public DLibFace copy() {
+        return new DLibFace68(mFace);
+    }
+
+    @Benchmark
+    public DLibFace copyScaled() {
+        return new DLibFace68(mFace, 1280f, 720f);
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibFace68;
+import com.my.jni.dlib.data.DLibFaceBuffer;
+import com.my.jni.dlib.data.Messages;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turn the detector's output into {@link DLibFace68}s: the protobuf message
+ * the detector used to return versus the {@link DLibFaceBuffer} it writes
+ * now.
+ */
+@State(Scope.Thread)
+public class FaceParsingBenchmark {
+
+    @Param({"1", "4"})
+    public int faceCount;
+
+    private byte[] mFaceList;
+    private DLibFaceBuffer mFaceBuffer;
+
+    @Setup
+    public void setup() {
+        final List<DLibFace> faces = BenchmarkFaces.createFaces(faceCount);
+        mFaceList = BenchmarkFaces.toFaceList(faces);
+        mFaceBuffer = BenchmarkFaces.toFaceBuffer(faces);
+    }
+
+    @Benchmark
+    public List<DLibFace> parseFaceList() throws InvalidProtocolBufferException {
+        final Messages.FaceList rawFaces = Messages.FaceList.parseFrom(mFaceList);
+
+        final List<DLibFace> faces = new ArrayList<>();
+        for (int i = 0; i < rawFaces.getFacesCount(); ++i) {
+            faces.add(new DLibFace68(rawFaces.getFaces(i)));
+        }
+
+        return faces;
+    }
+
+    @Benchmark
+    public List<DLibFace> readFaceBuffer() {
+        final List<DLibFace> faces = new ArrayList<>();
+        DLibFace68.getFaces(mFaceBuffer, faces);
+
+        return faces;
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibFace68;
+import com.my.jni.dlib.data.DLibLandmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+/**
+ * Walk the landmarks by the region accessors like the overlay draws a face.
+ */
+@State(Scope.Thread)
+public class FaceRegionBenchmark {
+
+    private DLibFace mFace;
+
+    @Setup
+    public void setup() {
+        mFace = BenchmarkFaces.createFaces(1).get(0);
+    }
+
+    @Benchmark
+    public void chinLandmarks(Blackhole blackhole) {
+        walk(mFace.getChinLandmarks(), blackhole);
+    }
+
+    @Benchmark
+    public void allRegions(Blackhole blackhole) {
+        walk(mFace.getChinLandmarks(), blackhole);
+        walk(mFace.getLeftEyebrowLandmarks(), blackhole);
+        walk(mFace.getRightEyebrowLandmarks(), blackhole);
+        walk(mFace.getLeftEyeLandmarks(), blackhole);
+        walk(mFace.getRightEyeLandmarks(), blackhole);
+        walk(mFace.getNoseLandmarks(), blackhole);
+        walk(mFace.getInnerLipsLandmarks(), blackhole);
+        walk(mFace.getOuterLipsLandmarks(), blackhole);
+    }
+
+    @Benchmark
+    public void allLandmarks(Blackhole blackhole) {
+        walk(mFace.getAllLandmarks(), blackhole);
+    }
+
+    @Benchmark
+    public void allRegionsIndexed(Blackhole blackhole) {
+        final DLibLandmarks landmarks = mFace.getLandmarks();
+        walk(landmarks, DLibFace68.CHIN_START, DLibFace68.CHIN_END, blackhole);
+        walk(landmarks, DLibFace68.EYEBROW_L_START, DLibFace68.EYEBROW_L_END, blackhole);
+        walk(landmarks, DLibFace68.EYEBROW_R_START, DLibFace68.EYEBROW_R_END, blackhole);
+        walk(landmarks, DLibFace68.EYE_L_START, DLibFace68.EYE_L_END, blackhole);
+        walk(landmarks, DLibFace68.EYE_R_START, DLibFace68.EYE_R_END, blackhole);
+        walk(landmarks, DLibFace68.NOSE_START, DLibFace68.NOSE_END, blackhole);
+        walk(landmarks, DLibFace68.LIPS_INNER_START, DLibFace68.LIPS_INNER_END, blackhole);
+        walk(landmarks, DLibFace68.LIPS_OUTER_START, DLibFace68.LIPS_OUTER_END, blackhole);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static void walk(List<DLibFace.Landmark> landmarks,
+                             Blackhole blackhole) {
+        // Indexed like the overlay, so the list's get() is measured.
+        for (int i = 1; i < landmarks.size(); ++i) {
+            final DLibFace.Landmark prev = landmarks.get(i - 1);
+            final DLibFace.Landmark current = landmarks.get(i);
+            blackhole.consume(current.x - prev.x);
+            blackhole.consume(current.y - prev.y);
+        }
+    }
+
+    /**
+     * Walk the landmarks in [start, end] by the index like the overlay.
+     */
+    private static void walk(DLibLandmarks landmarks,
+                             int start,
+                             int end,
+                             Blackhole blackhole) {
+        for (int i = start + 1; i <= end; ++i) {
+            blackhole.consume(landmarks.getX(i) - landmarks.getX(i - 1));
+            blackhole.consume(landmarks.getY(i) - landmarks.getY(i - 1));
+        }
+    }
+}
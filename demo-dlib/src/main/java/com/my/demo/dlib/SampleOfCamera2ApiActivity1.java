@@ -23,6 +23,7 @@ package com.my.demo.dlib;
 import android.Manifest;
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Configuration;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
@@ -35,6 +36,7 @@ import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
 import android.os.Handler;
@@ -54,14 +56,20 @@ import com.my.demo.dlib.reactive.Camera2CaptureSessionObservable;
 import com.my.demo.dlib.reactive.Camera2ImageReaderObservable;
 import com.my.demo.dlib.reactive.Camera2ImageReaderObservable.OnImageAvailableEvent;
 import com.my.demo.dlib.reactive.Camera2Observable;
+import com.my.demo.dlib.reactive.FaceLandmarksModelObservable;
 import com.my.demo.dlib.reactive.TextureViewObservable;
+import com.my.demo.dlib.util.DlibModelHelper;
 import com.my.demo.dlib.view.AutoFitTextureView;
 import com.my.demo.dlib.view.FaceLandmarksOverlayView;
 import com.my.jni.dlib.DLibLandmarks68Detector;
+import com.my.jni.dlib.DLibTrace;
 import com.my.jni.dlib.IDLibFaceDetector;
+import com.my.jni.dlib.data.DLibFace;
 import com.my.reactive.uiModel.UiModel;
 import com.tbruyelle.rxpermissions2.RxPermissions;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -74,9 +82,11 @@ import butterknife.Unbinder;
 import io.reactivex.Observable;
 import io.reactivex.ObservableSource;
 import io.reactivex.ObservableTransformer;
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
 
 public class SampleOfCamera2ApiActivity1
     extends AppCompatActivity
@@ -88,6 +98,13 @@ public class SampleOfCamera2ApiActivity1
      */
     private static final int MINIMUM_PREVIEW_SIZE = 320;
 
+    /**
+     * The frames for the face detection will be chosen to be the smallest
+     * frame with the preview aspect ratio whose short side is at least
+     * MINIMUM_ANALYSIS_SIZE.
+     */
+    private static final int MINIMUM_ANALYSIS_SIZE = 240;
+
     // View.
     @BindView(R.id.texture)
     AutoFitTextureView mCameraView;
@@ -101,7 +118,10 @@ public class SampleOfCamera2ApiActivity1
 
     // Camera configuration.
     int mSensorOrientation;
+    boolean mIsFacingFront;
     Size mPreviewSize;
+    Size mAnalysisSize;
+    int mAnalysisRotation;
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
 
@@ -131,6 +151,12 @@ public class SampleOfCamera2ApiActivity1
     protected void onResume() {
         super.onResume();
 
+        // Trace the frames of the debug build, see onPause().
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            DLibTrace.clear();
+            DLibTrace.setEnabled(true);
+        }
+
         // Starts a background thread
         mBackgroundThread = new HandlerThread("CameraBackground");
         mBackgroundThread.start();
@@ -139,6 +165,7 @@ public class SampleOfCamera2ApiActivity1
         mDisposables = new CompositeDisposable();
         mDisposables.add(
             grantPermission()
+                .compose(prepareDetectors())
                 .compose(waitForTextureSurfaceReady())
                 .compose(openCameraToGetCameraDevice())
                 .compose(createCaptureSession())
@@ -184,6 +211,18 @@ public class SampleOfCamera2ApiActivity1
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+
+        // Keep the trace of the last frames, e.g. for "adb pull".
+        if (DLibTrace.isEnabled()) {
+            DLibTrace.setEnabled(false);
+            final File file = new File(getExternalFilesDir(null), "dlib-trace.json");
+            try {
+                DLibTrace.dump(file);
+                Log.d("xyz", "The trace is dumped to " + file);
+            } catch (IOException e) {
+                Log.w("xyz", "Failed to dump the trace", e);
+            }
+        }
     }
 
     @Override
@@ -241,6 +280,9 @@ public class SampleOfCamera2ApiActivity1
 
         // View binding.
         mUnbinder.unbind();
+
+        // Release the native detector.
+        mLandmarksDetector.close();
     }
 
     private View.OnClickListener onClickToBack() {
@@ -271,6 +313,87 @@ public class SampleOfCamera2ApiActivity1
             });
     }
 
+    private ObservableTransformer<Object, ?> prepareDetectors() {
+        return new ObservableTransformer<Object, Object>() {
+            @Override
+            public ObservableSource<Object> apply(Observable<Object> upstream) {
+                return upstream
+                    .ofType(Boolean.class)
+                    .flatMap(new Function<Boolean, ObservableSource<Boolean>>() {
+                        @Override
+                        public ObservableSource<Boolean> apply(Boolean granted)
+                            throws Exception {
+                            showProgressBar("Preparing the model...");
+
+                            return initFaceLandmarksDetector();
+                        }
+                    })
+                    // Back to UI for opening the camera.
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .map(new Function<Boolean, Object>() {
+                        @Override
+                        public Object apply(Boolean ready) throws Exception {
+                            hideProgressBar();
+                            return ready;
+                        }
+                    });
+            }
+        };
+    }
+
+    private Observable<Boolean> initFaceLandmarksDetector() {
+        return DlibModelHelper
+            .getService()
+            // Download the trained model.
+            .downloadFace68Model(
+                this,
+                getApplicationContext().getPackageName())
+            // Update progressbar message.
+            .observeOn(AndroidSchedulers.mainThread())
+            .map(new Function<File, File>() {
+                @Override
+                public File apply(File face68ModelPath) throws Exception {
+                    showProgressBar("Initializing face detectors...");
+                    return face68ModelPath;
+                }
+            })
+            // Deserialize the detector.
+            .observeOn(Schedulers.io())
+            .flatMap(new Function<File, ObservableSource<Integer>>() {
+                @Override
+                public ObservableSource<Integer> apply(File face68ModelPath)
+                    throws Exception {
+                    if (face68ModelPath == null || !face68ModelPath.exists()) {
+                        throw new RuntimeException(
+                            "The face68 model is invalid.");
+                    }
+
+                    if (!mLandmarksDetector.isFaceDetectorReady()) {
+                        mLandmarksDetector.prepareFaceDetector();
+                    }
+                    if (mLandmarksDetector.isFaceLandmarksDetectorReady()) {
+                        return Observable.empty();
+                    }
+
+                    return new FaceLandmarksModelObservable(
+                        mLandmarksDetector,
+                        face68ModelPath.getAbsolutePath());
+                }
+            })
+            // Update the loading progress.
+            .observeOn(AndroidSchedulers.mainThread())
+            .map(new Function<Integer, Integer>() {
+                @Override
+                public Integer apply(Integer percent) throws Exception {
+                    showProgressBar("Loading the face landmarks model... " +
+                                    percent + "%");
+                    return percent;
+                }
+            })
+            .ignoreElements()
+            .andThen(Observable.just(true));
+    }
+
     private ObservableTransformer<Object, ?> waitForTextureSurfaceReady() {
         return new ObservableTransformer<Object, Object>() {
             @Override
@@ -335,10 +458,12 @@ public class SampleOfCamera2ApiActivity1
                                                          mPreviewSize.getHeight());
                             final Surface previewSurface = new Surface(texture);
 
-                            // Configure the reader for the preview frames.
+                            // Configure the reader for the frames to analyze.
+                            // It's smaller than the preview so the detection
+                            // runs fast enough.
                             final ImageReader previewImageReader = ImageReader.newInstance(
-                                mPreviewSize.getWidth(),
-                                mPreviewSize.getHeight(),
+                                mAnalysisSize.getWidth(),
+                                mAnalysisSize.getHeight(),
                                 ImageFormat.YUV_420_888, 2);
                             final Surface readerSurface = previewImageReader.getSurface();
 
@@ -445,15 +570,43 @@ public class SampleOfCamera2ApiActivity1
                         @Override
                         public Object apply(OnImageAvailableEvent event)
                             throws Exception {
+                            // Drop the stale frames, they're closed by the
+                            // reader.
+                            final Image image = event.reader.acquireLatestImage();
+                            if (image == null) return 0;
 
                             ProfilerUtil.startProfiling();
+                            final long traceStart = DLibTrace.beginSpan();
+                            DLibTrace.flowEnd("frame", event.traceFlowId);
+
+                            // The Y plane of YUV_420_888 is fed to the
+                            // detector without copying and the image is
+                            // returned to the reader as soon as possible.
+                            final List<DLibFace> faces;
+                            try {
+                                final Image.Plane plane = image.getPlanes()[0];
+                                faces = mLandmarksDetector.findFacesAndLandmarks(
+                                    plane.getBuffer(),
+                                    image.getWidth(),
+                                    image.getHeight(),
+                                    plane.getRowStride(),
+                                    plane.getPixelStride(),
+                                    mAnalysisRotation,
+                                    mIsFacingFront);
+                            } finally {
+                                image.close();
+                            }
 
-                            // TODO: Convert YUV_420_888 to RGB or BGR.
-
-                            Log.d("xyz", String.format("YUV_420_888 to RGB (took %.3f)",
+                            Log.d("xyz", String.format("Detect %d face with landmarks (took %.3f ms)",
+                                                       faces.size(),
                                                        ProfilerUtil.stopProfiling()));
 
-                            return 0;
+                            // Render the faces.
+                            mOverlayView.setFaces(faces);
+
+                            DLibTrace.endSpan("detectFrame", traceStart);
+
+                            return faces.size();
                         }
                     });
             }
@@ -535,6 +688,9 @@ public class SampleOfCamera2ApiActivity1
             throw new RuntimeException("Cannot get available preview/video sizes");
         }
         mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        final Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        mIsFacingFront = facing != null &&
+                         facing == CameraCharacteristics.LENS_FACING_FRONT;
         // TODO: Make it an util method.
         mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
                                          mCameraView.getWidth(),
@@ -550,9 +706,80 @@ public class SampleOfCamera2ApiActivity1
         configureTransform(mPreviewSize.getWidth(),
                            mPreviewSize.getHeight());
 
+        // Configure the frames for the face detection; the overlay renders the
+        // faces in the upright frame coordinate.
+        mAnalysisSize = chooseAnalysisSize(map.getOutputSizes(ImageFormat.YUV_420_888),
+                                           mPreviewSize);
+        mAnalysisRotation = getUprightRotation();
+        if (mAnalysisRotation == 90 || mAnalysisRotation == 270) {
+            mOverlayView.setCameraPreviewSize(mAnalysisSize.getHeight(),
+                                              mAnalysisSize.getWidth());
+        } else {
+            mOverlayView.setCameraPreviewSize(mAnalysisSize.getWidth(),
+                                              mAnalysisSize.getHeight());
+        }
+
         return cameraId;
     }
 
+    /**
+     * Choose the smallest size with the same aspect ratio as the preview and
+     * whose short side is at least {@link #MINIMUM_ANALYSIS_SIZE}.
+     *
+     * @return The optimal size, or the preview size if none matches.
+     */
+    private Size chooseAnalysisSize(Size[] choices,
+                                    Size previewSize) {
+        Size chosenSize = null;
+        for (final Size option : choices) {
+            final boolean sameAspectRatio =
+                (long) option.getWidth() * previewSize.getHeight() ==
+                (long) option.getHeight() * previewSize.getWidth();
+            final boolean bigEnough =
+                Math.min(option.getWidth(), option.getHeight()) >= MINIMUM_ANALYSIS_SIZE;
+
+            if (sameAspectRatio && bigEnough &&
+                (chosenSize == null || mCompareSizesByArea.compare(option, chosenSize) < 0)) {
+                chosenSize = option;
+            }
+        }
+
+        if (chosenSize == null) {
+            chosenSize = previewSize;
+        }
+        Log.d("xyz", "Analysis size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
+
+        return chosenSize;
+    }
+
+    /**
+     * The clockwise rotation in degrees to make the sensor image upright on
+     * the current display.
+     */
+    private int getUprightRotation() {
+        final int displayRotation;
+        switch (getWindowManager().getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                displayRotation = 90;
+                break;
+            case Surface.ROTATION_180:
+                displayRotation = 180;
+                break;
+            case Surface.ROTATION_270:
+                displayRotation = 270;
+                break;
+            default:
+                displayRotation = 0;
+                break;
+        }
+
+        if (mIsFacingFront) {
+            return (mSensorOrientation + displayRotation) % 360;
+        } else {
+            return (mSensorOrientation - displayRotation + 360) % 360;
+        }
+    }
+
     /**
      * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
      * This method should not to be called until the camera preview size is determined in
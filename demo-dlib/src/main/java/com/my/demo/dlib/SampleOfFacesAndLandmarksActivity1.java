@@ -268,6 +268,9 @@ public class SampleOfFacesAndLandmarksActivity1
 
         // View binding.
         mUnbinder.unbind();
+
+        // Release the native detector.
+        mLandmarksDetector.close();
     }
 
     private View.OnClickListener onClickToBack() {
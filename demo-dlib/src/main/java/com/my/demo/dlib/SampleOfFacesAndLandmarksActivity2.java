@@ -281,6 +281,9 @@ public class SampleOfFacesAndLandmarksActivity2
 
         // View binding.
         mUnbinder.unbind();
+
+        // Release the native detector.
+        mLandmarksDetector.close();
     }
 
     private View.OnClickListener onClickToBack() {
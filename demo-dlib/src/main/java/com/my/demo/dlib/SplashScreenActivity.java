@@ -24,6 +24,11 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 
+import com.my.demo.dlib.util.DlibModelHelper;
+import com.my.jni.dlib.DLibInitializer;
+import com.my.jni.dlib.DLibModelRegistry;
+
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Observable;
@@ -39,6 +44,19 @@ public class SplashScreenActivity extends AppCompatActivity {
 //        Fabric.with(this, new Crashlytics());
 
         setContentView(R.layout.activity_splash_screen);
+
+        // Keep the face landmarks model warm across the samples until the
+        // memory is trimmed.
+        DLibModelRegistry.getInstance().registerComponentCallbacks(this);
+
+        // Load the native libraries and warm up the detectors while the
+        // splash screen is showing; the model is warmed up if it's already
+        // downloaded.
+        final File face68Model = DlibModelHelper
+            .getService()
+            .getDownloadedFace68Model(getApplicationContext().getPackageName());
+        DLibInitializer.initializeAsync(
+            face68Model != null ? face68Model.getAbsolutePath() : null);
     }
 
     @Override
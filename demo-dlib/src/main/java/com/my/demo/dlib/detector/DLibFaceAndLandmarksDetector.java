@@ -20,27 +20,21 @@
 
 package com.my.demo.dlib.detector;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
-import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.YuvImage;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.face.Face;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.my.core.util.ProfilerUtil;
 import com.my.demo.dlib.protocol.ICameraMetadata;
 import com.my.demo.dlib.protocol.IDLibFaceOverlay;
+import com.my.jni.dlib.DLibFaceTracker;
+import com.my.jni.dlib.DLibTrace;
 import com.my.jni.dlib.IDLibFaceDetector;
 import com.my.jni.dlib.data.DLibFace;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -54,12 +48,17 @@ public class DLibFaceAndLandmarksDetector extends Detector<DLibFace> {
 
     private final ICameraMetadata mCameraMetadata;
     private final IDLibFaceDetector mFaceDetector;
+    // Full detection every N frames and the landmarks carried by the optical
+    // flow in between.
+    private final DLibFaceTracker mFaceTracker;
 
     public DLibFaceAndLandmarksDetector(final ICameraMetadata cameraMetadata,
                                         final IDLibFaceDetector faceDetector,
                                         final IDLibFaceOverlay overlay) {
         mCameraMetadata = cameraMetadata;
         mFaceDetector = faceDetector;
+        mFaceTracker = new DLibFaceTracker(faceDetector);
+        mFaceTracker.setMode(DLibFaceTracker.Mode.FOLLOW_LANDMARKS);
 
         setProcessor(new PostProcessor(overlay));
     }
@@ -75,6 +74,7 @@ public class DLibFaceAndLandmarksDetector extends Detector<DLibFace> {
         mDetFaces.clear();
 
         ProfilerUtil.startProfiling();
+        final long traceStart = DLibTrace.beginSpan();
 
         // Camera preview dimension.
         final int fw = frame.getMetadata().getWidth();
@@ -82,23 +82,26 @@ public class DLibFaceAndLandmarksDetector extends Detector<DLibFace> {
         // Overlay preview dimension.
         final int ow = getUprightPreviewWidth(frame);
         final int oh = getUprightPreviewHeight(frame);
-        final Matrix transform = getCameraToViewTransform(frame);
 
         Log.d("xyz", String.format("frame (w=%d, h=%d), preview (w=%d, h=%d)",
                                    fw, fh,
                                    ow, oh));
 
-        // Get bitmap from YUV frame.
-        ProfilerUtil.startProfiling();
-        final Bitmap bitmap = getBitmapFromFrame(frame, transform);
-        Log.d("xyz", String.format("Extract bitmap (w=%d, h=%d) from YUV frame (took %.3f ms)",
-                                   bitmap.getWidth(), bitmap.getHeight(),
-                                   ProfilerUtil.stopProfiling()));
-
         // Detect faces and landmarks.
         try {
             ProfilerUtil.startProfiling();
-            List<DLibFace> detFaces = mFaceDetector.findFacesAndLandmarks(bitmap);
+            final List<DLibFace> detFaces;
+            if (frame.getBitmap() != null) {
+                detFaces = mFaceTracker.track(frame.getBitmap());
+            } else {
+                // Feed the Y plane of the NV21 frame directly, the detector
+                // makes it upright natively.
+                detFaces = mFaceTracker.track(
+                    frame.getGrayscaleImageData(),
+                    fw, fh, fw, 1,
+                    getRotationDegrees(frame),
+                    mCameraMetadata.isFacingFront());
+            }
             mDetFaces.clear();
             for (int i = 0; i < detFaces.size(); ++i) {
                 mDetFaces.put(i, detFaces.get(i));
@@ -112,9 +115,8 @@ public class DLibFaceAndLandmarksDetector extends Detector<DLibFace> {
                 ProfilerUtil.stopProfiling()));
 
             return mDetFaces;
-        } catch (InvalidProtocolBufferException err) {
-            err.printStackTrace();
-            return null;
+        } finally {
+            DLibTrace.endSpan("detect", traceStart);
         }
     }
 
@@ -122,52 +124,19 @@ public class DLibFaceAndLandmarksDetector extends Detector<DLibFace> {
     // Protected / Private Methods ////////////////////////////////////////////
 
     // TODO: This method could be an util method.
-    // TODO: Rotation and facing are important parameters.
-    private Matrix getCameraToViewTransform(final Frame frame) {
-        final Matrix transform = new Matrix();
+    /**
+     * The clockwise rotation in degrees to make the frame upright.
+     */
+    private int getRotationDegrees(final Frame frame) {
         switch (frame.getMetadata().getRotation()) {
             case Frame.ROTATION_90:
-                transform.postRotate(90);
-                break;
+                return 90;
             case Frame.ROTATION_180:
-                transform.postRotate(180);
-                break;
+                return 180;
             case Frame.ROTATION_270:
-                transform.postRotate(270);
-                break;
-        }
-
-        if (mCameraMetadata.isFacingFront()) {
-            transform.postScale(-1, 1);
-        }
-
-        return transform;
-    }
-
-    private Bitmap getBitmapFromFrame(final Frame frame,
-                                      final Matrix transform) {
-        if (frame.getBitmap() != null) {
-            return frame.getBitmap();
-        } else {
-            final int width = frame.getMetadata().getWidth();
-            final int height = frame.getMetadata().getHeight();
-            final YuvImage yuvImage = new YuvImage(
-                frame.getGrayscaleImageData().array(),
-                ImageFormat.NV21, width, height, null);
-
-            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            yuvImage.compressToJpeg(new Rect(0, 0, width, height), 50, outputStream);
-
-            final byte[] jpegArray = outputStream.toByteArray();
-            final Bitmap rawBitmap = BitmapFactory.decodeByteArray(
-                jpegArray, 0, jpegArray.length);
-
-            final int bw = rawBitmap.getWidth();
-            final int bh = rawBitmap.getHeight();
-
-            return Bitmap.createBitmap(rawBitmap,
-                                       0, 0, bw, bh,
-                                       transform, false);
+                return 270;
+            default:
+                return 0;
         }
     }
 
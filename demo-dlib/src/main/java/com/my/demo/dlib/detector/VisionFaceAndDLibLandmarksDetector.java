@@ -20,27 +20,20 @@
 
 package com.my.demo.dlib.detector;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.YuvImage;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.face.Face;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.my.core.util.ProfilerUtil;
 import com.my.demo.dlib.protocol.ICameraMetadata;
 import com.my.demo.dlib.protocol.IDLibFaceOverlay;
 import com.my.jni.dlib.IDLibFaceDetector;
 import com.my.jni.dlib.data.DLibFace;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -94,19 +87,11 @@ public class VisionFaceAndDLibLandmarksDetector extends Detector<DLibFace> {
         // Overlay preview dimension.
         final int ow = getUprightPreviewWidth(frame);
         final int oh = getUprightPreviewHeight(frame);
-        final Matrix transform = getCameraToViewTransform(frame);
 
         Log.d("xyz", String.format("frame (w=%d, h=%d), preview (w=%d, h=%d)",
                                    fw, fh,
                                    ow, oh));
 
-        // Get bitmap from YUV frame.
-        ProfilerUtil.startProfiling();
-        final Bitmap bitmap = getBitmapFromFrame(frame, transform);
-        Log.d("xyz", String.format("Extract bitmap (w=%d, h=%d) from YUV frame (took %.3f ms)",
-                                   bitmap.getWidth(), bitmap.getHeight(),
-                                   ProfilerUtil.stopProfiling()));
-
         // Translate the face bounds into something that DLib detector knows.
         final List<Rect> faceBounds = new ArrayList<>();
         for (int i = 0; i < faces.size(); ++i) {
@@ -161,18 +146,29 @@ public class VisionFaceAndDLibLandmarksDetector extends Detector<DLibFace> {
 
 
         // Detect landmarks.
-        try {
-            ProfilerUtil.startProfiling();
-            List<DLibFace> detFaces = mLandmarksDetector.findLandmarksFromFaces(
-                bitmap,
+        ProfilerUtil.startProfiling();
+        final List<DLibFace> detFaces;
+        if (frame.getBitmap() != null) {
+            detFaces = mLandmarksDetector.findLandmarksFromFaces(
+                frame.getBitmap(),
                 faceBounds);
-            mDetFaces.clear();
-            for (int i = 0; i < detFaces.size(); ++i) {
-                mDetFaces.put(i, detFaces.get(i));
-            }
-            Log.d("xyz", String.format("Detect %d face with landmarks (took %.3f ms)",
-                                       detFaces.size(),
-                                       ProfilerUtil.stopProfiling()));
+        } else {
+            // Feed the Y plane of the NV21 frame directly, the detector
+            // makes it upright natively.
+            detFaces = mLandmarksDetector.findLandmarksFromFaces(
+                frame.getGrayscaleImageData(),
+                fw, fh, fw, 1,
+                getRotationDegrees(frame),
+                mCameraMetadata.isFacingFront(),
+                faceBounds);
+        }
+        mDetFaces.clear();
+        for (int i = 0; i < detFaces.size(); ++i) {
+            mDetFaces.put(i, detFaces.get(i));
+        }
+        Log.d("xyz", String.format("Detect %d face with landmarks (took %.3f ms)",
+                                   detFaces.size(),
+                                   ProfilerUtil.stopProfiling()));
 //            Log.d("xyz", String.format("input rect=%s, output rect=%s",
 //                                       new RectF((float) faceBounds.get(0).left / ow,
 //                                                 (float) faceBounds.get(0).top / oh,
@@ -180,67 +176,30 @@ public class VisionFaceAndDLibLandmarksDetector extends Detector<DLibFace> {
 //                                                 (float) faceBounds.get(0).bottom / oh),
 //                                       detFaces.get(0).getBound()));
 
-            Log.d("xyz", String.format(
-                "Process of detecting faces and landmarks done (took %.3f ms)",
-                ProfilerUtil.stopProfiling()));
+        Log.d("xyz", String.format(
+            "Process of detecting faces and landmarks done (took %.3f ms)",
+            ProfilerUtil.stopProfiling()));
 
-            return mDetFaces;
-        } catch (InvalidProtocolBufferException err) {
-            err.printStackTrace();
-            return null;
-        }
+        return mDetFaces;
     }
 
     ///////////////////////////////////////////////////////////////////////////
     // Protected / Private Methods ////////////////////////////////////////////
 
     // TODO: This method could be an util method.
-    // TODO: Rotation and facing are important parameters.
-    private Matrix getCameraToViewTransform(final Frame frame) {
-        final Matrix transform = new Matrix();
+    /**
+     * The clockwise rotation in degrees to make the frame upright.
+     */
+    private int getRotationDegrees(final Frame frame) {
         switch (frame.getMetadata().getRotation()) {
             case Frame.ROTATION_90:
-                transform.postRotate(90);
-                break;
+                return 90;
             case Frame.ROTATION_180:
-                transform.postRotate(180);
-                break;
+                return 180;
             case Frame.ROTATION_270:
-                transform.postRotate(270);
-                break;
-        }
-
-        if (mCameraMetadata.isFacingFront()) {
-            transform.postScale(-1, 1);
-        }
-
-        return transform;
-    }
-
-    private Bitmap getBitmapFromFrame(final Frame frame,
-                                      final Matrix transform) {
-        if (frame.getBitmap() != null) {
-            return frame.getBitmap();
-        } else {
-            final int width = frame.getMetadata().getWidth();
-            final int height = frame.getMetadata().getHeight();
-            final YuvImage yuvImage = new YuvImage(
-                frame.getGrayscaleImageData().array(),
-                ImageFormat.NV21, width, height, null);
-
-            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            yuvImage.compressToJpeg(new Rect(0, 0, width, height), 50, outputStream);
-
-            final byte[] jpegArray = outputStream.toByteArray();
-            final Bitmap rawBitmap = BitmapFactory.decodeByteArray(
-                jpegArray, 0, jpegArray.length);
-
-            final int bw = rawBitmap.getWidth();
-            final int bh = rawBitmap.getHeight();
-
-            return Bitmap.createBitmap(rawBitmap,
-                                       0, 0, bw, bh,
-                                       transform, false);
+                return 270;
+            default:
+                return 0;
         }
     }
 
@@ -23,6 +23,8 @@ package com.my.demo.dlib.reactive;
 import android.media.ImageReader;
 import android.os.Handler;
 
+import com.my.jni.dlib.DLibTrace;
+
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.reactivex.Observable;
@@ -55,9 +57,15 @@ public class Camera2ImageReaderObservable extends Observable<Camera2ImageReaderO
 
     public static class OnImageAvailableEvent {
         public final ImageReader reader;
+        /**
+         * The flow of the frame in the trace, see {@link DLibTrace#flowEnd(String, long)}.
+         */
+        public final long traceFlowId;
 
-        OnImageAvailableEvent(ImageReader reader) {
+        OnImageAvailableEvent(ImageReader reader,
+                              long traceFlowId) {
             this.reader = reader;
+            this.traceFlowId = traceFlowId;
         }
     }
 
@@ -82,7 +90,13 @@ public class Camera2ImageReaderObservable extends Observable<Camera2ImageReaderO
         public void onImageAvailable(ImageReader reader) {
             if (isDisposed()) return;
 
-            mObserver.onNext(new OnImageAvailableEvent(reader));
+            final long start = DLibTrace.beginSpan();
+            final long flowId = DLibTrace.newFlowId();
+            DLibTrace.flowStart("frame", flowId);
+
+            mObserver.onNext(new OnImageAvailableEvent(reader, flowId));
+
+            DLibTrace.endSpan("onImageAvailable", start);
         }
 
         @Override
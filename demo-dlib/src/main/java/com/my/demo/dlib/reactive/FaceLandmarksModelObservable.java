@@ -0,0 +1,113 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.demo.dlib.reactive;
+
+import com.my.jni.dlib.IDLibFaceDetector;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.reactivex.Observable;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Prepare the face landmarks detector and emit the loading progress in
+ * percentage; it completes when the detector is ready. The subscribing thread
+ * waits for the loading, so subscribe on a worker scheduler.
+ */
+public class FaceLandmarksModelObservable extends Observable<Integer> {
+
+    // Given...
+    private final IDLibFaceDetector mDetector;
+    private final String mModelPath;
+
+    public FaceLandmarksModelObservable(IDLibFaceDetector detector,
+                                        String modelPath) {
+        mDetector = detector;
+        mModelPath = modelPath;
+    }
+
+    @Override
+    protected void subscribeActual(Observer<? super Integer> observer) {
+        final DisposableListener listener = new DisposableListener(observer);
+        observer.onSubscribe(listener);
+
+        try {
+            mDetector.prepareFaceLandmarksDetectorAsync(mModelPath, listener).get();
+        } catch (ExecutionException error) {
+            if (!listener.isDisposed()) {
+                observer.onError(error.getCause());
+            }
+            return;
+        } catch (InterruptedException error) {
+            // Disposed while waiting, usually; keep the interrupt for the
+            // scheduler thread either way.
+            Thread.currentThread().interrupt();
+            if (!listener.isDisposed()) {
+                observer.onError(error);
+            }
+            return;
+        }
+
+        if (!listener.isDisposed()) {
+            observer.onComplete();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    private static class DisposableListener
+        implements Disposable,
+                   IDLibFaceDetector.OnModelProgressListener {
+
+        // Given...
+        Observer<? super Integer> mObserver;
+
+        // State.
+        final AtomicBoolean mUnsubscribed = new AtomicBoolean();
+
+        DisposableListener(Observer<? super Integer> observer) {
+            mObserver = observer;
+        }
+
+        @Override
+        public void onProgress(long loadedBytes, long totalBytes) {
+            if (isDisposed()) {
+                // Abort the loading.
+                throw new IllegalStateException("The loading is disposed.");
+            }
+
+            mObserver.onNext((int) (100 * loadedBytes / totalBytes));
+        }
+
+        @Override
+        public void dispose() {
+            mUnsubscribed.set(true);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return mUnsubscribed.get();
+        }
+    }
+}
@@ -166,6 +166,20 @@ public class DlibModelHelper {
         return ob;
     }
 
+    /**
+     * Get the unpacked face68 model if it's downloaded and unpacked; it never
+     * starts the download.
+     *
+     * @return The model file, or null.
+     */
+    public File getDownloadedFace68Model(final String dirName) {
+        final File file = new File(
+            Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
+            dirName + File.separator + FACE68_FILE);
+
+        return file.exists() ? file : null;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Protected / Private Methods ////////////////////////////////////////////
 
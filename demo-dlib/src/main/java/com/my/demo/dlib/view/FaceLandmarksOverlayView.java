@@ -29,9 +29,12 @@ import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
 
 import com.my.demo.dlib.protocol.IDLibFaceOverlay;
+import com.my.jni.dlib.DLibTrace;
 import com.my.jni.dlib.data.DLibFace;
 import com.my.jni.dlib.data.DLibFace68;
+import com.my.jni.dlib.data.DLibLandmarks;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -52,6 +55,8 @@ public class FaceLandmarksOverlayView
     private int mPreviewHeight;
     private float mScaleFromPreviewToView = 1f;
     private final List<DLibFace> mFaces = new CopyOnWriteArrayList<>();
+    // The flow of the faces not drawn yet in the trace, or 0.
+    private volatile long mTraceFlowId = 0;
 
     public FaceLandmarksOverlayView(Context context) {
         this(context, null);
@@ -93,22 +98,44 @@ public class FaceLandmarksOverlayView
 
     @Override
     public void setFaces(List<DLibFace> faces) {
+        final long traceStart = DLibTrace.beginSpan();
+
+        // A scaled copy is a bound and one array of the landmarks; they're
+        // added at once because every add() of the CopyOnWriteArrayList
+        // copies the backing array.
+        final List<DLibFace> scaledFaces = new ArrayList<>(faces.size());
+        for (int i = 0; i < faces.size(); ++i) {
+            scaledFaces.add(new DLibFace68(
+                faces.get(i),
+                mPreviewWidth,
+                mPreviewHeight));
+        }
+
         synchronized (mMutex) {
             mFaces.clear();
+            mFaces.addAll(scaledFaces);
+        }
 
-            for (int i = 0; i < faces.size(); ++i) {
-                mFaces.add(new DLibFace68(
-                    faces.get(i),
-                    mPreviewWidth,
-                    mPreviewHeight));
-            }
+        if (DLibTrace.isEnabled()) {
+            final long flowId = DLibTrace.newFlowId();
+            DLibTrace.flowStart("draw", flowId);
+            mTraceFlowId = flowId;
         }
 
         postInvalidate();
+
+        DLibTrace.endSpan("setFaces", traceStart);
     }
 
     @Override
     public void onDrawForeground(Canvas canvas) {
+        final long traceStart = DLibTrace.beginSpan();
+        final long traceFlowId = mTraceFlowId;
+        if (traceFlowId != 0) {
+            mTraceFlowId = 0;
+            DLibTrace.flowEnd("draw", traceFlowId);
+        }
+
         super.onDrawForeground(canvas);
 
         mRenderMatrix.reset();
@@ -128,106 +155,56 @@ public class FaceLandmarksOverlayView
             // Render boundary.
             canvas.drawRect(face.getBound(), mStrokePaint);
 
-            // Render face's landmarks.
-            for (int j = 0; j < face.getAllLandmarks().size(); ++j) {
-                // Render chin.
-                final List<DLibFace.Landmark> chinMarks = face.getChinLandmarks();
-                for (int k = 1; k < chinMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = chinMarks.get(k - 1);
-                    final DLibFace.Landmark current = chinMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-                }
-
-                // Render left eyebrow.
-                final List<DLibFace.Landmark> leftEyebrowMarks = face.getLeftEyebrowLandmarks();
-                for (int k = 1; k < leftEyebrowMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = leftEyebrowMarks.get(k - 1);
-                    final DLibFace.Landmark current = leftEyebrowMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-                }
-
-                // Render right eyebrow.
-                final List<DLibFace.Landmark> rightEyebrowMarks = face.getRightEyebrowLandmarks();
-                for (int k = 1; k < rightEyebrowMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = rightEyebrowMarks.get(k - 1);
-                    final DLibFace.Landmark current = rightEyebrowMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-                }
-
-                // Render left eye.
-                final List<DLibFace.Landmark> leftEyeMarks = face.getLeftEyeLandmarks();
-                for (int k = 1; k < leftEyeMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = leftEyeMarks.get(k - 1);
-                    final DLibFace.Landmark current = leftEyeMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-
-                    if (k == leftEyeMarks.size() - 1) {
-                        final DLibFace.Landmark first = leftEyeMarks.get(0);
-                        canvas.drawLine(current.x, current.y,
-                                        first.x, first.y, mStrokePaint);
-                    }
-                }
-
-                // Render right eye.
-                final List<DLibFace.Landmark> rightEyeMarks = face.getRightEyeLandmarks();
-                for (int k = 1; k < rightEyeMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = rightEyeMarks.get(k - 1);
-                    final DLibFace.Landmark current = rightEyeMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-
-                    if (k == rightEyeMarks.size() - 1) {
-                        final DLibFace.Landmark first = rightEyeMarks.get(0);
-                        canvas.drawLine(current.x, current.y,
-                                        first.x, first.y, mStrokePaint);
-                    }
-                }
-
-                // Render nose.
-                final List<DLibFace.Landmark> noseMarks = face.getNoseLandmarks();
-                for (int k = 1; k < noseMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = noseMarks.get(k - 1);
-                    final DLibFace.Landmark current = noseMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-                }
-
-                // Render inner lips.
-                final List<DLibFace.Landmark> innerLipsMarks = face.getInnerLipsLandmarks();
-                for (int k = 1; k < innerLipsMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = innerLipsMarks.get(k - 1);
-                    final DLibFace.Landmark current = innerLipsMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-
-                    if (k == innerLipsMarks.size() - 1) {
-                        final DLibFace.Landmark first = innerLipsMarks.get(0);
-                        canvas.drawLine(current.x, current.y,
-                                        first.x, first.y, mStrokePaint);
-                    }
-                }
-
-                // Render outer lips.
-                final List<DLibFace.Landmark> outerLipsMarks = face.getOuterLipsLandmarks();
-                for (int k = 1; k < outerLipsMarks.size(); ++k) {
-                    final DLibFace.Landmark prev = outerLipsMarks.get(k - 1);
-                    final DLibFace.Landmark current = outerLipsMarks.get(k);
-
-                    canvas.drawLine(prev.x, prev.y, current.x, current.y, mStrokePaint);
-
-                    if (k == outerLipsMarks.size() - 1) {
-                        final DLibFace.Landmark first = outerLipsMarks.get(0);
-                        canvas.drawLine(current.x, current.y,
-                                        first.x, first.y, mStrokePaint);
-                    }
-                }
-            }
+            // Render face's landmarks by the regions; a face of the bound only
+            // has no landmark.
+            final DLibLandmarks landmarks = face.getLandmarks();
+            if (landmarks.size() <= DLibFace68.LIPS_INNER_END) continue;
+
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.CHIN_START, DLibFace68.CHIN_END, false);
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.EYEBROW_L_START, DLibFace68.EYEBROW_L_END, false);
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.EYEBROW_R_START, DLibFace68.EYEBROW_R_END, false);
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.EYE_L_START, DLibFace68.EYE_L_END, true);
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.EYE_R_START, DLibFace68.EYE_R_END, true);
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.NOSE_START, DLibFace68.NOSE_END, false);
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.LIPS_INNER_START, DLibFace68.LIPS_INNER_END, true);
+            drawLandmarks(canvas, landmarks,
+                          DLibFace68.LIPS_OUTER_START, DLibFace68.LIPS_OUTER_END, true);
         }
 
         canvas.restore();
+
+        DLibTrace.endSpan("onDrawForeground", traceStart);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    /**
+     * Connect the landmarks in [start, end] inclusively, and the last one to
+     * the first one if it's closed.
+     */
+    private void drawLandmarks(Canvas canvas,
+                               DLibLandmarks landmarks,
+                               int start,
+                               int end,
+                               boolean isClosed) {
+        for (int k = start + 1; k <= end; ++k) {
+            canvas.drawLine(landmarks.getX(k - 1), landmarks.getY(k - 1),
+                            landmarks.getX(k), landmarks.getY(k),
+                            mStrokePaint);
+        }
+
+        if (isClosed) {
+            canvas.drawLine(landmarks.getX(end), landmarks.getY(end),
+                            landmarks.getX(start), landmarks.getY(start),
+                            mStrokePaint);
+        }
     }
 }
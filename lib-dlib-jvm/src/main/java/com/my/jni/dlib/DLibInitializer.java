@@ -0,0 +1,69 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+/**
+ * Load the host build of the native library for the JVM flavor; the Android
+ * flavor also warms up the detectors, which is up to the server here.
+ * <br/>
+ * The library is found in the java.library.path unless the path is given by
+ * {@link #LIBRARY_PATH_PROPERTY}, e.g.
+ * <pre>
+ * java -Ddlib.jni.library=/opt/dlib/libdlib_jni.so ...
+ * </pre>
+ */
+public final class DLibInitializer {
+
+    /**
+     * The system property of the absolute path of libdlib_jni.so.
+     */
+    public static final String LIBRARY_PATH_PROPERTY = "dlib.jni.library";
+
+    private static boolean sIsLibraryLoaded = false;
+
+    private DLibInitializer() {
+        // Utility.
+    }
+
+    /**
+     * Load the native library; it's no-op if it's loaded. The dynamic linker
+     * resolves dlib of the host build, so there is no other library to load
+     * first.
+     */
+    public static synchronized void loadLibraries() {
+        if (sIsLibraryLoaded) return;
+
+        final String path = System.getProperty(LIBRARY_PATH_PROPERTY);
+        try {
+            if (path != null) {
+                System.load(path);
+            } else {
+                System.loadLibrary("dlib_jni");
+            }
+        } catch (UnsatisfiedLinkError error) {
+            throw new RuntimeException(
+                "\"dlib_jni\" not found; check the java.library.path or set " +
+                "-D" + LIBRARY_PATH_PROPERTY + " to the library.", error);
+        }
+
+        sIsLibraryLoaded = true;
+    }
+}
@@ -0,0 +1,230 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import com.my.jni.dlib.data.DLibFaceBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DLibLandmarkStoreTest {
+
+    private static final String URI = "content://media/external/images/1";
+
+    private File mFile;
+    private DLibLandmarkStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("landmarks", ".db");
+        mStore = new DLibLandmarkStore(mFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStore.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void putAndGet_roundTrip() throws Exception {
+        final byte[] hash = hash("photo");
+        mStore.put(hash, URI, 1000, newFaces(2, 68, 0.1f));
+
+        final DLibFaceBuffer out = new DLibFaceBuffer(1);
+        assertTrue(mStore.get(hash, out));
+        assertFaces(newFaces(2, 68, 0.1f), out);
+        assertFalse(mStore.get(hash("other"), out));
+    }
+
+    @Test
+    public void putAndGet_boundsOnly() throws Exception {
+        final byte[] hash = hash("photo");
+        mStore.put(hash, null, 0, newFaces(3, 0, 0.2f));
+
+        final DLibFaceBuffer out = new DLibFaceBuffer();
+        assertTrue(mStore.get(hash, out));
+        assertEquals(0, out.getLandmarkCount());
+        assertFaces(newFaces(3, 0, 0.2f), out);
+    }
+
+    @Test
+    public void reopen_rebuildsIndex() throws Exception {
+        mStore.put(hash("a"), URI, 1000, newFaces(1, 68, 0.1f));
+        mStore.put(hash("b"), null, 0, newFaces(2, 68, 0.3f));
+        // The faces stored again supersede the previous ones.
+        mStore.put(hash("a"), URI, 2000, newFaces(1, 68, 0.5f));
+        reopen();
+
+        assertEquals(2, mStore.size());
+        final DLibFaceBuffer out = new DLibFaceBuffer();
+        assertTrue(mStore.get(hash("a"), out));
+        assertFaces(newFaces(1, 68, 0.5f), out);
+        assertTrue(mStore.get(hash("b"), out));
+        assertFaces(newFaces(2, 68, 0.3f), out);
+        assertArrayEquals(hash("a"), mStore.findContentHash(URI, 2000));
+    }
+
+    @Test
+    public void reopen_truncatesTornRecord() throws Exception {
+        mStore.put(hash("a"), URI, 1000, newFaces(1, 68, 0.1f));
+        final long validLength = mFile.length();
+        mStore.put(hash("b"), null, 0, newFaces(2, 68, 0.3f));
+        mStore.close();
+
+        // A crash in the middle of the append.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+        mStore = new DLibLandmarkStore(mFile);
+
+        assertEquals(validLength, mFile.length());
+        assertEquals(1, mStore.size());
+        assertTrue(mStore.contains(hash("a")));
+        assertFalse(mStore.contains(hash("b")));
+
+        // The store is appended after the cut.
+        mStore.put(hash("b"), null, 0, newFaces(2, 68, 0.3f));
+        reopen();
+        assertEquals(2, mStore.size());
+    }
+
+    @Test
+    public void reopen_truncatesRecordOfInvalidCounts() throws Exception {
+        mStore.put(hash("a"), URI, 1000, newFaces(1, 68, 0.1f));
+        final long validLength = mFile.length();
+        mStore.close();
+
+        // A record whose CRC is valid but whose landmark count exceeds the
+        // maximum.
+        appendRecord(hash("b"), 1, DLibFaceBuffer.MAX_LANDMARKS + 1);
+        mStore = new DLibLandmarkStore(mFile);
+
+        assertEquals(validLength, mFile.length());
+        assertEquals(1, mStore.size());
+        assertFalse(mStore.contains(hash("b")));
+    }
+
+    @Test
+    public void findContentHash_missesAfterModification() throws Exception {
+        final byte[] hash = hash("photo");
+        mStore.put(hash, URI, 1000, newFaces(1, 68, 0.1f));
+
+        assertArrayEquals(hash, mStore.findContentHash(URI, 1000));
+        assertNull(mStore.findContentHash(URI, 1001));
+        assertNull(mStore.findContentHash("content://media/external/images/2", 1000));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private void reopen() throws IOException {
+        mStore.close();
+        mStore = new DLibLandmarkStore(mFile);
+    }
+
+    /**
+     * Append a record of the given counts and only the bound of one face,
+     * with a valid CRC.
+     */
+    private void appendRecord(byte[] contentHash,
+                              int faceCount,
+                              int landmarkCount) throws IOException {
+        final int payloadBytes = contentHash.length + 8 + 2 + 8 + 4 * 4;
+        final ByteBuffer record = ByteBuffer
+            .allocate(8 + payloadBytes)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(payloadBytes)
+              .putInt(0)
+              .put(contentHash)
+              .putLong(0)
+              .putShort((short) 0)
+              .putInt(faceCount)
+              .putInt(landmarkCount)
+              .putFloat(0).putFloat(0).putFloat(1).putFloat(1);
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, payloadBytes);
+        record.putInt(4, (int) crc.getValue());
+
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(file.length());
+            file.write(record.array());
+        }
+    }
+
+    private static byte[] hash(String content) {
+        final byte[] bytes = content.getBytes(Charset.forName("UTF-8"));
+        return DLibLandmarkStore.hash(bytes, 0, bytes.length);
+    }
+
+    private static DLibFaceBuffer newFaces(int faceCount,
+                                           int landmarkCount,
+                                           float seed) {
+        final DLibFaceBuffer faces = new DLibFaceBuffer(faceCount);
+        faces.setHeader(faceCount, landmarkCount);
+        final float[] bound = new float[4];
+        final float[] landmarks = new float[2 * landmarkCount];
+        for (int i = 0; i < faceCount; ++i) {
+            for (int j = 0; j < bound.length; ++j) {
+                bound[j] = seed + 0.01f * (i + j);
+            }
+            for (int j = 0; j < landmarks.length; ++j) {
+                landmarks[j] = seed + 0.001f * (i + j);
+            }
+            faces.setFace(i, bound, landmarks);
+        }
+
+        return faces;
+    }
+
+    private static void assertFaces(DLibFaceBuffer expected,
+                                    DLibFaceBuffer actual) {
+        assertEquals(expected.getFaceCount(), actual.getFaceCount());
+        assertEquals(expected.getLandmarkCount(), actual.getLandmarkCount());
+
+        final float[] expectedValues = new float[2 * DLibFaceBuffer.MAX_LANDMARKS];
+        final float[] actualValues = new float[2 * DLibFaceBuffer.MAX_LANDMARKS];
+        for (int i = 0; i < expected.getFaceCount(); ++i) {
+            expected.getBound(i, expectedValues);
+            actual.getBound(i, actualValues);
+            assertArrayEquals(expectedValues, actualValues, 0);
+
+            expected.getLandmarks(i, expectedValues);
+            actual.getLandmarks(i, actualValues);
+            assertArrayEquals(expectedValues, actualValues, 0);
+        }
+    }
+}
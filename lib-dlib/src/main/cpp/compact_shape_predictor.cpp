@@ -0,0 +1,368 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <algorithm>
+#include <cmath>
+#include <cstring>
+#include <my/dlib/compact_shape_predictor.h>
+
+/**
+ * The section alignment of the compact model.
+ */
+static const uint32_t ALIGNMENT = 16;
+
+static uint32_t align(uint64_t offset) {
+    return (uint32_t) ((offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+}
+
+static size_t getLeafValueSize(uint32_t format) {
+    switch (format) {
+        case CompactShapePredictor::FLOAT32:
+            return sizeof(float);
+        case CompactShapePredictor::FLOAT16:
+            return sizeof(uint16_t);
+        default:
+            return sizeof(int8_t);
+    }
+}
+
+/**
+ * Write the bytes and pad them to the next section.
+ */
+static void writeSection(std::ostream& out,
+                         uint64_t& offset,
+                         const void* data,
+                         size_t size) {
+    out.write(static_cast<const char*>(data), size);
+    offset += size;
+
+    static const char padding[ALIGNMENT] = {0};
+    const uint32_t next = align(offset);
+    out.write(padding, next - offset);
+    offset = next;
+}
+
+bool CompactShapePredictor::isCompact(const MappedFile& file) {
+    uint32_t magic;
+    if (file.size() < sizeof(Header)) return false;
+
+    memcpy(&magic, file.data(), sizeof(magic));
+    return magic == MAGIC;
+}
+
+void CompactShapePredictor::convert(std::istream& dlibModel,
+                                    LeafFormat format,
+                                    std::ostream& out) {
+    using namespace dlib::impl;
+
+    // The same layout as dlib::deserialize(shape_predictor&, std::istream&).
+    int version = 0;
+    dlib::matrix<float, 0, 1> initialShape;
+    std::vector<std::vector<regression_tree> > forests;
+    std::vector<std::vector<unsigned long> > anchors;
+    std::vector<std::vector<dlib::vector<float, 2> > > deltas;
+    dlib::deserialize(version, dlibModel);
+    if (version != 1) {
+        throw dlib::serialization_error("Unexpected version of dlib::shape_predictor.");
+    }
+    dlib::deserialize(initialShape, dlibModel);
+    dlib::deserialize(forests, dlibModel);
+    dlib::deserialize(anchors, dlibModel);
+    dlib::deserialize(deltas, dlibModel);
+
+    // Every tree must be complete at the same depth and every cascade must
+    // have the same number of trees and features.
+    if (forests.empty() || forests[0].empty() ||
+        anchors.size() != forests.size() || deltas.size() != forests.size()) {
+        throw dlib::serialization_error("The shape predictor has no trees.");
+    }
+    Header header;
+    memset(&header, 0, sizeof(header));
+    header.magic = MAGIC;
+    header.version = VERSION;
+    header.partCount = (uint32_t) initialShape.size() / 2;
+    header.cascadeCount = (uint32_t) forests.size();
+    header.treeCount = (uint32_t) forests[0].size();
+    header.featureCount = (uint32_t) anchors[0].size();
+    header.leafFormat = (uint32_t) format;
+
+    const unsigned long splitCount = forests[0][0].splits.size();
+    while ((1ul << header.treeDepth) - 1 < splitCount) ++header.treeDepth;
+    if ((1ul << header.treeDepth) - 1 != splitCount || header.featureCount > 65536) {
+        throw dlib::serialization_error("The trees are not supported.");
+    }
+    for (unsigned long c = 0; c < forests.size(); ++c) {
+        if (forests[c].size() != header.treeCount ||
+            anchors[c].size() != header.featureCount ||
+            deltas[c].size() != header.featureCount) {
+            throw dlib::serialization_error("The cascades are not of the same size.");
+        }
+        for (unsigned long t = 0; t < forests[c].size(); ++t) {
+            const regression_tree& tree = forests[c][t];
+            if (tree.splits.size() != splitCount ||
+                tree.leaf_values.size() != splitCount + 1) {
+                throw dlib::serialization_error("The trees are not of the same depth.");
+            }
+            for (unsigned long l = 0; l < tree.leaf_values.size(); ++l) {
+                if (tree.leaf_values[l].size() != initialShape.size()) {
+                    throw dlib::serialization_error("The leaf is not of the shape size.");
+                }
+            }
+        }
+    }
+
+    // Flatten the sections.
+    const unsigned long valueCount = 2 * header.partCount;
+    std::vector<float> initialValues(initialShape.begin(), initialShape.end());
+    std::vector<uint16_t> anchorValues;
+    std::vector<float> deltaValues;
+    std::vector<float> leafScales(header.cascadeCount, 1.f);
+    std::vector<Split> splits;
+    for (unsigned long c = 0; c < forests.size(); ++c) {
+        for (unsigned long f = 0; f < header.featureCount; ++f) {
+            anchorValues.push_back((uint16_t) anchors[c][f]);
+            deltaValues.push_back(deltas[c][f].x());
+            deltaValues.push_back(deltas[c][f].y());
+        }
+        for (unsigned long t = 0; t < forests[c].size(); ++t) {
+            for (unsigned long i = 0; i < splitCount; ++i) {
+                const split_feature& feature = forests[c][t].splits[i];
+                Split split;
+                split.idx1 = (uint16_t) feature.idx1;
+                split.idx2 = (uint16_t) feature.idx2;
+                split.thresh = feature.thresh;
+                splits.push_back(split);
+            }
+        }
+
+        if (format == INT8) {
+            float maxMagnitude = 0.f;
+            for (unsigned long t = 0; t < forests[c].size(); ++t) {
+                const std::vector<dlib::matrix<float, 0, 1> >& leaves = forests[c][t].leaf_values;
+                for (unsigned long l = 0; l < leaves.size(); ++l) {
+                    maxMagnitude = std::max(maxMagnitude, dlib::max(dlib::abs(leaves[l])));
+                }
+            }
+            if (maxMagnitude > 0.f) {
+                leafScales[c] = maxMagnitude / 127.f;
+            }
+        }
+    }
+
+    const uint64_t leafCount = (uint64_t) header.cascadeCount * header.treeCount * (splitCount + 1);
+    std::vector<char> leafValues(leafCount * valueCount * getLeafValueSize(format));
+    char* leafValue = leafValues.data();
+    for (unsigned long c = 0; c < forests.size(); ++c) {
+        for (unsigned long t = 0; t < forests[c].size(); ++t) {
+            const std::vector<dlib::matrix<float, 0, 1> >& leaves = forests[c][t].leaf_values;
+            for (unsigned long l = 0; l < leaves.size(); ++l) {
+                for (unsigned long k = 0; k < valueCount; ++k) {
+                    const float value = leaves[l](k);
+                    if (format == FLOAT32) {
+                        memcpy(leafValue, &value, sizeof(float));
+                    } else if (format == FLOAT16) {
+                        const uint16_t half = floatToHalf(value);
+                        memcpy(leafValue, &half, sizeof(uint16_t));
+                    } else {
+                        const float quantized = std::round(value / leafScales[c]);
+                        *leafValue = (char) std::max(-127.f, std::min(127.f, quantized));
+                    }
+                    leafValue += getLeafValueSize(format);
+                }
+            }
+        }
+    }
+
+    // Lay out the sections.
+    uint64_t offset = align(sizeof(Header));
+    header.initialShapeOffset = (uint32_t) offset;
+    offset = align(offset + initialValues.size() * sizeof(float));
+    header.anchorsOffset = (uint32_t) offset;
+    offset = align(offset + anchorValues.size() * sizeof(uint16_t));
+    header.deltasOffset = (uint32_t) offset;
+    offset = align(offset + deltaValues.size() * sizeof(float));
+    header.leafScalesOffset = (uint32_t) offset;
+    offset = align(offset + leafScales.size() * sizeof(float));
+    header.splitsOffset = (uint32_t) offset;
+    offset = align(offset + splits.size() * sizeof(Split));
+    header.leavesOffset = (uint32_t) offset;
+    offset = align(offset + leafValues.size());
+    if (offset > UINT32_MAX) {
+        throw dlib::serialization_error("The model is too big.");
+    }
+    header.fileSize = (uint32_t) offset;
+
+    offset = 0;
+    writeSection(out, offset, &header, sizeof(header));
+    writeSection(out, offset, initialValues.data(), initialValues.size() * sizeof(float));
+    writeSection(out, offset, anchorValues.data(), anchorValues.size() * sizeof(uint16_t));
+    writeSection(out, offset, deltaValues.data(), deltaValues.size() * sizeof(float));
+    writeSection(out, offset, leafScales.data(), leafScales.size() * sizeof(float));
+    writeSection(out, offset, splits.data(), splits.size() * sizeof(Split));
+    writeSection(out, offset, leafValues.data(), leafValues.size());
+}
+
+CompactShapePredictor::CompactShapePredictor(std::unique_ptr<MappedFile> file)
+    : mFile(std::move(file)),
+      mHeader(NULL),
+      mSplits(NULL),
+      mLeaves(NULL),
+      mLeafScales(NULL) {
+    if (!isCompact(*mFile)) {
+        throw dlib::serialization_error("It's not a compact shape predictor.");
+    }
+
+    const char* data = mFile->data();
+    mHeader = reinterpret_cast<const Header*>(data);
+    const Header& header = *mHeader;
+    if (header.version != VERSION) {
+        throw dlib::serialization_error("Unexpected version of the compact shape predictor.");
+    }
+    if (header.fileSize != mFile->size() ||
+        header.partCount == 0 ||
+        header.cascadeCount == 0 ||
+        header.treeDepth == 0 || header.treeDepth > 16 ||
+        header.leafFormat > INT8) {
+        throw dlib::serialization_error("The compact shape predictor is corrupted.");
+    }
+
+    // Every section must be aligned and within the file.
+    const uint64_t valueCount = 2 * header.partCount;
+    const uint64_t splitCount = (1ull << header.treeDepth) - 1;
+    const uint64_t treeCount = (uint64_t) header.cascadeCount * header.treeCount;
+    const uint64_t featureCount = (uint64_t) header.cascadeCount * header.featureCount;
+    const uint64_t sections[][2] = {
+        {header.initialShapeOffset, valueCount * sizeof(float)},
+        {header.anchorsOffset, featureCount * sizeof(uint16_t)},
+        {header.deltasOffset, featureCount * 2 * sizeof(float)},
+        {header.leafScalesOffset, header.cascadeCount * sizeof(float)},
+        {header.splitsOffset, treeCount * splitCount * sizeof(Split)},
+        {header.leavesOffset, treeCount * (splitCount + 1) * valueCount *
+                              getLeafValueSize(header.leafFormat)}
+    };
+    for (unsigned long i = 0; i < sizeof(sections) / sizeof(sections[0]); ++i) {
+        if (sections[i][0] % ALIGNMENT != 0 ||
+            sections[i][0] < sizeof(Header) ||
+            sections[i][0] + sections[i][1] > header.fileSize) {
+            throw dlib::serialization_error("The compact shape predictor is corrupted.");
+        }
+    }
+
+    mSplits = reinterpret_cast<const Split*>(data + header.splitsOffset);
+    mLeaves = data + header.leavesOffset;
+    mLeafScales = reinterpret_cast<const float*>(data + header.leafScalesOffset);
+    for (uint64_t i = 0; i < treeCount * splitCount; ++i) {
+        if (mSplits[i].idx1 >= header.featureCount ||
+            mSplits[i].idx2 >= header.featureCount) {
+            throw dlib::serialization_error("The compact shape predictor is corrupted.");
+        }
+    }
+
+    // Copy the small sections.
+    const float* initialShape = reinterpret_cast<const float*>(data + header.initialShapeOffset);
+    mInitialShape.set_size((long) valueCount);
+    for (unsigned long k = 0; k < valueCount; ++k) {
+        mInitialShape(k) = initialShape[k];
+    }
+
+    const uint16_t* anchors = reinterpret_cast<const uint16_t*>(data + header.anchorsOffset);
+    const float* deltas = reinterpret_cast<const float*>(data + header.deltasOffset);
+    mAnchors.resize(header.cascadeCount);
+    mDeltas.resize(header.cascadeCount);
+    for (unsigned long c = 0; c < header.cascadeCount; ++c) {
+        for (unsigned long f = 0; f < header.featureCount; ++f) {
+            const unsigned long i = c * header.featureCount + f;
+            if (anchors[i] >= header.partCount) {
+                throw dlib::serialization_error("The compact shape predictor is corrupted.");
+            }
+            mAnchors[c].push_back(anchors[i]);
+            mDeltas[c].push_back(dlib::vector<float, 2>(deltas[2 * i], deltas[2 * i + 1]));
+        }
+    }
+}
+
+uint16_t CompactShapePredictor::floatToHalf(float value) {
+    uint32_t bits;
+    memcpy(&bits, &value, sizeof(bits));
+
+    const uint16_t sign = (uint16_t) ((bits >> 16) & 0x8000);
+    const uint32_t biasedExponent = (bits >> 23) & 0xff;
+    uint32_t mantissa = bits & 0x7fffff;
+
+    // Infinity and NaN.
+    if (biasedExponent == 0xff) {
+        return (uint16_t) (sign | 0x7c00 | (mantissa ? 0x200 : 0));
+    }
+
+    const int exponent = (int) biasedExponent - 127 + 15;
+    if (exponent >= 31) {
+        // Overflow to infinity.
+        return (uint16_t) (sign | 0x7c00);
+    }
+    if (exponent <= 0) {
+        // Subnormal or zero.
+        if (exponent < -10) return sign;
+
+        mantissa |= 0x800000;
+        const uint32_t shift = (uint32_t) (14 - exponent);
+        uint32_t half = mantissa >> shift;
+        const uint32_t remainder = mantissa & ((1u << shift) - 1);
+        const uint32_t midpoint = 1u << (shift - 1);
+        if (remainder > midpoint || (remainder == midpoint && (half & 1))) ++half;
+
+        return (uint16_t) (sign | half);
+    }
+
+    // The carry of the rounding goes to the exponent, up to infinity.
+    uint32_t half = ((uint32_t) exponent << 10) | (mantissa >> 13);
+    const uint32_t remainder = mantissa & 0x1fff;
+    if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1))) ++half;
+
+    return (uint16_t) (sign | half);
+}
+
+float CompactShapePredictor::halfToFloat(uint16_t value) {
+    const uint32_t sign = ((uint32_t) value & 0x8000) << 16;
+    uint32_t exponent = ((uint32_t) value >> 10) & 0x1f;
+    uint32_t mantissa = (uint32_t) value & 0x3ff;
+
+    uint32_t bits;
+    if (exponent == 0) {
+        if (mantissa == 0) {
+            bits = sign;
+        } else {
+            // Normalize the subnormal.
+            exponent = 127 - 15 + 1;
+            while (!(mantissa & 0x400)) {
+                mantissa <<= 1;
+                --exponent;
+            }
+            bits = sign | (exponent << 23) | ((mantissa & 0x3ff) << 13);
+        }
+    } else if (exponent == 31) {
+        bits = sign | 0x7f800000 | (mantissa << 13);
+    } else {
+        bits = sign | ((exponent + 127 - 15) << 23) | (mantissa << 13);
+    }
+
+    float result;
+    memcpy(&result, &bits, sizeof(result));
+    return result;
+}
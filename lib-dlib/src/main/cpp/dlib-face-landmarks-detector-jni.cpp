@@ -18,28 +18,64 @@
 // OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
 // THE SOFTWARE.
 
+#include <algorithm>
+#include <cmath>
+#include <memory>
+#include <stdexcept>
 #include <jni.h>
-#include <android/log.h>
-#include <android/bitmap.h>
 #include <dlib/image_processing/frontal_face_detector.h>
 #include <dlib/image_processing.h>
 #include <dlib/image_io.h>
+#include <dlib/image_transforms.h>
 #include <my/jni.h>
-#include <my/profiler.h>
-#include <my/dlib/data/messages.pb.h>
-
+#include <my/metrics.h>
+#include <my/trace.h>
+#include <my/dlib/detector_context.h>
+#include <my/dlib/face_buffer.h>
+#include <my/dlib/image_util.h>
+#include <my/dlib/model_cache.h>
+
+// The library is also built for the JVM on Linux, where only the Bitmap entry
+// points are missing.
+#ifdef __ANDROID__
+#include <android/log.h>
+#include <android/bitmap.h>
 #define LOGI(...) \
   ((void)__android_log_print(ANDROID_LOG_INFO, "dlib-jni:", __VA_ARGS__))
+#else
+#include <cstdio>
+#define LOGI(...) \
+  ((void)fprintf(stderr, __VA_ARGS__), (void)fputc('\n', stderr))
+#endif
+
+// The per-frame logs cost more than some of the stages they describe, so
+// they're only built with -DMY_VERBOSE_LOG; the latencies are in Metrics.
+#ifdef MY_VERBOSE_LOG
+#define LOGV(...) LOGI(__VA_ARGS__)
+#else
+#define LOGV(...) ((void) 0)
+#endif
 
 #define JNI_METHOD(NAME) \
+    Java_com_my_jni_dlib_DLibLandmarks68Engine_##NAME
+
+#define JNI_BITMAP_METHOD(NAME) \
     Java_com_my_jni_dlib_DLibLandmarks68Detector_##NAME
 
-using namespace ::com::my::jni::dlib::data;
+#ifdef __ANDROID__
 
 // FIXME: Create a class inheriting from dlib::array2d<dlib::rgb_pixel>.
-void convertBitmapToArray2d(JNIEnv* env,
+/**
+ * Copy the bitmap pixels to the given image. The image is only reallocated
+ * when the bitmap dimension is different from the image's.
+ *
+ * @return false if a Java exception is thrown.
+ */
+bool convertBitmapToArray2d(JNIEnv* env,
                             jobject bitmap,
                             dlib::array2d<dlib::rgb_pixel>& out) {
+    StageTimer timer(Metrics::IMAGE_CONVERSION);
+
     AndroidBitmapInfo bitmapInfo;
     void* pixels;
     int state;
@@ -47,48 +83,711 @@ void convertBitmapToArray2d(JNIEnv* env,
     if (0 > (state = AndroidBitmap_getInfo(env, bitmap, &bitmapInfo))) {
         LOGI("L%d: AndroidBitmap_getInfo() failed! error=%d", __LINE__, state);
         throwException(env, "AndroidBitmap_getInfo() failed!");
-        return;
+        return false;
     } else if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
         LOGI("L%d: Bitmap format is not RGB_565!", __LINE__);
         throwException(env, "Bitmap format is not RGB_565!");
+        return false;
     }
 
     // Lock the bitmap for copying the pixels safely.
     if (0 > (state = AndroidBitmap_lockPixels(env, bitmap, &pixels))) {
         LOGI("L%d: AndroidBitmap_lockPixels() failed! error=%d", __LINE__, state);
         throwException(env, "AndroidBitmap_lockPixels() failed!");
-        return;
+        return false;
+    }
+
+    LOGV("L%d: info.width=%d, info.height=%d", __LINE__, bitmapInfo.width, bitmapInfo.height);
+    copyRgbaToArray2d((const uint8_t*) pixels,
+                      (long) bitmapInfo.width,
+                      (long) bitmapInfo.height,
+                      (long) bitmapInfo.stride,
+                      out);
+
+    // Unlock the bitmap.
+    AndroidBitmap_unlockPixels(env, bitmap);
+
+    Metrics::increment(Metrics::FRAMES);
+
+    return true;
+}
+
+#endif // __ANDROID__
+
+/**
+ * Copy the pixels to the context's upright image of the format, i.e.
+ * context->grayImage for PIXEL_FORMAT_GRAY_8 and context->rgbImage for
+ * PIXEL_FORMAT_RGBA_8888.
+ */
+void copyImageToArray2d(DetectorContext* context,
+                        const uint8_t* pixels,
+                        jint width,
+                        jint height,
+                        jint rowStride,
+                        jint pixelStride,
+                        jint format,
+                        jint rotation,
+                        bool mirrored) {
+    if (format == PIXEL_FORMAT_GRAY_8) {
+        copyLuminanceToArray2d(pixels, width, height, rowStride, pixelStride,
+                               rotation, mirrored, context->grayImage);
+    } else {
+        copyRgbaToArray2d(pixels, width, height, rowStride, pixelStride,
+                          rotation, mirrored, context->rgbImage);
     }
+}
 
-    LOGI("L%d: info.width=%d, info.height=%d", __LINE__, bitmapInfo.width, bitmapInfo.height);
-    out.set_size((long) bitmapInfo.height, (long) bitmapInfo.width);
+/**
+ * Copy the image in either the direct buffer or the byte array to the
+ * context's upright image of the format, see copyImageToArray2d().
+ *
+ * @return false if a Java exception is thrown.
+ */
+bool convertImageToArray2d(JNIEnv* env,
+                           DetectorContext* context,
+                           jobject buffer,
+                           jbyteArray array,
+                           jint width,
+                           jint height,
+                           jint rowStride,
+                           jint pixelStride,
+                           jint format,
+                           jint rotation,
+                           bool mirrored) {
+    StageTimer timer(Metrics::IMAGE_CONVERSION);
+
+    const jint bytesPerPixel = getBytesPerPixel(format);
+    if (bytesPerPixel == 0) {
+        throwException(env, "Unsupported pixel format!");
+        return false;
+    }
+    if (width <= 0 || height <= 0 || pixelStride < bytesPerPixel ||
+        rowStride < (width - 1) * pixelStride + bytesPerPixel) {
+        throwException(env, "Invalid image dimension!");
+        return false;
+    }
+    if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+        throwException(env, "The rotation must be 0, 90, 180 or 270!");
+        return false;
+    }
 
-    char* line = (char*) pixels;
-    for (int h = 0; h < bitmapInfo.height; ++h) {
-        for (int w = 0; w < bitmapInfo.width; ++w) {
-            uint32_t* color = (uint32_t*) (line + 4 * w);
+    const jlong minSize = (jlong) (height - 1) * rowStride +
+                          (jlong) (width - 1) * pixelStride + bytesPerPixel;
+    if (buffer != NULL) {
+        const uint8_t* pixels = (const uint8_t*) env->GetDirectBufferAddress(buffer);
+        if (pixels == NULL ||
+            env->GetDirectBufferCapacity(buffer) < minSize) {
+            throwException(env, "The image buffer is not a valid direct buffer!");
+            return false;
+        }
 
-            out[h][w].red = (unsigned char) (0xFF & ((*color) >> 24));
-            out[h][w].green = (unsigned char) (0xFF & ((*color) >> 16));
-            out[h][w].blue = (unsigned char) (0xFF & ((*color) >> 8));
+        copyImageToArray2d(context, pixels,
+                           width, height, rowStride, pixelStride,
+                           format, rotation, mirrored);
+    } else if (array != NULL) {
+        if (env->GetArrayLength(array) < minSize) {
+            throwException(env, "The image array is too small!");
+            return false;
         }
 
-        line = line + bitmapInfo.stride;
+        // The big array is not movable so that it's usually not copied.
+        jbyte* pixels = env->GetByteArrayElements(array, NULL);
+        copyImageToArray2d(context, (const uint8_t*) pixels,
+                           width, height, rowStride, pixelStride,
+                           format, rotation, mirrored);
+        env->ReleaseByteArrayElements(array, pixels, JNI_ABORT);
+    } else {
+        throwException(env, "The image is null!");
+        return false;
     }
 
-    // Unlock the bitmap.
-    AndroidBitmap_unlockPixels(env, bitmap);
+    Metrics::increment(Metrics::FRAMES);
+
+    return true;
+}
+
+/**
+ * Scan the faces in the given image. The image is resized by the given scale
+ * into the scratch area and the bounds are mapped back to the given image.
+ * The detection runs on the workers unless they're null.
+ */
+template <typename pixel_type>
+void scanFaces(dlib::frontal_face_detector& detector,
+               double scale,
+               FaceDetectionScratch<pixel_type>& scratch,
+               WorkerPool* workers,
+               const dlib::array2d<pixel_type>& img,
+               std::vector<dlib::rect_detection>& out) {
+    // Resize the image.
+    const dlib::array2d<pixel_type>* scanned = &img;
+    if (scale != 1) {
+        scratch.scaledImage.set_size(
+            std::max(1L, (long) (img.nr() * scale + 0.5)),
+            std::max(1L, (long) (img.nc() * scale + 0.5)));
+        dlib::resize_image(img, scratch.scaledImage);
+        scanned = &scratch.scaledImage;
+    }
+
+    if (workers != NULL) {
+        scratch.parallelDetector.detect(detector, *workers, *scanned, out);
+    } else {
+        detector(*scanned, out);
+    }
+
+    // Map the bounds back to the given image.
+    if (scale != 1) {
+        for (unsigned long i = 0; i < out.size(); ++i) {
+            const dlib::rectangle& rect = out[i].rect;
+            out[i].rect = dlib::rectangle(
+                (long) std::floor(rect.left() / scale + 0.5),
+                (long) std::floor(rect.top() / scale + 0.5),
+                (long) std::floor(rect.right() / scale + 0.5),
+                (long) std::floor(rect.bottom() / scale + 0.5));
+        }
+    }
+}
+
+/**
+ * Scan the faces in the given image by the context's detection scale. The
+ * detection runs on the context's workers unless the parallel face detection
+ * is disabled or there is only one thread.
+ */
+template <typename pixel_type>
+void scanFaces(DetectorContext* context,
+               dlib::frontal_face_detector& detector,
+               const dlib::array2d<pixel_type>& img,
+               std::vector<dlib::rect_detection>& out) {
+    WorkerPool& workers = context->getWorkers();
+    const bool isParallel = context->isParallelFaceDetectionEnabled &&
+                            workers.parallelism() > 1;
+
+    scanFaces(detector, context->detectionScale, context->getScratch(img),
+              isParallel ? &workers : NULL, img, out);
+}
+
+/**
+ * Detect the face bounds in the whole image into the context's reusable
+ * containers.
+ */
+template <typename pixel_type>
+void detectFaceBounds(DetectorContext* context,
+                      dlib::frontal_face_detector& detector,
+                      const dlib::array2d<pixel_type>& img) {
+    StageTimer timer(Metrics::FACE_DETECTION);
+
+    scanFaces(context, detector, img, context->detections);
+
+    context->faceBounds.clear();
+    for (unsigned long i = 0; i < context->detections.size(); ++i) {
+        context->faceBounds.push_back(context->detections[i].rect);
+    }
+
+    Metrics::increment(Metrics::FACES_DETECTED, context->faceBounds.size());
+}
+
+/**
+ * Detect at most one face in every region of context->searchRegions, e.g.
+ * the expanded bounds of the faces in the previous frame, into the context's
+ * reusable containers. Only the regions are scanned so it's much cheaper than
+ * the whole image; a region without a face is skipped, as well as the face
+ * overlapping the face found in a previous region.
+ */
+template <typename pixel_type>
+void detectFaceBoundsInRegions(DetectorContext* context,
+                               dlib::frontal_face_detector& detector,
+                               const dlib::array2d<pixel_type>& img) {
+    StageTimer timer(Metrics::FACE_DETECTION);
+
+    FaceDetectionScratch<pixel_type>& scratch = context->getScratch(img);
+    const dlib::test_box_overlap& overlaps = detector.get_overlap_tester();
+
+    context->detections.clear();
+    context->faceBounds.clear();
+    for (unsigned long i = 0; i < context->searchRegions.size(); ++i) {
+        const dlib::rectangle region =
+            context->searchRegions[i].intersect(dlib::get_rect(img));
+        if (region.is_empty()) continue;
+
+        // Copy the region and scan it.
+        dlib::assign_image(scratch.regionImage, dlib::sub_image(img, region));
+        scanFaces(context, detector, scratch.regionImage,
+                  context->regionDetections);
+
+        // Take the most confident face.
+        const std::vector<dlib::rect_detection>& found = context->regionDetections;
+        if (found.empty()) continue;
+        unsigned long best = 0;
+        for (unsigned long j = 1; j < found.size(); ++j) {
+            if (found[j].detection_confidence > found[best].detection_confidence) {
+                best = j;
+            }
+        }
+
+        dlib::rect_detection detection = found[best];
+        detection.rect = dlib::translate_rect(detection.rect, region.tl_corner());
+
+        bool isOverlapped = false;
+        for (unsigned long j = 0; j < context->faceBounds.size() && !isOverlapped; ++j) {
+            isOverlapped = overlaps(context->faceBounds[j], detection.rect);
+        }
+        if (isOverlapped) continue;
+
+        context->detections.push_back(detection);
+        context->faceBounds.push_back(detection.rect);
+    }
+
+    Metrics::increment(Metrics::FACES_DETECTED, context->faceBounds.size());
 }
 
 // JNI ////////////////////////////////////////////////////////////////////////
 
-dlib::shape_predictor sFaceLandmarksDetector;
-dlib::frontal_face_detector sFaceDetector;
+extern "C" JNIEXPORT jlong JNICALL
+JNI_METHOD(nativeCreate)(JNIEnv* env,
+                         jobject thiz) {
+    return DetectorContext::toHandle(new DetectorContext());
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeDestroy)(JNIEnv* env,
+                          jobject thiz,
+                          jlong handle) {
+    delete DetectorContext::fromHandle(handle);
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeSetParallelism)(JNIEnv* env,
+                                 jobject thiz,
+                                 jlong handle,
+                                 jint parallelism) {
+    DetectorContext::fromHandle(handle)->parallelism = (unsigned int) parallelism;
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeSetParallelFaceDetectionEnabled)(JNIEnv* env,
+                                                  jobject thiz,
+                                                  jlong handle,
+                                                  jboolean enabled) {
+    DetectorContext::fromHandle(handle)->isParallelFaceDetectionEnabled =
+        enabled == JNI_TRUE;
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeSetFaceDetectorConfig)(JNIEnv* env,
+                                        jobject thiz,
+                                        jlong handle,
+                                        jfloat downscale,
+                                        jint minFaceSize,
+                                        jint maxFaceSize,
+                                        jint upsample) {
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    context->downscale = downscale;
+    context->minFaceSize = minFaceSize;
+    context->maxFaceSize = maxFaceSize;
+    context->upsample = upsample;
+    context->isFaceDetectorDirty = true;
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeSetLandmarkFlow)(JNIEnv* env,
+                                  jobject thiz,
+                                  jlong handle,
+                                  jboolean enabled,
+                                  jfloat maxError,
+                                  jint maxFrames) {
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    context->isLandmarkFlowEnabled = enabled == JNI_TRUE;
+    context->maxFlowError = maxError;
+    context->maxFlowFrames = maxFrames;
+    if (!context->isLandmarkFlowEnabled) {
+        context->flow.clear();
+        context->flowBounds.clear();
+        context->flowPoints.clear();
+    }
+}
+
+bool checkFaceDetectorReady(JNIEnv* env,
+                            DetectorContext* context) {
+    if (!context->baseFaceDetector) {
+        LOGI("L%d: The face detector is not initialized!", __LINE__);
+        throwException(env, "The face detector is not initialized!");
+        return false;
+    }
+
+    return true;
+}
+
+bool checkFaceLandmarksDetectorReady(JNIEnv* env,
+                                     DetectorContext* context) {
+    if (!context->shapePredictor) {
+        LOGI("L%d: The face landmarks detector is not initialized!", __LINE__);
+        throwException(env, "The face landmarks detector is not initialized!");
+        return false;
+    }
+
+    return true;
+}
+
+bool checkDetectorsReady(JNIEnv* env,
+                         DetectorContext* context) {
+    return checkFaceDetectorReady(env, context) &&
+           checkFaceLandmarksDetectorReady(env, context);
+}
+
+/**
+ * The face detector limited by the context's configuration. It's derived from
+ * the shared base detector when the configuration changes:
+ * <ul>
+ *     <li>The detection scale is the downscale times the upsample, and it's
+ *     reduced further if the minimum face size is greater than the detection
+ *     window at that scale, which prunes the biggest pyramid levels.</li>
+ *     <li>The pyramid stops at the first level whose detection window covers
+ *     the maximum face size, which prunes the smallest levels.</li>
+ * </ul>
+ */
+dlib::frontal_face_detector& getFaceDetector(DetectorContext* context) {
+    if (!context->isFaceDetectorDirty &&
+        context->faceDetector.num_detectors() > 0) {
+        return context->faceDetector;
+    }
+
+    typedef dlib::frontal_face_detector::image_scanner_type scanner_type;
+    const dlib::frontal_face_detector& base = *context->baseFaceDetector;
+    const scanner_type& original = base.get_scanner();
+    const double window = (double) original.get_detection_window_width();
+
+    double scale = context->downscale * (double) (1 << context->upsample);
+    if (context->minFaceSize > 0) {
+        scale = std::min(scale, window / (double) context->minFaceSize);
+    }
+
+    scanner_type scanner;
+    scanner.copy_configuration(original);
+    if (context->maxFaceSize > 0) {
+        // The window grows 6/5 times every level.
+        const double ratio = (double) context->maxFaceSize * scale / window;
+        const double levels = ratio > 1 ?
+                              std::ceil(std::log(ratio) / std::log(6.0 / 5.0)) + 1 : 1;
+        scanner.set_max_pyramid_levels(
+            std::min((unsigned long) levels, original.get_max_pyramid_levels()));
+    }
+
+    std::vector<dlib::frontal_face_detector::feature_vector_type> weights;
+    for (unsigned long i = 0; i < base.num_detectors(); ++i) {
+        weights.push_back(base.get_w(i));
+    }
+    context->faceDetector = dlib::frontal_face_detector(
+        scanner, base.get_overlap_tester(), weights);
+    context->detectionScale = scale;
+    context->isFaceDetectorDirty = false;
+    ++context->faceDetectorGeneration;
+
+    LOGI("L%d: face detector is configured (scale=%.3f, max levels=%lu)",
+         __LINE__, scale, scanner.get_max_pyramid_levels());
+
+    return context->faceDetector;
+}
+
+/**
+ * Read the face bounds, [left, top, right, bottom] x N, from the Java array.
+ *
+ * @return false with the IllegalArgumentException thrown if the array is
+ * shorter than the face count.
+ */
+bool readFaceBounds(JNIEnv* env,
+                    jintArray faceBounds,
+                    jint faceCount,
+                    std::vector<dlib::rectangle>& out) {
+    out.clear();
+    if (faceCount == 0) return true;
+    if (faceCount < 0 || faceBounds == NULL ||
+        4 * (jlong) faceCount > env->GetArrayLength(faceBounds)) {
+        throwIllegalArgumentException(env, "The face bounds don't match the face count!");
+        return false;
+    }
+
+    jint* pBounds = env->GetIntArrayElements(faceBounds, NULL);
+    for (int i = 0; i < faceCount; ++i) {
+        out.push_back(dlib::rectangle(pBounds[4 * i],
+                                      pBounds[4 * i + 1],
+                                      pBounds[4 * i + 2],
+                                      pBounds[4 * i + 3]));
+    }
+    env->ReleaseIntArrayElements(faceBounds, pBounds, JNI_ABORT);
+
+    return true;
+}
+
+/**
+ * Detect the face bounds into context->faceBounds.
+ */
+template <typename image_type>
+void detectFaceBoundsAndLog(DetectorContext* context,
+                            const image_type& img) {
+    detectFaceBounds(context, getFaceDetector(context), img);
+
+    LOGV("L%d: Number of faces detected: %u",
+         __LINE__, (unsigned int) context->faceBounds.size());
+}
+
+/**
+ * Write the faces in context->faceBounds, and their landmarks in
+ * context->shapes if asked, to the output buffer. The coordinates are
+ * normalized by the dimension of the image the faces are detected in, so the
+ * faces are written again, e.g. to a bigger buffer, without the detection.
+ */
+void writeDetectedFaces(DetectorContext* context,
+                        bool includesLandmarks,
+                        FaceBuffer& out) {
+    StageTimer timer(Metrics::SERIALIZATION);
+
+    const std::vector<dlib::rectangle>& bounds = context->faceBounds;
+    const std::vector<dlib::full_object_detection>& shapes = context->shapes;
+    includesLandmarks = includesLandmarks &&
+                        context->shapePredictor &&
+                        shapes.size() == bounds.size();
+
+    out.writeHeader(bounds.size(),
+                    includesLandmarks ? context->shapePredictor->num_parts() : 0);
+    for (unsigned long j = 0; j < bounds.size(); ++j) {
+        out.writeFace(j, bounds[j], context->imageWidth, context->imageHeight,
+                      includesLandmarks ? &shapes[j] : NULL);
+    }
+}
+
+/**
+ * Detect the face bounds and write them to the output buffer without the
+ * landmarks.
+ *
+ * @return The number of the detected faces.
+ */
+template <typename image_type>
+jint detectFaceBoundsAndWrite(DetectorContext* context,
+                              const image_type& img,
+                              FaceBuffer& out) {
+    const float width = (float) img.nc();
+    const float height = (float) img.nr();
+    LOGV("L%d: input image (w=%f, h=%f) is read",
+         __LINE__, width, height);
+
+    // Now tell the face detector to give us a list of bounding boxes
+    // around all the faces in the image.
+    detectFaceBoundsAndLog(context, img);
+    context->shapes.clear();
+
+    // Write the faces to the output buffer.
+    context->imageWidth = width;
+    context->imageHeight = height;
+    writeDetectedFaces(context, false, out);
+
+    return (jint) context->faceBounds.size();
+}
+
+/**
+ * Detect the landmarks for every face in context->faceBounds and write the
+ * faces to the output buffer. The shape predictor is read-only once it's
+ * deserialized, so the faces are spread across the context's workers and
+ * every face writes to its own pre-sized slot; the output order is the order
+ * of the face bounds.
+ */
+template <typename image_type>
+void detectLandmarks(DetectorContext* context,
+                     const image_type& img,
+                     FaceBuffer& out) {
+    const float width = (float) img.nc();
+    const float height = (float) img.nr();
+    const std::vector<dlib::rectangle>& bounds = context->faceBounds;
+    std::vector<dlib::full_object_detection>& shapes = context->shapes;
+
+    const ShapeModel& predictor = *context->shapePredictor;
+
+    shapes.resize(bounds.size());
+    WorkerPool& workers = context->getWorkers();
+    workers.parallelFor(0, (long) bounds.size(), [&](long j) {
+        StageTimer timer(Metrics::SHAPE_PREDICTION);
+        shapes[j] = predictor(img, bounds[j]);
+    });
+    Metrics::increment(Metrics::SHAPES_PREDICTED, bounds.size());
+
+    LOGV("L%d: Landmarks of %lu faces detected by %u threads",
+         __LINE__, (unsigned long) bounds.size(), workers.parallelism());
+
+    context->imageWidth = width;
+    context->imageHeight = height;
+    writeDetectedFaces(context, true, out);
+}
+
+/**
+ * Keep the given frame and the faces in context->faceBounds and
+ * context->shapes as the start of the next landmarks propagation, see
+ * propagateLandmarks().
+ */
+void rememberFlowFaces(DetectorContext* context,
+                       const dlib::array2d<unsigned char>& img) {
+    if (!context->isLandmarkFlowEnabled) return;
+
+    context->flow.pushFrame(img);
+    context->flowBounds = context->faceBounds;
+    context->flowPartCount = context->shapes.empty() ?
+                             0 : context->shapes[0].num_parts();
+    context->flowPoints.clear();
+    for (unsigned long i = 0; i < context->shapes.size(); ++i) {
+        for (unsigned long j = 0; j < context->flowPartCount; ++j) {
+            context->flowPoints.push_back(dlib::dpoint(context->shapes[i].part(j)));
+        }
+    }
+    context->flowFrames.assign(context->shapes.size(), 0);
+}
+
+/**
+ * The optical flow tracks the luminance frames only, so a color frame ends
+ * the landmarks propagation.
+ */
+void rememberFlowFaces(DetectorContext* context,
+                       const dlib::array2d<dlib::rgb_pixel>& img) {
+    context->flow.clear();
+    context->flowBounds.clear();
+    context->flowPoints.clear();
+}
+
+/**
+ * Carry the faces kept by rememberFlowFaces() to the given frame by the
+ * optical flow instead of the shape predictor, and write them to the output
+ * buffer. For every face:
+ * <ul>
+ *     <li>The face is lost if less than half of the landmarks are tracked.</li>
+ *     <li>The bound moves with the mean landmarks displacement.</li>
+ *     <li>The shape predictor runs again on the moved bound if the mean
+ *     flow error exceeds the limit or the landmarks were propagated for
+ *     too many frames.</li>
+ * </ul>
+ * The landmarks are tracked on the context's workers.
+ */
+void propagateLandmarks(DetectorContext* context,
+                        const dlib::array2d<unsigned char>& img,
+                        FaceBuffer& out) {
+    const float width = (float) img.nc();
+    const float height = (float) img.nr();
+    const unsigned long partCount = context->flowPartCount;
+    const unsigned long faceCount = context->flowBounds.size();
+    const unsigned long pointCount = faceCount * partCount;
+
+    // Track all the landmarks.
+    std::unique_ptr<StageTimer> flowTimer(new StageTimer(Metrics::LANDMARK_FLOW));
+    context->flow.pushFrame(img);
+    context->trackedPoints.resize(pointCount);
+    context->trackedErrors.resize(pointCount);
+    context->trackedStatus.resize(pointCount);
+    // Every worker tracks a range of the landmarks with its own window.
+    WorkerPool& workers = context->getWorkers();
+    const long rangeCount = std::min((long) workers.parallelism(), (long) pointCount);
+    if ((long) context->flowWindows.size() < rangeCount) {
+        context->flowWindows.resize(rangeCount, context->flow.createWindow());
+    }
+    workers.parallelFor(0, rangeCount, [&](long range) {
+        PyramidalLucasKanade::Window& window = context->flowWindows[range];
+        const long begin = (long) pointCount * range / rangeCount;
+        const long end = (long) pointCount * (range + 1) / rangeCount;
+        for (long i = begin; i < end; ++i) {
+            float error = 0;
+            context->trackedStatus[i] = context->flow.track(context->flowPoints[i],
+                                                            context->trackedPoints[i],
+                                                            error,
+                                                            window);
+            context->trackedErrors[i] = error;
+        }
+    });
+
+    // Decide for every face.
+    std::vector<dlib::rectangle>& bounds = context->faceBounds;
+    std::vector<dlib::full_object_detection>& shapes = context->shapes;
+    bounds.clear();
+    shapes.clear();
+    context->needsPrediction.clear();
+    context->nextFlowPoints.clear();
+    context->nextFlowFrames.clear();
+    for (unsigned long f = 0; f < faceCount; ++f) {
+        const unsigned long first = f * partCount;
+        unsigned long trackedCount = 0;
+        double error = 0;
+        dlib::dpoint shift(0, 0);
+        for (unsigned long j = first; j < first + partCount; ++j) {
+            if (!context->trackedStatus[j]) continue;
+
+            ++trackedCount;
+            error += context->trackedErrors[j];
+            shift += context->trackedPoints[j] - context->flowPoints[j];
+        }
+        if (trackedCount * 2 < partCount) continue;
+
+        error /= trackedCount;
+        shift /= (double) trackedCount;
+
+        // The landmarks lost by the flow follow the mean displacement.
+        std::vector<dlib::point> parts(partCount);
+        for (unsigned long j = 0; j < partCount; ++j) {
+            const dlib::dpoint& p = context->trackedStatus[first + j] ?
+                                    context->trackedPoints[first + j] :
+                                    context->flowPoints[first + j] + shift;
+            context->nextFlowPoints.push_back(p);
+            parts[j] = dlib::point(p);
+        }
+
+        const dlib::rectangle bound = dlib::translate_rect(context->flowBounds[f],
+                                                           dlib::point(shift));
+        const bool needsPrediction = error > context->maxFlowError ||
+                                     context->flowFrames[f] + 1 > context->maxFlowFrames;
+
+        bounds.push_back(bound);
+        shapes.push_back(dlib::full_object_detection(bound, parts));
+        context->needsPrediction.push_back((char) needsPrediction);
+        context->nextFlowFrames.push_back(needsPrediction ? 0 : context->flowFrames[f] + 1);
+    }
+    flowTimer.reset();
+
+    // Run the shape predictor for the faces the flow isn't good enough.
+    const ShapeModel& predictor = *context->shapePredictor;
+    workers.parallelFor(0, (long) bounds.size(), [&](long j) {
+        if (context->needsPrediction[j]) {
+            StageTimer timer(Metrics::SHAPE_PREDICTION);
+            shapes[j] = predictor(img, bounds[j]);
+        }
+    });
+
+    const unsigned long predictedCount = (unsigned long) std::count(
+        context->needsPrediction.begin(), context->needsPrediction.end(), (char) 1);
+    Metrics::increment(Metrics::SHAPES_PREDICTED, predictedCount);
+    Metrics::increment(Metrics::SHAPES_PROPAGATED, bounds.size() - predictedCount);
+
+    LOGV("L%d: %lu of %lu faces propagated by the optical flow",
+         __LINE__, (unsigned long) bounds.size() - predictedCount,
+         (unsigned long) bounds.size());
+
+    {
+        StageTimer timer(Metrics::SERIALIZATION);
+        out.writeHeader(bounds.size(), partCount);
+        for (unsigned long j = 0; j < bounds.size(); ++j) {
+            out.writeFace(j, bounds[j], width, height, &shapes[j]);
+        }
+    }
+
+    // The current faces are the start of the next propagation.
+    for (unsigned long j = 0; j < shapes.size(); ++j) {
+        if (!context->needsPrediction[j]) continue;
+
+        for (unsigned long k = 0; k < partCount; ++k) {
+            context->nextFlowPoints[j * partCount + k] = dlib::dpoint(shapes[j].part(k));
+        }
+    }
+    context->flowBounds = bounds;
+    context->flowPoints.swap(context->nextFlowPoints);
+    context->flowFrames.swap(context->nextFlowFrames);
+}
 
 extern "C" JNIEXPORT jboolean JNICALL
-JNI_METHOD(isFaceDetectorReady)(JNIEnv* env,
-                                jobject thiz) {
-    if (sFaceDetector.num_detectors() > 0) {
+JNI_METHOD(nativeIsFaceDetectorReady)(JNIEnv* env,
+                                      jobject thiz,
+                                      jlong handle) {
+    if (DetectorContext::fromHandle(handle)->baseFaceDetector) {
         return JNI_TRUE;
     } else {
         return JNI_FALSE;
@@ -96,9 +795,10 @@ JNI_METHOD(isFaceDetectorReady)(JNIEnv* env,
 }
 
 extern "C" JNIEXPORT jboolean JNICALL
-JNI_METHOD(isFaceLandmarksDetectorReady)(JNIEnv* env,
-                                         jobject thiz) {
-    if (sFaceLandmarksDetector.num_parts() > 0) {
+JNI_METHOD(nativeIsFaceLandmarksDetectorReady)(JNIEnv* env,
+                                               jobject thiz,
+                                               jlong handle) {
+    if (DetectorContext::fromHandle(handle)->shapePredictor) {
         return JNI_TRUE;
     } else {
         return JNI_FALSE;
@@ -106,367 +806,829 @@ JNI_METHOD(isFaceLandmarksDetectorReady)(JNIEnv* env,
 }
 
 extern "C" JNIEXPORT void JNICALL
-JNI_METHOD(prepareFaceDetector)(JNIEnv *env,
-                                jobject thiz) {
-    // Profiler.
-    Profiler profiler;
-    profiler.start();
+JNI_METHOD(nativePrepareFaceDetector)(JNIEnv *env,
+                                      jobject thiz,
+                                      jlong handle) {
+    // The base detector is shared; the context derives its own copy owning
+    // the scanner state, see getFaceDetector().
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    context->baseFaceDetector = ModelCache::getFrontalFaceDetector();
+    context->isFaceDetectorDirty = true;
+}
+
+/**
+ * The shape predictor handed to Java between the loading and the attaching,
+ * so the loading doesn't hold the detector.
+ */
+typedef std::shared_ptr<const ShapeModel> ShapePredictorRef;
+
+extern "C" JNIEXPORT jlong JNICALL
+JNI_METHOD(nativeLoadShapePredictor)(JNIEnv *env,
+                                     jclass clazz,
+                                     jstring detectorPath,
+                                     jobject listener) {
+    const char *path = env->GetStringUTFChars(detectorPath, JNI_FALSE);
+    const std::string modelPath(path);
+    env->ReleaseStringUTFChars(detectorPath, path);
+
+    // Report the progress in percentage, at most 100 times.
+    // The callback refers to the last percent, which must outlive the load.
+    MappedFileStreambuf::ProgressCallback progress;
+    int lastPercent = -1;
+    jmethodID onProgress = NULL;
+    if (listener != NULL) {
+        jclass listenerClazz = env->GetObjectClass(listener);
+        onProgress = env->GetMethodID(listenerClazz, "onProgress", "(JJ)V");
+        env->DeleteLocalRef(listenerClazz);
+        if (onProgress == NULL) return 0;
+    }
+    if (onProgress != NULL) {
+        progress = [env, listener, onProgress, &lastPercent](size_t read, size_t total) {
+            const int percent = (int) (100.0 * read / total);
+            if (percent == lastPercent) return;
+            lastPercent = percent;
+
+            env->CallVoidMethod(listener, onProgress, (jlong) read, (jlong) total);
+            if (env->ExceptionCheck()) {
+                // Abort the loading; the Java exception is pending.
+                throw std::runtime_error("The loading is aborted by the listener.");
+            }
+        };
+    }
 
-    // Prepare the detector.
-    sFaceDetector = dlib::get_frontal_face_detector();
+    // We need a shape_predictor. This is the tool that will predict face
+    // landmark positions given an image and face bounding box. The model is
+    // deserialized once and shared with the other detectors.
+    ShapePredictorRef predictor;
+    try {
+        predictor = ModelCache::getShapePredictor(modelPath, progress);
+    } catch (std::exception& error) {
+        LOGI("L%d: Failed to load %s: %s", __LINE__, modelPath.c_str(), error.what());
+        if (!env->ExceptionCheck()) {
+            throwException(env, "Failed to load the face landmarks model!");
+        }
+        return 0;
+    }
 
-    double interval = profiler.stopAndGetInterval();
+    if (predictor->num_parts() != 68) {
+        throwException(env, "It's not a 68 landmarks detector!");
+        return 0;
+    }
 
-    LOGI("L%d: sFaceDetector is initialized (took %.3f ms)", __LINE__, interval);
-    LOGI("L%d: sFaceDetector.num_detectors()=%lu", __LINE__, sFaceDetector.num_detectors());
+    return (jlong) new ShapePredictorRef(predictor);
 }
 
 extern "C" JNIEXPORT void JNICALL
-JNI_METHOD(prepareFaceLandmarksDetector)(JNIEnv *env,
-                                         jobject thiz,
-                                         jstring detectorPath) {
-    const char *path = env->GetStringUTFChars(detectorPath, JNI_FALSE);
-
-    // Profiler.
-    Profiler profiler;
-    profiler.start();
+JNI_METHOD(nativeReleaseShapePredictor)(JNIEnv *env,
+                                        jclass clazz,
+                                        jlong model) {
+    delete (ShapePredictorRef*) model;
+}
 
-    // We need a shape_predictor. This is the tool that will predict face
-    // landmark positions given an image and face bounding box.  Here we are just
-    // loading the model from the shape_predictor_68_face_landmarks.dat file you gave
-    // as a command line argument.
-    // Deserialize the shape detector.
-    dlib::deserialize(path) >> sFaceLandmarksDetector;
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeSetShapePredictor)(JNIEnv *env,
+                                    jobject thiz,
+                                    jlong handle,
+                                    jlong model) {
+    DetectorContext::fromHandle(handle)->shapePredictor = *((ShapePredictorRef*) model);
+}
 
-    double interval = profiler.stopAndGetInterval();
 
-    LOGI("L%d: sFaceLandmarksDetector is initialized (took %.3f ms)", __LINE__, interval);
-    LOGI("L%d: sFaceLandmarksDetector.num_parts()=%lu", __LINE__, sFaceLandmarksDetector.num_parts());
+extern "C" JNIEXPORT jint JNICALL
+JNI_METHOD(detectFacesInImage)(JNIEnv *env,
+                               jobject thiz,
+                               jlong handle,
+                               jobject buffer,
+                               jbyteArray array,
+                               jint width,
+                               jint height,
+                               jint rowStride,
+                               jint pixelStride,
+                               jint format,
+                               jint rotation,
+                               jboolean mirrored,
+                               jobject outBuffer) {
+    TraceScope trace("detectFacesInImage");
+
+    if (!checkFaceDetectorReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-    env->ReleaseStringUTFChars(detectorPath, path);
+    // Copy the image to the upright dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    if (!convertImageToArray2d(env, context, buffer, array,
+                               width, height, rowStride, pixelStride,
+                               format, rotation, mirrored == JNI_TRUE)) return -1;
 
-    if (sFaceLandmarksDetector.num_parts() != 68) {
-        throwException(env, "It's not a 68 landmarks detector!");
+    if (format == PIXEL_FORMAT_GRAY_8) {
+        return detectFaceBoundsAndWrite(context, context->grayImage, out);
+    } else {
+        return detectFaceBoundsAndWrite(context, context->rgbImage, out);
     }
 }
 
-extern "C" JNIEXPORT jbyteArray JNICALL
-JNI_METHOD(detectFaces)(JNIEnv *env,
-                        jobject thiz,
-                        jobject bitmap) {
-    // Profiler.
-    Profiler profiler;
-    profiler.start();
+extern "C" JNIEXPORT jint JNICALL
+JNI_METHOD(detectLandmarksFromFacesInImage)(JNIEnv *env,
+                                            jobject thiz,
+                                            jlong handle,
+                                            jobject buffer,
+                                            jbyteArray array,
+                                            jint width,
+                                            jint height,
+                                            jint rowStride,
+                                            jint pixelStride,
+                                            jint format,
+                                            jint rotation,
+                                            jboolean mirrored,
+                                            jintArray faceBounds,
+                                            jint faceCount,
+                                            jobject outBuffer) {
+    TraceScope trace("detectLandmarksFromFacesInImage");
+
+    if (!checkFaceLandmarksDetectorReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-    // Convert bitmap to dlib::array2d.
-    dlib::array2d<dlib::rgb_pixel> img;
-    convertBitmapToArray2d(env, bitmap, img);
+    // Copy the image to the upright dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    if (!convertImageToArray2d(env, context, buffer, array,
+                               width, height, rowStride, pixelStride,
+                               format, rotation, mirrored == JNI_TRUE)) return -1;
+
+    // Detect landmarks and write them to the output buffer.
+    if (!readFaceBounds(env, faceBounds, faceCount, context->faceBounds)) return -1;
+    if (format == PIXEL_FORMAT_GRAY_8) {
+        detectLandmarks(context, context->grayImage, out);
+        rememberFlowFaces(context, context->grayImage);
+    } else {
+        detectLandmarks(context, context->rgbImage, out);
+        rememberFlowFaces(context, context->rgbImage);
+    }
 
-    double interval = profiler.stopAndGetInterval();
+    return (jint) context->faceBounds.size();
+}
 
-    const long width = img.nc();
-    const long height = img.nr();
-    LOGI("L%d: input image (w=%ld, h=%ld) is read (took %.3f ms)",
-         __LINE__, width, height, interval);
+extern "C" JNIEXPORT jint JNICALL
+JNI_METHOD(detectFacesAndLandmarksInImage)(JNIEnv *env,
+                                           jobject thiz,
+                                           jlong handle,
+                                           jobject buffer,
+                                           jbyteArray array,
+                                           jint width,
+                                           jint height,
+                                           jint rowStride,
+                                           jint pixelStride,
+                                           jint format,
+                                           jint rotation,
+                                           jboolean mirrored,
+                                           jobject outBuffer) {
+    TraceScope trace("detectFacesAndLandmarksInImage");
+
+    if (!checkDetectorsReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-    profiler.start();
+    // Copy the image to the upright dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    if (!convertImageToArray2d(env, context, buffer, array,
+                               width, height, rowStride, pixelStride,
+                               format, rotation, mirrored == JNI_TRUE)) return -1;
 
     // Now tell the face detector to give us a list of bounding boxes
-    // around all the faces in the image.
-    std::vector<dlib::rectangle> dets = sFaceDetector(img);
-    interval = profiler.stopAndGetInterval();
-    LOGI("L%d: Number of faces detected: %u (took %.3f ms)",
-         __LINE__, (unsigned int) dets.size(), interval);
+    // around all the faces in the image, and then ask the shape_predictor to
+    // tell us the pose of each face we detected.
+    if (format == PIXEL_FORMAT_GRAY_8) {
+        detectFaceBoundsAndLog(context, context->grayImage);
+        detectLandmarks(context, context->grayImage, out);
+        rememberFlowFaces(context, context->grayImage);
+    } else {
+        detectFaceBoundsAndLog(context, context->rgbImage);
+        detectLandmarks(context, context->rgbImage, out);
+        rememberFlowFaces(context, context->rgbImage);
+    }
 
-    // To protobuf message.
-    FaceList faces;
-    for (unsigned long i = 0; i < dets.size(); ++i) {
-        // Profiler.
-        profiler.start();
+    return (jint) context->faceBounds.size();
+}
 
-        dlib::rectangle& det = dets.at(i);
+extern "C" JNIEXPORT jint JNICALL
+JNI_METHOD(detectFacesAndLandmarksInImageRegions)(JNIEnv *env,
+                                                  jobject thiz,
+                                                  jlong handle,
+                                                  jobject buffer,
+                                                  jbyteArray array,
+                                                  jint width,
+                                                  jint height,
+                                                  jint rowStride,
+                                                  jint pixelStride,
+                                                  jint format,
+                                                  jint rotation,
+                                                  jboolean mirrored,
+                                                  jintArray regions,
+                                                  jint regionCount,
+                                                  jobject outBuffer) {
+    TraceScope trace("detectFacesAndLandmarksInImageRegions");
+
+    if (!checkDetectorsReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-        Face* face = faces.add_faces();
-        RectF* bound = face->mutable_bound();
+    // Copy the image to the upright dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    if (!convertImageToArray2d(env, context, buffer, array,
+                               width, height, rowStride, pixelStride,
+                               format, rotation, mirrored == JNI_TRUE)) return -1;
+
+    // Search the faces in the regions only.
+    if (!readFaceBounds(env, regions, regionCount, context->searchRegions)) return -1;
+    if (format == PIXEL_FORMAT_GRAY_8) {
+        detectFaceBoundsInRegions(context, getFaceDetector(context), context->grayImage);
+        detectLandmarks(context, context->grayImage, out);
+        rememberFlowFaces(context, context->grayImage);
+    } else {
+        detectFaceBoundsInRegions(context, getFaceDetector(context), context->rgbImage);
+        detectLandmarks(context, context->rgbImage, out);
+        rememberFlowFaces(context, context->rgbImage);
+    }
+    LOGV("L%d: %u faces detected in %d regions",
+         __LINE__, (unsigned int) context->faceBounds.size(), regionCount);
 
-        bound->set_left((float) det.left() / width);
-        bound->set_top((float) det.top() / height);
-        bound->set_right((float) det.right() / width);
-        bound->set_bottom((float) det.bottom() / height);
+    return (jint) context->faceBounds.size();
+}
 
-        interval = profiler.stopAndGetInterval();
-        LOGI("L%d: Convert face #%lu to protobuf message (took %.3f ms)",
-             __LINE__, i, interval);
+extern "C" JNIEXPORT jint JNICALL
+JNI_METHOD(detectLandmarksByFlowInImage)(JNIEnv *env,
+                                         jobject thiz,
+                                         jlong handle,
+                                         jobject buffer,
+                                         jbyteArray array,
+                                         jint width,
+                                         jint height,
+                                         jint rowStride,
+                                         jint pixelStride,
+                                         jint format,
+                                         jint rotation,
+                                         jboolean mirrored,
+                                         jobject outBuffer) {
+    TraceScope trace("detectLandmarksByFlowInImage");
+
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    if (!checkDetectorsReady(env, context)) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
     }
 
-    // Profiler.
-    profiler.start();
+    if (!context->isLandmarkFlowEnabled) {
+        throwException(env, "The landmark flow is not enabled!");
+        return -1;
+    }
+    if (format != PIXEL_FORMAT_GRAY_8) {
+        throwException(env, "The landmark flow needs a luminance image!");
+        return -1;
+    }
+
+    // Copy the luminance plane to the upright dlib::array2d.
+    if (!convertImageToArray2d(env, context, buffer, array,
+                               width, height, rowStride, pixelStride,
+                               format, rotation, mirrored == JNI_TRUE)) return -1;
+    dlib::array2d<unsigned char>& img = context->grayImage;
+
+    LOGV("L%d: input luminance (w=%ld, h=%ld) is read",
+         __LINE__, img.nc(), img.nr());
+
+    // Nothing to propagate, or the frame dimension changed.
+    if (context->flowBounds.empty() ||
+        !context->flow.isSameSize(img)) {
+        context->flow.clear();
+        context->flowBounds.clear();
+        out.writeHeader(0, 0);
+        return 0;
+    }
+
+    propagateLandmarks(context, img, out);
 
-    // Prepare the return message.
-    int outSize = faces.ByteSize();
-    jbyteArray out = env->NewByteArray(outSize);
-    jbyte* buffer = new jbyte[outSize];
+    return (jint) context->faceBounds.size();
+}
 
-    faces.SerializeToArray(buffer, outSize);
-    env->SetByteArrayRegion(out, 0, outSize, buffer);
-    delete[] buffer;
+extern "C" JNIEXPORT jint JNICALL
+JNI_METHOD(writeFaces)(JNIEnv *env,
+                       jobject thiz,
+                       jlong handle,
+                       jboolean includesLandmarks,
+                       jobject outBuffer) {
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-    interval = profiler.stopAndGetInterval();
-    LOGI("L%d: Convert faces to protobuf message (took %.3f ms)",
-         __LINE__, interval);
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    writeDetectedFaces(context, includesLandmarks == JNI_TRUE, out);
 
-    return out;
+    return (jint) context->faceBounds.size();
 }
 
-extern "C" JNIEXPORT jbyteArray JNICALL
-JNI_METHOD(detectLandmarksFromFace)(JNIEnv *env,
-                                    jobject thiz,
-                                    jobject bitmap,
-                                    jlong left,
-                                    jlong top,
-                                    jlong right,
-                                    jlong bottom) {
-    // Profiler.
-    Profiler profiler;
-    profiler.start();
+// Multiple images //////////////////////////////////////////////////////////
+
+/**
+ * The RGBA_8888 pixels of one image of a batch, which stay readable until the
+ * whole batch is done, e.g. the locked pixels of a Bitmap.
+ */
+struct BatchInput {
+    const uint8_t* pixels;
+    long width;
+    long height;
+    long rowStride;
+};
+
+/**
+ * Detect the faces and the landmarks of every image of the batch into
+ * context->batchImages, which the caller sizes to the batch. The images are
+ * spread across the context's workers, and every image is copied, detected
+ * and predicted on one worker with the scratch area of a BatchSlot, so a
+ * batch keeps all the cores busy even if every image has only one face and
+ * only as many images are copied at a time as the workers.
+ *
+ * @param isFaceDetectionEnabled Detect the faces, or predict the landmarks
+ *                               of batchImages[i].faceBounds given by the
+ *                               caller otherwise.
+ */
+void detectBatch(DetectorContext* context,
+                 const std::vector<BatchInput>& inputs,
+                 bool isFaceDetectionEnabled) {
+    std::vector<BatchImage>& images = context->batchImages;
+    const ShapeModel& predictor = *context->shapePredictor;
+
+    // The face detector is derived on the calling thread and copied by the
+    // slots out of date.
+    const dlib::frontal_face_detector* detector = isFaceDetectionEnabled ?
+                                                  &getFaceDetector(context) : NULL;
+    const unsigned long generation = context->faceDetectorGeneration;
+    const double scale = context->detectionScale;
+
+    WorkerPool& workers = context->getWorkers();
+    workers.parallelFor(0, (long) inputs.size(), [&](long i) {
+        const BatchInput& input = inputs[i];
+        BatchImage& image = images[i];
+
+        BatchSlot* slot = context->acquireBatchSlot();
+        try {
+            {
+                StageTimer timer(Metrics::IMAGE_CONVERSION);
+                copyRgbaToArray2d(input.pixels, input.width, input.height,
+                                  input.rowStride, slot->rgbImage);
+            }
+            image.width = (float) slot->rgbImage.nc();
+            image.height = (float) slot->rgbImage.nr();
+
+            if (detector != NULL) {
+                if (slot->faceDetectorGeneration != generation) {
+                    slot->faceDetector = *detector;
+                    slot->faceDetectorGeneration = generation;
+                }
+
+                StageTimer timer(Metrics::FACE_DETECTION);
+                scanFaces(slot->faceDetector, scale, slot->rgbScratch, NULL,
+                          slot->rgbImage, slot->detections);
+                image.faceBounds.clear();
+                for (unsigned long j = 0; j < slot->detections.size(); ++j) {
+                    image.faceBounds.push_back(slot->detections[j].rect);
+                }
+                Metrics::increment(Metrics::FACES_DETECTED, image.faceBounds.size());
+            }
+
+            image.shapes.resize(image.faceBounds.size());
+            for (unsigned long j = 0; j < image.faceBounds.size(); ++j) {
+                StageTimer timer(Metrics::SHAPE_PREDICTION);
+                image.shapes[j] = predictor(slot->rgbImage, image.faceBounds[j]);
+            }
+            Metrics::increment(Metrics::SHAPES_PREDICTED, image.faceBounds.size());
+            Metrics::increment(Metrics::FRAMES);
+        } catch (...) {
+            context->releaseBatchSlot(slot);
+            throw;
+        }
+        context->releaseBatchSlot(slot);
+    });
 
-    // Convert bitmap to dlib::array2d.
-    dlib::array2d<dlib::rgb_pixel> img;
-    convertBitmapToArray2d(env, bitmap, img);
-
-    double interval = profiler.stopAndGetInterval();
-
-    const long width = img.nc();
-    const long height = img.nr();
-    LOGI("L%d: input image (w=%ld, h=%ld) is read (took %.3f ms)",
-         __LINE__, width, height, interval);
-
-    profiler.start();
-
-    // Detect landmarks.
-    dlib::rectangle bound(left, top, right, bottom);
-    dlib::full_object_detection shape = sFaceLandmarksDetector(img, bound);
-    interval = profiler.stopAndGetInterval();
-    LOGI("L%d: %lu landmarks detected (took %.3f ms)",
-         __LINE__, shape.num_parts(), interval);
-
-    profiler.start();
-    // Protobuf message.
-    LandmarkList landmarks;
-    // You get the idea, you can get all the face part locations if
-    // you want them.  Here we just store them in shapes so we can
-    // put them on the screen.
-    for (unsigned long i = 0 ; i < shape.num_parts(); ++i) {
-        dlib::point& pt = shape.part(i);
-
-        Landmark* landmark = landmarks.add_landmarks();
-        landmark->set_x((float) pt.x() / width);
-        landmark->set_y((float) pt.y() / height);
-    }
-    interval = profiler.stopAndGetInterval();
-    LOGI("L%d: Convert #%lu landmarks to protobuf message (took %.3f ms)",
-         __LINE__, shape.num_parts(), interval);
-
-    // Profiler.
-    profiler.start();
-
-    // TODO: Make a JNI function to convert a message to byte[] living in
-    // TODO: lib-protobuf project.
-    // Prepare the return message.
-    int outSize = landmarks.ByteSize();
-    jbyteArray out = env->NewByteArray(outSize);
-    jbyte* buffer = new jbyte[outSize];
-
-    landmarks.SerializeToArray(buffer, outSize);
-    env->SetByteArrayRegion(out, 0, outSize, buffer);
-    delete[] buffer;
-
-    interval = profiler.stopAndGetInterval();
-    LOGI("L%d: Convert faces to protobuf message (took %.3f ms)",
-         __LINE__, interval);
-
-    return out;
-}
-
-extern "C" JNIEXPORT jbyteArray JNICALL
-JNI_METHOD(detectLandmarksFromFaces)(JNIEnv *env,
-                                     jobject thiz,
-                                     jobject bitmap,
-                                     jbyteArray faceRects) {
-    // Profiler.
-    Profiler profiler;
-    profiler.start();
+    LOGV("L%d: %lu images detected by %u threads",
+         __LINE__, (unsigned long) inputs.size(), workers.parallelism());
+}
 
-    // Convert bitmap to dlib::array2d.
-    dlib::array2d<dlib::rgb_pixel> img;
-    convertBitmapToArray2d(env, bitmap, img);
-
-    const long width = img.nc();
-    const long height = img.nr();
-    LOGI("L%d: input image (w=%ld, h=%ld) is read (took %.3f ms)",
-         __LINE__, width, height,
-         profiler.stopAndGetInterval());
-
-    profiler.start();
-
-    // Translate the input face-rects message into something we recognize here.
-    jbyte* pFaceRects = env->GetByteArrayElements(faceRects, NULL);
-    jsize pFaceRectsLen = env->GetArrayLength(faceRects);
-    RectFList msgBounds;
-    msgBounds.ParseFromArray(pFaceRects, pFaceRectsLen);
-    env->ReleaseByteArrayElements(faceRects, pFaceRects, 0);
-    std::vector<dlib::rectangle> bounds;
-    for (int i = 0; i < msgBounds.rects().size(); ++i) {
-        const RectF& msgBound = msgBounds.rects().Get(i);
-        bounds.push_back(dlib::rectangle((long) msgBound.left(),
-                                         (long) msgBound.top(),
-                                         (long) msgBound.right(),
-                                         (long) msgBound.bottom()));
-    }
-    LOGI("L%d: input face rects (size=%d) is read (took %.3f ms)",
-         __LINE__, msgBounds.rects().size(),
-         profiler.stopAndGetInterval());
-
-    // Detect landmarks and return protobuf message.
-    FaceList faces;
-    for (unsigned long j = 0; j < bounds.size(); ++j) {
-        profiler.start();
-        dlib::full_object_detection shape = sFaceLandmarksDetector(img, bounds[j]);
-        LOGI("L%d: #%lu face, %lu landmarks detected (took %.3f ms)",
-             __LINE__, j, shape.num_parts(),
-             profiler.stopAndGetInterval());
-
-        profiler.start();
-
-        // To protobuf message.
-        Face* face = faces.add_faces();
-        // Transfer face boundary.
-        RectF* bound = face->mutable_bound();
-        bound->set_left((float) bounds[j].left() / width);
-        bound->set_top((float) bounds[j].top() / height);
-        bound->set_right((float) bounds[j].right() / width);
-        bound->set_bottom((float) bounds[j].bottom() / height);
-        // Transfer face landmarks.
-        for (u_long i = 0 ; i < shape.num_parts(); ++i) {
-            dlib::point& pt = shape.part(i);
-
-            Landmark* landmark = face->add_landmarks();
-            landmark->set_x((float) pt.x() / width);
-            landmark->set_y((float) pt.y() / height);
+/**
+ * Write the faces of context->batchImages to the output buffer one image
+ * after another, and the number of faces of every image to the given array.
+ *
+ * @return The number of the faces of all the images.
+ */
+jint writeBatch(JNIEnv* env,
+                DetectorContext* context,
+                jintArray outFaceCounts,
+                FaceBuffer& out) {
+    StageTimer timer(Metrics::SERIALIZATION);
+
+    const std::vector<BatchImage>& images = context->batchImages;
+    std::vector<jint> faceCounts(images.size());
+    long total = 0;
+    for (unsigned long i = 0; i < images.size(); ++i) {
+        faceCounts[i] = (jint) images[i].faceBounds.size();
+        total += faceCounts[i];
+    }
+
+    out.writeHeader(total, context->shapePredictor->num_parts());
+    long index = 0;
+    for (unsigned long i = 0; i < images.size(); ++i) {
+        const BatchImage& image = images[i];
+        for (unsigned long j = 0; j < image.faceBounds.size(); ++j) {
+            out.writeFace(index++, image.faceBounds[j],
+                          image.width, image.height, &image.shapes[j]);
+        }
+    }
+
+    if (!faceCounts.empty()) {
+        env->SetIntArrayRegion(outFaceCounts, 0, (jsize) faceCounts.size(),
+                               faceCounts.data());
+    }
+
+    return (jint) total;
+}
+
+// Android Bitmap /////////////////////////////////////////////////////////////
+
+#ifdef __ANDROID__
+
+/**
+ * The pixels of the bitmaps of a batch locked all together, so the workers
+ * read them without the JNIEnv; they're unlocked when it's destroyed.
+ */
+class LockedBitmaps {
+public:
+
+    explicit LockedBitmaps(JNIEnv* env)
+        : mEnv(env) {
+        // DO NOTHING.
+    }
+
+    ~LockedBitmaps() {
+        for (unsigned long i = 0; i < mBitmaps.size(); ++i) {
+            AndroidBitmap_unlockPixels(mEnv, mBitmaps[i]);
+            mEnv->DeleteLocalRef(mBitmaps[i]);
+        }
+    }
+
+    /**
+     * Lock the pixels of every RGBA_8888 bitmap of the array.
+     *
+     * @return false if a Java exception is thrown.
+     */
+    bool lock(jobjectArray bitmaps,
+              std::vector<BatchInput>& out) {
+        StageTimer timer(Metrics::IMAGE_CONVERSION);
+
+        const jsize count = mEnv->GetArrayLength(bitmaps);
+        if (mEnv->EnsureLocalCapacity(count) != 0) return false;
+
+        out.clear();
+        for (jsize i = 0; i < count; ++i) {
+            jobject bitmap = mEnv->GetObjectArrayElement(bitmaps, i);
+            if (bitmap == NULL) {
+                throwException(mEnv, "The bitmap is null!");
+                return false;
+            }
+
+            AndroidBitmapInfo bitmapInfo;
+            void* pixels;
+            if (0 > AndroidBitmap_getInfo(mEnv, bitmap, &bitmapInfo) ||
+                bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+                mEnv->DeleteLocalRef(bitmap);
+                throwException(mEnv, "The bitmap is not RGBA_8888!");
+                return false;
+            }
+            if (0 > AndroidBitmap_lockPixels(mEnv, bitmap, &pixels)) {
+                mEnv->DeleteLocalRef(bitmap);
+                throwException(mEnv, "AndroidBitmap_lockPixels() failed!");
+                return false;
+            }
+            mBitmaps.push_back(bitmap);
+
+            BatchInput input;
+            input.pixels = (const uint8_t*) pixels;
+            input.width = (long) bitmapInfo.width;
+            input.height = (long) bitmapInfo.height;
+            input.rowStride = (long) bitmapInfo.stride;
+            out.push_back(input);
         }
-        LOGI("L%d: Convert #%lu face to protobuf message (took %.3f ms)",
-             __LINE__, j,
-             profiler.stopAndGetInterval());
+
+        return true;
     }
 
-    profiler.start();
+private:
+
+    JNIEnv* mEnv;
+    std::vector<jobject> mBitmaps;
+};
 
-    // Prepare the return message.
-    int outSize = faces.ByteSize();
-    jbyteArray out = env->NewByteArray(outSize);
-    jbyte* buffer = new jbyte[outSize];
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(detectFaces)(JNIEnv *env,
+                               jobject thiz,
+                               jlong handle,
+                               jobject bitmap,
+                               jobject outBuffer) {
+    TraceScope trace("detectFaces");
 
-    faces.SerializeToArray(buffer, outSize);
-    env->SetByteArrayRegion(out, 0, outSize, buffer);
-    delete[] buffer;
+    if (!checkFaceDetectorReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-    LOGI("L%d: Convert faces to protobuf message (took %.3f ms)",
-         __LINE__, profiler.stopAndGetInterval());
+    // Convert bitmap to dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    dlib::array2d<dlib::rgb_pixel>& img = context->rgbImage;
+    if (!convertBitmapToArray2d(env, bitmap, img)) return -1;
 
-    return out;
+    return detectFaceBoundsAndWrite(context, img, out);
 }
 
-extern "C" JNIEXPORT jbyteArray JNICALL
-JNI_METHOD(detectFacesAndLandmarks)(JNIEnv *env,
-                                    jobject thiz,
-                                    jobject bitmap) {
-    if (sFaceDetector.num_detectors() == 0) {
-        LOGI("L%d: sFaceDetector is not initialized!", __LINE__);
-        throwException(env, "sFaceDetector is not initialized!");
-        return NULL;
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(detectLandmarksFromFace)(JNIEnv *env,
+                                           jobject thiz,
+                                           jlong handle,
+                                           jobject bitmap,
+                                           jlong left,
+                                           jlong top,
+                                           jlong right,
+                                           jlong bottom,
+                                           jobject outBuffer) {
+    TraceScope trace("detectLandmarksFromFace");
+
+    if (!checkFaceLandmarksDetectorReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
     }
-    if (sFaceLandmarksDetector.num_parts() == 0) {
-        LOGI("L%d: sFaceLandmarksDetector is not initialized!", __LINE__);
-        throwException(env, "sFaceLandmarksDetector is not initialized!");
-        return NULL;
+
+    // Convert bitmap to dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    dlib::array2d<dlib::rgb_pixel>& img = context->rgbImage;
+    if (!convertBitmapToArray2d(env, bitmap, img)) return -1;
+
+    LOGV("L%d: input image (w=%ld, h=%ld) is read",
+         __LINE__, img.nc(), img.nr());
+
+    // Detect landmarks of the one face and write it to the output buffer.
+    context->faceBounds.assign(1, dlib::rectangle(left, top, right, bottom));
+    detectLandmarks(context, img, out);
+    rememberFlowFaces(context, img);
+
+    return 1;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(detectLandmarksFromFaces)(JNIEnv *env,
+                                            jobject thiz,
+                                            jlong handle,
+                                            jobject bitmap,
+                                            jintArray faceBounds,
+                                            jint faceCount,
+                                            jobject outBuffer) {
+    TraceScope trace("detectLandmarksFromFaces");
+
+    if (!checkFaceLandmarksDetectorReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
     }
 
-    // Profiler.
-    Profiler profiler;
-    profiler.start();
+    // Convert bitmap to dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    dlib::array2d<dlib::rgb_pixel>& img = context->rgbImage;
+    if (!convertBitmapToArray2d(env, bitmap, img)) return -1;
+
+    LOGV("L%d: input image (w=%ld, h=%ld) is read",
+         __LINE__, img.nc(), img.nr());
+
+    // Detect landmarks and write them to the output buffer.
+    if (!readFaceBounds(env, faceBounds, faceCount, context->faceBounds)) return -1;
+    detectLandmarks(context, img, out);
+    rememberFlowFaces(context, img);
+
+    return (jint) context->faceBounds.size();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(detectFacesAndLandmarks)(JNIEnv *env,
+                                           jobject thiz,
+                                           jlong handle,
+                                           jobject bitmap,
+                                           jobject outBuffer) {
+    TraceScope trace("detectFacesAndLandmarks");
+
+    if (!checkDetectorsReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
     // Convert bitmap to dlib::array2d.
-    dlib::array2d<dlib::rgb_pixel> img;
-    convertBitmapToArray2d(env, bitmap, img);
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    dlib::array2d<dlib::rgb_pixel>& img = context->rgbImage;
+    if (!convertBitmapToArray2d(env, bitmap, img)) return -1;
 
-    double interval = profiler.stopAndGetInterval();
+    LOGV("L%d: input image (w=%ld, h=%ld) is read",
+         __LINE__, img.nc(), img.nr());
 
-    const float width = (float) img.nc();
-    const float height = (float) img.nr();
-    LOGI("L%d: input image (w=%f, h=%f) is read (took %.3f ms)",
-         __LINE__, width, height, interval);
+    detectFaceBoundsAndLog(context, img);
+    detectLandmarks(context, img, out);
+    rememberFlowFaces(context, img);
 
-//    // Make the image larger so we can detect small faces.
-//    dlib::pyramid_up(img);
-//    LOGI("L%d: pyramid_up the input image (w=%lu, h=%lu).", __LINE__, img.nc(), img.nr());
+    return (jint) context->faceBounds.size();
+}
 
-    profiler.start();
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(detectFacesAndLandmarksInRegions)(JNIEnv *env,
+                                                    jobject thiz,
+                                                    jlong handle,
+                                                    jobject bitmap,
+                                                    jintArray regions,
+                                                    jint regionCount,
+                                                    jobject outBuffer) {
+    TraceScope trace("detectFacesAndLandmarksInRegions");
+
+    if (!checkDetectorsReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-    // Now tell the face detector to give us a list of bounding boxes
-    // around all the faces in the image.
-    std::vector<dlib::rectangle> dets = sFaceDetector(img);
-    interval = profiler.stopAndGetInterval();
-    LOGI("L%d: Number of faces detected: %u (took %.3f ms)",
-         __LINE__, (unsigned int) dets.size(), interval);
-
-    // Protobuf message.
-    FaceList faces;
-    // Now we will go ask the shape_predictor to tell us the pose of
-    // each face we detected.
-    for (unsigned long j = 0; j < dets.size(); ++j) {
-        profiler.start();
-        dlib::full_object_detection shape = sFaceLandmarksDetector(img, dets[j]);
-        interval = profiler.stopAndGetInterval();
-        LOGI("L%d: #%lu face, %lu landmarks detected (took %.3f ms)",
-             __LINE__, j, shape.num_parts(), interval);
-
-        profiler.start();
-
-        // To protobuf message.
-        Face* face = faces.add_faces();
-        // Transfer face boundary.
-        RectF* bound = face->mutable_bound();
-        bound->set_left((float) dets[j].left() / width);
-        bound->set_top((float) dets[j].top() / height);
-        bound->set_right((float) dets[j].right() / width);
-        bound->set_bottom((float) dets[j].bottom() / height);
-        // Transfer face landmarks.
-        for (u_long i = 0 ; i < shape.num_parts(); ++i) {
-            dlib::point& pt = shape.part(i);
-
-            Landmark* landmark = face->add_landmarks();
-            landmark->set_x((float) pt.x() / width);
-            landmark->set_y((float) pt.y() / height);
-        }
-        interval = profiler.stopAndGetInterval();
-        LOGI("L%d: Convert #%lu face to protobuf message (took %.3f ms)",
-             __LINE__, j, interval);
+    // Convert bitmap to dlib::array2d.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    dlib::array2d<dlib::rgb_pixel>& img = context->rgbImage;
+    if (!convertBitmapToArray2d(env, bitmap, img)) return -1;
+
+    LOGV("L%d: input image (w=%ld, h=%ld) is read",
+         __LINE__, img.nc(), img.nr());
+
+    // Search the faces in the regions only.
+    if (!readFaceBounds(env, regions, regionCount, context->searchRegions)) return -1;
+    detectFaceBoundsInRegions(context, getFaceDetector(context), img);
+    LOGV("L%d: %u faces detected in %d regions",
+         __LINE__, (unsigned int) context->faceBounds.size(), regionCount);
+
+    detectLandmarks(context, img, out);
+    rememberFlowFaces(context, img);
+
+    return (jint) context->faceBounds.size();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(detectFacesAndLandmarksInBitmaps)(JNIEnv *env,
+                                                    jobject thiz,
+                                                    jlong handle,
+                                                    jobjectArray bitmaps,
+                                                    jintArray outFaceCounts,
+                                                    jobject outBuffer) {
+    TraceScope trace("detectFacesAndLandmarksInBitmaps");
+
+    if (!checkDetectorsReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
     }
 
-    profiler.start();
+    // Lock all the bitmaps, and then detect the images on the workers.
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    LockedBitmaps locked(env);
+    std::vector<BatchInput> inputs;
+    if (!locked.lock(bitmaps, inputs)) return -1;
+
+    context->batchImages.resize(inputs.size());
+    try {
+        detectBatch(context, inputs, true);
+    } catch (std::exception& error) {
+        LOGI("L%d: Failed to detect the batch: %s", __LINE__, error.what());
+        throwException(env, "Failed to detect the batch!");
+        return -1;
+    }
 
-    // Prepare the return message.
-    int outSize = faces.ByteSize();
-    jbyteArray out = env->NewByteArray(outSize);
-    jbyte* buffer = new jbyte[outSize];
+    return writeBatch(env, context, outFaceCounts, out);
+}
 
-    faces.SerializeToArray(buffer, outSize);
-    env->SetByteArrayRegion(out, 0, outSize, buffer);
-    delete[] buffer;
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(detectLandmarksFromFacesInBitmaps)(JNIEnv *env,
+                                                     jobject thiz,
+                                                     jlong handle,
+                                                     jobjectArray bitmaps,
+                                                     jintArray faceBounds,
+                                                     jintArray faceCounts,
+                                                     jobject outBuffer) {
+    TraceScope trace("detectLandmarksFromFacesInBitmaps");
+
+    if (!checkFaceLandmarksDetectorReady(env, DetectorContext::fromHandle(handle))) return -1;
+
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
+
+    DetectorContext* context = DetectorContext::fromHandle(handle);
+    LockedBitmaps locked(env);
+    std::vector<BatchInput> inputs;
+    if (!locked.lock(bitmaps, inputs)) return -1;
+
+    // Split the face bounds, [left, top, right, bottom] x N, by the images.
+    const jsize imageCount = (jsize) inputs.size();
+    if (faceCounts == NULL || env->GetArrayLength(faceCounts) < imageCount) {
+        throwIllegalArgumentException(env, "The face counts don't match the images!");
+        return -1;
+    }
+    std::vector<jint> counts(imageCount);
+    if (imageCount > 0) {
+        env->GetIntArrayRegion(faceCounts, 0, imageCount, counts.data());
+    }
+    jlong faceCount = 0;
+    for (jsize i = 0; i < imageCount; ++i) {
+        if (counts[i] < 0) {
+            throwIllegalArgumentException(env, "The face counts must not be negative!");
+            return -1;
+        }
+        faceCount += counts[i];
+    }
+    if (faceBounds == NULL || 4 * faceCount > env->GetArrayLength(faceBounds)) {
+        throwIllegalArgumentException(env, "The face bounds don't match the face counts!");
+        return -1;
+    }
 
-    interval = profiler.stopAndGetInterval();
-    LOGI("L%d: Convert faces to protobuf message (took %.3f ms)",
-         __LINE__, interval);
+    jint* pBounds = env->GetIntArrayElements(faceBounds, NULL);
+    context->batchImages.resize(imageCount);
+    long offset = 0;
+    for (jsize i = 0; i < imageCount; ++i) {
+        std::vector<dlib::rectangle>& bounds = context->batchImages[i].faceBounds;
+        bounds.clear();
+        for (jint j = 0; j < counts[i]; ++j, offset += 4) {
+            bounds.push_back(dlib::rectangle(pBounds[offset],
+                                             pBounds[offset + 1],
+                                             pBounds[offset + 2],
+                                             pBounds[offset + 3]));
+        }
+    }
+    env->ReleaseIntArrayElements(faceBounds, pBounds, JNI_ABORT);
+
+    try {
+        detectBatch(context, inputs, false);
+    } catch (std::exception& error) {
+        LOGI("L%d: Failed to detect the batch: %s", __LINE__, error.what());
+        throwException(env, "Failed to detect the batch!");
+        return -1;
+    }
+
+    return writeBatch(env, context, faceCounts, out);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+JNI_BITMAP_METHOD(writeBatchFaces)(JNIEnv *env,
+                                   jobject thiz,
+                                   jlong handle,
+                                   jintArray outFaceCounts,
+                                   jobject outBuffer) {
+    FaceBuffer out(env, outBuffer);
+    if (!out.isValid()) {
+        throwException(env, "The output buffer is not a valid direct buffer!");
+        return -1;
+    }
 
-    return out;
+    return writeBatch(env, DetectorContext::fromHandle(handle), outFaceCounts, out);
 }
+
+#endif // __ANDROID__
@@ -0,0 +1,52 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <jni.h>
+#include <my/jni.h>
+#include <my/metrics.h>
+
+#define JNI_METHOD(NAME) \
+    Java_com_my_jni_dlib_DLibMetrics_##NAME
+
+extern "C" JNIEXPORT jint JNICALL
+JNI_METHOD(nativeGetSnapshotSize)(JNIEnv* env,
+                                  jclass clazz) {
+    return Metrics::SNAPSHOT_SIZE;
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeGetSnapshot)(JNIEnv* env,
+                              jclass clazz,
+                              jlongArray out) {
+    if (env->GetArrayLength(out) < Metrics::SNAPSHOT_SIZE) {
+        throwException(env, "The snapshot array is too small!");
+        return;
+    }
+
+    int64_t values[Metrics::SNAPSHOT_SIZE];
+    Metrics::snapshot(values);
+    env->SetLongArrayRegion(out, 0, Metrics::SNAPSHOT_SIZE, (const jlong*) values);
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeReset)(JNIEnv* env,
+                        jclass clazz) {
+    Metrics::reset();
+}
@@ -0,0 +1,48 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <string>
+#include <jni.h>
+#include <my/trace.h>
+
+#define JNI_METHOD(NAME) \
+    Java_com_my_jni_dlib_DLibTrace_##NAME
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeSetEnabled)(JNIEnv* env,
+                             jclass clazz,
+                             jboolean enabled) {
+    Trace::setEnabled(enabled == JNI_TRUE);
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+JNI_METHOD(nativeDumpEvents)(JNIEnv* env,
+                             jclass clazz,
+                             jint pid) {
+    // The names are ASCII literals so it's valid modified UTF-8 too.
+    const std::string json = Trace::dumpEvents(pid);
+    return env->NewStringUTF(json.c_str());
+}
+
+extern "C" JNIEXPORT void JNICALL
+JNI_METHOD(nativeClear)(JNIEnv* env,
+                        jclass clazz) {
+    Trace::clear();
+}
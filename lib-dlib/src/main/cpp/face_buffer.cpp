@@ -0,0 +1,89 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <my/dlib/face_buffer.h>
+
+FaceBuffer::FaceBuffer(JNIEnv* env,
+                       jobject byteBuffer)
+    : mAddress(NULL),
+      mSize(0) {
+    if (byteBuffer == NULL) return;
+
+    mAddress = (uint8_t*) env->GetDirectBufferAddress(byteBuffer);
+    mSize = env->GetDirectBufferCapacity(byteBuffer);
+}
+
+FaceBuffer::FaceBuffer(uint8_t* address,
+                       int64_t size)
+    : mAddress(address),
+      mSize(size) {
+    // DO NOTHING.
+}
+
+FaceBuffer::~FaceBuffer() {
+    // DO NOTHING.
+}
+
+bool FaceBuffer::isValid() const {
+    return mAddress != NULL && mSize >= HEADER_SIZE;
+}
+
+long FaceBuffer::capacity() const {
+    if (!isValid()) return 0;
+
+    return (long) ((mSize - HEADER_SIZE) / FACE_SIZE);
+}
+
+void FaceBuffer::writeHeader(long faceCount,
+                             long landmarkCount) {
+    if (!isValid()) return;
+
+    int32_t* header = (int32_t*) mAddress;
+    header[0] = (int32_t) faceCount;
+    header[1] = (int32_t) landmarkCount;
+}
+
+void FaceBuffer::writeFace(long index,
+                           const dlib::rectangle& bound,
+                           float width,
+                           float height,
+                           const dlib::full_object_detection* shape) {
+    if (index < 0 || index >= capacity()) return;
+
+    float* face = (float*) (mAddress + HEADER_SIZE + index * FACE_SIZE);
+
+    // Face boundary.
+    face[0] = (float) bound.left() / width;
+    face[1] = (float) bound.top() / height;
+    face[2] = (float) bound.right() / width;
+    face[3] = (float) bound.bottom() / height;
+
+    // Face landmarks.
+    if (shape == NULL) return;
+    float* landmarks = face + 4;
+    const unsigned long count = std::min(shape->num_parts(),
+                                         (unsigned long) MAX_LANDMARKS);
+    for (unsigned long i = 0; i < count; ++i) {
+        const dlib::point& pt = shape->part(i);
+
+        landmarks[2 * i] = (float) pt.x() / width;
+        landmarks[2 * i + 1] = (float) pt.y() / height;
+    }
+}
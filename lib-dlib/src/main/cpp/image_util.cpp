@@ -0,0 +1,170 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <string.h>
+#include <my/dlib/image_util.h>
+
+namespace {
+
+/**
+ * Copy the pixels to the upright image by mapping every upright pixel (x, y)
+ * back to the source pixel (sx, sy).
+ */
+template <typename pixel_type, typename converter_type>
+void copyUprightToArray2d(const uint8_t* pixels,
+                          long width,
+                          long height,
+                          long rowStride,
+                          long pixelStride,
+                          int rotation,
+                          bool mirrored,
+                          converter_type convert,
+                          dlib::array2d<pixel_type>& out) {
+    const long outWidth = out.nc();
+    const long outHeight = out.nr();
+
+    for (long y = 0; y < outHeight; ++y) {
+        pixel_type* line = &out[y][0];
+
+        for (long x = 0; x < outWidth; ++x) {
+            const long ux = mirrored ? outWidth - 1 - x : x;
+            long sx, sy;
+
+            switch (rotation) {
+                case 90:
+                    sx = y;
+                    sy = height - 1 - ux;
+                    break;
+                case 180:
+                    sx = width - 1 - ux;
+                    sy = height - 1 - y;
+                    break;
+                case 270:
+                    sx = width - 1 - y;
+                    sy = ux;
+                    break;
+                default:
+                    sx = ux;
+                    sy = y;
+                    break;
+            }
+
+            convert(pixels + sy * rowStride + sx * pixelStride, line[x]);
+        }
+    }
+}
+
+struct LuminanceConverter {
+    void operator()(const uint8_t* pixel,
+                    unsigned char& out) const {
+        out = *pixel;
+    }
+};
+
+struct RgbaConverter {
+    void operator()(const uint8_t* pixel,
+                    dlib::rgb_pixel& out) const {
+        const uint32_t color = *((const uint32_t*) pixel);
+
+        out.red = (unsigned char) (0xFF & (color >> 24));
+        out.green = (unsigned char) (0xFF & (color >> 16));
+        out.blue = (unsigned char) (0xFF & (color >> 8));
+    }
+};
+
+}
+
+int getBytesPerPixel(int format) {
+    switch (format) {
+        case PIXEL_FORMAT_GRAY_8:
+            return 1;
+        case PIXEL_FORMAT_RGBA_8888:
+            return 4;
+        default:
+            return 0;
+    }
+}
+
+void copyRgbaToArray2d(const uint8_t* pixels,
+                       long width,
+                       long height,
+                       long rowStride,
+                       dlib::array2d<dlib::rgb_pixel>& out) {
+    out.set_size(height, width);
+
+    const uint8_t* line = pixels;
+    for (long h = 0; h < height; ++h) {
+        for (long w = 0; w < width; ++w) {
+            const uint32_t* color = (const uint32_t*) (line + 4 * w);
+
+            out[h][w].red = (unsigned char) (0xFF & ((*color) >> 24));
+            out[h][w].green = (unsigned char) (0xFF & ((*color) >> 16));
+            out[h][w].blue = (unsigned char) (0xFF & ((*color) >> 8));
+        }
+
+        line = line + rowStride;
+    }
+}
+
+void copyRgbaToArray2d(const uint8_t* pixels,
+                       long width,
+                       long height,
+                       long rowStride,
+                       long pixelStride,
+                       int rotation,
+                       bool mirrored,
+                       dlib::array2d<dlib::rgb_pixel>& out) {
+    // The fast path of the bitmaps.
+    if (rotation == 0 && !mirrored && pixelStride == 4) {
+        copyRgbaToArray2d(pixels, width, height, rowStride, out);
+        return;
+    }
+
+    const bool transposed = (rotation == 90 || rotation == 270);
+    out.set_size(transposed ? width : height,
+                 transposed ? height : width);
+    copyUprightToArray2d(pixels, width, height, rowStride, pixelStride,
+                         rotation, mirrored, RgbaConverter(), out);
+}
+
+void copyLuminanceToArray2d(const uint8_t* pixels,
+                            long width,
+                            long height,
+                            long rowStride,
+                            long pixelStride,
+                            int rotation,
+                            bool mirrored,
+                            dlib::array2d<unsigned char>& out) {
+    const bool transposed = (rotation == 90 || rotation == 270);
+    const long outWidth = transposed ? height : width;
+    const long outHeight = transposed ? width : height;
+    out.set_size(outHeight, outWidth);
+
+    // The fast path, copy line by line.
+    if (rotation == 0 && !mirrored && pixelStride == 1) {
+        for (long y = 0; y < outHeight; ++y) {
+            memcpy(&out[y][0], pixels + y * rowStride, (size_t) outWidth);
+        }
+        return;
+    }
+
+    copyUprightToArray2d(pixels, width, height, rowStride, pixelStride,
+                         rotation, mirrored, LuminanceConverter(), out);
+}
@@ -0,0 +1,232 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_COMPACT_SHAPE_PREDICTOR_H
+#define COM_MY_JNI_DLIB_COMPACT_SHAPE_PREDICTOR_H
+
+#include <istream>
+#include <memory>
+#include <ostream>
+#include <stdint.h>
+#include <vector>
+#include <dlib/image_processing/shape_predictor.h>
+#include <my/mapped_file.h>
+
+/**
+ * A dlib shape predictor read in place from a memory-mapped compact model
+ * file, so loading the model is just mapping the file and only the touched
+ * pages are resident.
+ * <br/>
+ * The compact file is converted from a dlib shape predictor model by
+ * {@link #convert}, see lib-dlib/tools/convert-shape-predictor. It is a
+ * little-endian header followed by the 16-byte aligned sections:
+ * <pre>
+ * initial shape   float[2 * parts]
+ * anchors         uint16[cascades * features]
+ * deltas          float[cascades * features * 2]
+ * leaf scales     float[cascades]
+ * splits          Split[cascades * trees * (2^depth - 1)]
+ * leaves          value[cascades * trees * 2^depth * 2 * parts]
+ * </pre>
+ * Every tree is complete at the same depth so a tree is located by its
+ * index. The leaf displacements, which are most of the model, are stored in
+ * one of the {@link LeafFormat}; the quantized leaves are scaled per cascade.
+ * <br/>
+ * The prediction is the same cascade of regression trees as
+ * dlib::shape_predictor; with the FLOAT32 leaves it gives the same shape.
+ */
+class CompactShapePredictor {
+public:
+
+    enum LeafFormat {
+        // The full precision leaves, the same as the dlib model.
+        FLOAT32 = 0,
+        // The IEEE half precision leaves, half the size.
+        FLOAT16 = 1,
+        // The leaves quantized to [-127, 127] by the largest leaf magnitude
+        // of the cascade, a quarter of the size.
+        INT8 = 2
+    };
+
+    /**
+     * Whether the mapping is a compact model rather than a dlib model.
+     */
+    static bool isCompact(const MappedFile& file);
+
+    /**
+     * Convert a serialized dlib::shape_predictor to the compact model.
+     *
+     * @throws dlib::serialization_error if the input is not a dlib shape
+     * predictor or its trees are not complete at the same depth.
+     */
+    static void convert(std::istream& dlibModel,
+                        LeafFormat format,
+                        std::ostream& out);
+
+    /**
+     * @param file The mapping of a compact model, which is owned by the
+     *             predictor.
+     * @throws dlib::serialization_error if the file is not a valid compact
+     * model.
+     */
+    explicit CompactShapePredictor(std::unique_ptr<MappedFile> file);
+
+    unsigned long num_parts() const { return mHeader->partCount; }
+
+    LeafFormat getLeafFormat() const { return (LeafFormat) mHeader->leafFormat; }
+
+    /**
+     * Predict the shape of the object in the given box, the same as
+     * dlib::shape_predictor.
+     */
+    template <typename image_type>
+    dlib::full_object_detection operator()(const image_type& img,
+                                           const dlib::rectangle& rect) const {
+        using namespace dlib::impl;
+
+        const unsigned long valueCount = 2 * mHeader->partCount;
+        const unsigned long splitCount = (1ul << mHeader->treeDepth) - 1;
+        const unsigned long leafCount = splitCount + 1;
+
+        dlib::matrix<float, 0, 1> currentShape = mInitialShape;
+        std::vector<float> features;
+        std::vector<int32_t> sums;
+        for (unsigned long c = 0; c < mHeader->cascadeCount; ++c) {
+            extract_feature_pixel_values(img, rect, currentShape, mInitialShape,
+                                         mAnchors[c], mDeltas[c], features);
+
+            const unsigned long firstTree = c * mHeader->treeCount;
+            if (mHeader->leafFormat == INT8) {
+                // Sum the quantized leaves exactly and scale once.
+                sums.assign(valueCount, 0);
+            }
+            for (unsigned long t = 0; t < mHeader->treeCount; ++t) {
+                const Split* splits = mSplits + (firstTree + t) * splitCount;
+                unsigned long i = 0;
+                while (i < splitCount) {
+                    if (features[splits[i].idx1] - features[splits[i].idx2] > splits[i].thresh) {
+                        i = left_child(i);
+                    } else {
+                        i = right_child(i);
+                    }
+                }
+
+                const unsigned long leaf =
+                    ((firstTree + t) * leafCount + i - splitCount) * valueCount;
+                addLeaf(leaf, valueCount, currentShape, sums);
+            }
+            if (mHeader->leafFormat == INT8) {
+                const float scale = mLeafScales[c];
+                for (unsigned long k = 0; k < valueCount; ++k) {
+                    currentShape(k) += scale * sums[k];
+                }
+            }
+        }
+
+        // Convert the current shape into a full_object_detection.
+        const dlib::point_transform_affine toImage = unnormalizing_tform(rect);
+        std::vector<dlib::point> parts(mHeader->partCount);
+        for (unsigned long i = 0; i < parts.size(); ++i) {
+            parts[i] = toImage(location(currentShape, i));
+        }
+
+        return dlib::full_object_detection(rect, parts);
+    }
+
+    /**
+     * Convert between the single and the half precision floats, rounding to
+     * the nearest even.
+     */
+    static uint16_t floatToHalf(float value);
+
+    static float halfToFloat(uint16_t value);
+
+private:
+
+    static const uint32_t MAGIC = 0x31505343; // "CSP1"
+    static const uint32_t VERSION = 1;
+
+    struct Header {
+        uint32_t magic;
+        uint32_t version;
+        uint32_t partCount;
+        uint32_t cascadeCount;
+        uint32_t treeCount;
+        uint32_t treeDepth;
+        uint32_t featureCount;
+        uint32_t leafFormat;
+        uint32_t initialShapeOffset;
+        uint32_t anchorsOffset;
+        uint32_t deltasOffset;
+        uint32_t leafScalesOffset;
+        uint32_t splitsOffset;
+        uint32_t leavesOffset;
+        uint32_t fileSize;
+        uint32_t reserved;
+    };
+
+    struct Split {
+        uint16_t idx1;
+        uint16_t idx2;
+        float thresh;
+    };
+
+    std::unique_ptr<MappedFile> mFile;
+    const Header* mHeader;
+    const Split* mSplits;
+    const void* mLeaves;
+    const float* mLeafScales;
+
+    // The small sections in the types extract_feature_pixel_values takes.
+    dlib::matrix<float, 0, 1> mInitialShape;
+    std::vector<std::vector<unsigned long> > mAnchors;
+    std::vector<std::vector<dlib::vector<float, 2> > > mDeltas;
+
+    void addLeaf(unsigned long leaf,
+                 unsigned long valueCount,
+                 dlib::matrix<float, 0, 1>& shape,
+                 std::vector<int32_t>& sums) const {
+        switch (mHeader->leafFormat) {
+            case FLOAT32: {
+                const float* values = static_cast<const float*>(mLeaves) + leaf;
+                for (unsigned long k = 0; k < valueCount; ++k) {
+                    shape(k) += values[k];
+                }
+                break;
+            }
+            case FLOAT16: {
+                const uint16_t* values = static_cast<const uint16_t*>(mLeaves) + leaf;
+                for (unsigned long k = 0; k < valueCount; ++k) {
+                    shape(k) += halfToFloat(values[k]);
+                }
+                break;
+            }
+            default: {
+                const int8_t* values = static_cast<const int8_t*>(mLeaves) + leaf;
+                for (unsigned long k = 0; k < valueCount; ++k) {
+                    sums[k] += values[k];
+                }
+                break;
+            }
+        }
+    }
+};
+
+#endif //COM_MY_JNI_DLIB_COMPACT_SHAPE_PREDICTOR_H
@@ -0,0 +1,228 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_DETECTOR_CONTEXT_H
+#define COM_MY_JNI_DLIB_DETECTOR_CONTEXT_H
+
+#include <jni.h>
+#include <memory>
+#include <mutex>
+#include <vector>
+#include <dlib/array2d.h>
+#include <dlib/pixel.h>
+#include <dlib/image_processing/full_object_detection.h>
+#include <dlib/image_processing/frontal_face_detector.h>
+#include <my/worker_pool.h>
+#include <my/dlib/model_cache.h>
+#include <my/dlib/optical_flow.h>
+#include <my/dlib/parallel_face_detector.h>
+
+/**
+ * The per pixel type scratch area of the face detection.
+ */
+template <typename pixel_type>
+struct FaceDetectionScratch {
+
+    // The input image resized by the detection scale.
+    dlib::array2d<pixel_type> scaledImage;
+
+    // The copy of a search region, see DetectorContext::searchRegions.
+    dlib::array2d<pixel_type> regionImage;
+
+    ParallelFaceDetector<pixel_type> parallelDetector;
+};
+
+/**
+ * The scratch area of a worker detecting the faces of one image of a batch;
+ * the images of a batch are spread across the workers, and every worker
+ * takes a slot of its own while it's working on an image.
+ */
+struct BatchSlot {
+
+    // The image being detected.
+    dlib::array2d<dlib::rgb_pixel> rgbImage;
+    FaceDetectionScratch<dlib::rgb_pixel> rgbScratch;
+    std::vector<dlib::rect_detection> detections;
+
+    // The copy of the context's face detector, whose scanner state is
+    // mutable, and the generation it's copied from.
+    dlib::frontal_face_detector faceDetector;
+    unsigned long faceDetectorGeneration = 0;
+};
+
+/**
+ * The faces of one image of a batch, kept until they're written to the
+ * output buffer.
+ */
+struct BatchImage {
+
+    float width = 0;
+    float height = 0;
+    std::vector<dlib::rectangle> faceBounds;
+    std::vector<dlib::full_object_detection> shapes;
+};
+
+/**
+ * The native scratch area owned by a Java detector. It lives across the
+ * detection calls so that the frame loop doesn't allocate the image and the
+ * result containers for every frame; the image is only reallocated when the
+ * frame dimension changes.
+ * <br/>
+ * The Java detector holds the address as a {@code long} handle, see
+ * {@link #fromHandle(jlong)}.
+ */
+struct DetectorContext {
+
+    // The read-only models shared with the other contexts, see ModelCache.
+    std::shared_ptr<const dlib::frontal_face_detector> baseFaceDetector;
+    std::shared_ptr<const ShapeModel> shapePredictor;
+
+    // The input images.
+    dlib::array2d<dlib::rgb_pixel> rgbImage;
+    dlib::array2d<unsigned char> grayImage;
+
+    // The detection results.
+    std::vector<dlib::rect_detection> detections;
+    std::vector<dlib::rectangle> faceBounds;
+    std::vector<dlib::full_object_detection> shapes;
+    // The dimension of the image the results are detected in.
+    float imageWidth = 0;
+    float imageHeight = 0;
+
+    // The regions to search the faces in, e.g. the expanded bounds of the
+    // faces in the previous frame, and the faces found in one region.
+    std::vector<dlib::rectangle> searchRegions;
+    std::vector<dlib::rect_detection> regionDetections;
+
+    // The workers spreading the face detection and the faces across the
+    // cores; 0 parallelism means the number of cores.
+    unsigned int parallelism = 0;
+    std::unique_ptr<WorkerPool> workers;
+
+    // The face detection configuration, see DLibFaceDetectorConfig.java.
+    double downscale = 1;
+    long minFaceSize = 0;
+    long maxFaceSize = 0;
+    int upsample = 0;
+
+    // The face detector limited by the configuration and the scale resizing
+    // the input image; they're derived again when the configuration or the
+    // base model changes. The detector owns the mutable scanner state, so it's
+    // never shared.
+    bool isFaceDetectorDirty = true;
+    dlib::frontal_face_detector faceDetector;
+    double detectionScale = 1;
+    // Increased whenever the face detector is derived again, see BatchSlot.
+    unsigned long faceDetectorGeneration = 0;
+
+    // The landmarks propagation by the optical flow between the shape
+    // predictor runs. The flow's current frame is the last luminance frame
+    // with faces, whose bounds and landmarks are kept as the start of the
+    // next propagation.
+    bool isLandmarkFlowEnabled = false;
+    float maxFlowError = 10;
+    int maxFlowFrames = 5;
+    PyramidalLucasKanade flow;
+    std::vector<dlib::rectangle> flowBounds;
+    // The sub-pixel landmarks of all the faces, flowPartCount per face.
+    std::vector<dlib::dpoint> flowPoints;
+    unsigned long flowPartCount = 0;
+    // The frames since the landmarks of every face are predicted.
+    std::vector<int> flowFrames;
+
+    // The propagation results of all the landmarks.
+    std::vector<dlib::dpoint> trackedPoints;
+    std::vector<float> trackedErrors;
+    std::vector<char> trackedStatus;
+    // The scratch of the flow, one per worker.
+    std::vector<PyramidalLucasKanade::Window> flowWindows;
+    std::vector<char> needsPrediction;
+    std::vector<dlib::dpoint> nextFlowPoints;
+    std::vector<int> nextFlowFrames;
+
+    // The face detection running on the workers.
+    bool isParallelFaceDetectionEnabled = true;
+    FaceDetectionScratch<dlib::rgb_pixel> rgbScratch;
+    FaceDetectionScratch<unsigned char> grayScratch;
+
+    // The multi-image detection: the results of the last batch, which are
+    // written again if the output buffer is too small, and the slots of the
+    // workers.
+    std::vector<BatchImage> batchImages;
+    std::vector<std::unique_ptr<BatchSlot> > batchSlots;
+    std::vector<BatchSlot*> freeBatchSlots;
+    std::mutex batchSlotsMutex;
+
+    /**
+     * The worker pool, which is created lazily and recreated when the
+     * parallelism changes.
+     */
+    WorkerPool& getWorkers() {
+        const unsigned int expected = parallelism > 0 ?
+                                      parallelism : WorkerPool::getCoreCount();
+        if (!workers || workers->parallelism() != expected) {
+            workers.reset(new WorkerPool(expected));
+        }
+
+        return *workers;
+    }
+
+    FaceDetectionScratch<dlib::rgb_pixel>& getScratch(
+        const dlib::array2d<dlib::rgb_pixel>&) {
+        return rgbScratch;
+    }
+
+    FaceDetectionScratch<unsigned char>& getScratch(
+        const dlib::array2d<unsigned char>&) {
+        return grayScratch;
+    }
+
+    /**
+     * Take a free slot for the calling worker, see releaseBatchSlot(); a slot
+     * is created if there is none, so there are at most as many slots as the
+     * workers.
+     */
+    BatchSlot* acquireBatchSlot() {
+        std::lock_guard<std::mutex> lock(batchSlotsMutex);
+        if (freeBatchSlots.empty()) {
+            batchSlots.push_back(std::unique_ptr<BatchSlot>(new BatchSlot()));
+            return batchSlots.back().get();
+        }
+
+        BatchSlot* slot = freeBatchSlots.back();
+        freeBatchSlots.pop_back();
+        return slot;
+    }
+
+    void releaseBatchSlot(BatchSlot* slot) {
+        std::lock_guard<std::mutex> lock(batchSlotsMutex);
+        freeBatchSlots.push_back(slot);
+    }
+
+    static DetectorContext* fromHandle(jlong handle) {
+        return reinterpret_cast<DetectorContext*>(handle);
+    }
+
+    static jlong toHandle(DetectorContext* context) {
+        return reinterpret_cast<jlong>(context);
+    }
+};
+
+#endif //COM_MY_JNI_DLIB_DETECTOR_CONTEXT_H
@@ -0,0 +1,103 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_FACE_BUFFER_H
+#define COM_MY_JNI_DLIB_FACE_BUFFER_H
+
+#include <jni.h>
+#include <stdint.h>
+#include <dlib/geometry/rectangle.h>
+#include <dlib/image_processing/full_object_detection.h>
+
+/**
+ * A writer of the packed face layout shared with the Java
+ * {@code com.my.jni.dlib.data.DLibFaceBuffer}. The layout lives in a
+ * caller-owned direct ByteBuffer in the native byte order:
+ * <pre>
+ * [int32 faceCount][int32 landmarkCount]
+ * faceCount x {
+ *     [float32 left][float32 top][float32 right][float32 bottom]
+ *     [float32 x][float32 y] x MAX_LANDMARKS
+ * }
+ * </pre>
+ * All the coordinates are normalized by the image width and height.
+ * <br/>
+ * Usage:
+ * <pre>
+ * FaceBuffer out(env, byteBuffer);
+ * if (!out.isValid()) return -1;
+ *
+ * out.writeHeader(dets.size(), 68);
+ * out.writeFace(0, dets[0], width, height, &shape);
+ * </pre>
+ */
+class FaceBuffer {
+public:
+
+    static const int HEADER_SIZE = 2 * sizeof(int32_t);
+    static const int MAX_LANDMARKS = 68;
+    static const int FACE_SIZE = (4 + 2 * MAX_LANDMARKS) * sizeof(float);
+
+    FaceBuffer(JNIEnv* env,
+               jobject byteBuffer);
+
+    /**
+     * Write to the given memory, e.g. out of the JVM.
+     */
+    FaceBuffer(uint8_t* address,
+               int64_t size);
+
+    ~FaceBuffer();
+
+    /**
+     * Return true if the given buffer is a direct buffer big enough for at
+     * least the header.
+     */
+    bool isValid() const;
+
+    /**
+     * The max number of faces the buffer could hold.
+     */
+    long capacity() const;
+
+    /**
+     * Write the header. The face count could be greater than the capacity so
+     * that the caller knows how big the buffer should be.
+     */
+    void writeHeader(long faceCount,
+                     long landmarkCount);
+
+    /**
+     * Write the face bound and its landmarks (optional) at the given slot.
+     * The face beyond the capacity is ignored.
+     */
+    void writeFace(long index,
+                   const dlib::rectangle& bound,
+                   float width,
+                   float height,
+                   const dlib::full_object_detection* shape);
+
+private:
+
+    uint8_t* mAddress;
+    int64_t mSize;
+};
+
+#endif //COM_MY_JNI_DLIB_FACE_BUFFER_H
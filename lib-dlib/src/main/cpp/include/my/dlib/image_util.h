@@ -0,0 +1,100 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_IMAGE_UTIL_H
+#define COM_MY_JNI_DLIB_IMAGE_UTIL_H
+
+#include <stdint.h>
+#include <dlib/array2d.h>
+#include <dlib/pixel.h>
+
+/**
+ * The pixel formats of the images given to the detectors, the same as
+ * DLibImage.FORMAT_* in Java.
+ */
+enum PixelFormat {
+    // The 8-bit luminance, e.g. the Y plane of a camera frame.
+    PIXEL_FORMAT_GRAY_8 = 1,
+    // The 32-bit RGBA as an Android RGBA_8888 bitmap.
+    PIXEL_FORMAT_RGBA_8888 = 2
+};
+
+/**
+ * @return The bytes of a pixel in the given format, or 0 if the format is
+ * unknown.
+ */
+int getBytesPerPixel(int format);
+
+/**
+ * Copy the pixels of an Android RGBA_8888 bitmap to the given image. The
+ * image is only reallocated when the dimension changes.
+ *
+ * @param pixels The first pixel of the bitmap.
+ * @param width The bitmap width.
+ * @param height The bitmap height.
+ * @param rowStride The bytes between two rows.
+ * @param out The image.
+ */
+void copyRgbaToArray2d(const uint8_t* pixels,
+                       long width,
+                       long height,
+                       long rowStride,
+                       dlib::array2d<dlib::rgb_pixel>& out);
+
+/**
+ * Copy the RGBA_8888 pixels to the given image and make it upright at the
+ * same time, see copyLuminanceToArray2d().
+ *
+ * @param pixelStride The bytes between two pixels in a row, at least 4.
+ */
+void copyRgbaToArray2d(const uint8_t* pixels,
+                       long width,
+                       long height,
+                       long rowStride,
+                       long pixelStride,
+                       int rotation,
+                       bool mirrored,
+                       dlib::array2d<dlib::rgb_pixel>& out);
+
+/**
+ * Copy a 8-bit luminance plane (e.g. the Y plane of a NV21 camera frame) to
+ * the given image and make it upright at the same time. The image is only
+ * reallocated when the upright dimension changes.
+ *
+ * @param pixels The first pixel of the plane.
+ * @param width The plane width.
+ * @param height The plane height.
+ * @param rowStride The bytes between two rows.
+ * @param pixelStride The bytes between two pixels in a row.
+ * @param rotation The clockwise rotation in degrees, either 0, 90, 180 or 270,
+ *                 to make the plane upright.
+ * @param mirrored Flip the image horizontally after the rotation.
+ * @param out The upright image.
+ */
+void copyLuminanceToArray2d(const uint8_t* pixels,
+                            long width,
+                            long height,
+                            long rowStride,
+                            long pixelStride,
+                            int rotation,
+                            bool mirrored,
+                            dlib::array2d<unsigned char>& out);
+
+#endif //COM_MY_JNI_DLIB_IMAGE_UTIL_H
@@ -0,0 +1,94 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_MODEL_CACHE_H
+#define COM_MY_JNI_DLIB_MODEL_CACHE_H
+
+#include <map>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <dlib/image_processing/frontal_face_detector.h>
+#include <my/mapped_file.h>
+#include <my/dlib/shape_model.h>
+
+/**
+ * The read-only models shared by the detector contexts. A model is loaded
+ * once and shared by reference counting; the cache only holds weak
+ * references, so the model is released with the last context using it.
+ * <br/>
+ * The models are immutable once loaded, so they're safe to read from any
+ * thread; the mutable scanner state of the face detector is per context.
+ */
+class ModelCache {
+public:
+
+    /**
+     * Get the shape predictor deserialized from the given file, which is
+     * loaded if no context holds it. The file is memory-mapped; a dlib model
+     * is parsed in place while a compact model, see CompactShapePredictor,
+     * is used in place without parsing.
+     * <br/>
+     * A model is keyed by the path, the size and the modified time of the
+     * file, so a file replaced at the same path is loaded again. A compact
+     * model keeps the file mapped while it's in use, so the file must be
+     * replaced by an atomic rename rather than rewritten in place; the
+     * latter changes the weights of the model in use, or faults the reads
+     * past the end if it's truncated.
+     *
+     * @param progress Called on the calling thread while the file is read;
+     *                 it's never called if the model is already loaded, and
+     *                 only once for a compact model. No global lock is held
+     *                 while it's called, only the one of this file.
+     * @throws dlib::serialization_error if the file is not a valid model.
+     * @throws std::runtime_error if the file can't be read.
+     */
+    static std::shared_ptr<const ShapeModel> getShapePredictor(
+        const std::string& path,
+        const MappedFileStreambuf::ProgressCallback& progress =
+            MappedFileStreambuf::ProgressCallback());
+
+    /**
+     * Get the HOG frontal face detector.
+     */
+    static std::shared_ptr<const dlib::frontal_face_detector> getFrontalFaceDetector();
+
+private:
+
+    /**
+     * The model of a file; the mutex is held while the file is loaded.
+     */
+    struct ShapePredictorEntry {
+        std::mutex mutex;
+        std::weak_ptr<const ShapeModel> model;
+    };
+
+    /**
+     * Erase the entries whose models are released, so the keys of the
+     * replaced files don't pile up; sMutex must be held.
+     */
+    static void eraseReleasedShapePredictors();
+
+    static std::mutex sMutex;
+    static std::map<std::string, std::shared_ptr<ShapePredictorEntry> > sShapePredictors;
+    static std::weak_ptr<const dlib::frontal_face_detector> sFrontalFaceDetector;
+};
+
+#endif //COM_MY_JNI_DLIB_MODEL_CACHE_H
@@ -0,0 +1,130 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_OPTICAL_FLOW_H
+#define COM_MY_JNI_DLIB_OPTICAL_FLOW_H
+
+#include <vector>
+#include <dlib/array2d.h>
+#include <dlib/geometry/vector.h>
+
+/**
+ * A sparse pyramidal Lucas-Kanade optical flow carrying points from the
+ * previous frame to the current frame, e.g. the face landmarks between two
+ * shape predictor runs.
+ * <br/>
+ * Usage:
+ * <pre>
+ * PyramidalLucasKanade flow;
+ *
+ * flow.pushFrame(prevFrame);
+ * flow.pushFrame(currFrame);
+ *
+ * PyramidalLucasKanade::Window window = flow.createWindow();
+ * dlib::dpoint to;
+ * float error;
+ * if (flow.track(from, to, error, window)) {
+ *     // The point is found in the current frame.
+ * }
+ * </pre>
+ * The pyramids are kept across the frames; track() is read-only so that
+ * multiple points are tracked concurrently, given a window per thread.
+ */
+class PyramidalLucasKanade {
+public:
+
+    /**
+     * @param levels The pyramid levels, every level is half the size of the
+     *               previous one.
+     * @param windowRadius The radius of the square window around a point.
+     * @param maxIterations The maximum Gauss-Newton iterations per level.
+     */
+    PyramidalLucasKanade(int levels = 3,
+                         int windowRadius = 7,
+                         int maxIterations = 10);
+
+    /**
+     * Build the pyramid of the given frame, which becomes the current frame;
+     * the current frame becomes the previous frame.
+     */
+    void pushFrame(const dlib::array2d<unsigned char>& img);
+
+    /**
+     * Forget the frames.
+     */
+    void clear();
+
+    bool hasPreviousFrame() const;
+
+    /**
+     * Whether there is a current frame of the same dimension as the given
+     * image.
+     */
+    bool isSameSize(const dlib::array2d<unsigned char>& img) const;
+
+    /**
+     * The scratch of track(), i.e. the window of the previous frame and its
+     * gradient, sized once for the window radius.
+     */
+    struct Window {
+        std::vector<float> intensity;
+        std::vector<float> gradientX;
+        std::vector<float> gradientY;
+    };
+
+    /**
+     * Create the scratch of track() sized for the window radius.
+     */
+    Window createWindow() const;
+
+    /**
+     * Track a point from the previous frame to the current frame.
+     *
+     * @param from The point in the previous frame.
+     * @param to The point in the current frame.
+     * @param error The mean absolute intensity difference of the windows
+     *              around the two points.
+     * @param window The scratch created by createWindow(), which is not
+     *               shared by the concurrent calls.
+     * @return false if the point is lost, e.g. the window is flat or the
+     *         point leaves the frame.
+     */
+    bool track(const dlib::dpoint& from,
+               dlib::dpoint& to,
+               float& error,
+               Window& window) const;
+
+private:
+
+    typedef std::vector<dlib::array2d<float> > Pyramid;
+
+    const int mLevels;
+    const int mWindowRadius;
+    const int mMaxIterations;
+
+    Pyramid mPrevious;
+    Pyramid mCurrent;
+    int mFrameCount;
+
+    void buildPyramid(const dlib::array2d<unsigned char>& img,
+                      Pyramid& out);
+};
+
+#endif //COM_MY_JNI_DLIB_OPTICAL_FLOW_H
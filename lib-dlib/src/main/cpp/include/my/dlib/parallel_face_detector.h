@@ -0,0 +1,198 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_PARALLEL_FACE_DETECTOR_H
+#define COM_MY_JNI_DLIB_PARALLEL_FACE_DETECTOR_H
+
+#include <algorithm>
+#include <vector>
+#include <dlib/array.h>
+#include <dlib/array2d.h>
+#include <dlib/image_processing/frontal_face_detector.h>
+#include <my/worker_pool.h>
+
+/**
+ * Run the HOG frontal_face_detector on a {@link WorkerPool}. The detector
+ * scans an image pyramid with five filters serially; here the work is split
+ * in two parallel stages:
+ * <ol>
+ *     <li>The HOG features of every pyramid level are extracted
+ *     concurrently. The level images are built one after another the same
+ *     way dlib::scan_fhog_pyramid does.</li>
+ *     <li>Every (filter, level) pair is convolved and thresholded
+ *     concurrently.</li>
+ * </ol>
+ * The candidates are then merged in the serial order and go through the same
+ * non-max suppression as dlib::object_detector, so the result is identical to
+ * {@code detector(img, dets)}.
+ * <br/>
+ * The instance keeps the pyramid and the intermediate results across the
+ * calls so that the frame loop doesn't allocate them for every frame.
+ *
+ * @tparam pixel_type The pixel type of the input image.
+ */
+template <typename pixel_type>
+class ParallelFaceDetector {
+public:
+
+    typedef dlib::scan_fhog_pyramid<dlib::pyramid_down<6> > scanner_type;
+
+    template <typename image_type>
+    void detect(const dlib::frontal_face_detector& detector,
+                WorkerPool& workers,
+                const image_type& img,
+                std::vector<dlib::rect_detection>& out,
+                double adjustThreshold = 0) {
+        const scanner_type& scanner = detector.get_scanner();
+        const scanner_type::feature_extractor_type& fe = scanner.get_feature_extractor();
+        const unsigned long windowWidth = scanner.get_fhog_window_width();
+        const unsigned long windowHeight = scanner.get_fhog_window_height();
+        const unsigned long boxWidth = windowWidth - 2 * scanner.get_padding();
+        const unsigned long boxHeight = windowHeight - 2 * scanner.get_padding();
+        const int cellSize = (int) scanner.get_cell_size();
+
+        // Build the level images the same way as scan_fhog_pyramid::load().
+        const unsigned long levelCount = countLevels(scanner, img);
+        mLevels.resize(levelCount);
+        if (levelCount > 1) {
+            mPyramid(img, mLevels[1]);
+            for (unsigned long l = 2; l < levelCount; ++l) {
+                mPyramid(mLevels[l - 1], mLevels[l]);
+            }
+        }
+
+        // Extract the HOG features of every level concurrently.
+        if (mFeats.max_size() < levelCount) {
+            mFeats.set_max_size(levelCount);
+        }
+        mFeats.set_size(levelCount);
+        workers.parallelFor(0, (long) levelCount, [&](long l) {
+            if (l == 0) {
+                fe(img, mFeats[0], cellSize, windowHeight, windowWidth);
+            } else {
+                fe(mLevels[l], mFeats[l], cellSize, windowHeight, windowWidth);
+            }
+        });
+
+        // Scan every level with every filter concurrently. Every task writes
+        // to its own slot.
+        const unsigned long filterCount = detector.num_detectors();
+        const long taskCount = (long) (filterCount * levelCount);
+        mTaskDets.resize(taskCount);
+        mSaliencies.resize(taskCount);
+        workers.parallelFor(0, taskCount, [&](long task) {
+            const unsigned long d = task / levelCount;
+            const unsigned long l = task % levelCount;
+            const double thresh = detector.get_processed_w(d).w(scanner.get_num_dimensions());
+            std::vector<std::pair<double, dlib::rectangle> >& dets = mTaskDets[task];
+            dlib::array2d<float>& saliency = mSaliencies[task];
+
+            dets.clear();
+            const dlib::rectangle area = dlib::impl::apply_filters_to_fhog(
+                detector.get_processed_w(d).get_detect_argument(),
+                mFeats[l], saliency);
+            for (long r = area.top(); r <= area.bottom(); ++r) {
+                for (long c = area.left(); c <= area.right(); ++c) {
+                    if (saliency[r][c] >= thresh + adjustThreshold) {
+                        dlib::rectangle rect = fe.feats_to_image(
+                            dlib::centered_rect(dlib::point(c, r), boxWidth, boxHeight),
+                            cellSize, windowHeight, windowWidth);
+                        rect = mPyramid.rect_up(rect, l);
+                        dets.push_back(std::make_pair(saliency[r][c], rect));
+                    }
+                }
+            }
+        });
+
+        // Merge the candidates in the order of object_detector::operator().
+        mCandidates.clear();
+        for (unsigned long d = 0; d < filterCount; ++d) {
+            const double thresh = detector.get_processed_w(d).w(scanner.get_num_dimensions());
+
+            mFilterDets.clear();
+            for (unsigned long l = 0; l < levelCount; ++l) {
+                const std::vector<std::pair<double, dlib::rectangle> >& dets =
+                    mTaskDets[d * levelCount + l];
+                mFilterDets.insert(mFilterDets.end(), dets.begin(), dets.end());
+            }
+            std::sort(mFilterDets.rbegin(), mFilterDets.rend(), dlib::impl::compare_pair_rect);
+
+            for (unsigned long j = 0; j < mFilterDets.size(); ++j) {
+                dlib::rect_detection candidate;
+                candidate.detection_confidence = mFilterDets[j].first - thresh;
+                candidate.weight_index = d;
+                candidate.rect = mFilterDets[j].second;
+                mCandidates.push_back(candidate);
+            }
+        }
+
+        // Non-max suppression.
+        const dlib::test_box_overlap& overlaps = detector.get_overlap_tester();
+        out.clear();
+        if (filterCount > 1) {
+            std::sort(mCandidates.rbegin(), mCandidates.rend());
+        }
+        for (unsigned long i = 0; i < mCandidates.size(); ++i) {
+            bool isOverlapped = false;
+            for (unsigned long j = 0; j < out.size() && !isOverlapped; ++j) {
+                isOverlapped = overlaps(out[j].rect, mCandidates[i].rect);
+            }
+            if (isOverlapped) continue;
+
+            out.push_back(mCandidates[i]);
+        }
+    }
+
+private:
+
+    dlib::pyramid_down<6> mPyramid;
+
+    // The level images except the level 0, which is the input image.
+    std::vector<dlib::array2d<pixel_type> > mLevels;
+    dlib::array<dlib::array<dlib::array2d<float> > > mFeats;
+
+    // The results of the (filter, level) tasks.
+    std::vector<dlib::array2d<float> > mSaliencies;
+    std::vector<std::vector<std::pair<double, dlib::rectangle> > > mTaskDets;
+
+    std::vector<std::pair<double, dlib::rectangle> > mFilterDets;
+    std::vector<dlib::rect_detection> mCandidates;
+
+    /**
+     * The number of the pyramid levels, which is computed the same way as
+     * scan_fhog_pyramid::load().
+     */
+    template <typename image_type>
+    unsigned long countLevels(const scanner_type& scanner,
+                              const image_type& img) {
+        dlib::rectangle rect = dlib::get_rect(img);
+        unsigned long levels = 0;
+        do {
+            rect = mPyramid.rect_down(rect);
+            ++levels;
+        } while (rect.width() >= scanner.get_min_pyramid_layer_width() &&
+                 rect.height() >= scanner.get_min_pyramid_layer_height() &&
+                 levels < scanner.get_max_pyramid_levels());
+
+        return levels;
+    }
+};
+
+#endif //COM_MY_JNI_DLIB_PARALLEL_FACE_DETECTOR_H
@@ -0,0 +1,60 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_DLIB_SHAPE_MODEL_H
+#define COM_MY_JNI_DLIB_SHAPE_MODEL_H
+
+#include <memory>
+#include <dlib/image_processing/shape_predictor.h>
+#include <my/dlib/compact_shape_predictor.h>
+
+/**
+ * A shape predictor loaded from either a dlib model or a compact model. It
+ * has the same prediction interface as dlib::shape_predictor, so the callers
+ * don't care which format is loaded.
+ */
+class ShapeModel {
+public:
+
+    explicit ShapeModel(std::unique_ptr<const dlib::shape_predictor> predictor)
+        : mDlibPredictor(std::move(predictor)) {}
+
+    explicit ShapeModel(std::unique_ptr<const CompactShapePredictor> predictor)
+        : mCompactPredictor(std::move(predictor)) {}
+
+    bool isCompact() const { return (bool) mCompactPredictor; }
+
+    unsigned long num_parts() const {
+        return isCompact() ? mCompactPredictor->num_parts() : mDlibPredictor->num_parts();
+    }
+
+    template <typename image_type>
+    dlib::full_object_detection operator()(const image_type& img,
+                                           const dlib::rectangle& rect) const {
+        return isCompact() ? (*mCompactPredictor)(img, rect) : (*mDlibPredictor)(img, rect);
+    }
+
+private:
+
+    std::unique_ptr<const dlib::shape_predictor> mDlibPredictor;
+    std::unique_ptr<const CompactShapePredictor> mCompactPredictor;
+};
+
+#endif //COM_MY_JNI_DLIB_SHAPE_MODEL_H
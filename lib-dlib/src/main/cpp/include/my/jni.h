@@ -26,4 +26,7 @@
 void throwException(JNIEnv* env,
                     const char* message);
 
+void throwIllegalArgumentException(JNIEnv* env,
+                                   const char* message);
+
 #endif //COM_MY_JNI_H
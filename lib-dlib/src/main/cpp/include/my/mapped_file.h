@@ -0,0 +1,113 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_MAPPED_FILE_H
+#define COM_MY_JNI_MAPPED_FILE_H
+
+#include <cstddef>
+#include <functional>
+#include <streambuf>
+#include <string>
+
+/**
+ * A read-only memory mapping of a whole file. The pages are read ahead by the
+ * kernel on demand instead of being copied through a stream buffer.
+ */
+class MappedFile {
+public:
+
+    /**
+     * How the mapping is read, which decides the read-ahead.
+     */
+    enum Access {
+        // Read once from the start to the end, e.g. a parsed model.
+        SEQUENTIAL,
+        // Read in place in any order, e.g. a model used without parsing.
+        RANDOM
+    };
+
+    /**
+     * Map the given file.
+     *
+     * @throws std::runtime_error if the file can't be opened or mapped.
+     */
+    explicit MappedFile(const std::string& path,
+                        Access access = SEQUENTIAL);
+
+    ~MappedFile();
+
+    const char* data() const { return mData; }
+
+    size_t size() const { return mSize; }
+
+private:
+
+    const char* mData;
+    size_t mSize;
+
+    MappedFile(const MappedFile&);
+    MappedFile& operator=(const MappedFile&);
+};
+
+/**
+ * A stream buffer reading a {@link MappedFile} in place, so the existing
+ * deserializers taking a std::istream read the mapping without a copy.
+ * <br/>
+ * The mapping is exposed chunk by chunk so the reading progress is reported
+ * every chunk.
+ * <br/>
+ * Usage:
+ * <pre>
+ * MappedFile file(path);
+ * MappedFileStreambuf buffer(file, [](size_t read, size_t total) {
+ *     // Report the progress.
+ * });
+ * std::istream in(&buffer);
+ * dlib::deserialize(model, in);
+ * </pre>
+ */
+class MappedFileStreambuf : public std::streambuf {
+public:
+
+    /**
+     * @param read The bytes exposed to the reader so far.
+     * @param total The file size.
+     */
+    typedef std::function<void(size_t read, size_t total)> ProgressCallback;
+
+    MappedFileStreambuf(const MappedFile& file,
+                        const ProgressCallback& progress = ProgressCallback(),
+                        size_t chunkSize = 1 << 20);
+
+protected:
+
+    int_type underflow() override;
+
+    std::streamsize xsgetn(char_type* s, std::streamsize count) override;
+
+private:
+
+    const MappedFile& mFile;
+    const ProgressCallback mProgress;
+    const size_t mChunkSize;
+    size_t mRead;
+};
+
+#endif //COM_MY_JNI_MAPPED_FILE_H
@@ -0,0 +1,171 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_METRICS_H
+#define COM_MY_JNI_METRICS_H
+
+#include <atomic>
+#include <stdint.h>
+#include <my/trace.h>
+
+/**
+ * The process-wide latency histograms and counters of the detection
+ * pipeline. Recording is a handful of relaxed atomic operations, so it's
+ * cheap enough for the hot path and safe from the worker threads; there is
+ * no lock anywhere.
+ * <br/>
+ * Usage:
+ * <pre>
+ * {
+ *     StageTimer timer(Metrics::FACE_DETECTION);
+ *
+ *     // Run the stage...
+ * }
+ * Metrics::increment(Metrics::FACES_DETECTED, faceCount);
+ * </pre>
+ */
+class Metrics {
+public:
+
+    /**
+     * The timed stages of the pipeline.
+     */
+    enum Stage {
+        // Copy the bitmap or the luminance plane to the dlib image.
+        IMAGE_CONVERSION = 0,
+        // The HOG face detection on the whole image or the regions.
+        FACE_DETECTION,
+        // The shape predictor for one face.
+        SHAPE_PREDICTION,
+        // The optical flow tracking the landmarks of the previous frame.
+        LANDMARK_FLOW,
+        // Write the faces to the output buffer.
+        SERIALIZATION,
+
+        STAGE_COUNT
+    };
+
+    /**
+     * The event counters of the pipeline.
+     */
+    enum Counter {
+        // The frames read by the detectors.
+        FRAMES = 0,
+        // The faces found by the face detector.
+        FACES_DETECTED,
+        // The faces whose landmarks come from the shape predictor.
+        SHAPES_PREDICTED,
+        // The faces whose landmarks are carried by the optical flow.
+        SHAPES_PROPAGATED,
+
+        COUNTER_COUNT
+    };
+
+    /**
+     * The bucket i counts the latencies in [2^(i-1), 2^i) microseconds and
+     * the bucket 0 counts the ones below a microsecond; the last bucket also
+     * takes everything longer.
+     */
+    static const int BUCKET_COUNT = 32;
+
+    /**
+     * The size of the array filled by snapshot(): for every stage the count,
+     * the total and the max nanoseconds followed by the buckets, and then the
+     * counters.
+     */
+    static const int SNAPSHOT_STAGE_SIZE = 3 + BUCKET_COUNT;
+    static const int SNAPSHOT_SIZE = STAGE_COUNT * SNAPSHOT_STAGE_SIZE + COUNTER_COUNT;
+
+    /**
+     * Record one latency of the given stage.
+     */
+    static void record(Stage stage,
+                       int64_t nanos);
+
+    /**
+     * Add the given amount to the counter.
+     */
+    static void increment(Counter counter,
+                          int64_t amount = 1);
+
+    /**
+     * Copy the histograms and the counters to the given array of
+     * SNAPSHOT_SIZE. The values are read one by one while the others may be
+     * recording, so a snapshot is consistent per value but not as a whole.
+     */
+    static void snapshot(int64_t* out);
+
+    /**
+     * Clear the histograms and the counters.
+     */
+    static void reset();
+
+    /**
+     * The name of the stage in the trace, see Trace.
+     */
+    static const char* getStageName(Stage stage);
+
+private:
+
+    struct Histogram {
+        std::atomic<int64_t> count;
+        std::atomic<int64_t> totalNanos;
+        std::atomic<int64_t> maxNanos;
+        std::atomic<int64_t> buckets[BUCKET_COUNT];
+    };
+
+    static Histogram sHistograms[STAGE_COUNT];
+    static std::atomic<int64_t> sCounters[COUNTER_COUNT];
+
+    static int bucketOf(int64_t nanos);
+};
+
+/**
+ * Record the lifetime of the timer to the given stage, and to the trace if
+ * the trace recorder is enabled.
+ */
+class StageTimer {
+public:
+
+    explicit StageTimer(Metrics::Stage stage)
+        : mStage(stage),
+          mStart(Trace::nowNanos()) {
+        // DO NOTHING.
+    }
+
+    ~StageTimer() {
+        const int64_t duration = Trace::nowNanos() - mStart;
+        Metrics::record(mStage, duration);
+        if (Trace::isEnabled()) {
+            Trace::recordSpan(Metrics::getStageName(mStage), mStart, duration);
+        }
+    }
+
+private:
+
+    const Metrics::Stage mStage;
+    const int64_t mStart;
+
+    StageTimer(const StageTimer&);
+
+    StageTimer& operator=(const StageTimer&);
+};
+
+#endif //COM_MY_JNI_METRICS_H
@@ -0,0 +1,148 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_TRACE_H
+#define COM_MY_JNI_TRACE_H
+
+#include <atomic>
+#include <string>
+#include <stdint.h>
+#include <time.h>
+
+/**
+ * The process-wide recorder of the native trace spans, dumped as the events
+ * of the Chrome trace format (chrome://tracing or ui.perfetto.dev). The
+ * events are kept in a preallocated ring buffer, so recording never
+ * allocates nor locks and the oldest events are overwritten; it's a relaxed
+ * load only while the recorder is disabled, which is the default.
+ * <br/>
+ * Usage:
+ * <pre>
+ * {
+ *     // The name must be a string literal; it's kept by pointer.
+ *     TraceScope trace("detectLandmarks");
+ *
+ *     // Run the code...
+ * }
+ * </pre>
+ */
+class Trace {
+public:
+
+    /**
+     * The number of the most recent events kept.
+     */
+    static const int CAPACITY = 16384;
+
+    static bool isEnabled() {
+        return sIsEnabled.load(std::memory_order_relaxed);
+    }
+
+    static void setEnabled(bool enabled);
+
+    /**
+     * Record a complete span on the calling thread.
+     *
+     * @param name A string literal.
+     * @param startNanos The start time of nowNanos().
+     * @param durationNanos The duration.
+     */
+    static void recordSpan(const char* name,
+                           int64_t startNanos,
+                           int64_t durationNanos);
+
+    /**
+     * The recorded events as the comma-separated JSON objects of the Chrome
+     * trace format, oldest first. The events being overwritten while they are
+     * read are skipped.
+     */
+    static std::string dumpEvents(int pid);
+
+    /**
+     * Drop the recorded events.
+     */
+    static void clear();
+
+    /**
+     * The monotonic time in nanoseconds, the same clock of Java's
+     * System.nanoTime() on Android.
+     */
+    static int64_t nowNanos() {
+        timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+    }
+
+private:
+
+    struct Event {
+        // Odd while the event is written, see recordSpan().
+        std::atomic<uint64_t> sequence;
+        const char* name;
+        int64_t startNanos;
+        int64_t durationNanos;
+        int32_t tid;
+    };
+
+    static std::atomic<bool> sIsEnabled;
+    static std::atomic<uint64_t> sNextIndex;
+    static Event sEvents[CAPACITY];
+};
+
+/**
+ * Record the lifetime of the scope as a trace span if the recorder is
+ * enabled.
+ */
+class TraceScope {
+public:
+
+    /**
+     * @param name A string literal.
+     */
+    explicit TraceScope(const char* name)
+        : mName(name),
+          mStart(Trace::nowNanos()) {
+        // DO NOTHING.
+    }
+
+    ~TraceScope() {
+        if (Trace::isEnabled()) {
+            Trace::recordSpan(mName, mStart, Trace::nowNanos() - mStart);
+        }
+    }
+
+    /**
+     * The time since the scope is entered in milliseconds.
+     */
+    double elapsedMillis() const {
+        return (double) (Trace::nowNanos() - mStart) / 1000000.0;
+    }
+
+private:
+
+    const char* mName;
+    const int64_t mStart;
+
+    TraceScope(const TraceScope&);
+
+    TraceScope& operator=(const TraceScope&);
+};
+
+#endif //COM_MY_JNI_TRACE_H
@@ -0,0 +1,101 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#ifndef COM_MY_JNI_WORKER_POOL_H
+#define COM_MY_JNI_WORKER_POOL_H
+
+#include <atomic>
+#include <condition_variable>
+#include <exception>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+/**
+ * A fixed set of native worker threads running the iterations of a loop in
+ * parallel. The calling thread joins the workers so that a pool with
+ * parallelism N owns N - 1 threads.
+ * <br/>
+ * Usage:
+ * <pre>
+ * WorkerPool pool(4);
+ *
+ * // Every iteration writes to its own slot so the order is deterministic.
+ * pool.parallelFor(0, results.size(), [&](long i) {
+ *     results[i] = compute(i);
+ * });
+ * </pre>
+ * The pool runs one loop at a time; it's not meant to be shared by the
+ * concurrent callers.
+ */
+class WorkerPool {
+public:
+
+    /**
+     * @param parallelism The number of threads running a loop including the
+     *                    calling thread; 0 means the number of cores.
+     */
+    explicit WorkerPool(unsigned int parallelism);
+
+    ~WorkerPool();
+
+    /**
+     * The number of threads running a loop including the calling thread.
+     */
+    unsigned int parallelism() const;
+
+    /**
+     * Run task(i) for every i in [begin, end) and return when all of them
+     * are done. The first exception thrown by the task is rethrown here.
+     */
+    void parallelFor(long begin,
+                     long end,
+                     const std::function<void(long)>& task);
+
+    /**
+     * The number of cores, or 1 if it's unknown.
+     */
+    static unsigned int getCoreCount();
+
+private:
+
+    std::vector<std::thread> mWorkers;
+
+    std::mutex mMutex;
+    std::condition_variable mLoopStarted;
+    std::condition_variable mLoopFinished;
+
+    // The running loop.
+    const std::function<void(long)>* mTask;
+    std::atomic<long> mNext;
+    long mEnd;
+    unsigned long mGeneration;
+    unsigned int mBusyWorkers;
+    std::exception_ptr mError;
+
+    bool mIsStopping;
+
+    void runWorker();
+
+    void runIterations();
+};
+
+#endif //COM_MY_JNI_WORKER_POOL_H
@@ -25,3 +25,9 @@ void throwException(JNIEnv* env,
     jclass Exception = env->FindClass("java/lang/RuntimeException");
     env->ThrowNew(Exception, message);
 }
+
+void throwIllegalArgumentException(JNIEnv* env,
+                                   const char* message) {
+    jclass Exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(Exception, message);
+}
@@ -0,0 +1,118 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <algorithm>
+#include <cerrno>
+#include <cstring>
+#include <stdexcept>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <my/mapped_file.h>
+
+MappedFile::MappedFile(const std::string& path,
+                       Access access)
+    : mData(NULL),
+      mSize(0) {
+    const int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) {
+        throw std::runtime_error("Unable to open " + path + ": " + strerror(errno));
+    }
+
+    struct stat info;
+    if (fstat(fd, &info) != 0) {
+        const std::string error(strerror(errno));
+        close(fd);
+        throw std::runtime_error("Unable to stat " + path + ": " + error);
+    }
+    mSize = (size_t) info.st_size;
+    if (mSize == 0) {
+        close(fd);
+        return;
+    }
+
+    void* data = mmap(NULL, mSize, PROT_READ, MAP_PRIVATE, fd, 0);
+    // The mapping holds its own reference to the file.
+    close(fd);
+    if (data == MAP_FAILED) {
+        throw std::runtime_error("Unable to map " + path + ": " + strerror(errno));
+    }
+
+    if (access == SEQUENTIAL) {
+        madvise(data, mSize, MADV_SEQUENTIAL);
+        madvise(data, mSize, MADV_WILLNEED);
+    } else {
+        madvise(data, mSize, MADV_RANDOM);
+    }
+    mData = static_cast<const char*>(data);
+}
+
+MappedFile::~MappedFile() {
+    if (mData != NULL) {
+        munmap(const_cast<char*>(mData), mSize);
+    }
+}
+
+///////////////////////////////////////////////////////////////////////////////
+
+MappedFileStreambuf::MappedFileStreambuf(const MappedFile& file,
+                                         const ProgressCallback& progress,
+                                         size_t chunkSize)
+    : mFile(file),
+      mProgress(progress),
+      mChunkSize(std::max<size_t>(chunkSize, 1)),
+      mRead(0) {
+    // The get area is empty so the first read takes the first chunk.
+    char* begin = const_cast<char*>(mFile.data());
+    setg(begin, begin, begin);
+}
+
+MappedFileStreambuf::int_type MappedFileStreambuf::underflow() {
+    if (gptr() < egptr()) return traits_type::to_int_type(*gptr());
+    if (mRead >= mFile.size()) return traits_type::eof();
+
+    // Expose the next chunk; the stream never writes to the get area.
+    char* begin = const_cast<char*>(mFile.data());
+    const size_t end = std::min(mRead + mChunkSize, mFile.size());
+    setg(begin, begin + mRead, begin + end);
+    mRead = end;
+
+    if (mProgress) {
+        mProgress(mRead, mFile.size());
+    }
+
+    return traits_type::to_int_type(*gptr());
+}
+
+std::streamsize MappedFileStreambuf::xsgetn(char_type* s, std::streamsize count) {
+    std::streamsize copied = 0;
+    while (copied < count) {
+        if (gptr() == egptr() && underflow() == traits_type::eof()) break;
+
+        const std::streamsize n = std::min<std::streamsize>(count - copied,
+                                                            egptr() - gptr());
+        memcpy(s + copied, gptr(), (size_t) n);
+        gbump((int) n);
+        copied += n;
+    }
+
+    return copied;
+}
@@ -0,0 +1,114 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <my/metrics.h>
+
+// Static storage is zero-initialized, so is every atomic here.
+Metrics::Histogram Metrics::sHistograms[Metrics::STAGE_COUNT];
+std::atomic<int64_t> Metrics::sCounters[Metrics::COUNTER_COUNT];
+
+void Metrics::record(Stage stage,
+                     int64_t nanos) {
+    if (nanos < 0) nanos = 0;
+
+    Histogram& histogram = sHistograms[stage];
+    histogram.count.fetch_add(1, std::memory_order_relaxed);
+    histogram.totalNanos.fetch_add(nanos, std::memory_order_relaxed);
+    histogram.buckets[bucketOf(nanos)].fetch_add(1, std::memory_order_relaxed);
+
+    int64_t max = histogram.maxNanos.load(std::memory_order_relaxed);
+    while (nanos > max &&
+           !histogram.maxNanos.compare_exchange_weak(max, nanos,
+                                                     std::memory_order_relaxed)) {
+        // The max is reloaded by the failed exchange.
+    }
+}
+
+void Metrics::increment(Counter counter,
+                        int64_t amount) {
+    sCounters[counter].fetch_add(amount, std::memory_order_relaxed);
+}
+
+void Metrics::snapshot(int64_t* out) {
+    for (int i = 0; i < STAGE_COUNT; ++i) {
+        const Histogram& histogram = sHistograms[i];
+        int64_t* stage = out + i * SNAPSHOT_STAGE_SIZE;
+
+        stage[0] = histogram.count.load(std::memory_order_relaxed);
+        stage[1] = histogram.totalNanos.load(std::memory_order_relaxed);
+        stage[2] = histogram.maxNanos.load(std::memory_order_relaxed);
+        for (int j = 0; j < BUCKET_COUNT; ++j) {
+            stage[3 + j] = histogram.buckets[j].load(std::memory_order_relaxed);
+        }
+    }
+
+    int64_t* counters = out + STAGE_COUNT * SNAPSHOT_STAGE_SIZE;
+    for (int i = 0; i < COUNTER_COUNT; ++i) {
+        counters[i] = sCounters[i].load(std::memory_order_relaxed);
+    }
+}
+
+void Metrics::reset() {
+    for (int i = 0; i < STAGE_COUNT; ++i) {
+        Histogram& histogram = sHistograms[i];
+        histogram.count.store(0, std::memory_order_relaxed);
+        histogram.totalNanos.store(0, std::memory_order_relaxed);
+        histogram.maxNanos.store(0, std::memory_order_relaxed);
+        for (int j = 0; j < BUCKET_COUNT; ++j) {
+            histogram.buckets[j].store(0, std::memory_order_relaxed);
+        }
+    }
+
+    for (int i = 0; i < COUNTER_COUNT; ++i) {
+        sCounters[i].store(0, std::memory_order_relaxed);
+    }
+}
+
+const char* Metrics::getStageName(Stage stage) {
+    switch (stage) {
+        case IMAGE_CONVERSION:
+            return "imageConversion";
+        case FACE_DETECTION:
+            return "faceDetection";
+        case SHAPE_PREDICTION:
+            return "shapePrediction";
+        case LANDMARK_FLOW:
+            return "landmarkFlow";
+        case SERIALIZATION:
+            return "serialization";
+        default:
+            return "unknown";
+    }
+}
+
+///////////////////////////////////////////////////////////////////////////////
+// Private ////////////////////////////////////////////////////////////////////
+
+int Metrics::bucketOf(int64_t nanos) {
+    uint64_t micros = (uint64_t) nanos / 1000;
+
+    // The bit length of the microseconds.
+    int bucket = 0;
+    while (micros != 0 && bucket < BUCKET_COUNT - 1) {
+        micros >>= 1;
+        ++bucket;
+    }
+    return bucket;
+}
@@ -0,0 +1,148 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <istream>
+#include <sstream>
+#include <sys/stat.h>
+#include <my/trace.h>
+#include <my/dlib/model_cache.h>
+
+// The cache is also built for the host, see tools/benchmark.
+#ifdef __ANDROID__
+#include <android/log.h>
+#define LOGI(...) \
+  ((void)__android_log_print(ANDROID_LOG_INFO, "dlib-jni:", __VA_ARGS__))
+#else
+#include <cstdio>
+#define LOGI(...) \
+  ((void)fprintf(stderr, __VA_ARGS__), (void)fputc('\n', stderr))
+#endif
+
+std::mutex ModelCache::sMutex;
+std::map<std::string, std::shared_ptr<ModelCache::ShapePredictorEntry> > ModelCache::sShapePredictors;
+std::weak_ptr<const dlib::frontal_face_detector> ModelCache::sFrontalFaceDetector;
+
+/**
+ * The key of the file in the cache, i.e. the path, the size and the modified
+ * time, so a file replaced at the same path is loaded again rather than the
+ * model of the old file is taken.
+ */
+static std::string getCacheKey(const std::string& path) {
+    struct stat info;
+    if (stat(path.c_str(), &info) != 0) {
+        // The loading reports the error.
+        return path;
+    }
+
+    std::ostringstream key;
+    key << path << '#' << info.st_size << ':' << info.st_mtime;
+#if defined(__linux__)
+    key << '.' << info.st_mtim.tv_nsec;
+#endif
+    return key.str();
+}
+
+void ModelCache::eraseReleasedShapePredictors() {
+    for (auto it = sShapePredictors.begin(); it != sShapePredictors.end();) {
+        // An entry held only by the map isn't being loaded, so its model is
+        // read without the entry lock.
+        if (it->second.use_count() == 1 && it->second->model.expired()) {
+            it = sShapePredictors.erase(it);
+        } else {
+            ++it;
+        }
+    }
+}
+
+std::shared_ptr<const ShapeModel> ModelCache::getShapePredictor(
+    const std::string& path,
+    const MappedFileStreambuf::ProgressCallback& progress) {
+    // The global lock is only held to find the entry of the file; the entry
+    // lock is held while loading so that a file is never loaded twice, while
+    // the other files and the face detector are loaded at the same time.
+    std::shared_ptr<ShapePredictorEntry> entry;
+    {
+        std::lock_guard<std::mutex> lock(sMutex);
+        eraseReleasedShapePredictors();
+
+        std::shared_ptr<ShapePredictorEntry>& slot = sShapePredictors[getCacheKey(path)];
+        if (!slot) {
+            slot = std::make_shared<ShapePredictorEntry>();
+        }
+        entry = slot;
+    }
+    std::lock_guard<std::mutex> lock(entry->mutex);
+
+    // The entry stays empty if the loading failed, so the next call retries.
+    std::shared_ptr<const ShapeModel> model = entry->model.lock();
+    if (model) return model;
+
+    TraceScope trace("loadShapePredictor");
+
+    // Peek the format without reading ahead; a compact model is read in
+    // place, in any order, without parsing.
+    std::unique_ptr<MappedFile> file(new MappedFile(path, MappedFile::RANDOM));
+    if (CompactShapePredictor::isCompact(*file)) {
+        const size_t size = file->size();
+        std::unique_ptr<const CompactShapePredictor> compact(
+            new CompactShapePredictor(std::move(file)));
+        model = std::make_shared<const ShapeModel>(std::move(compact));
+        if (progress) {
+            progress(size, size);
+        }
+    } else {
+        // A dlib model is parsed once from the start to the end.
+        file.reset(new MappedFile(path, MappedFile::SEQUENTIAL));
+        std::unique_ptr<dlib::shape_predictor> loaded(new dlib::shape_predictor());
+        {
+            MappedFileStreambuf buffer(*file, progress);
+            std::istream in(&buffer);
+            dlib::deserialize(*loaded, in);
+        }
+        std::unique_ptr<const dlib::shape_predictor> predictor(std::move(loaded));
+        model = std::make_shared<const ShapeModel>(std::move(predictor));
+    }
+    entry->model = model;
+
+    LOGI("L%d: shape predictor %s is loaded, %lu parts, compact=%d (took %.3f ms)",
+         __LINE__, path.c_str(), model->num_parts(), model->isCompact(),
+         trace.elapsedMillis());
+
+    return model;
+}
+
+std::shared_ptr<const dlib::frontal_face_detector> ModelCache::getFrontalFaceDetector() {
+    std::lock_guard<std::mutex> lock(sMutex);
+
+    std::shared_ptr<const dlib::frontal_face_detector> model = sFrontalFaceDetector.lock();
+    if (model) return model;
+
+    TraceScope trace("loadFrontalFaceDetector");
+
+    model = std::make_shared<const dlib::frontal_face_detector>(
+        dlib::get_frontal_face_detector());
+    sFrontalFaceDetector = model;
+
+    LOGI("L%d: frontal face detector is loaded, %lu filters (took %.3f ms)",
+         __LINE__, model->num_detectors(),
+         trace.elapsedMillis());
+
+    return model;
+}
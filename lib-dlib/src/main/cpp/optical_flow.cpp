@@ -0,0 +1,229 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <algorithm>
+#include <cmath>
+#include <my/dlib/optical_flow.h>
+
+// The Gauss-Newton iteration stops if the step is shorter than this in pixels.
+#define MIN_STEP 0.01f
+// The point is lost if the minimum eigenvalue of the window's gradient matrix
+// (normalized by the window area) is smaller than this.
+#define MIN_EIGENVALUE 1e-2f
+
+/**
+ * Sample the image at the sub-pixel position; the position is clamped to the
+ * image border.
+ */
+static inline float sample(const dlib::array2d<float>& img,
+                           float x,
+                           float y) {
+    const float maxX = (float) (img.nc() - 1);
+    const float maxY = (float) (img.nr() - 1);
+    x = x < 0 ? 0 : (x > maxX ? maxX : x);
+    y = y < 0 ? 0 : (y > maxY ? maxY : y);
+
+    const long x0 = (long) x;
+    const long y0 = (long) y;
+    const long x1 = x0 + 1 < img.nc() ? x0 + 1 : x0;
+    const long y1 = y0 + 1 < img.nr() ? y0 + 1 : y0;
+    const float fx = x - x0;
+    const float fy = y - y0;
+
+    const float top = img[y0][x0] + (img[y0][x1] - img[y0][x0]) * fx;
+    const float bottom = img[y1][x0] + (img[y1][x1] - img[y1][x0]) * fx;
+
+    return top + (bottom - top) * fy;
+}
+
+PyramidalLucasKanade::PyramidalLucasKanade(int levels,
+                                           int windowRadius,
+                                           int maxIterations)
+    : mLevels(levels),
+      mWindowRadius(windowRadius),
+      mMaxIterations(maxIterations),
+      mFrameCount(0) {
+    // DO NOTHING.
+}
+
+void PyramidalLucasKanade::pushFrame(const dlib::array2d<unsigned char>& img) {
+    // Reuse the oldest pyramid for the new frame.
+    mPrevious.swap(mCurrent);
+    buildPyramid(img, mCurrent);
+
+    ++mFrameCount;
+}
+
+void PyramidalLucasKanade::clear() {
+    mFrameCount = 0;
+}
+
+bool PyramidalLucasKanade::hasPreviousFrame() const {
+    return mFrameCount >= 2;
+}
+
+bool PyramidalLucasKanade::isSameSize(const dlib::array2d<unsigned char>& img) const {
+    return mFrameCount > 0 &&
+           mCurrent[0].nr() == img.nr() &&
+           mCurrent[0].nc() == img.nc();
+}
+
+PyramidalLucasKanade::Window PyramidalLucasKanade::createWindow() const {
+    const int side = 2 * mWindowRadius + 1;
+
+    Window window;
+    window.intensity.resize(side * side);
+    window.gradientX.resize(side * side);
+    window.gradientY.resize(side * side);
+
+    return window;
+}
+
+bool PyramidalLucasKanade::track(const dlib::dpoint& from,
+                                 dlib::dpoint& to,
+                                 float& error,
+                                 Window& window) const {
+    const int radius = mWindowRadius;
+    const int side = 2 * radius + 1;
+    const float area = (float) (side * side);
+    std::vector<float>& prevI = window.intensity;
+    std::vector<float>& prevIx = window.gradientX;
+    std::vector<float>& prevIy = window.gradientY;
+
+    // The guess of the displacement carried from the coarser level.
+    float gx = 0;
+    float gy = 0;
+    float vx = 0;
+    float vy = 0;
+    for (int level = (int) mPrevious.size() - 1; level >= 0; --level) {
+        const dlib::array2d<float>& prev = mPrevious[level];
+        const dlib::array2d<float>& curr = mCurrent[level];
+        const float scale = 1.f / (float) (1 << level);
+        const float px = (float) from.x() * scale;
+        const float py = (float) from.y() * scale;
+
+        // The window of the previous frame and its gradient matrix.
+        float gxx = 0;
+        float gxy = 0;
+        float gyy = 0;
+        for (int dy = -radius, i = 0; dy <= radius; ++dy) {
+            for (int dx = -radius; dx <= radius; ++dx, ++i) {
+                const float x = px + dx;
+                const float y = py + dy;
+                prevI[i] = sample(prev, x, y);
+                prevIx[i] = 0.5f * (sample(prev, x + 1, y) - sample(prev, x - 1, y));
+                prevIy[i] = 0.5f * (sample(prev, x, y + 1) - sample(prev, x, y - 1));
+
+                gxx += prevIx[i] * prevIx[i];
+                gxy += prevIx[i] * prevIy[i];
+                gyy += prevIy[i] * prevIy[i];
+            }
+        }
+
+        const float det = gxx * gyy - gxy * gxy;
+        const float minEigenvalue =
+            (gxx + gyy - std::sqrt((gxx - gyy) * (gxx - gyy) + 4 * gxy * gxy)) /
+            (2 * area);
+        if (minEigenvalue < MIN_EIGENVALUE || det == 0) {
+            return false;
+        }
+
+        // Gauss-Newton iterations.
+        vx = 0;
+        vy = 0;
+        for (int iteration = 0; iteration < mMaxIterations; ++iteration) {
+            float bx = 0;
+            float by = 0;
+            for (int dy = -radius, i = 0; dy <= radius; ++dy) {
+                for (int dx = -radius; dx <= radius; ++dx, ++i) {
+                    const float diff = prevI[i] - sample(curr,
+                                                         px + gx + vx + dx,
+                                                         py + gy + vy + dy);
+                    bx += diff * prevIx[i];
+                    by += diff * prevIy[i];
+                }
+            }
+
+            const float stepX = (gyy * bx - gxy * by) / det;
+            const float stepY = (gxx * by - gxy * bx) / det;
+            vx += stepX;
+            vy += stepY;
+            if (stepX * stepX + stepY * stepY < MIN_STEP * MIN_STEP) break;
+        }
+
+        if (level > 0) {
+            gx = 2 * (gx + vx);
+            gy = 2 * (gy + vy);
+        }
+    }
+
+    // The point in the current frame.
+    const float x = (float) from.x() + gx + vx;
+    const float y = (float) from.y() + gy + vy;
+    const dlib::array2d<float>& curr = mCurrent[0];
+    if (x < 0 || y < 0 || x > curr.nc() - 1 || y > curr.nr() - 1) {
+        return false;
+    }
+    to = dlib::dpoint(x, y);
+
+    // The residual of the windows at the full resolution.
+    const dlib::array2d<float>& prev = mPrevious[0];
+    float sum = 0;
+    for (int dy = -radius; dy <= radius; ++dy) {
+        for (int dx = -radius; dx <= radius; ++dx) {
+            sum += std::fabs(sample(prev, (float) from.x() + dx, (float) from.y() + dy) -
+                             sample(curr, x + dx, y + dy));
+        }
+    }
+    error = sum / area;
+
+    return true;
+}
+
+void PyramidalLucasKanade::buildPyramid(const dlib::array2d<unsigned char>& img,
+                                        Pyramid& out) {
+    out.resize(mLevels);
+
+    // The level 0 is the frame itself.
+    out[0].set_size(img.nr(), img.nc());
+    for (long r = 0; r < img.nr(); ++r) {
+        for (long c = 0; c < img.nc(); ++c) {
+            out[0][r][c] = img[r][c];
+        }
+    }
+
+    // Every next level is the 2x2 average of the previous one.
+    for (int level = 1; level < mLevels; ++level) {
+        const dlib::array2d<float>& src = out[level - 1];
+        dlib::array2d<float>& dst = out[level];
+        dst.set_size(std::max(1L, src.nr() / 2), std::max(1L, src.nc() / 2));
+
+        for (long r = 0; r < dst.nr(); ++r) {
+            const long r0 = std::min(2 * r, src.nr() - 1);
+            const long r1 = std::min(2 * r + 1, src.nr() - 1);
+            for (long c = 0; c < dst.nc(); ++c) {
+                const long c0 = std::min(2 * c, src.nc() - 1);
+                const long c1 = std::min(2 * c + 1, src.nc() - 1);
+                dst[r][c] = 0.25f * (src[r0][c0] + src[r0][c1] +
+                                     src[r1][c0] + src[r1][c1]);
+            }
+        }
+    }
+}
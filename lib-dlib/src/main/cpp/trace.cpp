@@ -0,0 +1,97 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <cstdio>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <my/trace.h>
+
+// Static storage is zero-initialized, so is every atomic here.
+std::atomic<bool> Trace::sIsEnabled;
+std::atomic<uint64_t> Trace::sNextIndex;
+Trace::Event Trace::sEvents[Trace::CAPACITY];
+
+void Trace::setEnabled(bool enabled) {
+    sIsEnabled.store(enabled, std::memory_order_relaxed);
+}
+
+void Trace::recordSpan(const char* name,
+                       int64_t startNanos,
+                       int64_t durationNanos) {
+    // The gettid() wrapper is missing in the older NDK platforms.
+    static thread_local int32_t tid = (int32_t) syscall(__NR_gettid);
+
+    const uint64_t index = sNextIndex.fetch_add(1, std::memory_order_relaxed);
+    Event& event = sEvents[index % CAPACITY];
+
+    // A sequence lock: the reader drops the event if the sequence is odd or
+    // changes while the fields are copied.
+    event.sequence.store(2 * index + 1, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_release);
+    event.name = name;
+    event.startNanos = startNanos;
+    event.durationNanos = durationNanos;
+    event.tid = tid;
+    event.sequence.store(2 * index + 2, std::memory_order_release);
+}
+
+std::string Trace::dumpEvents(int pid) {
+    const uint64_t end = sNextIndex.load(std::memory_order_acquire);
+    const uint64_t begin = end > CAPACITY ? end - CAPACITY : 0;
+
+    std::string json;
+    json.reserve((size_t) (end - begin) * 96);
+    char buffer[256];
+    for (uint64_t index = begin; index < end; ++index) {
+        const Event& event = sEvents[index % CAPACITY];
+
+        const uint64_t sequence = event.sequence.load(std::memory_order_acquire);
+        if (sequence != 2 * index + 2) continue;
+        const char* name = event.name;
+        const int64_t startNanos = event.startNanos;
+        const int64_t durationNanos = event.durationNanos;
+        const int32_t tid = event.tid;
+        std::atomic_thread_fence(std::memory_order_acquire);
+        if (event.sequence.load(std::memory_order_relaxed) != sequence) continue;
+
+        // The timestamps of the format are in microseconds.
+        const int length = snprintf(
+            buffer, sizeof(buffer),
+            "%s{\"name\":\"%s\",\"cat\":\"native\",\"ph\":\"X\","
+                "\"ts\":%.3f,\"dur\":%.3f,\"pid\":%d,\"tid\":%d}",
+            json.empty() ? "" : ",",
+            name, startNanos / 1000.0, durationNanos / 1000.0, pid, tid);
+        if (length > 0 && length < (int) sizeof(buffer)) {
+            json.append(buffer, (size_t) length);
+        }
+    }
+
+    return json;
+}
+
+void Trace::clear() {
+    // The slots are invalidated by the sequence; a span being recorded
+    // meanwhile may survive.
+    const uint64_t end = sNextIndex.load(std::memory_order_relaxed);
+    for (int i = 0; i < CAPACITY; ++i) {
+        sEvents[i].sequence.store(0, std::memory_order_relaxed);
+    }
+    sNextIndex.store(end + CAPACITY, std::memory_order_release);
+}
@@ -0,0 +1,135 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <my/worker_pool.h>
+
+WorkerPool::WorkerPool(unsigned int parallelism)
+    : mTask(NULL),
+      mNext(0),
+      mEnd(0),
+      mGeneration(0),
+      mBusyWorkers(0),
+      mIsStopping(false) {
+    if (parallelism == 0) {
+        parallelism = getCoreCount();
+    }
+
+    for (unsigned int i = 1; i < parallelism; ++i) {
+        mWorkers.push_back(std::thread(&WorkerPool::runWorker, this));
+    }
+}
+
+WorkerPool::~WorkerPool() {
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mIsStopping = true;
+    }
+    mLoopStarted.notify_all();
+
+    for (unsigned long i = 0; i < mWorkers.size(); ++i) {
+        mWorkers[i].join();
+    }
+}
+
+unsigned int WorkerPool::parallelism() const {
+    return (unsigned int) mWorkers.size() + 1;
+}
+
+void WorkerPool::parallelFor(long begin,
+                             long end,
+                             const std::function<void(long)>& task) {
+    // Not worth waking up the workers.
+    if (mWorkers.empty() || end - begin <= 1) {
+        for (long i = begin; i < end; ++i) {
+            task(i);
+        }
+        return;
+    }
+
+    {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mTask = &task;
+        mNext = begin;
+        mEnd = end;
+        mError = NULL;
+        mBusyWorkers = (unsigned int) mWorkers.size();
+        ++mGeneration;
+    }
+    mLoopStarted.notify_all();
+
+    // The calling thread works as well.
+    runIterations();
+
+    std::unique_lock<std::mutex> lock(mMutex);
+    mLoopFinished.wait(lock, [this] { return mBusyWorkers == 0; });
+    mTask = NULL;
+
+    if (mError != NULL) {
+        std::exception_ptr error = mError;
+        mError = NULL;
+        std::rethrow_exception(error);
+    }
+}
+
+unsigned int WorkerPool::getCoreCount() {
+    const unsigned int count = std::thread::hardware_concurrency();
+    return count > 0 ? count : 1;
+}
+
+void WorkerPool::runWorker() {
+    unsigned long generation = 0;
+
+    while (true) {
+        {
+            std::unique_lock<std::mutex> lock(mMutex);
+            mLoopStarted.wait(lock, [this, generation] {
+                return mIsStopping || mGeneration != generation;
+            });
+            if (mIsStopping) return;
+
+            generation = mGeneration;
+        }
+
+        runIterations();
+
+        {
+            std::lock_guard<std::mutex> lock(mMutex);
+            if (--mBusyWorkers == 0) {
+                mLoopFinished.notify_one();
+            }
+        }
+    }
+}
+
+void WorkerPool::runIterations() {
+    // Take the iterations one by one so that a slow iteration doesn't hold
+    // up the others.
+    long i;
+    while ((i = mNext.fetch_add(1)) < mEnd) {
+        try {
+            (*mTask)(i);
+        } catch (...) {
+            std::lock_guard<std::mutex> lock(mMutex);
+            if (mError == NULL) {
+                mError = std::current_exception();
+            }
+        }
+    }
+}
@@ -0,0 +1,608 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibFace68;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link IDLibFaceDetector} remembering the faces of the recently detected
+ * bitmaps, e.g. for the editor detecting the same photo again for every
+ * redraw, undo or crop. A cache hit skips the native call entirely.
+ * <br/>
+ * The faces are keyed by the bitmap identity and its
+ * {@link Bitmap#getGenerationId()}, which changes whenever the bitmap is
+ * modified, so a modified bitmap is detected again. The copies of a photo are
+ * recognized by the hash of their pixels if it's enabled, see
+ * {@link #setPixelHashEnabled(boolean)}.
+ * <br/>
+ * The least recently used faces are evicted when either the number of the
+ * entries or their estimated memory exceeds the limit; the entries of the
+ * bitmaps garbage collected are dropped. The cache is cleared when the
+ * detectors are reconfigured.
+ * <br/>
+ * Usage:
+ * <pre>
+ * IDLibFaceDetector detector = new DLibCachingFaceDetector(
+ *     new DLibLandmarks68Detector(), 32, 1024 * 1024);
+ * </pre>
+ * Only {@link #findFaces(Bitmap)} and the findFacesAndLandmarks methods of
+ * the bitmaps are cached; the rest are passed to the detector as they are.
+ */
+public class DLibCachingFaceDetector implements IDLibFaceDetector {
+
+    // The estimated memory of an entry, a face and a landmark.
+    private static final long ENTRY_BYTES = 96;
+    private static final long FACE_BYTES = 112;
+    private static final long LANDMARK_BYTES = 8;
+
+    private static final int KIND_FACES = 1;
+    private static final int KIND_FACES_AND_LANDMARKS = 2;
+
+    private final IDLibFaceDetector mDetector;
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+
+    // The least recently used entry first.
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReferenceQueue<Bitmap> mCollectedBitmaps = new ReferenceQueue<>();
+    private long mBytes = 0;
+    private boolean mIsPixelHashEnabled = false;
+    // Increased by every clear, so the faces detected before it, e.g. by the
+    // previous configuration, aren't cached after it.
+    private long mEpoch = 0;
+
+    // Statistics.
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    /**
+     * @param detector The detector detecting the cache misses.
+     * @param maxEntries The maximum number of the cached results.
+     * @param maxBytes The maximum estimated memory of the cached results.
+     */
+    public DLibCachingFaceDetector(IDLibFaceDetector detector,
+                                   int maxEntries,
+                                   long maxBytes) {
+        if (detector == null) {
+            throw new IllegalArgumentException("The detector must not be null.");
+        }
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException(
+                "The maximum entries and bytes must be positive.");
+        }
+
+        mDetector = detector;
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Key the bitmaps by the hash of their pixels instead of the identity, so
+     * the copies of a photo, e.g. decoded again, share the cached faces. It's
+     * disabled by default; the hash reads every pixel, which is still much
+     * cheaper than the detection. The cache is cleared when it changes.
+     */
+    public synchronized void setPixelHashEnabled(boolean enabled) {
+        if (mIsPixelHashEnabled == enabled) return;
+
+        mIsPixelHashEnabled = enabled;
+        clear();
+    }
+
+    /**
+     * Drop all the cached faces.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+        ++mEpoch;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * The number of the cached results.
+     */
+    public synchronized int size() {
+        dropCollected();
+        return mEntries.size();
+    }
+
+    /**
+     * The estimated memory of the cached results.
+     */
+    public synchronized long getByteCount() {
+        dropCollected();
+        return mBytes;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mDetector.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        mDetector.setEnabled(enabled);
+    }
+
+    @Override
+    public boolean isFaceDetectorReady() {
+        return mDetector.isFaceDetectorReady();
+    }
+
+    @Override
+    public boolean isFaceLandmarksDetectorReady() {
+        return mDetector.isFaceLandmarksDetectorReady();
+    }
+
+    @Override
+    public void prepareFaceDetector() {
+        mDetector.prepareFaceDetector();
+    }
+
+    @Override
+    public void prepareFaceDetector(DLibFaceDetectorConfig config) {
+        mDetector.prepareFaceDetector(config);
+        clear();
+    }
+
+    @Override
+    public void setFaceDetectorConfig(DLibFaceDetectorConfig config) {
+        mDetector.setFaceDetectorConfig(config);
+        clear();
+    }
+
+    @Override
+    public DLibFaceDetectorConfig getFaceDetectorConfig() {
+        return mDetector.getFaceDetectorConfig();
+    }
+
+    @Override
+    public void prepareFaceLandmarksDetector(String path) {
+        mDetector.prepareFaceLandmarksDetector(path);
+        clear();
+    }
+
+    @Override
+    public Future<Void> prepareFaceLandmarksDetectorAsync(String path,
+                                                          OnModelProgressListener listener) {
+        // The faces detected by the previous model before it's replaced could
+        // be cached, which is the same as the detector itself.
+        clear();
+        return mDetector.prepareFaceLandmarksDetectorAsync(path, listener);
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        mDetector.setParallelism(parallelism);
+    }
+
+    @Override
+    public void setParallelFaceDetectionEnabled(boolean enabled) {
+        mDetector.setParallelFaceDetectionEnabled(enabled);
+    }
+
+    @Override
+    public List<DLibFace> findFaces(Bitmap bitmap) {
+        final Key key = newKey(bitmap, KIND_FACES);
+        final long epoch = getEpoch();
+        final List<DLibFace> cached = get(key);
+        if (cached != null) return cached;
+
+        final List<DLibFace> faces = mDetector.findFaces(bitmap);
+        put(key, faces, epoch);
+
+        return faces;
+    }
+
+    @Override
+    public List<DLibFace.Landmark> findLandmarksFromFace(Bitmap bitmap,
+                                                         Rect bound) {
+        return mDetector.findLandmarksFromFace(bitmap, bound);
+    }
+
+    @Override
+    public List<DLibFace> findLandmarksFromFaces(Bitmap bitmap,
+                                                 List<Rect> faceBounds) {
+        return mDetector.findLandmarksFromFaces(bitmap, faceBounds);
+    }
+
+    @Override
+    public List<DLibFace> findFacesAndLandmarks(Bitmap bitmap) {
+        final Key key = newKey(bitmap, KIND_FACES_AND_LANDMARKS);
+        final long epoch = getEpoch();
+        final List<DLibFace> cached = get(key);
+        if (cached != null) return cached;
+
+        final List<DLibFace> faces = mDetector.findFacesAndLandmarks(bitmap);
+        put(key, faces, epoch);
+
+        return faces;
+    }
+
+    @Override
+    public List<List<DLibFace>> findFacesAndLandmarks(List<Bitmap> bitmaps) {
+        final List<List<DLibFace>> batch = new ArrayList<>(bitmaps.size());
+        final List<Key> missedKeys = new ArrayList<>();
+        final List<Bitmap> missedBitmaps = new ArrayList<>();
+        final List<Integer> missedIndices = new ArrayList<>();
+        final long epoch = getEpoch();
+        for (int i = 0; i < bitmaps.size(); ++i) {
+            final Key key = newKey(bitmaps.get(i), KIND_FACES_AND_LANDMARKS);
+            final List<DLibFace> cached = get(key);
+            batch.add(cached);
+            if (cached == null) {
+                missedKeys.add(key);
+                missedBitmaps.add(bitmaps.get(i));
+                missedIndices.add(i);
+            }
+        }
+        if (missedBitmaps.isEmpty()) return batch;
+
+        // Detect the missed bitmaps in one batch.
+        final List<List<DLibFace>> detected = mDetector.findFacesAndLandmarks(missedBitmaps);
+        for (int i = 0; i < detected.size(); ++i) {
+            put(missedKeys.get(i), detected.get(i), epoch);
+            batch.set(missedIndices.get(i), detected.get(i));
+        }
+
+        return batch;
+    }
+
+    @Override
+    public List<List<DLibFace>> findLandmarksFromFaces(List<Bitmap> bitmaps,
+                                                       List<List<Rect>> faceBounds) {
+        return mDetector.findLandmarksFromFaces(bitmaps, faceBounds);
+    }
+
+    @Override
+    public List<DLibFace> findLandmarksFromFaces(ByteBuffer luminance,
+                                                 int width,
+                                                 int height,
+                                                 int rowStride,
+                                                 int pixelStride,
+                                                 int rotation,
+                                                 boolean mirrored,
+                                                 List<Rect> faceBounds) {
+        return mDetector.findLandmarksFromFaces(luminance, width, height,
+                                                rowStride, pixelStride,
+                                                rotation, mirrored, faceBounds);
+    }
+
+    @Override
+    public List<DLibFace> findFacesAndLandmarks(ByteBuffer luminance,
+                                                int width,
+                                                int height,
+                                                int rowStride,
+                                                int pixelStride,
+                                                int rotation,
+                                                boolean mirrored) {
+        return mDetector.findFacesAndLandmarks(luminance, width, height,
+                                               rowStride, pixelStride,
+                                               rotation, mirrored);
+    }
+
+    @Override
+    public List<DLibFace> findFacesAndLandmarksInRegions(Bitmap bitmap,
+                                                         List<Rect> regions) {
+        return mDetector.findFacesAndLandmarksInRegions(bitmap, regions);
+    }
+
+    @Override
+    public List<DLibFace> findFacesAndLandmarksInRegions(ByteBuffer luminance,
+                                                         int width,
+                                                         int height,
+                                                         int rowStride,
+                                                         int pixelStride,
+                                                         int rotation,
+                                                         boolean mirrored,
+                                                         List<Rect> regions) {
+        return mDetector.findFacesAndLandmarksInRegions(luminance, width, height,
+                                                        rowStride, pixelStride,
+                                                        rotation, mirrored, regions);
+    }
+
+    @Override
+    public void setLandmarkFlowEnabled(boolean enabled) {
+        mDetector.setLandmarkFlowEnabled(enabled);
+    }
+
+    @Override
+    public void setLandmarkFlowLimits(float maxError,
+                                      int maxFrames) {
+        mDetector.setLandmarkFlowLimits(maxError, maxFrames);
+    }
+
+    @Override
+    public List<DLibFace> findLandmarksByFlow(ByteBuffer luminance,
+                                              int width,
+                                              int height,
+                                              int rowStride,
+                                              int pixelStride,
+                                              int rotation,
+                                              boolean mirrored) {
+        return mDetector.findLandmarksByFlow(luminance, width, height,
+                                             rowStride, pixelStride,
+                                             rotation, mirrored);
+    }
+
+    @Override
+    public void close() {
+        clear();
+        mDetector.close();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private Key newKey(Bitmap bitmap,
+                       int kind) {
+        final boolean isPixelHashEnabled;
+        synchronized (this) {
+            isPixelHashEnabled = mIsPixelHashEnabled;
+        }
+
+        if (isPixelHashEnabled) {
+            return new Key(null, 0, hashPixels(bitmap),
+                           bitmap.getWidth(), bitmap.getHeight(), kind);
+        } else {
+            // A lookup key isn't registered to the queue, see put().
+            return new Key(new BitmapReference(bitmap, null),
+                           getGenerationId(bitmap), 0,
+                           bitmap.getWidth(), bitmap.getHeight(), kind);
+        }
+    }
+
+    /**
+     * The generation of the bitmap pixels, see {@link Bitmap#getGenerationId()};
+     * package-private for the tests.
+     */
+    int getGenerationId(Bitmap bitmap) {
+        return bitmap.getGenerationId();
+    }
+
+    /**
+     * The epoch to read before a lookup and to pass to
+     * {@link #put(Key, List, long)} with the detected faces.
+     */
+    private synchronized long getEpoch() {
+        return mEpoch;
+    }
+
+    /**
+     * The copy of the cached faces, so the caller is free to modify them.
+     */
+    private synchronized List<DLibFace> get(Key key) {
+        dropCollected();
+
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            ++mMissCount;
+            return null;
+        }
+
+        ++mHitCount;
+        return copyFaces(entry.faces);
+    }
+
+    /**
+     * Cache the detected faces unless the cache is cleared since the given
+     * epoch, e.g. the detector is reconfigured while detecting them.
+     */
+    private synchronized void put(Key key,
+                                  List<DLibFace> faces,
+                                  long epoch) {
+        if (epoch != mEpoch) return;
+
+        // Only the keys in the cache are dropped with their bitmaps, so only
+        // they're registered to the queue.
+        final Key storedKey = key.bitmap != null ?
+                              key.register(mCollectedBitmaps) : key;
+        if (storedKey == null) return;
+
+        final Entry entry = new Entry(copyFaces(faces));
+        final Entry previous = mEntries.put(storedKey, entry);
+        if (previous != null) {
+            mBytes -= previous.bytes;
+        }
+        mBytes += entry.bytes;
+
+        // Evict the least recently used entries.
+        final Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+        while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes) && it.hasNext()) {
+            final Map.Entry<Key, Entry> eldest = it.next();
+            mBytes -= eldest.getValue().bytes;
+            it.remove();
+            ++mEvictionCount;
+        }
+    }
+
+    /**
+     * Drop the entries of the bitmaps garbage collected.
+     */
+    private void dropCollected() {
+        BitmapReference reference;
+        while ((reference = (BitmapReference) mCollectedBitmaps.poll()) != null) {
+            final Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Key, Entry> entry = it.next();
+                if (entry.getKey().bitmap == reference) {
+                    mBytes -= entry.getValue().bytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static List<DLibFace> copyFaces(List<DLibFace> faces) {
+        final List<DLibFace> copies = new ArrayList<>(faces.size());
+        for (DLibFace face : faces) {
+            copies.add(new DLibFace68(face));
+        }
+
+        return copies;
+    }
+
+    /**
+     * The 64-bit FNV-1a hash of the pixels, row by row.
+     */
+    private static long hashPixels(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] row = new int[width];
+        long hash = 0xcbf29ce484222325L;
+        for (int y = 0; y < height; ++y) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; ++x) {
+                hash = (hash ^ row[x]) * 0x100000001b3L;
+            }
+        }
+
+        return hash;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    private static final class BitmapReference extends WeakReference<Bitmap> {
+
+        final int identity;
+
+        BitmapReference(Bitmap bitmap,
+                        ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            identity = System.identityHashCode(bitmap);
+        }
+    }
+
+    /**
+     * Either the bitmap identity with its generation or the pixel hash, and
+     * the kind of the result.
+     */
+    private static final class Key {
+
+        final BitmapReference bitmap;
+        final int generation;
+        final long pixelHash;
+        final int width;
+        final int height;
+        final int kind;
+
+        Key(BitmapReference bitmap,
+            int generation,
+            long pixelHash,
+            int width,
+            int height,
+            int kind) {
+            this.bitmap = bitmap;
+            this.generation = generation;
+            this.pixelHash = pixelHash;
+            this.width = width;
+            this.height = height;
+            this.kind = kind;
+        }
+
+        /**
+         * The copy of the key whose bitmap reference is queued once the
+         * bitmap is garbage collected, or null if it's collected already.
+         */
+        Key register(ReferenceQueue<Bitmap> queue) {
+            final Bitmap referent = bitmap.get();
+            if (referent == null) return null;
+
+            return new Key(new BitmapReference(referent, queue),
+                           generation, pixelHash, width, height, kind);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+
+            final Key key = (Key) other;
+            if (bitmap != null) {
+                // The same bitmap, which is not garbage collected.
+                if (key.bitmap == null) return false;
+                final Bitmap referent = bitmap.get();
+                if (referent == null || referent != key.bitmap.get()) return false;
+            } else if (key.bitmap != null) {
+                return false;
+            }
+
+            return generation == key.generation &&
+                   pixelHash == key.pixelHash &&
+                   width == key.width &&
+                   height == key.height &&
+                   kind == key.kind;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = bitmap != null ? bitmap.identity : 0;
+            hash = 31 * hash + generation;
+            hash = 31 * hash + (int) (pixelHash ^ (pixelHash >>> 32));
+            hash = 31 * hash + width;
+            hash = 31 * hash + height;
+            return 31 * hash + kind;
+        }
+    }
+
+    private static final class Entry {
+
+        final List<DLibFace> faces;
+        final long bytes;
+
+        Entry(List<DLibFace> faces) {
+            this.faces = faces;
+
+            long bytes = ENTRY_BYTES;
+            for (DLibFace face : faces) {
+                bytes += FACE_BYTES + LANDMARK_BYTES * face.getLandmarks().size();
+            }
+            this.bytes = bytes;
+        }
+    }
+}
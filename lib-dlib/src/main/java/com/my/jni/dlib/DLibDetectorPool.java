@@ -0,0 +1,253 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import java.io.Closeable;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of {@link DLibLandmarks68Detector} for processing many photos
+ * concurrently, e.g. a gallery batch. Every detector is leased to one thread
+ * at a time, so the batch scales with the threads without the lock of a shared
+ * detector; the shape predictor model is deserialized once and shared by all
+ * the detectors of the pool.
+ * <br/>
+ * Every detector runs single-threaded natively because the pool already keeps
+ * the cores busy, see {@link IDLibFaceDetector#setParallelism(int)}.
+ * <br/>
+ * Usage:
+ * <pre>
+ * final DLibDetectorPool pool = new DLibDetectorPool(modelPath);
+ * // On every worker thread.
+ * try (DLibDetectorPool.Lease lease = pool.acquire()) {
+ *     faces = lease.getDetector().findFacesAndLandmarks(bitmap);
+ * }
+ * // When the batch is done.
+ * pool.close();
+ * </pre>
+ */
+public class DLibDetectorPool {
+
+    private static final long WAIT_INTERVAL_MS = 100;
+
+    private final String mModelPath;
+    private final DLibFaceDetectorConfig mConfig;
+    private final int mSize;
+
+    // The idle detectors, the most recently released one first so the warm
+    // native scratch areas are reused.
+    private final LinkedBlockingDeque<DLibLandmarks68Detector> mIdleDetectors =
+        new LinkedBlockingDeque<>();
+    private int mDetectorCount = 0;
+    private boolean mIsClosed = false;
+
+    /**
+     * A pool of as many detectors as the cores with the default face detector
+     * configuration.
+     *
+     * @param modelPath The shape predictor model (serialized graph) file.
+     */
+    public DLibDetectorPool(String modelPath) {
+        this(modelPath, DLibFaceDetectorConfig.DEFAULT, 0);
+    }
+
+    /**
+     * @param modelPath The shape predictor model (serialized graph) file.
+     * @param config The face detector configuration of every detector.
+     * @param size The maximum number of detectors, 0 for the number of cores.
+     */
+    public DLibDetectorPool(String modelPath,
+                            DLibFaceDetectorConfig config,
+                            int size) {
+        if (modelPath == null) {
+            throw new IllegalArgumentException("The model path must not be null.");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("The config must not be null.");
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("The size must not be negative.");
+        }
+
+        mModelPath = modelPath;
+        mConfig = config;
+        mSize = size > 0 ? size : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The maximum number of detectors, which is also the maximum number of
+     * threads detecting concurrently.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Lease a detector to the calling thread, blocking until one is released
+     * if all the detectors are leased. A detector is created and prepared
+     * lazily if the pool isn't full, which deserializes the model only for the
+     * first detector.
+     *
+     * @return The lease that must be closed by the same thread when it's done.
+     * @throws InterruptedException Fired if the thread is interrupted while
+     * waiting for a detector.
+     */
+    public Lease acquire() throws InterruptedException {
+        DLibLandmarks68Detector detector = mIdleDetectors.pollFirst();
+        while (detector == null) {
+            // Try to create one every time; a slot is freed if the creation
+            // of another thread fails. It throws if the pool is closed.
+            detector = createDetectorIfNotFull();
+            if (detector != null) break;
+
+            // Wake up now and then in case the pool is closed or a slot is
+            // freed while waiting, in which case no detector is released to
+            // the pool.
+            detector = mIdleDetectors.pollFirst(WAIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // The pool might be closed while waiting.
+        synchronized (this) {
+            if (mIsClosed) {
+                detector.close();
+                throw new IllegalStateException("The pool is closed.");
+            }
+        }
+
+        return new Lease(this, detector);
+    }
+
+    /**
+     * Release all the detectors. The leased detectors are released when their
+     * leases are closed.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mIsClosed) return;
+            mIsClosed = true;
+        }
+
+        DLibLandmarks68Detector detector;
+        while ((detector = mIdleDetectors.pollFirst()) != null) {
+            detector.close();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    /**
+     * @return A new detector, or null if the pool is full.
+     */
+    private DLibLandmarks68Detector createDetectorIfNotFull() {
+        // Reserve a slot and then prepare the detector without the lock, so
+        // the releasing threads aren't blocked by the model deserialization.
+        synchronized (this) {
+            if (mIsClosed) {
+                throw new IllegalStateException("The pool is closed.");
+            }
+            if (mDetectorCount >= mSize) return null;
+            ++mDetectorCount;
+        }
+
+        final DLibLandmarks68Detector detector;
+        try {
+            detector = new DLibLandmarks68Detector();
+        } catch (RuntimeException error) {
+            cancelReservation();
+            throw error;
+        }
+        try {
+            detector.setParallelism(1);
+            detector.prepareFaceDetector(mConfig);
+            detector.prepareFaceLandmarksDetector(mModelPath);
+        } catch (RuntimeException error) {
+            detector.close();
+            cancelReservation();
+            throw error;
+        }
+
+        return detector;
+    }
+
+    private synchronized void cancelReservation() {
+        --mDetectorCount;
+    }
+
+    private synchronized void release(DLibLandmarks68Detector detector) {
+        // Offer it in the lock so a closed pool never holds an idle detector.
+        if (mIsClosed) {
+            detector.close();
+        } else {
+            mIdleDetectors.offerFirst(detector);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * A detector leased to the thread acquiring it. The detector must not be
+     * used by the other threads or after the lease is closed.
+     */
+    public static final class Lease implements Closeable {
+
+        private final DLibDetectorPool mPool;
+        private final Thread mOwner;
+        private DLibLandmarks68Detector mDetector;
+
+        private Lease(DLibDetectorPool pool,
+                      DLibLandmarks68Detector detector) {
+            mPool = pool;
+            mOwner = Thread.currentThread();
+            mDetector = detector;
+        }
+
+        public IDLibFaceDetector getDetector() {
+            checkOwner();
+            if (mDetector == null) {
+                throw new IllegalStateException("The lease is closed.");
+            }
+
+            return mDetector;
+        }
+
+        /**
+         * Return the detector to the pool; closing a closed lease is no-op.
+         */
+        @Override
+        public void close() {
+            checkOwner();
+            if (mDetector == null) return;
+
+            mPool.release(mDetector);
+            mDetector = null;
+        }
+
+        private void checkOwner() {
+            if (Thread.currentThread() != mOwner) {
+                throw new IllegalStateException(
+                    "The lease is confined to the thread acquiring it.");
+            }
+        }
+    }
+}
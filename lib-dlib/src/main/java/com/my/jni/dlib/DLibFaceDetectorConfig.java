@@ -0,0 +1,180 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+/**
+ * The configuration of the HOG face detector. The detector finds faces about
+ * 80 pixels wide at the first pyramid level and every next level is 5/6 of the
+ * previous one, so the configuration decides which levels are ever scanned:
+ * <ul>
+ *     <li>The downscale factor and the upsample resize the image before the
+ *     scan; the detected bounds are mapped back to the input image for the
+ *     shape predictor.</li>
+ *     <li>A minimum face size greater than what the scale could find shrinks
+ *     the image further, which prunes the biggest levels.</li>
+ *     <li>A maximum face size stops the pyramid early, which prunes the
+ *     smallest levels.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * detector.prepareFaceDetector(
+ *     new DLibFaceDetectorConfig.Builder()
+ *         .setDownscale(0.5f)
+ *         .setMinFaceSize(120)
+ *         .build());
+ * </pre>
+ */
+public class DLibFaceDetectorConfig {
+
+    /**
+     * The configuration scanning the full input resolution and every pyramid
+     * level.
+     */
+    public static final DLibFaceDetectorConfig DEFAULT = new Builder().build();
+
+    private final float mDownscale;
+    private final int mMinFaceSize;
+    private final int mMaxFaceSize;
+    private final int mUpsample;
+
+    private DLibFaceDetectorConfig(Builder builder) {
+        mDownscale = builder.mDownscale;
+        mMinFaceSize = builder.mMinFaceSize;
+        mMaxFaceSize = builder.mMaxFaceSize;
+        mUpsample = builder.mUpsample;
+    }
+
+    /**
+     * The factor in (0, 1] resizing the image before the detection.
+     */
+    public float getDownscale() {
+        return mDownscale;
+    }
+
+    /**
+     * The minimum face width in the input image pixels, 0 for no limit.
+     */
+    public int getMinFaceSize() {
+        return mMinFaceSize;
+    }
+
+    /**
+     * The maximum face width in the input image pixels, 0 for no limit.
+     */
+    public int getMaxFaceSize() {
+        return mMaxFaceSize;
+    }
+
+    /**
+     * The number of times the image is doubled before the detection.
+     */
+    public int getUpsample() {
+        return mUpsample;
+    }
+
+    @Override
+    public String toString() {
+        return "DLibFaceDetectorConfig{" +
+               "downscale=" + mDownscale +
+               ", minFaceSize=" + mMinFaceSize +
+               ", maxFaceSize=" + mMaxFaceSize +
+               ", upsample=" + mUpsample +
+               '}';
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    public static class Builder {
+
+        private float mDownscale = 1f;
+        private int mMinFaceSize = 0;
+        private int mMaxFaceSize = 0;
+        private int mUpsample = 0;
+
+        /**
+         * @param downscale The factor in (0, 1] resizing the image before the
+         *                  detection, e.g. 0.5 halves the width and height.
+         */
+        public Builder setDownscale(float downscale) {
+            if (!(downscale > 0f && downscale <= 1f)) {
+                throw new IllegalArgumentException(
+                    "The downscale must be in (0, 1].");
+            }
+
+            mDownscale = downscale;
+            return this;
+        }
+
+        /**
+         * @param size The minimum face width in the input image pixels, 0 for
+         *             no limit.
+         */
+        public Builder setMinFaceSize(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException(
+                    "The minimum face size must not be negative.");
+            }
+
+            mMinFaceSize = size;
+            return this;
+        }
+
+        /**
+         * @param size The maximum face width in the input image pixels, 0 for
+         *             no limit.
+         */
+        public Builder setMaxFaceSize(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException(
+                    "The maximum face size must not be negative.");
+            }
+
+            mMaxFaceSize = size;
+            return this;
+        }
+
+        /**
+         * @param upsample The number of times the image is doubled before the
+         *                 detection for finding the faces smaller than 80
+         *                 pixels; it's applied on top of the downscale.
+         */
+        public Builder setUpsample(int upsample) {
+            if (upsample < 0 || upsample > 2) {
+                throw new IllegalArgumentException(
+                    "The upsample must be in [0, 2].");
+            }
+
+            mUpsample = upsample;
+            return this;
+        }
+
+        public DLibFaceDetectorConfig build() {
+            if (mMinFaceSize > 0 && mMaxFaceSize > 0 &&
+                mMinFaceSize > mMaxFaceSize) {
+                throw new IllegalArgumentException(
+                    "The minimum face size is greater than the maximum.");
+            }
+
+            return new DLibFaceDetectorConfig(this);
+        }
+    }
+}
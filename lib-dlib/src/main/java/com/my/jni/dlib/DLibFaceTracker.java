@@ -0,0 +1,397 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibLandmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A face tracker for the camera frames. Faces move only a few pixels between
+ * two frames, so the tracker runs the full face detection every N frames, or
+ * when a track is lost, and a much cheaper search around the tracked faces on
+ * the frames in between, see {@link Mode}.
+ * <br/>
+ * A face entering the frame is found by the next full detection.
+ * <br/>
+ * Usage:
+ * <pre>
+ * final DLibFaceTracker tracker = new DLibFaceTracker(detector);
+ * tracker.setFullDetectionInterval(10);
+ *
+ * // For every frame.
+ * final List&lt;DLibFace&gt; faces = tracker.track(luminance, width, height,
+ *                                              rowStride, pixelStride,
+ *                                              rotation, mirrored);
+ * </pre>
+ * The tracker is not thread-safe; use one tracker for one camera stream.
+ */
+public class DLibFaceTracker {
+
+    public enum Mode {
+        /**
+         * Detect the faces in the expanded bounds of the tracked faces; a
+         * track is lost if its face isn't found.
+         */
+        SEARCH_REGIONS,
+        /**
+         * Detect the landmarks directly in the tracked bounds, which follow
+         * the landmarks; there is no face detection at all between the full
+         * detections, so a lost track is only noticed by the next one.
+         */
+        PREDICT_BOUNDS,
+        /**
+         * Carry the landmarks from the previous frame by the optical flow;
+         * the shape predictor only runs again for a face when the flow error
+         * is too big or after a number of frames, see
+         * {@link IDLibFaceDetector#setLandmarkFlowLimits(float, int)}. A track
+         * is lost if most of its landmarks can't be tracked. It works for the
+         * luminance planes only; the photos fall back to
+         * {@link #PREDICT_BOUNDS}.
+         */
+        FOLLOW_LANDMARKS
+    }
+
+    private static final int DEFAULT_FULL_DETECTION_INTERVAL = 10;
+    private static final float DEFAULT_SEARCH_MARGIN = 0.5f;
+
+    private final IDLibFaceDetector mDetector;
+
+    private Mode mMode = Mode.SEARCH_REGIONS;
+    private int mFullDetectionInterval = DEFAULT_FULL_DETECTION_INTERVAL;
+    private float mSearchMargin = DEFAULT_SEARCH_MARGIN;
+
+    // State.
+    private int mFramesSinceFullDetection = 0;
+    private final List<Rect> mTrackedBounds = new ArrayList<>();
+    // The offsets from the landmarks centroid to the bound center.
+    private final List<PointF> mCenterOffsets = new ArrayList<>();
+    private final List<Rect> mSearchRegions = new ArrayList<>();
+
+    public DLibFaceTracker(IDLibFaceDetector detector) {
+        if (detector == null) {
+            throw new IllegalArgumentException("The detector must not be null.");
+        }
+
+        mDetector = detector;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public void setMode(Mode mode) {
+        mMode = mode;
+
+        // The detector keeps the last frame for the optical flow.
+        mDetector.setLandmarkFlowEnabled(mMode == Mode.FOLLOW_LANDMARKS);
+        reset();
+    }
+
+    /**
+     * @param frames The full detection runs once every given frames; 1 makes
+     *               every frame a full detection.
+     */
+    public void setFullDetectionInterval(int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException(
+                "The interval must be at least 1 frame.");
+        }
+
+        mFullDetectionInterval = frames;
+    }
+
+    /**
+     * @param margin The margin expanding a tracked bound on every side for
+     *               {@link Mode#SEARCH_REGIONS}, relative to the bound size.
+     */
+    public void setSearchMargin(float margin) {
+        if (margin < 0f) {
+            throw new IllegalArgumentException(
+                "The margin must not be negative.");
+        }
+
+        mSearchMargin = margin;
+    }
+
+    /**
+     * Forget the tracked faces; the next frame runs the full detection.
+     */
+    public void reset() {
+        mFramesSinceFullDetection = 0;
+        mTrackedBounds.clear();
+        mCenterOffsets.clear();
+    }
+
+    /**
+     * Track the faces in the given photo.
+     *
+     * @return A list of {@link DLibFace}.
+     * @see IDLibFaceDetector#findFacesAndLandmarks(Bitmap)
+     */
+    public List<DLibFace> track(final Bitmap bitmap) {
+        return track(new Source() {
+            @Override
+            public int getWidth() {
+                return bitmap.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return bitmap.getHeight();
+            }
+
+            @Override
+            public List<DLibFace> findFacesAndLandmarks() {
+                return mDetector.findFacesAndLandmarks(bitmap);
+            }
+
+            @Override
+            public List<DLibFace> findFacesAndLandmarksInRegions(List<Rect> regions) {
+                return mDetector.findFacesAndLandmarksInRegions(bitmap, regions);
+            }
+
+            @Override
+            public List<DLibFace> findLandmarksFromFaces(List<Rect> faceBounds) {
+                return mDetector.findLandmarksFromFaces(bitmap, faceBounds);
+            }
+        });
+    }
+
+    /**
+     * Track the faces in the 8-bit luminance plane.
+     *
+     * @return A list of {@link DLibFace} in the upright coordinate.
+     * @see IDLibFaceDetector#findFacesAndLandmarks(ByteBuffer, int, int, int, int, int, boolean)
+     */
+    public List<DLibFace> track(final ByteBuffer luminance,
+                                final int width,
+                                final int height,
+                                final int rowStride,
+                                final int pixelStride,
+                                final int rotation,
+                                final boolean mirrored) {
+        final boolean isRotated = rotation == 90 || rotation == 270;
+        return track(new FlowSource() {
+            @Override
+            public int getWidth() {
+                return isRotated ? height : width;
+            }
+
+            @Override
+            public int getHeight() {
+                return isRotated ? width : height;
+            }
+
+            @Override
+            public List<DLibFace> findFacesAndLandmarks() {
+                return mDetector.findFacesAndLandmarks(
+                    luminance, width, height, rowStride, pixelStride,
+                    rotation, mirrored);
+            }
+
+            @Override
+            public List<DLibFace> findFacesAndLandmarksInRegions(List<Rect> regions) {
+                return mDetector.findFacesAndLandmarksInRegions(
+                    luminance, width, height, rowStride, pixelStride,
+                    rotation, mirrored, regions);
+            }
+
+            @Override
+            public List<DLibFace> findLandmarksFromFaces(List<Rect> faceBounds) {
+                return mDetector.findLandmarksFromFaces(
+                    luminance, width, height, rowStride, pixelStride,
+                    rotation, mirrored, faceBounds);
+            }
+
+            @Override
+            public List<DLibFace> findLandmarksByFlow() {
+                return mDetector.findLandmarksByFlow(
+                    luminance, width, height, rowStride, pixelStride,
+                    rotation, mirrored);
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private List<DLibFace> track(Source source) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+
+        List<DLibFace> faces = null;
+        boolean isBoundDetected = true;
+        if (!mTrackedBounds.isEmpty() &&
+            mFramesSinceFullDetection + 1 < mFullDetectionInterval) {
+            if (mMode == Mode.SEARCH_REGIONS) {
+                faces = source.findFacesAndLandmarksInRegions(getSearchRegions());
+
+                // A track is lost, do the full detection right away.
+                if (faces.size() < mTrackedBounds.size()) {
+                    faces = null;
+                }
+            } else if (mMode == Mode.FOLLOW_LANDMARKS &&
+                       source instanceof FlowSource) {
+                // The bounds are moved with the landmarks natively.
+                faces = ((FlowSource) source).findLandmarksByFlow();
+
+                // A track is lost, do the full detection right away.
+                if (faces.size() < mTrackedBounds.size()) {
+                    faces = null;
+                }
+            } else {
+                faces = source.findLandmarksFromFaces(mTrackedBounds);
+                isBoundDetected = false;
+            }
+        }
+
+        if (faces == null) {
+            faces = source.findFacesAndLandmarks();
+            mFramesSinceFullDetection = 0;
+            isBoundDetected = true;
+        } else {
+            ++mFramesSinceFullDetection;
+        }
+
+        updateTrackedBounds(faces, width, height, isBoundDetected);
+
+        return faces;
+    }
+
+    private List<Rect> getSearchRegions() {
+        mSearchRegions.clear();
+        for (int i = 0; i < mTrackedBounds.size(); ++i) {
+            final Rect bound = mTrackedBounds.get(i);
+            final int dx = (int) (mSearchMargin * bound.width());
+            final int dy = (int) (mSearchMargin * bound.height());
+
+            mSearchRegions.add(new Rect(bound.left - dx,
+                                        bound.top - dy,
+                                        bound.right + dx,
+                                        bound.bottom + dy));
+        }
+
+        return mSearchRegions;
+    }
+
+    /**
+     * Update the tracked bounds in pixels. A detected bound is taken as it is;
+     * otherwise the previous bound follows the landmarks centroid.
+     */
+    private void updateTrackedBounds(List<DLibFace> faces,
+                                     int width,
+                                     int height,
+                                     boolean isBoundDetected) {
+        final List<Rect> prevBounds = new ArrayList<>(mTrackedBounds);
+        final List<PointF> prevOffsets = new ArrayList<>(mCenterOffsets);
+
+        mTrackedBounds.clear();
+        mCenterOffsets.clear();
+        for (int i = 0; i < faces.size(); ++i) {
+            final DLibFace face = faces.get(i);
+            final PointF centroid = getLandmarksCentroid(face, width, height);
+
+            if (isBoundDetected || i >= prevBounds.size()) {
+                final RectF bound = face.getBound();
+                final Rect rect = new Rect((int) (bound.left * width),
+                                           (int) (bound.top * height),
+                                           (int) (bound.right * width),
+                                           (int) (bound.bottom * height));
+
+                mTrackedBounds.add(rect);
+                mCenterOffsets.add(new PointF(rect.exactCenterX() - centroid.x,
+                                              rect.exactCenterY() - centroid.y));
+            } else {
+                final Rect prevBound = prevBounds.get(i);
+                final PointF offset = prevOffsets.get(i);
+                final int left = (int) (centroid.x + offset.x - prevBound.width() / 2f);
+                final int top = (int) (centroid.y + offset.y - prevBound.height() / 2f);
+
+                mTrackedBounds.add(new Rect(left,
+                                            top,
+                                            left + prevBound.width(),
+                                            top + prevBound.height()));
+                mCenterOffsets.add(offset);
+            }
+        }
+    }
+
+    /**
+     * The centroid of the landmarks in pixels, or the bound center if there
+     * is no landmark.
+     */
+    private static PointF getLandmarksCentroid(DLibFace face,
+                                               int width,
+                                               int height) {
+        final DLibLandmarks landmarks = face.getLandmarks();
+        if (landmarks.size() == 0) {
+            return new PointF(face.getBound().centerX() * width,
+                              face.getBound().centerY() * height);
+        }
+
+        float x = 0f;
+        float y = 0f;
+        for (int i = 0; i < landmarks.size(); ++i) {
+            x += landmarks.getX(i);
+            y += landmarks.getY(i);
+        }
+
+        return new PointF(x / landmarks.size() * width,
+                          y / landmarks.size() * height);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * The frame to track, either a photo or a luminance plane.
+     */
+    private interface Source {
+
+        int getWidth();
+
+        int getHeight();
+
+        List<DLibFace> findFacesAndLandmarks();
+
+        List<DLibFace> findFacesAndLandmarksInRegions(List<Rect> regions);
+
+        List<DLibFace> findLandmarksFromFaces(List<Rect> faceBounds);
+    }
+
+    /**
+     * The frame whose landmarks could be carried from the previous frame by
+     * the optical flow, i.e. a luminance plane.
+     */
+    private interface FlowSource extends Source {
+
+        List<DLibFace> findLandmarksByFlow();
+    }
+}
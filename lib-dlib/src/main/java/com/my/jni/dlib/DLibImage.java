@@ -0,0 +1,229 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The pixels given to {@link DLibLandmarks68Engine}, which don't depend on any
+ * platform image type: a buffer, either direct or backed by an array, with the
+ * dimension, the strides and the format. The image is rotated and mirrored to
+ * be upright natively, so the face bounds and the result are in the upright
+ * coordinate.
+ * <br/>
+ * Usage:
+ * <pre>
+ * // A RGBA frame decoded on the server.
+ * final DLibImage image = new DLibImage(pixels, width, height, 4 * width,
+ *                                       DLibImage.FORMAT_RGBA_8888);
+ * // The Y plane of a camera frame.
+ * final DLibImage frame = new DLibImage(yPlane, width, height, rowStride, 1,
+ *                                       DLibImage.FORMAT_GRAY_8, 90, true);
+ * </pre>
+ */
+public class DLibImage {
+
+    /**
+     * The 8-bit luminance, e.g. the Y plane of a NV21 or YUV_420_888 camera
+     * frame.
+     */
+    public static final int FORMAT_GRAY_8 = 1;
+    /**
+     * The 32-bit RGBA in the layout of an Android RGBA_8888 bitmap.
+     */
+    public static final int FORMAT_RGBA_8888 = 2;
+
+    private final ByteBuffer mPixels;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRowStride;
+    private final int mPixelStride;
+    private final int mFormat;
+    private final int mRotation;
+    private final boolean mMirrored;
+
+    /**
+     * An upright image whose pixels are packed in a row.
+     *
+     * @param pixels The pixels, either a direct buffer or a buffer backed by
+     *               an array.
+     * @param width The image width.
+     * @param height The image height.
+     * @param rowStride The bytes between two rows.
+     * @param format The pixel format, e.g. {@link #FORMAT_RGBA_8888}.
+     */
+    public DLibImage(ByteBuffer pixels,
+                     int width,
+                     int height,
+                     int rowStride,
+                     int format) {
+        this(pixels, width, height, rowStride, getBytesPerPixel(format), format,
+             0, false);
+    }
+
+    /**
+     * @param pixels The pixels, either a direct buffer or a buffer backed by
+     *               an array.
+     * @param width The image width.
+     * @param height The image height.
+     * @param rowStride The bytes between two rows.
+     * @param pixelStride The bytes between two pixels in a row, e.g. 1 for
+     *                    NV21 and the Y plane of YUV_420_888.
+     * @param format The pixel format, e.g. {@link #FORMAT_GRAY_8}.
+     * @param rotation The clockwise rotation in degrees, either 0, 90, 180 or
+     *                 270, to make the image upright.
+     * @param mirrored Flip the image horizontally after the rotation.
+     */
+    public DLibImage(ByteBuffer pixels,
+                     int width,
+                     int height,
+                     int rowStride,
+                     int pixelStride,
+                     int format,
+                     int rotation,
+                     boolean mirrored) {
+        if (pixels == null) {
+            throw new IllegalArgumentException("The pixels must not be null.");
+        }
+        if (!pixels.isDirect() &&
+            (!pixels.hasArray() || pixels.arrayOffset() != 0)) {
+            throw new IllegalArgumentException(
+                "The pixels are neither direct nor backed by an array.");
+        }
+        final int bytesPerPixel = getBytesPerPixel(format);
+        if (bytesPerPixel == 0) {
+            throw new IllegalArgumentException("Unknown format " + format + ".");
+        }
+        if (width <= 0 || height <= 0 ||
+            pixelStride < bytesPerPixel ||
+            rowStride < (width - 1) * pixelStride + bytesPerPixel) {
+            throw new IllegalArgumentException(
+                "Invalid dimension " + width + "x" + height +
+                " (rowStride=" + rowStride + ", pixelStride=" + pixelStride + ").");
+        }
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException(
+                "The rotation must be 0, 90, 180 or 270.");
+        }
+
+        mPixels = pixels;
+        mWidth = width;
+        mHeight = height;
+        mRowStride = rowStride;
+        mPixelStride = pixelStride;
+        mFormat = format;
+        mRotation = rotation;
+        mMirrored = mirrored;
+    }
+
+    public ByteBuffer getPixels() {
+        return mPixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRowStride() {
+        return mRowStride;
+    }
+
+    public int getPixelStride() {
+        return mPixelStride;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public boolean isMirrored() {
+        return mMirrored;
+    }
+
+    /**
+     * The width after the rotation.
+     */
+    public int getUprightWidth() {
+        return mRotation == 90 || mRotation == 270 ? mHeight : mWidth;
+    }
+
+    /**
+     * The height after the rotation.
+     */
+    public int getUprightHeight() {
+        return mRotation == 90 || mRotation == 270 ? mWidth : mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "DLibImage{" +
+               "width=" + mWidth +
+               ", height=" + mHeight +
+               ", rowStride=" + mRowStride +
+               ", pixelStride=" + mPixelStride +
+               ", format=" + mFormat +
+               ", rotation=" + mRotation +
+               ", mirrored=" + mMirrored +
+               '}';
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    /**
+     * The direct buffer for the native detector, or null if the pixels are in
+     * the array.
+     */
+    ByteBuffer getDirectBuffer() {
+        return mPixels.isDirect() ? mPixels : null;
+    }
+
+    /**
+     * The backing array for the native detector, which reads it in place, or
+     * null if the pixels are in the direct buffer.
+     */
+    byte[] getArray() {
+        return mPixels.isDirect() ? null : mPixels.array();
+    }
+
+    /**
+     * @return The bytes of a pixel in the given format, or 0 if the format is
+     * unknown.
+     */
+    static int getBytesPerPixel(int format) {
+        switch (format) {
+            case FORMAT_GRAY_8:
+                return 1;
+            case FORMAT_RGBA_8888:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+}
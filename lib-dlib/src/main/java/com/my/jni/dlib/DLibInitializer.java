@@ -0,0 +1,155 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Load the native libraries and warm up the detectors off the main thread,
+ * e.g. from the splash screen, so neither the first detector nor the first
+ * frame pays for the cold start. The warm-up detections are recorded in
+ * {@link DLibMetrics} like any other; reset the metrics once it's done, e.g.
+ * before a benchmark run, to leave them out.
+ * <br/>
+ * Usage:
+ * <pre>
+ * // Early, e.g. in the splash screen; the model path is nullable.
+ * DLibInitializer.initializeAsync(modelPath);
+ * </pre>
+ */
+public final class DLibInitializer {
+
+    private static final String TAG = "DLibInitializer";
+
+    // The synthetic frame of the warm-up detection.
+    private static final int WARM_UP_WIDTH = 320;
+    private static final int WARM_UP_HEIGHT = 240;
+
+    private static boolean sIsLibraryLoaded = false;
+
+    private DLibInitializer() {
+        // Utility.
+    }
+
+    /**
+     * Load the native libraries in the dependency order; it's no-op if they
+     * are loaded.
+     */
+    public static synchronized void loadLibraries() {
+        if (sIsLibraryLoaded) return;
+
+        loadLibrary("c++_shared");
+        loadLibrary("dlib");
+        loadLibrary("dlib_jni");
+
+        sIsLibraryLoaded = true;
+    }
+
+    /**
+     * On a background thread, load the native libraries, prepare the face
+     * detector and the face landmarks model, and run one detection on a
+     * synthetic frame to fault in the code and the model pages. The model
+     * stays warm in {@link DLibModelRegistry} for the detectors created later.
+     *
+     * @param modelPath The face landmarks model file, or null to skip the
+     *                  model.
+     * @return The future done when the warm-up is done; {@link Future#get()}
+     * throws the error if there's any.
+     */
+    public static Future<Void> initializeAsync(final String modelPath) {
+        final FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    initialize(modelPath);
+                } catch (RuntimeException error) {
+                    // The caller usually doesn't wait for the future.
+                    Log.w(TAG, "Failed to warm up the detectors", error);
+                    throw error;
+                }
+                return null;
+            }
+        });
+
+        final Thread thread = new Thread(task, "dlib-initializer");
+        thread.setDaemon(true);
+        thread.start();
+
+        return task;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static void initialize(String modelPath) {
+        final long start = System.currentTimeMillis();
+
+        loadLibraries();
+
+        final DLibLandmarks68Detector detector = new DLibLandmarks68Detector();
+        try {
+            detector.prepareFaceDetector();
+
+            // A flat frame has no face but runs the whole pyramid.
+            final ByteBuffer frame = ByteBuffer.allocateDirect(WARM_UP_WIDTH * WARM_UP_HEIGHT);
+            detector.findFacesAndLandmarks(frame,
+                                           WARM_UP_WIDTH, WARM_UP_HEIGHT,
+                                           WARM_UP_WIDTH, 1,
+                                           0, false);
+
+            if (modelPath != null) {
+                detector.prepareFaceLandmarksDetector(modelPath);
+
+                // Every tree is walked once for a face.
+                final Rect face = new Rect(WARM_UP_WIDTH / 4, WARM_UP_HEIGHT / 4,
+                                           WARM_UP_WIDTH * 3 / 4, WARM_UP_HEIGHT * 3 / 4);
+                detector.findLandmarksFromFaces(frame,
+                                                WARM_UP_WIDTH, WARM_UP_HEIGHT,
+                                                WARM_UP_WIDTH, 1,
+                                                0, false,
+                                                Collections.singletonList(face));
+            }
+        } finally {
+            detector.close();
+        }
+
+        Log.d(TAG, "The detectors are warmed up (took " +
+                   (System.currentTimeMillis() - start) + " ms)");
+    }
+
+    private static void loadLibrary(String name) {
+        try {
+            System.loadLibrary(name);
+            Log.d("jni", "lib" + name + ".so is loaded");
+        } catch (UnsatisfiedLinkError error) {
+            throw new RuntimeException(
+                "\"" + name + "\" not found; check that the correct native " +
+                "libraries are present in the APK.");
+        }
+    }
+}
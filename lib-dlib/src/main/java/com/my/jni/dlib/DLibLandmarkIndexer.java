@@ -0,0 +1,345 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.RectF;
+import android.util.Log;
+
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibFace68;
+import com.my.jni.dlib.data.DLibFaceBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Find the faces of the photos through a {@link DLibLandmarkStore}, so a
+ * photo is detected once as long as it's not changed:
+ * <ul>
+ *     <li>A photo whose URI and modification time are in the store is taken
+ *     without being read.</li>
+ *     <li>A photo whose content is in the store, e.g. moved or touched, is
+ *     read and hashed but not detected.</li>
+ *     <li>The rest are decoded and detected in batches, see
+ *     {@link IDLibFaceDetector#findFacesAndLandmarks(List)}.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * DLibLandmarkIndexer indexer = new DLibLandmarkIndexer(detector, store);
+ *
+ * // In the background, e.g. when the gallery is changed.
+ * indexer.index(photos);
+ *
+ * // When a photo is opened.
+ * List&lt;DLibFace&gt; faces = indexer.findFacesAndLandmarks(photo);
+ * </pre>
+ * The calls are serialized; the detector should be ready.
+ */
+public class DLibLandmarkIndexer {
+
+    private static final String TAG = "DLibLandmarkIndexer";
+
+    // The photos are decoded down to about this size on the longer side; the
+    // landmarks are normalized, so they're in the same scale as the original.
+    private static final int DETECTION_SIZE = 1024;
+
+    private final IDLibFaceDetector mDetector;
+    private final DLibLandmarkStore mStore;
+    private int mBatchSize = 4;
+
+    private final DLibFaceBuffer mFaceBuffer = new DLibFaceBuffer();
+    private final float[] mBound = new float[4];
+
+    public DLibLandmarkIndexer(IDLibFaceDetector detector,
+                               DLibLandmarkStore store) {
+        mDetector = detector;
+        mStore = store;
+    }
+
+    /**
+     * Set the number of the photos decoded and detected at a time; it's 4 by
+     * default. A bigger batch keeps more threads busy but holds more decoded
+     * photos in memory.
+     */
+    public synchronized void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The batch size must be positive.");
+        }
+
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Find the faces of the photo in the store, or detect and store them if
+     * the photo is new or changed.
+     *
+     * @return A list of {@link DLibFace}, or null if the photo cannot be
+     * decoded.
+     */
+    public synchronized List<DLibFace> findFacesAndLandmarks(Photo photo) throws IOException {
+        final byte[] storedHash = mStore.findContentHash(photo.getUri(),
+                                                         photo.getModifiedTime());
+        if (storedHash != null && mStore.get(storedHash, mFaceBuffer)) {
+            return getFaces();
+        }
+
+        final Pending pending = read(photo);
+        if (pending == null) return getFaces();
+        if (pending.bitmap == null) return null;
+
+        detectAndStore(Collections.singletonList(pending));
+        mStore.get(pending.contentHash, mFaceBuffer);
+
+        return getFaces();
+    }
+
+    /**
+     * Detect and store the faces of the photos that are new or changed since
+     * they're stored.
+     *
+     * @return The number of the photos detected.
+     */
+    public synchronized int index(List<? extends Photo> photos) throws IOException {
+        final List<Pending> batch = new ArrayList<>(mBatchSize);
+        int detectedCount = 0;
+        try {
+            for (Photo photo : photos) {
+                if (mStore.findContentHash(photo.getUri(),
+                                           photo.getModifiedTime()) != null) continue;
+
+                final Pending pending = read(photo);
+                if (pending == null || pending.bitmap == null) continue;
+
+                batch.add(pending);
+                if (batch.size() >= mBatchSize) {
+                    detectedCount += detectAndStore(batch);
+                    batch.clear();
+                }
+            }
+            detectedCount += detectAndStore(batch);
+        } finally {
+            for (Pending pending : batch) {
+                pending.bitmap.recycle();
+            }
+            mStore.flush();
+        }
+
+        Log.d(TAG, String.format("%d of %d photos are detected",
+                                 detectedCount, photos.size()));
+        return detectedCount;
+    }
+
+    /**
+     * The photo of the file.
+     */
+    public static Photo fromFile(final File file) {
+        return new Photo() {
+            @Override
+            public String getUri() {
+                return file.toURI().toString();
+            }
+
+            @Override
+            public long getModifiedTime() {
+                return file.lastModified();
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    /**
+     * Read and hash the photo. The faces of the content already stored are
+     * stored again for the photo's URI and left in the face buffer.
+     *
+     * @return The photo to detect, whose bitmap is null if it cannot be
+     * decoded, or null if the content is stored.
+     */
+    private Pending read(Photo photo) throws IOException {
+        final byte[] content;
+        try (InputStream in = photo.open()) {
+            content = readFully(in);
+        }
+        final byte[] contentHash = DLibLandmarkStore.hash(content, 0, content.length);
+
+        if (mStore.get(contentHash, mFaceBuffer)) {
+            mStore.put(contentHash, photo.getUri(), photo.getModifiedTime(), mFaceBuffer);
+            return null;
+        }
+
+        // Decode the photo downsampled for the detection rather than at the
+        // full resolution, e.g. 48 MB for a 12 MP photo.
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(content, 0, content.length, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+        // The native detector takes the RGBA_8888 bitmaps only.
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(
+            content, 0, content.length, options);
+        if (bitmap == null) {
+            Log.w(TAG, "Cannot decode " + photo.getUri());
+        }
+
+        return new Pending(photo, contentHash, bitmap);
+    }
+
+    /**
+     * Detect the photos of the batch at once, store their faces and recycle
+     * the bitmaps.
+     *
+     * @return The number of the photos detected.
+     */
+    private int detectAndStore(List<Pending> batch) throws IOException {
+        if (batch.isEmpty()) return 0;
+
+        final List<Bitmap> bitmaps = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            bitmaps.add(pending.bitmap);
+        }
+
+        final List<List<DLibFace>> faces;
+        try {
+            faces = mDetector.findFacesAndLandmarks(bitmaps);
+        } finally {
+            for (Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+        }
+
+        for (int i = 0; i < batch.size(); ++i) {
+            final Pending pending = batch.get(i);
+            setFaces(faces.get(i));
+            mStore.put(pending.contentHash,
+                       pending.photo.getUri(),
+                       pending.photo.getModifiedTime(),
+                       mFaceBuffer);
+        }
+
+        return batch.size();
+    }
+
+    /**
+     * Write the faces to the face buffer.
+     */
+    private void setFaces(List<DLibFace> faces) {
+        final int landmarkCount = faces.isEmpty() ?
+            0 : faces.get(0).getLandmarks().size();
+
+        mFaceBuffer.ensureFaceCapacity(faces.size());
+        mFaceBuffer.setHeader(faces.size(), landmarkCount);
+        for (int i = 0; i < faces.size(); ++i) {
+            final DLibFace face = faces.get(i);
+            final RectF bound = face.getBound();
+            mBound[0] = bound.left;
+            mBound[1] = bound.top;
+            mBound[2] = bound.right;
+            mBound[3] = bound.bottom;
+
+            mFaceBuffer.setFace(i, mBound, face.getLandmarks().getPoints());
+        }
+    }
+
+    private List<DLibFace> getFaces() {
+        final List<DLibFace> faces = new ArrayList<>();
+        DLibFace68.getFaces(mFaceBuffer, faces);
+
+        return faces;
+    }
+
+    /**
+     * The power of two sample size decoding the photo down to no less than
+     * {@link #DETECTION_SIZE} on the longer side.
+     */
+    private static int getSampleSize(int width,
+                                     int height) {
+        final int size = Math.max(width, height);
+        int sampleSize = 1;
+        while (size / (sampleSize * 2) >= DETECTION_SIZE) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * A photo of the gallery, e.g. a file or a MediaStore item.
+     */
+    public interface Photo {
+
+        /**
+         * The URI identifying the photo.
+         */
+        String getUri();
+
+        /**
+         * The modification time of the photo at the URI; the photo is read
+         * again when it changes.
+         */
+        long getModifiedTime();
+
+        InputStream open() throws IOException;
+    }
+
+    private static final class Pending {
+
+        final Photo photo;
+        final byte[] contentHash;
+        final Bitmap bitmap;
+
+        Pending(Photo photo,
+                byte[] contentHash,
+                Bitmap bitmap) {
+            this.photo = photo;
+            this.contentHash = contentHash;
+            this.bitmap = bitmap;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import com.my.jni.dlib.data.DLibFaceBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of the detected faces of the photos, so a photo opened
+ * again takes its landmarks by a hash lookup instead of the detection. The
+ * faces are keyed by the SHA-1 of the photo content, see
+ * {@link #hash(InputStream)}, and optionally by the photo URI with its
+ * modification time, which is checked without reading the photo.
+ * <br/>
+ * The store is a memory-mapped append-only file and an in-memory index of the
+ * records built when it's opened. A record is never changed; the faces stored
+ * again for a key supersede the previous ones. Every record has a CRC, so a
+ * record torn by a crash is cut off when the store is opened. The layout is
+ * in the little-endian order:
+ * <pre>
+ * [int32 magic "DLMK"][int32 version]
+ * N x {
+ *     [int32 length][int32 crc of the payload]
+ *     payload {
+ *         [byte[20] content SHA-1][int64 modified time]
+ *         [int16 uri length][byte[] uri in UTF-8]
+ *         [int32 faceCount][int32 landmarkCount]
+ *         faceCount x {
+ *             [float32 left][float32 top][float32 right][float32 bottom]
+ *             [float32 x][float32 y] x landmarkCount
+ *         }
+ *     }
+ * }
+ * </pre>
+ * The coordinates are normalized as {@link DLibFaceBuffer}'s.
+ * <br/>
+ * Usage:
+ * <pre>
+ * DLibLandmarkStore store = new DLibLandmarkStore(new File(dir, "landmarks.db"));
+ *
+ * byte[] hash = store.findContentHash(uri, modifiedTime);
+ * if (hash == null || !store.get(hash, faceBuffer)) {
+ *     // Detect the faces into the face buffer, and then
+ *     store.put(DLibLandmarkStore.hash(in), uri, modifiedTime, faceBuffer);
+ * }
+ * </pre>
+ * It's not meant to be opened by more than one store at a time.
+ */
+public class DLibLandmarkStore implements Closeable {
+
+    private static final int MAGIC = 0x4B4D4C44; // "DLMK"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int HASH_BYTES = 20;
+    private static final int MAX_URI_BYTES = Short.MAX_VALUE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    // The mapping of the records; it's mapped again when a record beyond it
+    // is read.
+    private MappedByteBuffer mMapped;
+    private long mEnd;
+
+    // The offsets of the latest record of every key.
+    private final Map<ContentKey, Integer> mByContent = new HashMap<>();
+    private final Map<String, Integer> mBySource = new HashMap<>();
+
+    // The scratch of the faces copied to and from a face buffer.
+    private final float[] mBound = new float[4];
+    private final float[] mLandmarks = new float[2 * DLibFaceBuffer.MAX_LANDMARKS];
+
+    /**
+     * Open or create the store.
+     *
+     * @throws IOException Fired if the file cannot be opened or it's not a
+     * store.
+     */
+    public DLibLandmarkStore(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            if (mChannel.size() == 0) {
+                final ByteBuffer header = ByteBuffer
+                    .allocate(FILE_HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(header, 0);
+            }
+
+            mEnd = mChannel.size();
+            remap();
+            if (mEnd < FILE_HEADER_BYTES ||
+                mMapped.getInt(0) != MAGIC ||
+                mMapped.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a landmark store.");
+            }
+
+            loadIndex();
+        } catch (IOException error) {
+            mFile.close();
+            throw error;
+        }
+    }
+
+    /**
+     * The SHA-1 of the stream content, e.g. the encoded photo; the stream is
+     * read to the end but not closed.
+     */
+    public static byte[] hash(InputStream in) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] chunk = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            digest.update(chunk, 0, read);
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * The SHA-1 of the given bytes, e.g. the encoded photo.
+     */
+    public static byte[] hash(byte[] content,
+                              int offset,
+                              int length) {
+        final MessageDigest digest = newDigest();
+        digest.update(content, offset, length);
+
+        return digest.digest();
+    }
+
+    /**
+     * The number of the distinct photo contents in the store.
+     */
+    public synchronized int size() {
+        return mByContent.size();
+    }
+
+    /**
+     * Return true if the faces of the content are in the store.
+     */
+    public synchronized boolean contains(byte[] contentHash) {
+        return mByContent.containsKey(new ContentKey(contentHash));
+    }
+
+    /**
+     * The content hash of the photo at the URI, which is null if the photo
+     * isn't in the store or it's modified since it's stored.
+     */
+    public synchronized byte[] findContentHash(String uri,
+                                               long modifiedTime) throws IOException {
+        final Integer offset = mBySource.get(uri);
+        if (offset == null) return null;
+
+        ensureMapped();
+        final int payload = offset + RECORD_HEADER_BYTES;
+        if (mMapped.getLong(payload + HASH_BYTES) != modifiedTime) return null;
+
+        final byte[] contentHash = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; ++i) {
+            contentHash[i] = mMapped.get(payload + i);
+        }
+
+        return contentHash;
+    }
+
+    /**
+     * Copy the faces of the content to the given buffer, which is grown if
+     * it's too small.
+     *
+     * @return false if the content isn't in the store.
+     */
+    public synchronized boolean get(byte[] contentHash,
+                                    DLibFaceBuffer out) throws IOException {
+        final Integer offset = mByContent.get(new ContentKey(contentHash));
+        if (offset == null) return false;
+
+        ensureMapped();
+        int position = offset + RECORD_HEADER_BYTES + HASH_BYTES + 8;
+        position += 2 + (mMapped.getShort(position) & 0xFFFF);
+        final int faceCount = mMapped.getInt(position);
+        final int landmarkCount = mMapped.getInt(position + 4);
+        position += 8;
+
+        out.ensureFaceCapacity(faceCount);
+        out.setHeader(faceCount, landmarkCount);
+        for (int i = 0; i < faceCount; ++i) {
+            for (int j = 0; j < 4; ++j, position += 4) {
+                mBound[j] = mMapped.getFloat(position);
+            }
+            for (int j = 0; j < 2 * landmarkCount; ++j, position += 4) {
+                mLandmarks[j] = mMapped.getFloat(position);
+            }
+            out.setFace(i, mBound, mLandmarks);
+        }
+
+        return true;
+    }
+
+    /**
+     * Append the faces in the buffer, e.g. just detected, for the content and
+     * the optional photo URI.
+     *
+     * @param contentHash The content SHA-1, see {@link #hash(InputStream)}.
+     * @param uri The photo URI, nullable.
+     * @param modifiedTime The modification time of the photo at the URI.
+     * @param faces The faces of the photo.
+     */
+    public synchronized void put(byte[] contentHash,
+                                 String uri,
+                                 long modifiedTime,
+                                 DLibFaceBuffer faces) throws IOException {
+        if (contentHash == null || contentHash.length != HASH_BYTES) {
+            throw new IllegalArgumentException("The content hash must be a SHA-1.");
+        }
+        final byte[] uriBytes = uri != null ? uri.getBytes(UTF_8) : new byte[0];
+        if (uriBytes.length > MAX_URI_BYTES) {
+            throw new IllegalArgumentException("The URI is too long.");
+        }
+
+        final int faceCount = faces.getAvailableFaceCount();
+        final int landmarkCount = faces.getLandmarkCount();
+        final int payloadBytes = HASH_BYTES + 8 + 2 + uriBytes.length + 8 +
+                                 faceCount * (4 + 2 * landmarkCount) * 4;
+        final ByteBuffer record = ByteBuffer
+            .allocate(RECORD_HEADER_BYTES + payloadBytes)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        record.position(RECORD_HEADER_BYTES);
+        record.put(contentHash)
+              .putLong(modifiedTime)
+              .putShort((short) uriBytes.length)
+              .put(uriBytes)
+              .putInt(faceCount)
+              .putInt(landmarkCount);
+        for (int i = 0; i < faceCount; ++i) {
+            faces.getBound(i, mBound);
+            faces.getLandmarks(i, mLandmarks);
+            for (int j = 0; j < 4; ++j) {
+                record.putFloat(mBound[j]);
+            }
+            for (int j = 0; j < 2 * landmarkCount; ++j) {
+                record.putFloat(mLandmarks[j]);
+            }
+        }
+        record.putInt(0, payloadBytes);
+        record.putInt(4, checksum(record.array(), RECORD_HEADER_BYTES, payloadBytes));
+        record.rewind();
+
+        if (mEnd + record.limit() > Integer.MAX_VALUE) {
+            throw new IOException("The store is full.");
+        }
+        final int offset = (int) mEnd;
+        writeFully(record, mEnd);
+        mEnd += record.limit();
+
+        mByContent.put(new ContentKey(contentHash.clone()), offset);
+        if (uri != null) {
+            mBySource.put(uri, offset);
+        }
+    }
+
+    /**
+     * Write the appended records to the storage device.
+     */
+    public synchronized void flush() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mMapped = null;
+        mFile.close();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    /**
+     * Scan the records and index them; the file is truncated at the first
+     * record that is torn or corrupted, e.g. by a crash in the middle of an
+     * append, or whose counts don't match its length, e.g. written by a
+     * broken build, since {@link #get} trusts the counts of an indexed
+     * record.
+     */
+    private void loadIndex() throws IOException {
+        long offset = FILE_HEADER_BYTES;
+        byte[] scratch = new byte[0];
+        while (offset + RECORD_HEADER_BYTES <= mEnd) {
+            final int position = (int) offset;
+            final int length = mMapped.getInt(position);
+            final int crc = mMapped.getInt(position + 4);
+            final int minLength = HASH_BYTES + 8 + 2 + 8;
+            if (length < minLength ||
+                offset + RECORD_HEADER_BYTES + length > mEnd) break;
+
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            final ByteBuffer view = mMapped.duplicate();
+            view.position(position + RECORD_HEADER_BYTES);
+            view.get(scratch, 0, length);
+            if (checksum(scratch, 0, length) != crc) break;
+
+            final int uriLength = mMapped.getShort(position + RECORD_HEADER_BYTES +
+                                                   HASH_BYTES + 8) & 0xFFFF;
+            if (!isValidPayload(scratch, length, uriLength)) break;
+
+            mByContent.put(new ContentKey(Arrays.copyOfRange(scratch, 0, HASH_BYTES)),
+                           position);
+            if (uriLength > 0) {
+                mBySource.put(new String(scratch, HASH_BYTES + 8 + 2, uriLength, UTF_8),
+                              position);
+            }
+
+            offset += RECORD_HEADER_BYTES + length;
+        }
+
+        if (offset != mEnd) {
+            mChannel.truncate(offset);
+            mEnd = offset;
+            remap();
+        }
+    }
+
+    /**
+     * Whether the counts of the record payload match its length.
+     */
+    private static boolean isValidPayload(byte[] payload,
+                                          int length,
+                                          int uriLength) {
+        final int countsOffset = HASH_BYTES + 8 + 2 + uriLength;
+        if (countsOffset + 8 > length) return false;
+
+        final ByteBuffer counts = ByteBuffer
+            .wrap(payload, countsOffset, 8)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        final int faceCount = counts.getInt();
+        final int landmarkCount = counts.getInt();
+        if (faceCount < 0 ||
+            landmarkCount < 0 ||
+            landmarkCount > DLibFaceBuffer.MAX_LANDMARKS) return false;
+
+        return countsOffset + 8 + (long) faceCount * (4 + 2 * landmarkCount) * 4 == length;
+    }
+
+    private void writeFully(ByteBuffer buffer,
+                            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Map the file again if there are records appended beyond the mapping;
+     * the appends don't map the file, so the indexing of many photos doesn't
+     * map it for every photo.
+     */
+    private void ensureMapped() throws IOException {
+        if (mMapped.capacity() < mEnd) {
+            remap();
+        }
+    }
+
+    private void remap() throws IOException {
+        mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+        mMapped.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int checksum(byte[] bytes,
+                                int offset,
+                                int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+
+        return (int) crc.getValue();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException error) {
+            // Every Java platform has SHA-1.
+            throw new IllegalStateException(error);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * The content hash as the key of the index.
+     */
+    private static final class ContentKey {
+
+        final byte[] hash;
+        final int hashCode;
+
+        ContentKey(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ContentKey &&
+                   Arrays.equals(hash, ((ContentKey) other).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -22,59 +22,82 @@ package com.my.jni.dlib;
 
 import android.graphics.Bitmap;
 import android.graphics.Rect;
-import android.util.Log;
 
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.my.jni.dlib.data.DLibFace;
 import com.my.jni.dlib.data.DLibFace68;
-import com.my.jni.dlib.data.Messages;
+import com.my.jni.dlib.data.DLibFaceBuffer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The dlib HOG face detector and 68 landmarks shape predictor for Android,
+ * wrapping a {@link DLibLandmarks68Engine} to take the {@link Bitmap}, the
+ * {@link Rect} and the camera planes, and the models from
+ * {@link DLibModelRegistry}.
+ */
 public class DLibLandmarks68Detector implements IDLibFaceDetector {
 
+    /**
+     * The thread loading the models asynchronously.
+     */
+    private static final ExecutorService sModelLoader =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "dlib-model-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
     private boolean mIsEnabled = true;
 
+    // The platform-neutral detector sharing its native peer with the Bitmap
+    // methods.
+    private final DLibLandmarks68Engine mEngine;
+    private boolean mIsClosed = false;
+
+    // The face landmarks model taken from the registry.
+    private DLibModelRegistry.Lease mShapeModelLease;
+
+    // The buffers shared with the native detector.
+    private final DLibFaceBuffer mFaceBuffer = new DLibFaceBuffer();
+    private int[] mFaceBounds = new int[0];
+    // The number of faces of every photo of a batch.
+    private int[] mBatchFaceCounts = new int[0];
+
+    private DLibFaceDetectorConfig mFaceDetectorConfig = DLibFaceDetectorConfig.DEFAULT;
+
+    // The landmarks propagation by the optical flow.
+    private boolean mIsLandmarkFlowEnabled = false;
+    private float mMaxFlowError = 10f;
+    private int mMaxFlowFrames = 5;
+
+    /**
+     * Create a detector; the native libraries are loaded on the calling thread
+     * unless they are loaded, see {@link DLibInitializer}.
+     */
     public DLibLandmarks68Detector() {
-        // TODO: Load library in worker thread?
-        try {
-            System.loadLibrary("c++_shared");
-            Log.d("jni", "libc++_shared.so is loaded");
-        } catch (UnsatisfiedLinkError error) {
-            throw new RuntimeException(
-                "\"c++_shared\" not found; check that the correct native " +
-                "libraries are present in the APK.");
-        }
+        mEngine = new DLibLandmarks68Engine();
+    }
 
-        // TODO: Load library in worker thread?
-        try {
-            System.loadLibrary("protobuf-lite-3.2.0");
-            Log.d("jni", "libprotobuf-lite-3.2.0.so is loaded");
-        } catch (UnsatisfiedLinkError error) {
-            throw new RuntimeException(
-                "\"protobuf-lite-3.2.0\" not found; check that the correct " +
-                "native libraries are present in the APK.");
-        }
+    @Override
+    public synchronized void close() {
+        if (mIsClosed) return;
 
-        // TODO: Load library in worker thread?
-        try {
-            System.loadLibrary("dlib");
-            Log.d("jni", "libdlib.so is loaded");
-        } catch (UnsatisfiedLinkError error) {
-            throw new RuntimeException(
-                "\"dlib\" not found; check that the correct native libraries " +
-                "are present in the APK.");
-        }
+        mEngine.close();
+        mIsClosed = true;
 
-        // TODO: Load library in worker thread?
-        try {
-            System.loadLibrary("dlib_jni");
-            Log.d("jni", "libdlib_jni.so is loaded");
-        } catch (UnsatisfiedLinkError error) {
-            throw new RuntimeException(
-                "\"dlib_jni\" not found; check that the correct native " +
-                "libraries are present in the APK.");
+        if (mShapeModelLease != null) {
+            DLibModelRegistry.getInstance().release(mShapeModelLease);
+            mShapeModelLease = null;
         }
     }
 
@@ -89,146 +112,427 @@ public class DLibLandmarks68Detector implements IDLibFaceDetector {
     }
 
     @Override
-    public native boolean isFaceDetectorReady();
+    public synchronized boolean isFaceDetectorReady() {
+        return mEngine.isFaceDetectorReady();
+    }
 
     @Override
-    public native boolean isFaceLandmarksDetectorReady();
+    public synchronized boolean isFaceLandmarksDetectorReady() {
+        return mEngine.isFaceLandmarksDetectorReady();
+    }
 
     @Override
-    public native void prepareFaceDetector();
+    public synchronized void prepareFaceDetector() {
+        mEngine.prepareFaceDetector();
+    }
 
     @Override
-    public native void prepareFaceLandmarksDetector(String path);
+    public synchronized void prepareFaceDetector(DLibFaceDetectorConfig config) {
+        prepareFaceDetector();
+        setFaceDetectorConfig(config);
+    }
 
     @Override
-    public List<DLibFace> findFaces(Bitmap bitmap)
-        throws InvalidProtocolBufferException {
+    public synchronized void setFaceDetectorConfig(DLibFaceDetectorConfig config) {
+        mEngine.setFaceDetectorConfig(config);
+        mFaceDetectorConfig = config;
+    }
 
-        // Call detector JNI.
-        final byte[] rawData = detectFaces(bitmap);
-        final Messages.FaceList rawFaces = Messages.FaceList.parseFrom(rawData);
+    @Override
+    public synchronized DLibFaceDetectorConfig getFaceDetectorConfig() {
+        return mFaceDetectorConfig;
+    }
 
-        // Convert raw data to my data structure.
-        final List<DLibFace> faces = new ArrayList<>();
-        for (int i = 0; i < rawFaces.getFacesCount(); ++i) {
-            final Messages.Face rawFace = rawFaces.getFaces(i);
-            final DLibFace face  = new DLibFace68(rawFace);
+    @Override
+    public void prepareFaceLandmarksDetector(String path) {
+        prepareFaceLandmarksDetector(path, null);
+    }
+
+    @Override
+    public Future<Void> prepareFaceLandmarksDetectorAsync(final String path,
+                                                          final OnModelProgressListener listener) {
+        return sModelLoader.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                prepareFaceLandmarksDetector(path, listener);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void setParallelism(int parallelism) {
+        mEngine.setParallelism(parallelism);
+    }
 
-            faces.add(face);
+    @Override
+    public synchronized void setParallelFaceDetectionEnabled(boolean enabled) {
+        mEngine.setParallelFaceDetectionEnabled(enabled);
+    }
+
+    @Override
+    public synchronized List<DLibFace> findFaces(Bitmap bitmap) {
+        // Call detector JNI; write the faces again to a bigger buffer if
+        // there are more faces than what the buffer could hold.
+        final int count = detectFaces(getNativeHandle(), bitmap, mFaceBuffer.getBuffer());
+        if (mFaceBuffer.ensureFaceCapacity(count)) {
+            mEngine.writeFaces(false, mFaceBuffer);
         }
 
-        return faces;
+        return getFaces();
     }
 
     @Override
-    public List<DLibFace.Landmark> findLandmarksFromFace(Bitmap bitmap,
-                                                         Rect bound)
-        throws InvalidProtocolBufferException {
+    public synchronized List<DLibFace.Landmark> findLandmarksFromFace(Bitmap bitmap,
+                                                                      Rect bound) {
         // Call detector JNI.
-        final byte[] rawData = detectLandmarksFromFace(
-            bitmap, bound.left, bound.top, bound.right, bound.bottom);
-        final Messages.LandmarkList rawLandmarks = Messages.LandmarkList.parseFrom(rawData);
-        Log.d("xyz", "Detect " + rawLandmarks.getLandmarksCount() +
-                     " landmarks in the face");
-
-        // Convert raw data to my data structure.
-        final List<DLibFace.Landmark> landmarks = new ArrayList<>();
-        for (int i = 0; i < rawLandmarks.getLandmarksCount(); ++i) {
-            final Messages.Landmark rawLandmark = rawLandmarks.getLandmarks(i);
-            final DLibFace.Landmark landmark  = new DLibFace.Landmark(rawLandmark);
-
-            landmarks.add(landmark);
-        }
+        detectLandmarksFromFace(getNativeHandle(),
+                                bitmap,
+                                bound.left, bound.top, bound.right, bound.bottom,
+                                mFaceBuffer.getBuffer());
 
-        return landmarks;
+        return DLibFace68.getFace(mFaceBuffer, 0).getAllLandmarks();
     }
 
     @Override
-    public List<DLibFace> findLandmarksFromFaces(Bitmap bitmap,
-                                                 List<Rect> faceBounds)
-        throws InvalidProtocolBufferException {
+    public synchronized List<DLibFace> findLandmarksFromFaces(Bitmap bitmap,
+                                                              List<Rect> faceBounds) {
+        final int count = flattenFaceBounds(faceBounds);
+
+        // Detect landmarks.
+        mFaceBuffer.ensureFaceCapacity(count);
+        detectLandmarksFromFaces(getNativeHandle(),
+                                 bitmap, mFaceBounds, count,
+                                 mFaceBuffer.getBuffer());
+
+        return getFaces();
+    }
 
-        // Convert face bounds to protobuf message.
-        final List<Messages.RectF> msgBounds = new ArrayList<>();
-        for (Rect bound : faceBounds) {
-            msgBounds.add(Messages.RectF
-                              .newBuilder()
-                              .setLeft(bound.left)
-                              .setTop(bound.top)
-                              .setRight(bound.right)
-                              .setBottom(bound.bottom)
-                              .build());
+    @Override
+    public synchronized List<DLibFace> findFacesAndLandmarks(Bitmap bitmap) {
+        // Do the face landmarks detection; write the faces again to a bigger
+        // buffer if there are more faces than what the buffer could hold.
+        final int count = detectFacesAndLandmarks(getNativeHandle(), bitmap, mFaceBuffer.getBuffer());
+        if (mFaceBuffer.ensureFaceCapacity(count)) {
+            mEngine.writeFaces(true, mFaceBuffer);
         }
 
-        // Detect landmarks.
-        final byte[] rawData = detectLandmarksFromFaces(
-            bitmap,
-            Messages.RectFList
-                .newBuilder()
-                .addAllRects(msgBounds)
-                .build()
-                .toByteArray());
-
-        // Convert the returned message to our structure.
-        final Messages.FaceList msgFaces = Messages.FaceList.parseFrom(rawData);
-        final List<DLibFace> faces = new ArrayList<>();
-        for (int i = 0; i < msgFaces.getFacesCount(); ++i) {
-            faces.add(new DLibFace68(msgFaces.getFaces(i)));
+        return getFaces();
+    }
+
+    @Override
+    public synchronized List<List<DLibFace>> findFacesAndLandmarks(List<Bitmap> bitmaps) {
+        final Bitmap[] array = bitmaps.toArray(new Bitmap[bitmaps.size()]);
+        ensureBatchCapacity(array.length);
+
+        // Detect all the photos at once; the faces are kept natively, so they
+        // are written again without the detection if the buffer is too small.
+        final int count = detectFacesAndLandmarksInBitmaps(
+            getNativeHandle(), array, mBatchFaceCounts, mFaceBuffer.getBuffer());
+        if (mFaceBuffer.ensureFaceCapacity(count)) {
+            writeBatchFaces(getNativeHandle(), mBatchFaceCounts, mFaceBuffer.getBuffer());
         }
 
-        return faces;
+        return getBatchFaces(array.length);
     }
 
     @Override
-    public List<DLibFace> findFacesAndLandmarks(Bitmap bitmap)
-        throws InvalidProtocolBufferException {
-        // Do the face landmarks detection.
-        final byte[] rawData = detectFacesAndLandmarks(bitmap);
-        final Messages.FaceList rawFaces = Messages.FaceList.parseFrom(rawData);
+    public synchronized List<List<DLibFace>> findLandmarksFromFaces(List<Bitmap> bitmaps,
+                                                                    List<List<Rect>> faceBounds) {
+        if (bitmaps.size() != faceBounds.size()) {
+            throw new IllegalArgumentException(
+                "There are " + bitmaps.size() + " bitmaps but the face bounds of " +
+                faceBounds.size() + ".");
+        }
 
-        // Convert raw data to my data structure.
-        final List<DLibFace> faces = new ArrayList<>();
-        for (int i = 0; i < rawFaces.getFacesCount(); ++i) {
-            final Messages.Face rawFace = rawFaces.getFaces(i);
-            final DLibFace face = new DLibFace68(rawFace);
+        final Bitmap[] array = bitmaps.toArray(new Bitmap[bitmaps.size()]);
+        ensureBatchCapacity(array.length);
 
-            faces.add(face);
+        // Flatten the face bounds of all the photos.
+        int count = 0;
+        for (int i = 0; i < faceBounds.size(); ++i) {
+            mBatchFaceCounts[i] = faceBounds.get(i).size();
+            count += mBatchFaceCounts[i];
+        }
+        if (mFaceBounds.length < 4 * count) {
+            mFaceBounds = new int[4 * count];
+        }
+        int offset = 0;
+        for (List<Rect> bounds : faceBounds) {
+            for (Rect bound : bounds) {
+                mFaceBounds[offset++] = bound.left;
+                mFaceBounds[offset++] = bound.top;
+                mFaceBounds[offset++] = bound.right;
+                mFaceBounds[offset++] = bound.bottom;
+            }
         }
 
-        return faces;
+        mFaceBuffer.ensureFaceCapacity(count);
+        detectLandmarksFromFacesInBitmaps(getNativeHandle(),
+                                          array, mFaceBounds, mBatchFaceCounts,
+                                          mFaceBuffer.getBuffer());
+
+        return getBatchFaces(array.length);
+    }
+
+    @Override
+    public synchronized List<DLibFace> findLandmarksFromFaces(ByteBuffer luminance,
+                                                              int width,
+                                                              int height,
+                                                              int rowStride,
+                                                              int pixelStride,
+                                                              int rotation,
+                                                              boolean mirrored,
+                                                              List<Rect> faceBounds) {
+        final int count = flattenFaceBounds(faceBounds);
+
+        mEngine.findLandmarksFromFaces(
+            toLuminanceImage(luminance, width, height, rowStride, pixelStride,
+                             rotation, mirrored),
+            mFaceBounds, count,
+            mFaceBuffer);
+
+        return getFaces();
+    }
+
+    @Override
+    public synchronized List<DLibFace> findFacesAndLandmarks(ByteBuffer luminance,
+                                                             int width,
+                                                             int height,
+                                                             int rowStride,
+                                                             int pixelStride,
+                                                             int rotation,
+                                                             boolean mirrored) {
+        mEngine.findFacesAndLandmarks(
+            toLuminanceImage(luminance, width, height, rowStride, pixelStride,
+                             rotation, mirrored),
+            mFaceBuffer);
+
+        return getFaces();
+    }
+
+    @Override
+    public synchronized List<DLibFace> findFacesAndLandmarksInRegions(Bitmap bitmap,
+                                                                      List<Rect> regions) {
+        final int count = flattenFaceBounds(regions);
+
+        // There is at most one face in every region.
+        mFaceBuffer.ensureFaceCapacity(count);
+        detectFacesAndLandmarksInRegions(getNativeHandle(),
+                                         bitmap, mFaceBounds, count,
+                                         mFaceBuffer.getBuffer());
+
+        return getFaces();
+    }
+
+    @Override
+    public synchronized List<DLibFace> findFacesAndLandmarksInRegions(ByteBuffer luminance,
+                                                                      int width,
+                                                                      int height,
+                                                                      int rowStride,
+                                                                      int pixelStride,
+                                                                      int rotation,
+                                                                      boolean mirrored,
+                                                                      List<Rect> regions) {
+        final int count = flattenFaceBounds(regions);
+
+        mEngine.findFacesAndLandmarksInRegions(
+            toLuminanceImage(luminance, width, height, rowStride, pixelStride,
+                             rotation, mirrored),
+            mFaceBounds, count,
+            mFaceBuffer);
+
+        return getFaces();
+    }
+
+    @Override
+    public synchronized void setLandmarkFlowEnabled(boolean enabled) {
+        mEngine.setLandmarkFlow(enabled, mMaxFlowError, mMaxFlowFrames);
+        mIsLandmarkFlowEnabled = enabled;
+    }
+
+    @Override
+    public synchronized void setLandmarkFlowLimits(float maxError,
+                                                   int maxFrames) {
+        mEngine.setLandmarkFlow(mIsLandmarkFlowEnabled, maxError, maxFrames);
+        mMaxFlowError = maxError;
+        mMaxFlowFrames = maxFrames;
+    }
+
+    @Override
+    public synchronized List<DLibFace> findLandmarksByFlow(ByteBuffer luminance,
+                                                           int width,
+                                                           int height,
+                                                           int rowStride,
+                                                           int pixelStride,
+                                                           int rotation,
+                                                           boolean mirrored) {
+        mEngine.findLandmarksByFlow(
+            toLuminanceImage(luminance, width, height, rowStride, pixelStride,
+                             rotation, mirrored),
+            mFaceBuffer);
+
+        return getFaces();
     }
 
     ///////////////////////////////////////////////////////////////////////////
     // Protected / Private Methods ////////////////////////////////////////////
 
+    /**
+     * Flatten the face bounds to [left, top, right, bottom] x N.
+     *
+     * @return The number of faces, N.
+     */
+    private int flattenFaceBounds(List<Rect> faceBounds) {
+        mFaceBounds = flattenFaceBounds(faceBounds, mFaceBounds);
+
+        return faceBounds.size();
+    }
+
+    /**
+     * Flatten the face bounds to [left, top, right, bottom] x N into the given
+     * array, which is reallocated only if it's too small.
+     *
+     * @return The given array or the reallocated one.
+     */
+    static int[] flattenFaceBounds(List<Rect> faceBounds,
+                                   int[] out) {
+        final int count = faceBounds.size();
+        if (out.length < 4 * count) {
+            out = new int[4 * count];
+        }
+        for (int i = 0; i < count; ++i) {
+            final Rect bound = faceBounds.get(i);
+            out[4 * i] = bound.left;
+            out[4 * i + 1] = bound.top;
+            out[4 * i + 2] = bound.right;
+            out[4 * i + 3] = bound.bottom;
+        }
+
+        return out;
+    }
+
+    /**
+     * Convert the faces in the buffer to our structure.
+     */
+    private List<DLibFace> getFaces() {
+        final List<DLibFace> faces = new ArrayList<>();
+        DLibFace68.getFaces(mFaceBuffer, faces);
+
+        return faces;
+    }
+
+    private void ensureBatchCapacity(int bitmapCount) {
+        if (mBatchFaceCounts.length < bitmapCount) {
+            mBatchFaceCounts = new int[bitmapCount];
+        }
+    }
+
+    /**
+     * Split the faces in the buffer by the photos of the batch.
+     */
+    private List<List<DLibFace>> getBatchFaces(int bitmapCount) {
+        final List<List<DLibFace>> batch = new ArrayList<>(bitmapCount);
+        int index = 0;
+        for (int i = 0; i < bitmapCount; ++i) {
+            final List<DLibFace> faces = new ArrayList<>(mBatchFaceCounts[i]);
+            for (int j = 0; j < mBatchFaceCounts[i]; ++j) {
+                faces.add(DLibFace68.getFace(mFaceBuffer, index++));
+            }
+            batch.add(faces);
+        }
+
+        return batch;
+    }
+
+    private static DLibImage toLuminanceImage(ByteBuffer luminance,
+                                              int width,
+                                              int height,
+                                              int rowStride,
+                                              int pixelStride,
+                                              int rotation,
+                                              boolean mirrored) {
+        return new DLibImage(luminance, width, height, rowStride, pixelStride,
+                             DLibImage.FORMAT_GRAY_8, rotation, mirrored);
+    }
+
+    /**
+     * Take the model from the registry without holding the detector, so the
+     * other calls aren't blocked by the loading, and then attach it to the
+     * detector.
+     */
+    private void prepareFaceLandmarksDetector(String path,
+                                              OnModelProgressListener listener) {
+        final DLibModelRegistry registry = DLibModelRegistry.getInstance();
+        final DLibModelRegistry.Lease lease = registry.acquire(path, listener);
+        final DLibModelRegistry.Lease previous;
+        try {
+            synchronized (this) {
+                mEngine.setShapePredictor(lease.model);
+                previous = mShapeModelLease;
+                mShapeModelLease = lease;
+            }
+        } catch (RuntimeException error) {
+            registry.release(lease);
+            throw error;
+        }
+
+        if (previous != null) {
+            registry.release(previous);
+        }
+    }
+
+    private long getNativeHandle() {
+        if (mIsClosed) {
+            throw new IllegalStateException("The detector is closed.");
+        }
+
+        return mEngine.getNativeHandle();
+    }
+
     /**
      * Detect all the faces from the given photo.
      *
+     * @param handle The native scratch area of the engine.
      * @param bitmap The photo.
-     * @return The byte array of serialized {@link List< DLibFace >}.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the detected faces.
      */
-    private native byte[] detectFaces(Bitmap bitmap);
+    private native int detectFaces(long handle,
+                                   Bitmap bitmap,
+                                   ByteBuffer out);
 
     /**
      * Detect landmarks for one face.
      *
+     * @param handle The native scratch area of the engine.
      * @param bitmap The small bitmap right covering a face.
-     * @return The byte array of serialized {@link DLibFace}.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the faces, which is always 1.
      */
-    private native byte[] detectLandmarksFromFace(Bitmap bitmap,
-                                                  long left,
-                                                  long top,
-                                                  long right,
-                                                  long bottom);
+    private native int detectLandmarksFromFace(long handle,
+                                               Bitmap bitmap,
+                                               long left,
+                                               long top,
+                                               long right,
+                                               long bottom,
+                                               ByteBuffer out);
 
     /**
      * Detect landmarks for the given faces.
      *
-     * @param bitmap The small bitmap right covering a face.
-     * @return The byte array of serialized {@link DLibFace}.
+     * @param handle The native scratch area of the engine.
+     * @param bitmap The photo.
+     * @param faceBounds The face bounds, [left, top, right, bottom] x N.
+     * @param faceCount The number of faces, N.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the faces.
      */
-    private native byte[] detectLandmarksFromFaces(Bitmap bitmap,
-                                                   byte[] faceBounds);
+    private native int detectLandmarksFromFaces(long handle,
+                                                Bitmap bitmap,
+                                                int[] faceBounds,
+                                                int faceCount,
+                                                ByteBuffer out);
 
     /**
      * Find the faces and landmarks from the given Bitmap.
@@ -236,8 +540,70 @@ public class DLibLandmarks68Detector implements IDLibFaceDetector {
      * Before calling this method, make sure the face and landmarks detectors
      * are both initialized. Otherwise a {@link RuntimeException} would be fired.
      *
+     * @param handle The native scratch area of the engine.
      * @param bitmap The bitmap.
-     * @return The byte array of serialized {@link List< DLibFace >}.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the detected faces.
+     */
+    private native int detectFacesAndLandmarks(long handle,
+                                               Bitmap bitmap,
+                                               ByteBuffer out);
+
+    /**
+     * Find at most one face in every region and the landmarks of the found
+     * faces from the given photo.
+     *
+     * @param handle The native scratch area of the engine.
+     * @param regions The regions, [left, top, right, bottom] x N.
+     * @param regionCount The number of regions, N.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the found faces.
+     */
+    private native int detectFacesAndLandmarksInRegions(long handle,
+                                                        Bitmap bitmap,
+                                                        int[] regions,
+                                                        int regionCount,
+                                                        ByteBuffer out);
+
+    /**
+     * Find the faces and landmarks of every given photo on the native
+     * workers; the faces of the photos are written one photo after another.
+     *
+     * @param handle The native scratch area of the engine.
+     * @param bitmaps The RGBA_8888 photos.
+     * @param outFaceCounts The number of the faces of every photo.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the detected faces of all the photos.
+     */
+    private native int detectFacesAndLandmarksInBitmaps(long handle,
+                                                        Bitmap[] bitmaps,
+                                                        int[] outFaceCounts,
+                                                        ByteBuffer out);
+
+    /**
+     * Detect landmarks for the given faces of every given photo on the native
+     * workers.
+     *
+     * @param handle The native scratch area of the engine.
+     * @param bitmaps The RGBA_8888 photos.
+     * @param faceBounds The face bounds of all the photos, [left, top, right,
+     *                   bottom] x N.
+     * @param faceCounts The number of the faces of every photo.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the faces of all the photos, N.
+     */
+    private native int detectLandmarksFromFacesInBitmaps(long handle,
+                                                         Bitmap[] bitmaps,
+                                                         int[] faceBounds,
+                                                         int[] faceCounts,
+                                                         ByteBuffer out);
+
+    /**
+     * Write the faces of the last batch again, e.g. to a bigger buffer.
+     *
+     * @return The number of the faces of all the photos.
      */
-    private native byte[] detectFacesAndLandmarks(Bitmap bitmap);
+    private native int writeBatchFaces(long handle,
+                                       int[] outFaceCounts,
+                                       ByteBuffer out);
 }
@@ -0,0 +1,611 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import com.my.jni.dlib.data.DLibFaceBuffer;
+import com.my.jni.dlib.data.DLibRect;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The platform-neutral core of the dlib HOG face detector and 68 landmarks
+ * shape predictor, e.g. for the bulk photo processing on a Linux server. The
+ * pixels come in {@link DLibImage} and the faces go out in
+ * {@link DLibFaceBuffer}, so it doesn't depend on any platform type;
+ * {@link DLibLandmarks68Detector} is the Android adapter on top of it.
+ * <br/>
+ * Every engine owns a native peer holding its mutable state, which is released
+ * by {@link #close()}; the read-only models are shared by reference counting.
+ * So the engines run concurrently on different threads, while the calls to
+ * one engine are serialized.
+ * <br/>
+ * Usage:
+ * <pre>
+ * final DLibLandmarks68Engine engine = new DLibLandmarks68Engine();
+ * engine.prepareFaceDetector();
+ * engine.prepareFaceLandmarksDetector(modelPath, null);
+ *
+ * final DLibFaceBuffer faces = new DLibFaceBuffer();
+ * final int count = engine.findFacesAndLandmarks(image, faces);
+ * </pre>
+ */
+public class DLibLandmarks68Engine {
+
+    // The native scratch area living across the detection calls.
+    private long mNativeHandle;
+
+    // The flattened face bounds or regions.
+    private int[] mFaceBounds = new int[0];
+
+    /**
+     * Create an engine; the native libraries are loaded on the calling thread
+     * unless they are loaded, see {@link DLibInitializer}.
+     */
+    public DLibLandmarks68Engine() {
+        DLibInitializer.loadLibraries();
+
+        mNativeHandle = nativeCreate();
+    }
+
+    /**
+     * Release the native resources. The engine is no longer usable after it's
+     * closed.
+     */
+    public synchronized void close() {
+        if (mNativeHandle == 0) return;
+
+        nativeDestroy(mNativeHandle);
+        mNativeHandle = 0;
+    }
+
+    public synchronized boolean isFaceDetectorReady() {
+        return nativeIsFaceDetectorReady(getNativeHandle());
+    }
+
+    public synchronized boolean isFaceLandmarksDetectorReady() {
+        return nativeIsFaceLandmarksDetectorReady(getNativeHandle());
+    }
+
+    /**
+     * Prepare (deserialize the graph) the face detector.
+     */
+    public synchronized void prepareFaceDetector() {
+        nativePrepareFaceDetector(getNativeHandle());
+    }
+
+    /**
+     * Set the configuration of the face detection; it takes effect from the
+     * next detection.
+     */
+    public synchronized void setFaceDetectorConfig(DLibFaceDetectorConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("The config must not be null.");
+        }
+
+        nativeSetFaceDetectorConfig(getNativeHandle(),
+                                    config.getDownscale(),
+                                    config.getMinFaceSize(),
+                                    config.getMaxFaceSize(),
+                                    config.getUpsample());
+    }
+
+    /**
+     * Prepare the face landmarks detector. The model is deserialized once and
+     * shared by all the engines preparing the same file, as long as any of
+     * them uses it. The loading doesn't hold the engine.
+     *
+     * @param path The model file, either a dlib model (serialized graph) or a
+     *             compact model converted by the convert-shape-predictor tool.
+     * @param listener The listener of the loading progress, nullable.
+     */
+    public void prepareFaceLandmarksDetector(String path,
+                                             OnModelProgressListener listener) {
+        final long model = nativeLoadShapePredictor(path, listener);
+        try {
+            setShapePredictor(model);
+        } finally {
+            // The native peer holds its own reference to the model.
+            nativeReleaseShapePredictor(model);
+        }
+    }
+
+    /**
+     * Set the number of threads detecting the faces and predicting the
+     * landmarks of the detected faces, including the calling thread. The
+     * results are in the same order regardless of the parallelism.
+     *
+     * @param parallelism The number of threads, or 0 for the number of cores,
+     *                    which is the default.
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException(
+                "The parallelism must not be negative.");
+        }
+
+        nativeSetParallelism(getNativeHandle(), parallelism);
+    }
+
+    /**
+     * Enable or disable running the HOG face detection on multiple threads;
+     * it's enabled by default. The detected faces are the same either way.
+     */
+    public synchronized void setParallelFaceDetectionEnabled(boolean enabled) {
+        nativeSetParallelFaceDetectionEnabled(getNativeHandle(), enabled);
+    }
+
+    /**
+     * Set the landmarks propagation by the optical flow, see
+     * {@link #findLandmarksByFlow(DLibImage, DLibFaceBuffer)}; it's disabled
+     * by default.
+     *
+     * @param maxError The shape predictor runs again for a face if the mean
+     *                 flow error of its landmarks, in the intensity levels,
+     *                 exceeds it.
+     * @param maxFrames The shape predictor runs again for a face if its
+     *                  landmarks were propagated for the frames.
+     */
+    public synchronized void setLandmarkFlow(boolean enabled,
+                                             float maxError,
+                                             int maxFrames) {
+        if (maxError < 0f || maxFrames < 0) {
+            throw new IllegalArgumentException(
+                "The limits must not be negative.");
+        }
+
+        nativeSetLandmarkFlow(getNativeHandle(), enabled, maxError, maxFrames);
+    }
+
+    /**
+     * Detect the face bounds; the faces in the buffer have no landmark.
+     *
+     * @param image The image.
+     * @param out The buffer of the faces, which grows if there are more faces
+     *            than it could hold.
+     * @return The number of the detected faces.
+     */
+    public synchronized int findFaces(DLibImage image,
+                                      DLibFaceBuffer out) {
+        // Write the faces again to a bigger buffer if there are more faces
+        // than what the buffer could hold; they're kept natively.
+        final int count = detectFacesInImage(image, out);
+        if (out.ensureFaceCapacity(count)) {
+            writeFaces(false, out);
+        }
+
+        return count;
+    }
+
+    /**
+     * Detect the face landmarks in the given face bounds.
+     *
+     * @param image The image.
+     * @param faceBounds The face bounds in the upright coordinate.
+     * @param out The buffer of the faces, which grows if it's too small.
+     * @return The number of the faces.
+     */
+    public synchronized int findLandmarksFromFaces(DLibImage image,
+                                                   List<DLibRect> faceBounds,
+                                                   DLibFaceBuffer out) {
+        final int count = flattenRects(faceBounds);
+
+        return findLandmarksFromFaces(image, mFaceBounds, count, out);
+    }
+
+    /**
+     * Detect face bounds and then detect the face landmarks for every face.
+     *
+     * @param image The image.
+     * @param out The buffer of the faces, which grows if there are more faces
+     *            than it could hold.
+     * @return The number of the detected faces.
+     */
+    public synchronized int findFacesAndLandmarks(DLibImage image,
+                                                  DLibFaceBuffer out) {
+        // Write the faces again to a bigger buffer if there are more faces
+        // than what the buffer could hold; they're kept natively.
+        final int count = detectFacesAndLandmarksInImage(image, out);
+        if (out.ensureFaceCapacity(count)) {
+            writeFaces(true, out);
+        }
+
+        return count;
+    }
+
+    /**
+     * Detect at most one face in every given region, e.g. the expanded bounds
+     * of the faces in the previous frame, and then detect the face landmarks
+     * for every found face. Only the regions are scanned so it's much cheaper
+     * than {@link #findFacesAndLandmarks(DLibImage, DLibFaceBuffer)}.
+     *
+     * @param image The image.
+     * @param regions The regions to search in the upright coordinate.
+     * @param out The buffer of the faces, which grows if it's too small.
+     * @return The number of the found faces, at most one for every region.
+     */
+    public synchronized int findFacesAndLandmarksInRegions(DLibImage image,
+                                                           List<DLibRect> regions,
+                                                           DLibFaceBuffer out) {
+        final int count = flattenRects(regions);
+
+        return findFacesAndLandmarksInRegions(image, mFaceBounds, count, out);
+    }
+
+    /**
+     * Carry the faces of the previous luminance image to the given one by the
+     * sparse pyramidal Lucas-Kanade optical flow instead of running the face
+     * detector, see {@link #setLandmarkFlow(boolean, float, int)}. The image
+     * must be {@link DLibImage#FORMAT_GRAY_8}.
+     *
+     * @param image The luminance image.
+     * @param out The buffer holding the faces of the previous image.
+     * @return The number of the propagated faces, 0 if there is no previous
+     * image of the same dimension.
+     */
+    public synchronized int findLandmarksByFlow(DLibImage image,
+                                                DLibFaceBuffer out) {
+        // The faces are at most the faces of the previous image, which the
+        // buffer already holds.
+        return detectLandmarksByFlowInImage(
+            getNativeHandle(),
+            image.getDirectBuffer(), image.getArray(),
+            image.getWidth(), image.getHeight(),
+            image.getRowStride(), image.getPixelStride(),
+            image.getFormat(), image.getRotation(), image.isMirrored(),
+            out.getBuffer());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    /**
+     * Attach the model loaded by
+     * {@link #nativeLoadShapePredictor(String, OnModelProgressListener)},
+     * e.g. the model kept warm by {@link DLibModelRegistry}.
+     */
+    synchronized void setShapePredictor(long model) {
+        nativeSetShapePredictor(getNativeHandle(), model);
+    }
+
+    /**
+     * @param faceBounds The face bounds, [left, top, right, bottom] x N.
+     * @param faceCount The number of faces, N.
+     */
+    synchronized int findLandmarksFromFaces(DLibImage image,
+                                            int[] faceBounds,
+                                            int faceCount,
+                                            DLibFaceBuffer out) {
+        out.ensureFaceCapacity(faceCount);
+
+        return detectLandmarksFromFacesInImage(
+            getNativeHandle(),
+            image.getDirectBuffer(), image.getArray(),
+            image.getWidth(), image.getHeight(),
+            image.getRowStride(), image.getPixelStride(),
+            image.getFormat(), image.getRotation(), image.isMirrored(),
+            faceBounds, faceCount,
+            out.getBuffer());
+    }
+
+    /**
+     * @param regions The regions, [left, top, right, bottom] x N.
+     * @param regionCount The number of regions, N.
+     */
+    synchronized int findFacesAndLandmarksInRegions(DLibImage image,
+                                                    int[] regions,
+                                                    int regionCount,
+                                                    DLibFaceBuffer out) {
+        // There is at most one face in every region.
+        out.ensureFaceCapacity(regionCount);
+
+        return detectFacesAndLandmarksInImageRegions(
+            getNativeHandle(),
+            image.getDirectBuffer(), image.getArray(),
+            image.getWidth(), image.getHeight(),
+            image.getRowStride(), image.getPixelStride(),
+            image.getFormat(), image.getRotation(), image.isMirrored(),
+            regions, regionCount,
+            out.getBuffer());
+    }
+
+    /**
+     * Write the faces of the last detection again, e.g. to a bigger buffer,
+     * without detecting them again.
+     *
+     * @param includesLandmarks Whether the landmarks of the faces are written.
+     * @return The number of the faces.
+     */
+    synchronized int writeFaces(boolean includesLandmarks,
+                                DLibFaceBuffer out) {
+        return writeFaces(getNativeHandle(), includesLandmarks, out.getBuffer());
+    }
+
+    /**
+     * The native handle for the adapters calling their own native methods on
+     * the same native peer.
+     */
+    synchronized long getNativeHandle() {
+        if (mNativeHandle == 0) {
+            throw new IllegalStateException("The engine is closed.");
+        }
+
+        return mNativeHandle;
+    }
+
+    private int detectFacesInImage(DLibImage image,
+                                   DLibFaceBuffer out) {
+        return detectFacesInImage(
+            getNativeHandle(),
+            image.getDirectBuffer(), image.getArray(),
+            image.getWidth(), image.getHeight(),
+            image.getRowStride(), image.getPixelStride(),
+            image.getFormat(), image.getRotation(), image.isMirrored(),
+            out.getBuffer());
+    }
+
+    private int detectFacesAndLandmarksInImage(DLibImage image,
+                                               DLibFaceBuffer out) {
+        return detectFacesAndLandmarksInImage(
+            getNativeHandle(),
+            image.getDirectBuffer(), image.getArray(),
+            image.getWidth(), image.getHeight(),
+            image.getRowStride(), image.getPixelStride(),
+            image.getFormat(), image.getRotation(), image.isMirrored(),
+            out.getBuffer());
+    }
+
+    /**
+     * Flatten the rectangles to [left, top, right, bottom] x N.
+     *
+     * @return The number of rectangles, N.
+     */
+    private int flattenRects(List<DLibRect> rects) {
+        final int count = rects.size();
+        if (mFaceBounds.length < 4 * count) {
+            mFaceBounds = new int[4 * count];
+        }
+        for (int i = 0; i < count; ++i) {
+            final DLibRect rect = rects.get(i);
+            mFaceBounds[4 * i] = rect.left;
+            mFaceBounds[4 * i + 1] = rect.top;
+            mFaceBounds[4 * i + 2] = rect.right;
+            mFaceBounds[4 * i + 3] = rect.bottom;
+        }
+
+        return count;
+    }
+
+    /**
+     * Create the native scratch area.
+     *
+     * @return The native handle.
+     */
+    private native long nativeCreate();
+
+    /**
+     * Release the native scratch area.
+     */
+    private native void nativeDestroy(long handle);
+
+    private native boolean nativeIsFaceDetectorReady(long handle);
+
+    private native boolean nativeIsFaceLandmarksDetectorReady(long handle);
+
+    /**
+     * Take the shared HOG face detector; the native scratch area derives its
+     * own copy holding the scanner state.
+     */
+    private native void nativePrepareFaceDetector(long handle);
+
+    /**
+     * Load the shape predictor from the given file, which is shared by all the
+     * engines loading the same file.
+     *
+     * @param listener The progress listener, nullable.
+     * @return The native reference to the model, which must be released by
+     * {@link #nativeReleaseShapePredictor(long)}.
+     * @see DLibModelRegistry
+     */
+    static native long nativeLoadShapePredictor(String path,
+                                                OnModelProgressListener listener);
+
+    static native void nativeReleaseShapePredictor(long model);
+
+    /**
+     * Take the shape predictor loaded by
+     * {@link #nativeLoadShapePredictor(String, OnModelProgressListener)}.
+     */
+    private native void nativeSetShapePredictor(long handle,
+                                                long model);
+
+    /**
+     * Set the number of threads detecting the faces and predicting the
+     * landmarks, 0 for the number of cores.
+     */
+    private native void nativeSetParallelism(long handle,
+                                             int parallelism);
+
+    /**
+     * Enable or disable the multi-threaded HOG face detection.
+     */
+    private native void nativeSetParallelFaceDetectionEnabled(long handle,
+                                                              boolean enabled);
+
+    /**
+     * Set the landmarks propagation by the optical flow.
+     */
+    private native void nativeSetLandmarkFlow(long handle,
+                                              boolean enabled,
+                                              float maxError,
+                                              int maxFrames);
+
+    /**
+     * Set the face detection configuration, see
+     * {@link DLibFaceDetectorConfig}.
+     */
+    private native void nativeSetFaceDetectorConfig(long handle,
+                                                    float downscale,
+                                                    int minFaceSize,
+                                                    int maxFaceSize,
+                                                    int upsample);
+
+    /**
+     * Detect all the faces from the image.
+     *
+     * @param handle The native scratch area.
+     * @param buffer The direct buffer of the image, or null if the image is in
+     *               the array.
+     * @param array The array of the image, or null if the image is in the
+     *              direct buffer.
+     * @param format The pixel format, see {@link DLibImage}.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the detected faces.
+     */
+    private native int detectFacesInImage(long handle,
+                                          ByteBuffer buffer,
+                                          byte[] array,
+                                          int width,
+                                          int height,
+                                          int rowStride,
+                                          int pixelStride,
+                                          int format,
+                                          int rotation,
+                                          boolean mirrored,
+                                          ByteBuffer out);
+
+    /**
+     * Detect landmarks for the given faces in the image.
+     *
+     * @param handle The native scratch area.
+     * @param faceBounds The face bounds, [left, top, right, bottom] x N.
+     * @param faceCount The number of faces, N.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the faces.
+     * @see #detectFacesInImage
+     */
+    private native int detectLandmarksFromFacesInImage(long handle,
+                                                       ByteBuffer buffer,
+                                                       byte[] array,
+                                                       int width,
+                                                       int height,
+                                                       int rowStride,
+                                                       int pixelStride,
+                                                       int format,
+                                                       int rotation,
+                                                       boolean mirrored,
+                                                       int[] faceBounds,
+                                                       int faceCount,
+                                                       ByteBuffer out);
+
+    /**
+     * Find the faces and landmarks from the image.
+     *
+     * @param handle The native scratch area.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the detected faces.
+     * @see #detectFacesInImage
+     */
+    private native int detectFacesAndLandmarksInImage(long handle,
+                                                      ByteBuffer buffer,
+                                                      byte[] array,
+                                                      int width,
+                                                      int height,
+                                                      int rowStride,
+                                                      int pixelStride,
+                                                      int format,
+                                                      int rotation,
+                                                      boolean mirrored,
+                                                      ByteBuffer out);
+
+    /**
+     * Find at most one face in every region and the landmarks of the found
+     * faces from the image.
+     *
+     * @param handle The native scratch area.
+     * @param regions The regions, [left, top, right, bottom] x N.
+     * @param regionCount The number of regions, N.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the found faces.
+     * @see #detectFacesInImage
+     */
+    private native int detectFacesAndLandmarksInImageRegions(long handle,
+                                                             ByteBuffer buffer,
+                                                             byte[] array,
+                                                             int width,
+                                                             int height,
+                                                             int rowStride,
+                                                             int pixelStride,
+                                                             int format,
+                                                             int rotation,
+                                                             boolean mirrored,
+                                                             int[] regions,
+                                                             int regionCount,
+                                                             ByteBuffer out);
+
+    /**
+     * Carry the faces of the previous luminance image to the given one by the
+     * optical flow.
+     *
+     * @param handle The native scratch area.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the propagated faces.
+     * @see #detectFacesInImage
+     */
+    private native int detectLandmarksByFlowInImage(long handle,
+                                                    ByteBuffer buffer,
+                                                    byte[] array,
+                                                    int width,
+                                                    int height,
+                                                    int rowStride,
+                                                    int pixelStride,
+                                                    int format,
+                                                    int rotation,
+                                                    boolean mirrored,
+                                                    ByteBuffer out);
+
+    /**
+     * Write the faces of the last detection again.
+     *
+     * @param handle The native scratch area.
+     * @param includesLandmarks Whether the landmarks of the faces are written.
+     * @param out The direct buffer in the {@link DLibFaceBuffer} layout.
+     * @return The number of the faces.
+     */
+    private native int writeFaces(long handle,
+                                  boolean includesLandmarks,
+                                  ByteBuffer out);
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    public interface OnModelProgressListener {
+
+        /**
+         * Called on the loading thread every percent of the model file is
+         * read. Throwing an exception aborts the loading.
+         *
+         * @param loadedBytes The bytes read so far.
+         * @param totalBytes The model file size.
+         */
+        void onProgress(long loadedBytes, long totalBytes);
+    }
+}
@@ -0,0 +1,274 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import java.util.Locale;
+
+/**
+ * The process-wide latency histograms and counters of the native detection
+ * pipeline. Recording is lock-free and always on; reading takes a
+ * {@link Snapshot}, e.g. to print the percentiles after a benchmark run.
+ * <br/>
+ * Usage:
+ * <pre>
+ * DLibMetrics.reset();
+ *
+ * // Run the detection...
+ *
+ * final DLibMetrics.Snapshot snapshot = DLibMetrics.getSnapshot();
+ * Log.d(TAG, snapshot.getStage(DLibMetrics.STAGE_SHAPE_PREDICTION).toString());
+ * </pre>
+ */
+public final class DLibMetrics {
+
+    /**
+     * Copy the bitmap or the luminance plane to the native image.
+     */
+    public static final int STAGE_IMAGE_CONVERSION = 0;
+    /**
+     * The HOG face detection on the whole image or the search regions.
+     */
+    public static final int STAGE_FACE_DETECTION = 1;
+    /**
+     * The shape predictor for one face.
+     */
+    public static final int STAGE_SHAPE_PREDICTION = 2;
+    /**
+     * The optical flow tracking the landmarks of the previous frame.
+     */
+    public static final int STAGE_LANDMARK_FLOW = 3;
+    /**
+     * Write the faces to the output buffer.
+     */
+    public static final int STAGE_SERIALIZATION = 4;
+
+    public static final int STAGE_COUNT = 5;
+
+    /**
+     * The frames read by the detectors.
+     */
+    public static final int COUNTER_FRAMES = 0;
+    /**
+     * The faces found by the face detector.
+     */
+    public static final int COUNTER_FACES_DETECTED = 1;
+    /**
+     * The faces whose landmarks come from the shape predictor.
+     */
+    public static final int COUNTER_SHAPES_PREDICTED = 2;
+    /**
+     * The faces whose landmarks are carried by the optical flow.
+     */
+    public static final int COUNTER_SHAPES_PROPAGATED = 3;
+
+    public static final int COUNTER_COUNT = 4;
+
+    /**
+     * The bucket i counts the latencies in [2^(i-1), 2^i) microseconds and
+     * the bucket 0 counts the ones below a microsecond.
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    // The layout of the native snapshot: for every stage the count, the total
+    // and the max nanoseconds followed by the buckets, and then the counters.
+    private static final int STAGE_SIZE = 3 + BUCKET_COUNT;
+    private static final int SNAPSHOT_SIZE = STAGE_COUNT * STAGE_SIZE + COUNTER_COUNT;
+
+    private DLibMetrics() {
+        // Utility.
+    }
+
+    /**
+     * Read the histograms and the counters. The values are read one by one
+     * while the detectors may be recording, so a snapshot taken during the
+     * detection is consistent per value but not as a whole.
+     */
+    public static Snapshot getSnapshot() {
+        DLibInitializer.loadLibraries();
+
+        if (nativeGetSnapshotSize() != SNAPSHOT_SIZE) {
+            throw new IllegalStateException(
+                "The native metrics don't match; check the native library version.");
+        }
+
+        final long[] values = new long[SNAPSHOT_SIZE];
+        nativeGetSnapshot(values);
+
+        return new Snapshot(values);
+    }
+
+    /**
+     * Clear the histograms and the counters, e.g. before a benchmark run.
+     */
+    public static void reset() {
+        DLibInitializer.loadLibraries();
+
+        nativeReset();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static native int nativeGetSnapshotSize();
+
+    private static native void nativeGetSnapshot(long[] out);
+
+    private static native void nativeReset();
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * The immutable copy of the histograms and the counters.
+     */
+    public static final class Snapshot {
+
+        private final StageStats[] mStages = new StageStats[STAGE_COUNT];
+        private final long[] mCounters = new long[COUNTER_COUNT];
+
+        private Snapshot(long[] values) {
+            for (int i = 0; i < STAGE_COUNT; ++i) {
+                final int offset = i * STAGE_SIZE;
+                final long[] buckets = new long[BUCKET_COUNT];
+                System.arraycopy(values, offset + 3, buckets, 0, BUCKET_COUNT);
+
+                mStages[i] = new StageStats(values[offset],
+                                            values[offset + 1],
+                                            values[offset + 2],
+                                            buckets);
+            }
+            System.arraycopy(values, STAGE_COUNT * STAGE_SIZE,
+                             mCounters, 0, COUNTER_COUNT);
+        }
+
+        /**
+         * @param stage The stage, e.g. {@link #STAGE_SHAPE_PREDICTION}.
+         */
+        public StageStats getStage(int stage) {
+            return mStages[stage];
+        }
+
+        /**
+         * @param counter The counter, e.g. {@link #COUNTER_FRAMES}.
+         */
+        public long getCounter(int counter) {
+            return mCounters[counter];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("Snapshot{");
+            builder.append("frames=").append(mCounters[COUNTER_FRAMES])
+                   .append(", facesDetected=").append(mCounters[COUNTER_FACES_DETECTED])
+                   .append(", shapesPredicted=").append(mCounters[COUNTER_SHAPES_PREDICTED])
+                   .append(", shapesPropagated=").append(mCounters[COUNTER_SHAPES_PROPAGATED]);
+            for (int i = 0; i < STAGE_COUNT; ++i) {
+                builder.append(", stage").append(i).append('=').append(mStages[i]);
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    /**
+     * The latency histogram of one stage.
+     */
+    public static final class StageStats {
+
+        private final long mCount;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+        private final long[] mBuckets;
+
+        private StageStats(long count,
+                           long totalNanos,
+                           long maxNanos,
+                           long[] buckets) {
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+            mBuckets = buckets;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        public long getMeanNanos() {
+            return mCount == 0 ? 0 : mTotalNanos / mCount;
+        }
+
+        /**
+         * The count of the bucket, see {@link #BUCKET_COUNT}.
+         */
+        public long getBucketCount(int bucket) {
+            return mBuckets[bucket];
+        }
+
+        /**
+         * The upper bound of the bucket holding the given percentile, so it
+         * overestimates the latency by less than twice; it's never more than
+         * the max.
+         *
+         * @param percentile The percentile in [0, 100], e.g. 99.
+         * @return The latency in nanoseconds, or 0 if nothing is recorded.
+         */
+        public long getPercentileNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("The percentile must be in [0, 100].");
+            }
+
+            long total = 0;
+            for (long count : mBuckets) {
+                total += count;
+            }
+            if (total == 0) return 0;
+
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(mMaxNanos, (1L << i) * 1000L);
+                }
+            }
+            return mMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                                 "{count=%d, mean=%.3f ms, p50=%.3f ms, p99=%.3f ms, max=%.3f ms}",
+                                 mCount,
+                                 getMeanNanos() / 1e6,
+                                 getPercentileNanos(50) / 1e6,
+                                 getPercentileNanos(99) / 1e6,
+                                 mMaxNanos / 1e6);
+        }
+    }
+}
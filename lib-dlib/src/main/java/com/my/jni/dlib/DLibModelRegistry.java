@@ -0,0 +1,316 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The process-wide registry of the face landmarks models. The models are
+ * reference counted by the detectors using them and stay warm after the last
+ * detector is closed, so a new detector, e.g. of a recreated Activity, takes
+ * the deserialized model instantly. The idle models are evicted when the
+ * memory is trimmed, see {@link #setEvictionPolicy(int, long)}.
+ * <br/>
+ * A model is keyed by its path and a checksum, so a model file replaced at the
+ * same path, e.g. by a new download, is loaded again. Replace the file by an
+ * atomic rename, e.g. download to a temporary file and rename it; a compact
+ * model is memory-mapped while it's in use and must not be rewritten in place.
+ * <br/>
+ * Usage:
+ * <pre>
+ * // Once, e.g. in Application#onCreate().
+ * DLibModelRegistry.getInstance().registerComponentCallbacks(context);
+ * </pre>
+ * {@link IDLibFaceDetector#prepareFaceLandmarksDetector(String)} takes the
+ * models from the registry.
+ */
+public class DLibModelRegistry implements ComponentCallbacks2 {
+
+    private static final String TAG = "DLibModelRegistry";
+
+    // The bytes at the head and the tail of a model file in the checksum.
+    private static final int CHECKSUM_SAMPLE_SIZE = 64 * 1024;
+
+    private static final DLibModelRegistry sInstance = new DLibModelRegistry();
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Map<String, Checksum> mChecksums = new HashMap<>();
+
+    private int mMinTrimLevel = TRIM_MEMORY_UI_HIDDEN;
+    private long mMinIdleMillis = 30 * 1000;
+
+    public static DLibModelRegistry getInstance() {
+        return sInstance;
+    }
+
+    private DLibModelRegistry() {
+        // Singleton.
+    }
+
+    /**
+     * Evict the idle models when the memory of the given context's
+     * application is trimmed.
+     */
+    public void registerComponentCallbacks(Context context) {
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    public void unregisterComponentCallbacks(Context context) {
+        context.getApplicationContext().unregisterComponentCallbacks(this);
+    }
+
+    /**
+     * Set when the idle models are evicted, which is by default the UI is
+     * hidden and the model has been idle for 30 seconds. All the idle models
+     * are evicted on {@link #TRIM_MEMORY_COMPLETE} and the low memory
+     * regardless of the idle time.
+     *
+     * @param minTrimLevel The minimum trim level evicting the models, e.g.
+     *                     {@link #TRIM_MEMORY_UI_HIDDEN}.
+     * @param minIdleMillis The minimum time since the last detector released
+     *                      the model.
+     */
+    public synchronized void setEvictionPolicy(int minTrimLevel,
+                                               long minIdleMillis) {
+        if (minIdleMillis < 0) {
+            throw new IllegalArgumentException("The idle time must not be negative.");
+        }
+
+        mMinTrimLevel = minTrimLevel;
+        mMinIdleMillis = minIdleMillis;
+    }
+
+    /**
+     * The number of the models in the registry, including the idle models.
+     */
+    public synchronized int getModelCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Evict the models no detector is using.
+     */
+    public void evictIdleModels() {
+        evictIdleModels(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        final long minIdleMillis;
+        synchronized (this) {
+            if (level < mMinTrimLevel) return;
+            minIdleMillis = level >= TRIM_MEMORY_COMPLETE ? 0 : mMinIdleMillis;
+        }
+
+        evictIdleModels(minIdleMillis);
+    }
+
+    @Override
+    public void onLowMemory() {
+        evictIdleModels(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration config) {
+        // IGNORED.
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    /**
+     * Take the model of the given file, which is loaded if it's not in the
+     * registry. The lease must be released by {@link #release(Lease)}.
+     *
+     * @param listener The progress listener, nullable; it's not called if the
+     *                 model is in the registry.
+     */
+    Lease acquire(String path,
+                  IDLibFaceDetector.OnModelProgressListener listener) {
+        final String key = path + "#" + getChecksum(path);
+        synchronized (this) {
+            final Entry entry = mEntries.get(key);
+            if (entry != null) {
+                ++entry.referenceCount;
+                return new Lease(key, entry.model);
+            }
+        }
+
+        // Load without the lock; the native cache loads a file once even if
+        // two threads get here at the same time.
+        final long model = DLibLandmarks68Engine.nativeLoadShapePredictor(path, listener);
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                DLibLandmarks68Engine.nativeReleaseShapePredictor(model);
+            } else {
+                entry = new Entry(model);
+                mEntries.put(key, entry);
+            }
+            ++entry.referenceCount;
+
+            return new Lease(key, entry.model);
+        }
+    }
+
+    /**
+     * Release the model taken by {@link #acquire}; it stays in the registry
+     * until it's evicted.
+     */
+    synchronized void release(Lease lease) {
+        final Entry entry = mEntries.get(lease.key);
+        if (entry == null || entry.referenceCount == 0) {
+            throw new IllegalStateException("The model is not acquired.");
+        }
+
+        if (--entry.referenceCount == 0) {
+            entry.idleSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private void evictIdleModels(long minIdleMillis) {
+        final long now = SystemClock.elapsedRealtime();
+
+        synchronized (this) {
+            final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Entry> next = it.next();
+                final Entry entry = next.getValue();
+                if (entry.referenceCount > 0 ||
+                    now - entry.idleSince < minIdleMillis) continue;
+
+                Log.d(TAG, "Evict the idle model " + next.getKey());
+                DLibLandmarks68Engine.nativeReleaseShapePredictor(entry.model);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The CRC32 of the file length and the bytes at the head and the tail of
+     * the file. Reading the whole file would double the cold start, while a
+     * replaced model differs in the sampled bytes in practice. The checksum is
+     * computed once for every version (length and modified time) of the file.
+     */
+    private String getChecksum(String path) {
+        final File file = new File(path);
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+
+        synchronized (this) {
+            final Checksum checksum = mChecksums.get(path);
+            if (checksum != null &&
+                checksum.length == length &&
+                checksum.lastModified == lastModified) {
+                return checksum.value;
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        try {
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                final byte[] buffer = new byte[CHECKSUM_SAMPLE_SIZE];
+                final int headSize = (int) Math.min(length, CHECKSUM_SAMPLE_SIZE);
+                in.readFully(buffer, 0, headSize);
+                crc.update(buffer, 0, headSize);
+
+                final int tailSize = (int) Math.min(length - headSize, CHECKSUM_SAMPLE_SIZE);
+                in.seek(length - tailSize);
+                in.readFully(buffer, 0, tailSize);
+                crc.update(buffer, 0, tailSize);
+            } finally {
+                in.close();
+            }
+        } catch (IOException error) {
+            throw new RuntimeException("Unable to read the model " + path, error);
+        }
+        for (int i = 0; i < 8; ++i) {
+            crc.update((int) (length >>> (8 * i)));
+        }
+
+        final Checksum checksum = new Checksum(length, lastModified,
+                                               Long.toHexString(crc.getValue()));
+        synchronized (this) {
+            mChecksums.put(path, checksum);
+        }
+
+        return checksum.value;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * A model taken by a detector.
+     */
+    static final class Lease {
+
+        final String key;
+        // The native model reference owned by the registry.
+        final long model;
+
+        Lease(String key,
+              long model) {
+            this.key = key;
+            this.model = model;
+        }
+    }
+
+    private static final class Entry {
+
+        // The native model reference, see DLibLandmarks68Engine#nativeLoadShapePredictor.
+        final long model;
+        int referenceCount;
+        long idleSince;
+
+        Entry(long model) {
+            this.model = model;
+        }
+    }
+
+    private static final class Checksum {
+
+        final long length;
+        final long lastModified;
+        final String value;
+
+        Checksum(long length,
+                 long lastModified,
+                 String value) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib;
+
+import android.os.Process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The recorder of the trace spans of the detection pipeline on both sides of
+ * the JNI boundary, dumped to a file of the Chrome trace format which opens
+ * in chrome://tracing or ui.perfetto.dev. The Java events are kept in a
+ * preallocated ring buffer here and the native events, e.g. the stages of
+ * every detection, in the native one; both are timed by the same monotonic
+ * clock and keyed by the kernel thread id, so a Java span encloses the native
+ * spans of the JNI call it makes.
+ * <br/>
+ * The recorder is disabled by default and it's nearly free then.
+ * <br/>
+ * Usage:
+ * <pre>
+ * DLibTrace.setEnabled(true);
+ *
+ * final long start = DLibTrace.beginSpan();
+ * // Run the code...
+ * DLibTrace.endSpan("detect", start);
+ *
+ * // Later, on demand.
+ * DLibTrace.dump(new File(context.getExternalFilesDir(null), "trace.json"));
+ * </pre>
+ * A frame handed off to another thread is linked by a flow, see
+ * {@link #flowStart(String, long)}.
+ */
+public final class DLibTrace {
+
+    /**
+     * The number of the most recent Java events kept.
+     */
+    public static final int CAPACITY = 4096;
+
+    private static final byte PHASE_SPAN = 'X';
+    private static final byte PHASE_FLOW_START = 's';
+    private static final byte PHASE_FLOW_END = 'f';
+
+    private static volatile boolean sIsEnabled = false;
+
+    private static final AtomicLong sNextFlowId = new AtomicLong();
+
+    // The ring buffer, guarded by the class lock.
+    private static final byte[] sPhases = new byte[CAPACITY];
+    private static final String[] sNames = new String[CAPACITY];
+    private static final long[] sStartNanos = new long[CAPACITY];
+    // The duration of a span or the id of a flow.
+    private static final long[] sValues = new long[CAPACITY];
+    private static final int[] sTids = new int[CAPACITY];
+    private static long sNextIndex = 0;
+
+    // The names of the threads recording the events, guarded by the class
+    // lock.
+    private static final Map<Integer, String> sThreadNames = new HashMap<>();
+    private static final ThreadLocal<Boolean> sIsThreadNamed = new ThreadLocal<>();
+
+    private DLibTrace() {
+        // Utility.
+    }
+
+    public static boolean isEnabled() {
+        return sIsEnabled;
+    }
+
+    /**
+     * Enable or disable the recording on both the Java and the native sides.
+     * The recorded events are kept until {@link #clear()}.
+     */
+    public static void setEnabled(boolean enabled) {
+        DLibInitializer.loadLibraries();
+
+        nativeSetEnabled(enabled);
+        sIsEnabled = enabled;
+    }
+
+    /**
+     * Start a span on the calling thread.
+     *
+     * @return The start time passed to {@link #endSpan(String, long)}, or 0
+     * if the recorder is disabled.
+     */
+    public static long beginSpan() {
+        return sIsEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * End the span started by {@link #beginSpan()} on the same thread.
+     *
+     * @param name The name of the span; a constant is preferred, it's kept
+     *             by reference.
+     */
+    public static void endSpan(String name,
+                               long startNanos) {
+        if (!sIsEnabled || startNanos == 0) return;
+
+        record(PHASE_SPAN, name, startNanos, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * A new id linking the flow events of a hand-off.
+     */
+    public static long newFlowId() {
+        return sNextFlowId.incrementAndGet();
+    }
+
+    /**
+     * Start a flow, e.g. a frame handed off to another thread; it's drawn as
+     * an arrow to the span ending the flow, see {@link #flowEnd(String, long)}.
+     * It must be called inside a span of the calling thread.
+     */
+    public static void flowStart(String name,
+                                 long flowId) {
+        if (!sIsEnabled) return;
+
+        record(PHASE_FLOW_START, name, System.nanoTime(), flowId);
+    }
+
+    /**
+     * End the flow of the same name and id, inside a span of the calling
+     * thread.
+     */
+    public static void flowEnd(String name,
+                               long flowId) {
+        if (!sIsEnabled) return;
+
+        record(PHASE_FLOW_END, name, System.nanoTime(), flowId);
+    }
+
+    /**
+     * Write the recorded Java and native events to the given file in the
+     * Chrome trace format. The recorder keeps recording meanwhile.
+     */
+    public static void dump(File file) throws IOException {
+        DLibInitializer.loadLibraries();
+
+        final int pid = Process.myPid();
+
+        // Copy the Java events so that the recorder isn't blocked by the IO.
+        final int count;
+        final byte[] phases = new byte[CAPACITY];
+        final String[] names = new String[CAPACITY];
+        final long[] startNanos = new long[CAPACITY];
+        final long[] values = new long[CAPACITY];
+        final int[] tids = new int[CAPACITY];
+        final Map<Integer, String> threadNames;
+        synchronized (DLibTrace.class) {
+            count = (int) Math.min(sNextIndex, CAPACITY);
+            for (int i = 0; i < count; ++i) {
+                final int slot = (int) ((sNextIndex - count + i) % CAPACITY);
+                phases[i] = sPhases[slot];
+                names[i] = sNames[slot];
+                startNanos[i] = sStartNanos[slot];
+                values[i] = sValues[slot];
+                tids[i] = sTids[slot];
+            }
+            threadNames = new HashMap<>(sThreadNames);
+        }
+        final String nativeEvents = nativeDumpEvents(pid);
+
+        final Writer writer = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("{\"traceEvents\":[");
+            boolean isFirst = true;
+            for (Map.Entry<Integer, String> entry : threadNames.entrySet()) {
+                if (!isFirst) writer.write(',');
+                writer.write(String.format(
+                    Locale.US,
+                    "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%d,\"tid\":%d," +
+                    "\"args\":{\"name\":\"%s\"}}",
+                    pid, entry.getKey(), escape(entry.getValue())));
+                isFirst = false;
+            }
+            for (int i = 0; i < count; ++i) {
+                if (!isFirst) writer.write(',');
+                writer.write(toJson(phases[i], names[i], startNanos[i], values[i],
+                                    pid, tids[i]));
+                isFirst = false;
+            }
+            if (!nativeEvents.isEmpty()) {
+                if (!isFirst) writer.write(',');
+                writer.write(nativeEvents);
+            }
+            writer.write("],\"displayTimeUnit\":\"ms\"}");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Drop the recorded Java and native events.
+     */
+    public static void clear() {
+        DLibInitializer.loadLibraries();
+
+        synchronized (DLibTrace.class) {
+            for (int i = 0; i < CAPACITY; ++i) {
+                sNames[i] = null;
+            }
+            sNextIndex = 0;
+        }
+        nativeClear();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static void record(byte phase,
+                               String name,
+                               long startNanos,
+                               long value) {
+        // The kernel thread id, the same id of the native events.
+        final int tid = Process.myTid();
+        final boolean isThreadNamed = sIsThreadNamed.get() != null;
+
+        synchronized (DLibTrace.class) {
+            final int slot = (int) (sNextIndex++ % CAPACITY);
+            sPhases[slot] = phase;
+            sNames[slot] = name;
+            sStartNanos[slot] = startNanos;
+            sValues[slot] = value;
+            sTids[slot] = tid;
+
+            if (!isThreadNamed) {
+                sThreadNames.put(tid, Thread.currentThread().getName());
+            }
+        }
+
+        if (!isThreadNamed) {
+            sIsThreadNamed.set(Boolean.TRUE);
+        }
+    }
+
+    private static String toJson(byte phase,
+                                 String name,
+                                 long startNanos,
+                                 long value,
+                                 int pid,
+                                 int tid) {
+        // The timestamps of the format are in microseconds.
+        switch (phase) {
+            case PHASE_SPAN:
+                return String.format(
+                    Locale.US,
+                    "{\"name\":\"%s\",\"cat\":\"java\",\"ph\":\"X\"," +
+                    "\"ts\":%.3f,\"dur\":%.3f,\"pid\":%d,\"tid\":%d}",
+                    escape(name), startNanos / 1000.0, value / 1000.0, pid, tid);
+            case PHASE_FLOW_START:
+                return String.format(
+                    Locale.US,
+                    "{\"name\":\"%s\",\"cat\":\"flow\",\"ph\":\"s\",\"id\":%d," +
+                    "\"ts\":%.3f,\"pid\":%d,\"tid\":%d}",
+                    escape(name), value, startNanos / 1000.0, pid, tid);
+            default:
+                // Bind to the enclosing span rather than the next one.
+                return String.format(
+                    Locale.US,
+                    "{\"name\":\"%s\",\"cat\":\"flow\",\"ph\":\"f\",\"bp\":\"e\",\"id\":%d," +
+                    "\"ts\":%.3f,\"pid\":%d,\"tid\":%d}",
+                    escape(name), value, startNanos / 1000.0, pid, tid);
+        }
+    }
+
+    private static String escape(String text) {
+        final StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ++i) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static native void nativeSetEnabled(boolean enabled);
+
+    private static native String nativeDumpEvents(int pid);
+
+    private static native void nativeClear();
+}
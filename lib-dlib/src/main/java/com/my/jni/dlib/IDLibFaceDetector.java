@@ -23,10 +23,11 @@ package com.my.jni.dlib;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.my.jni.dlib.data.DLibFace;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.Future;
 
 public interface IDLibFaceDetector {
 
@@ -44,23 +45,71 @@ public interface IDLibFaceDetector {
     void prepareFaceDetector();
 
     /**
-     * Prepare the face landmarks detector.
+     * Prepare the face detector with the given configuration.
      *
-     * @param path The model (serialized graph) file.
+     * @see #setFaceDetectorConfig(DLibFaceDetectorConfig)
+     */
+    void prepareFaceDetector(DLibFaceDetectorConfig config);
+
+    /**
+     * Set the configuration of the face detection; it takes effect from the
+     * next detection.
+     */
+    void setFaceDetectorConfig(DLibFaceDetectorConfig config);
+
+    DLibFaceDetectorConfig getFaceDetectorConfig();
+
+    /**
+     * Prepare the face landmarks detector. The model is deserialized once and
+     * shared by all the detectors preparing the same file; it stays warm after
+     * the detectors are closed, see {@link DLibModelRegistry}.
+     *
+     * @param path The model file, either a dlib model (serialized graph) or a
+     *             compact model converted by the convert-shape-predictor tool,
+     *             which is used in place without parsing. A compact model
+     *             stays memory-mapped while it's in use, so replace the file
+     *             by an atomic rename rather than rewriting it in place.
      */
     void prepareFaceLandmarksDetector(String path);
 
+    /**
+     * Prepare the face landmarks detector on a background thread. The model
+     * file is memory-mapped and parsed in place; the detector stays usable for
+     * the face detection while the model is loading.
+     *
+     * @param path The model file, see {@link #prepareFaceLandmarksDetector(String)}.
+     * @param listener The listener of the loading progress, nullable.
+     * @return The future done when the detector is ready; {@link Future#get()}
+     * throws the loading error if there's any.
+     */
+    Future<Void> prepareFaceLandmarksDetectorAsync(String path,
+                                                   OnModelProgressListener listener);
+
+    /**
+     * Set the number of threads detecting the faces and predicting the
+     * landmarks of the detected faces, including the calling thread. The
+     * results are in the same order regardless of the parallelism.
+     *
+     * @param parallelism The number of threads, or 0 for the number of cores,
+     *                    which is the default.
+     */
+    void setParallelism(int parallelism);
+
+    /**
+     * Enable or disable running the HOG face detection on multiple threads;
+     * it's enabled by default. The detected faces are the same either way.
+     *
+     * @see #setParallelism(int)
+     */
+    void setParallelFaceDetectionEnabled(boolean enabled);
+
     /**
      * Detect face bounds.
      *
      * @param bitmap The given photo.
      * @return A list of {@link DLibFace}.
-     *
-     * @throws InvalidProtocolBufferException Fired if the message cannot be
-     * recognized
      */
-    List<DLibFace> findFaces(Bitmap bitmap)
-        throws InvalidProtocolBufferException;
+    List<DLibFace> findFaces(Bitmap bitmap);
 
     /**
      * Detect the face landmarks in the given face bound (single face).
@@ -68,13 +117,9 @@ public interface IDLibFaceDetector {
      * @param bitmap The given photo.
      * @param bound The boundary of the face.
      * @return A list of {@link DLibFace.Landmark}.
-     *
-     * @throws InvalidProtocolBufferException Fired if the message cannot be
-     * recognized
      */
     List<DLibFace.Landmark> findLandmarksFromFace(Bitmap bitmap,
-                                                  Rect bound)
-        throws InvalidProtocolBufferException;
+                                                  Rect bound);
 
     /**
      * Detect the face landmarks in the given face bounds (multiple faces).
@@ -82,23 +127,186 @@ public interface IDLibFaceDetector {
      * @param bitmap The given photo.
      * @param faceBounds The list of face boundary.
      * @return A list of {@link DLibFace.Landmark}.
-     *
-     * @throws InvalidProtocolBufferException Fired if the message cannot be
-     * recognized
      */
     List<DLibFace> findLandmarksFromFaces(Bitmap bitmap,
-                                          List<Rect> faceBounds)
-        throws InvalidProtocolBufferException;
+                                          List<Rect> faceBounds);
 
     /**
      * Detect face bounds and then detect the face landmarks for every face.
      *
      * @param bitmap The given photo.
      * @return A list of {@link DLibFace.Landmark}.
+     */
+    List<DLibFace> findFacesAndLandmarks(Bitmap bitmap);
+
+    /**
+     * Detect face bounds and then detect the face landmarks for every face of
+     * every given photo in one native call, e.g. for importing the photos in
+     * bulk. The photos are spread across the threads, see
+     * {@link #setParallelism(int)}, and the faces of all the photos are
+     * returned in one buffer.
+     *
+     * @param bitmaps The given photos.
+     * @return The list of {@link DLibFace} of every photo, in the same order
+     * as the photos.
+     */
+    List<List<DLibFace>> findFacesAndLandmarks(List<Bitmap> bitmaps);
+
+    /**
+     * Detect the face landmarks in the given face bounds of every given photo
+     * in one native call.
+     *
+     * @param bitmaps The given photos.
+     * @param faceBounds The list of face boundary of every photo, in the same
+     *                   order as the photos.
+     * @return The list of {@link DLibFace} of every photo, in the same order
+     * as the photos.
+     * @see #findFacesAndLandmarks(List)
+     */
+    List<List<DLibFace>> findLandmarksFromFaces(List<Bitmap> bitmaps,
+                                                List<List<Rect>> faceBounds);
+
+    /**
+     * Detect the face landmarks in the given face bounds (multiple faces) from
+     * a 8-bit luminance plane, e.g. the Y plane of a NV21 or YUV_420_888
+     * camera frame. The
+     * plane is rotated and mirrored to be upright natively, so the face bounds
+     * and the result are in the upright coordinate.
      *
-     * @throws InvalidProtocolBufferException Fired if the message cannot be
-     * recognized
+     * @param luminance The luminance plane, either a direct buffer or a buffer
+     *                  backed by an array.
+     * @param width The plane width.
+     * @param height The plane height.
+     * @param rowStride The bytes between two rows.
+     * @param pixelStride The bytes between two pixels in a row, e.g. 1 for
+     *                    NV21 and the Y plane of YUV_420_888.
+     * @param rotation The clockwise rotation in degrees, either 0, 90, 180 or
+     *                 270, to make the plane upright.
+     * @param mirrored Flip the plane horizontally after the rotation.
+     * @param faceBounds The list of face boundary in the upright coordinate.
+     * @return A list of {@link DLibFace}.
+     */
+    List<DLibFace> findLandmarksFromFaces(ByteBuffer luminance,
+                                          int width,
+                                          int height,
+                                          int rowStride,
+                                          int pixelStride,
+                                          int rotation,
+                                          boolean mirrored,
+                                          List<Rect> faceBounds);
+
+    /**
+     * Detect face bounds and then detect the face landmarks for every face
+     * from a 8-bit luminance plane, e.g. the Y plane of a NV21 or YUV_420_888
+     * camera frame. The plane is rotated and mirrored to be upright natively, so the result
+     * is in the upright coordinate.
+     *
+     * @param luminance The luminance plane, either a direct buffer or a buffer
+     *                  backed by an array.
+     * @param width The plane width.
+     * @param height The plane height.
+     * @param rowStride The bytes between two rows.
+     * @param pixelStride The bytes between two pixels in a row, e.g. 1 for
+     *                    NV21 and the Y plane of YUV_420_888.
+     * @param rotation The clockwise rotation in degrees, either 0, 90, 180 or
+     *                 270, to make the plane upright.
+     * @param mirrored Flip the plane horizontally after the rotation.
+     * @return A list of {@link DLibFace}.
+     */
+    List<DLibFace> findFacesAndLandmarks(ByteBuffer luminance,
+                                         int width,
+                                         int height,
+                                         int rowStride,
+                                         int pixelStride,
+                                         int rotation,
+                                         boolean mirrored);
+
+    /**
+     * Detect at most one face in every given region, e.g. the expanded bounds
+     * of the faces in the previous frame, and then detect the face landmarks
+     * for every found face. Only the regions are scanned so it's much cheaper
+     * than {@link #findFacesAndLandmarks(Bitmap)}; a region without a face is
+     * skipped.
+     *
+     * @param bitmap The given photo.
+     * @param regions The list of the regions to search.
+     * @return A list of {@link DLibFace}, at most one for every region.
+     * @see DLibFaceTracker
+     */
+    List<DLibFace> findFacesAndLandmarksInRegions(Bitmap bitmap,
+                                                  List<Rect> regions);
+
+    /**
+     * Detect at most one face in every given region and then detect the face
+     * landmarks for every found face from a 8-bit luminance plane. The
+     * regions and the result are in the upright coordinate.
+     *
+     * @param regions The list of the regions to search in the upright
+     *                coordinate.
+     * @return A list of {@link DLibFace}, at most one for every region.
+     * @see #findFacesAndLandmarks(ByteBuffer, int, int, int, int, int, boolean)
+     * @see DLibFaceTracker
+     */
+    List<DLibFace> findFacesAndLandmarksInRegions(ByteBuffer luminance,
+                                                  int width,
+                                                  int height,
+                                                  int rowStride,
+                                                  int pixelStride,
+                                                  int rotation,
+                                                  boolean mirrored,
+                                                  List<Rect> regions);
+
+    /**
+     * Enable or disable the landmarks propagation by the optical flow. When
+     * it's enabled, the detector keeps the last luminance frame with the
+     * detected faces for {@link #findLandmarksByFlow}; it's disabled by
+     * default.
+     */
+    void setLandmarkFlowEnabled(boolean enabled);
+
+    /**
+     * @param maxError The shape predictor runs again for a face if the mean
+     *                 flow error of its landmarks, in the intensity levels,
+     *                 exceeds it.
+     * @param maxFrames The shape predictor runs again for a face if its
+     *                  landmarks were propagated for the frames.
+     */
+    void setLandmarkFlowLimits(float maxError,
+                               int maxFrames);
+
+    /**
+     * Carry the faces of the previous luminance frame to the given one by the
+     * sparse pyramidal Lucas-Kanade optical flow instead of running the face
+     * detector, and the shape predictor for the faces the flow isn't good
+     * enough, see {@link #setLandmarkFlowLimits(float, int)}. A face is lost
+     * if most of its landmarks can't be tracked.
+     *
+     * @return A list of {@link DLibFace}, empty if there is no previous frame
+     * of the same dimension.
+     * @see #findFacesAndLandmarks(ByteBuffer, int, int, int, int, int, boolean)
+     * @see DLibFaceTracker
+     */
+    List<DLibFace> findLandmarksByFlow(ByteBuffer luminance,
+                                       int width,
+                                       int height,
+                                       int rowStride,
+                                       int pixelStride,
+                                       int rotation,
+                                       boolean mirrored);
+
+    /**
+     * Release the native resources. The detector is no longer usable after
+     * it's closed.
+     */
+    void close();
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * The listener of the model loading, the same as the engine's.
      */
-    List<DLibFace> findFacesAndLandmarks(Bitmap bitmap)
-        throws InvalidProtocolBufferException;
+    interface OnModelProgressListener
+        extends DLibLandmarks68Engine.OnModelProgressListener {
+    }
 }
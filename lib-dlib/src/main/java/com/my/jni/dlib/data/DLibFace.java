@@ -28,6 +28,12 @@ public abstract class DLibFace {
 
     public abstract RectF getBound();
 
+    /**
+     * The packed landmarks read by the index, which is cheaper than the
+     * {@link Landmark} lists.
+     */
+    public abstract DLibLandmarks getLandmarks();
+
     public abstract List<Landmark> getAllLandmarks();
 
     public abstract List<Landmark> getLeftEyebrowLandmarks();
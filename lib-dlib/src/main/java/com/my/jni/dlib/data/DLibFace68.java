@@ -22,34 +22,62 @@ package com.my.jni.dlib.data;
 
 import android.graphics.RectF;
 
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.RandomAccess;
+
+/**
+ * A face of the 68 landmarks. The landmarks are packed in a
+ * {@link DLibLandmarks} read by the index, and the ranges of the regions are
+ * the constants, e.g. {@link #CHIN_START} to {@link #CHIN_END} inclusively:
+ * <pre>
+ * final DLibLandmarks landmarks = face.getLandmarks();
+ * for (int i = DLibFace68.CHIN_START; i < DLibFace68.CHIN_END; ++i) {
+ *     canvas.drawLine(landmarks.getX(i), landmarks.getY(i),
+ *                     landmarks.getX(i + 1), landmarks.getY(i + 1), paint);
+ * }
+ * </pre>
+ * The {@link Landmark} lists are the read-only views created on demand.
+ */
 public class DLibFace68 extends DLibFace {
 
-    private static final int CHIN_START = 0;
-    private static final int CHIN_END = 16;
+    public static final int CHIN_START = 0;
+    public static final int CHIN_END = 16;
+
+    public static final int EYEBROW_L_START = 17;
+    public static final int EYEBROW_L_END = 21;
+    public static final int EYEBROW_R_START = 22;
+    public static final int EYEBROW_R_END = 26;
 
-    private static final int EYEBROW_L_START = 17;
-    private static final int EYEBROW_L_END = 21;
-    private static final int EYEBROW_R_START = 22;
-    private static final int EYEBROW_R_END = 26;
+    public static final int NOSE_START = 28;
+    public static final int NOSE_END = 35;
 
-    private static final int NOSE_START = 28;
-    private static final int NOSE_END = 35;
+    public static final int EYE_L_START = 36;
+    public static final int EYE_L_END = 41;
+    public static final int EYE_R_START = 42;
+    public static final int EYE_R_END = 47;
 
-    private static final int EYE_L_START = 36;
-    private static final int EYE_L_END = 41;
-    private static final int EYE_R_START = 42;
-    private static final int EYE_R_END = 47;
+    public static final int LIPS_OUTER_START = 48;
+    public static final int LIPS_OUTER_END = 59;
+    public static final int LIPS_INNER_START = 60;
+    public static final int LIPS_INNER_END = 67;
 
-    private static final int LIPS_OUTER_START = 48;
-    private static final int LIPS_OUTER_END = 59;
-    private static final int LIPS_INNER_START = 60;
-    private static final int LIPS_INNER_END = 67;
+    private static final DLibLandmarks NO_LANDMARKS = new DLibLandmarks(0);
 
     private final RectF mBound = new RectF();
-    private final List<Landmark> mLandmarks = new CopyOnWriteArrayList<>();
+    private DLibLandmarks mLandmarks = NO_LANDMARKS;
+
+    // The list views of all the landmarks and the regions, created on demand.
+    private List<Landmark> mAllLandmarkList;
+    private List<Landmark> mChinList;
+    private List<Landmark> mLeftEyebrowList;
+    private List<Landmark> mRightEyebrowList;
+    private List<Landmark> mLeftEyeList;
+    private List<Landmark> mRightEyeList;
+    private List<Landmark> mNoseList;
+    private List<Landmark> mInnerLipsList;
+    private List<Landmark> mOuterLipsList;
 
     public DLibFace68(Messages.Face rawFace) {
         // Bound.
@@ -59,10 +87,51 @@ public class DLibFace68 extends DLibFace {
                    rawFace.getBound().getBottom());
 
         // Landmarks.
+        mLandmarks = new DLibLandmarks(rawFace.getLandmarksCount());
         for (int i = 0; i < rawFace.getLandmarksCount(); ++i) {
-            Messages.Landmark rawLandmark = rawFace.getLandmarks(i);
+            final Messages.Landmark rawLandmark = rawFace.getLandmarks(i);
+            mLandmarks.set(i, rawLandmark.getX(), rawLandmark.getY());
+        }
+    }
+
+    /**
+     * Read the face from the {@link DLibFaceBuffer}.
+     */
+    public static DLibFace68 getFace(DLibFaceBuffer faceBuffer,
+                                     int index) {
+        return new DLibFace68(faceBuffer.getBuffer(),
+                              faceBuffer.getFaceOffset(index),
+                              faceBuffer.getLandmarkCount());
+    }
 
-            mLandmarks.add(new Landmark(rawLandmark));
+    /**
+     * Append all the faces in the {@link DLibFaceBuffer} to the given list.
+     */
+    public static void getFaces(DLibFaceBuffer faceBuffer,
+                                List<DLibFace> out) {
+        final int count = faceBuffer.getAvailableFaceCount();
+        for (int i = 0; i < count; ++i) {
+            out.add(getFace(faceBuffer, i));
+        }
+    }
+
+    /**
+     * Read a face from the packed layout of {@link DLibFaceBuffer}.
+     */
+    DLibFace68(ByteBuffer buffer,
+               int offset,
+               int landmarkCount) {
+        // Bound.
+        mBound.set(buffer.getFloat(offset),
+                   buffer.getFloat(offset + 4),
+                   buffer.getFloat(offset + 8),
+                   buffer.getFloat(offset + 12));
+
+        // Landmarks.
+        mLandmarks = new DLibLandmarks(landmarkCount);
+        final float[] points = mLandmarks.getPoints();
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = buffer.getFloat(offset + 16 + 4 * i);
         }
     }
 
@@ -82,18 +151,13 @@ public class DLibFace68 extends DLibFace {
                    other.getBound().bottom * scaleY);
 
         // Landmarks.
-        for (int i = 0; i < other.getAllLandmarks().size(); ++i) {
-            final DLibFace68.Landmark landmark = other.getAllLandmarks().get(i);
-            mLandmarks.add(new DLibFace68.Landmark(
-                landmark.x * scaleX,
-                landmark.y * scaleY));
-        }
+        mLandmarks = new DLibLandmarks(other.getLandmarks());
+        mLandmarks.scale(scaleX, scaleY);
     }
 
     public DLibFace68(List<Landmark> landmarks) {
         // Landmarks.
-        mLandmarks.clear();
-        mLandmarks.addAll(landmarks);
+        setAllLandmarks(landmarks);
 
         // Calculate bound by the given landmarks.
         float left = Float.MAX_VALUE;
@@ -115,54 +179,112 @@ public class DLibFace68 extends DLibFace {
         return mBound;
     }
 
+    @Override
+    public DLibLandmarks getLandmarks() {
+        return mLandmarks;
+    }
+
     public void setAllLandmarks(List<Landmark> landmarks) {
-        mLandmarks.clear();
-        mLandmarks.addAll(landmarks);
+        final DLibLandmarks packed = new DLibLandmarks(landmarks.size());
+        for (int i = 0; i < landmarks.size(); ++i) {
+            final Landmark landmark = landmarks.get(i);
+            packed.set(i, landmark.x, landmark.y);
+        }
+        mLandmarks = packed;
+    }
+
+    /**
+     * Scale the bound and the landmarks in place, e.g. from the normalized
+     * coordinates to the pixels.
+     */
+    public void scale(float scaleX,
+                      float scaleY) {
+        mBound.set(mBound.left * scaleX,
+                   mBound.top * scaleY,
+                   mBound.right * scaleX,
+                   mBound.bottom * scaleY);
+        mLandmarks.scale(scaleX, scaleY);
+    }
+
+    /**
+     * Move the bound and the landmarks in place.
+     */
+    public void translate(float dx,
+                          float dy) {
+        mBound.offset(dx, dy);
+        mLandmarks.translate(dx, dy);
     }
 
     @Override
     public List<Landmark> getAllLandmarks() {
-        return mLandmarks;
+        if (mAllLandmarkList == null) {
+            mAllLandmarkList = new LandmarkList(0, Integer.MAX_VALUE);
+        }
+        return mAllLandmarkList;
     }
 
     @Override
     public List<Landmark> getLeftEyebrowLandmarks() {
-        return mLandmarks.subList(EYEBROW_L_START, EYEBROW_L_END + 1);
+        if (mLeftEyebrowList == null) {
+            mLeftEyebrowList = new LandmarkList(EYEBROW_L_START, EYEBROW_L_END);
+        }
+        return mLeftEyebrowList;
     }
 
     @Override
     public List<Landmark> getRightEyebrowLandmarks() {
-        return mLandmarks.subList(EYEBROW_R_START, EYEBROW_R_END + 1);
+        if (mRightEyebrowList == null) {
+            mRightEyebrowList = new LandmarkList(EYEBROW_R_START, EYEBROW_R_END);
+        }
+        return mRightEyebrowList;
     }
 
     @Override
     public List<Landmark> getLeftEyeLandmarks() {
-        return mLandmarks.subList(EYE_L_START, EYE_L_END + 1);
+        if (mLeftEyeList == null) {
+            mLeftEyeList = new LandmarkList(EYE_L_START, EYE_L_END);
+        }
+        return mLeftEyeList;
     }
 
     @Override
     public List<Landmark> getRightEyeLandmarks() {
-        return mLandmarks.subList(EYE_R_START, EYE_R_END + 1);
+        if (mRightEyeList == null) {
+            mRightEyeList = new LandmarkList(EYE_R_START, EYE_R_END);
+        }
+        return mRightEyeList;
     }
 
     @Override
     public List<Landmark> getNoseLandmarks() {
-        return mLandmarks.subList(NOSE_START, NOSE_END + 1);
+        if (mNoseList == null) {
+            mNoseList = new LandmarkList(NOSE_START, NOSE_END);
+        }
+        return mNoseList;
     }
 
     @Override
     public List<Landmark> getInnerLipsLandmarks() {
-        return mLandmarks.subList(LIPS_INNER_START, LIPS_INNER_END + 1);
+        if (mInnerLipsList == null) {
+            mInnerLipsList = new LandmarkList(LIPS_INNER_START, LIPS_INNER_END);
+        }
+        return mInnerLipsList;
     }
 
     @Override
     public List<Landmark> getOuterLipsLandmarks() {
-        return mLandmarks.subList(LIPS_OUTER_START, LIPS_OUTER_END + 1);
+        if (mOuterLipsList == null) {
+            mOuterLipsList = new LandmarkList(LIPS_OUTER_START, LIPS_OUTER_END);
+        }
+        return mOuterLipsList;
     }
 
     @Override
     public List<Landmark> getChinLandmarks() {
-        return mLandmarks.subList(CHIN_START, CHIN_END + 1);
+        if (mChinList == null) {
+            mChinList = new LandmarkList(CHIN_START, CHIN_END);
+        }
+        return mChinList;
     }
 
     @Override
@@ -172,4 +294,45 @@ public class DLibFace68 extends DLibFace {
                ", mLandmarks=" + mLandmarks +
                '}';
     }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * The read-only view of the landmarks in [start, end] inclusively; it
+     * follows the face's landmarks, and creates a {@link Landmark} for every
+     * get().
+     */
+    private final class LandmarkList
+        extends AbstractList<Landmark>
+        implements RandomAccess {
+
+        final int mStart;
+        final int mEnd;
+
+        LandmarkList(int start,
+                     int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public Landmark get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException(
+                    "index=" + index + ", size=" + size());
+            }
+
+            return new Landmark(mLandmarks.getX(mStart + index),
+                                mLandmarks.getY(mStart + index));
+        }
+
+        @Override
+        public int size() {
+            // Empty if the face has no landmarks, e.g. only the bound is
+            // detected.
+            final int end = (int) Math.min((long) mEnd + 1, mLandmarks.size());
+            return Math.max(0, end - mStart);
+        }
+    }
 }
@@ -0,0 +1,195 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A direct {@link ByteBuffer} that the native detector writes the detected
+ * faces into, so that the result doesn't go through any intermediate message.
+ * The layout is in the native byte order:
+ * <pre>
+ * [int32 faceCount][int32 landmarkCount]
+ * faceCount x {
+ *     [float32 left][float32 top][float32 right][float32 bottom]
+ *     [float32 x][float32 y] x {@link #MAX_LANDMARKS}
+ * }
+ * </pre>
+ * The coordinates are normalized by the image width and height. The face
+ * count in the header is the number of the detected faces, which could be
+ * greater than {@link #getFaceCapacity()}; in that case only the faces fitting
+ * in the buffer are written.
+ * <br/>
+ * It doesn't depend on any platform type; {@link DLibFace68#getFaces} reads
+ * the faces for Android.
+ */
+public class DLibFaceBuffer {
+
+    public static final int HEADER_BYTES = 8;
+    public static final int MAX_LANDMARKS = 68;
+    public static final int FACE_BYTES = (4 + 2 * MAX_LANDMARKS) * 4;
+
+    private static final int DEFAULT_FACE_CAPACITY = 16;
+
+    private ByteBuffer mBuffer;
+
+    public DLibFaceBuffer() {
+        this(DEFAULT_FACE_CAPACITY);
+    }
+
+    public DLibFaceBuffer(int faceCapacity) {
+        mBuffer = allocate(faceCapacity);
+    }
+
+    /**
+     * The direct buffer for the native detector to write.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getFaceCapacity() {
+        return (mBuffer.capacity() - HEADER_BYTES) / FACE_BYTES;
+    }
+
+    /**
+     * Make sure the buffer could hold the given number of faces. The content
+     * is discarded if the buffer is reallocated.
+     *
+     * @return true if the buffer is reallocated.
+     */
+    public boolean ensureFaceCapacity(int faceCount) {
+        if (faceCount <= getFaceCapacity()) return false;
+
+        mBuffer = allocate(Math.max(faceCount, 2 * getFaceCapacity()));
+        return true;
+    }
+
+    /**
+     * The number of the detected faces, which could be greater than the
+     * capacity.
+     */
+    public int getFaceCount() {
+        return mBuffer.getInt(0);
+    }
+
+    /**
+     * The number of landmarks per face; zero if only the bounds are detected.
+     */
+    public int getLandmarkCount() {
+        return mBuffer.getInt(4);
+    }
+
+    /**
+     * The number of the faces in the buffer, which is the face count bounded
+     * by the capacity.
+     */
+    public int getAvailableFaceCount() {
+        return Math.min(getFaceCount(), getFaceCapacity());
+    }
+
+    /**
+     * Copy the normalized bound of the face to the given array.
+     *
+     * @param out The array of [left, top, right, bottom].
+     */
+    public void getBound(int index,
+                         float[] out) {
+        final int offset = getFaceOffset(index);
+        for (int i = 0; i < 4; ++i) {
+            out[i] = mBuffer.getFloat(offset + 4 * i);
+        }
+    }
+
+    /**
+     * Copy the normalized landmarks of the face to the given array.
+     *
+     * @param out The array of [x, y] x {@link #getLandmarkCount()}.
+     */
+    public void getLandmarks(int index,
+                             float[] out) {
+        final int offset = getFaceOffset(index) + 16;
+        final int count = 2 * getLandmarkCount();
+        for (int i = 0; i < count; ++i) {
+            out[i] = mBuffer.getFloat(offset + 4 * i);
+        }
+    }
+
+    /**
+     * Write the header, e.g. for the faces read from a cache instead of the
+     * native detector; the buffer should hold the faces, see
+     * {@link #ensureFaceCapacity(int)}.
+     */
+    public void setHeader(int faceCount,
+                          int landmarkCount) {
+        if (landmarkCount < 0 || landmarkCount > MAX_LANDMARKS) {
+            throw new IllegalArgumentException(
+                "The landmark count must be in [0, " + MAX_LANDMARKS + "].");
+        }
+
+        mBuffer.putInt(0, faceCount);
+        mBuffer.putInt(4, landmarkCount);
+    }
+
+    /**
+     * Write the normalized bound and landmarks of the face, the reverse of
+     * {@link #getBound(int, float[])} and {@link #getLandmarks(int, float[])}.
+     */
+    public void setFace(int index,
+                        float[] bound,
+                        float[] landmarks) {
+        final int offset = getFaceOffset(index);
+        for (int i = 0; i < 4; ++i) {
+            mBuffer.putFloat(offset + 4 * i, bound[i]);
+        }
+
+        final int count = 2 * getLandmarkCount();
+        for (int i = 0; i < count; ++i) {
+            mBuffer.putFloat(offset + 16 + 4 * i, landmarks[i]);
+        }
+    }
+
+    /**
+     * The byte offset of the face in the buffer.
+     */
+    public int getFaceOffset(int index) {
+        if (index < 0 || index >= getAvailableFaceCount()) {
+            throw new IndexOutOfBoundsException(
+                "index=" + index + ", count=" + getFaceCount());
+        }
+
+        return HEADER_BYTES + index * FACE_BYTES;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static ByteBuffer allocate(int faceCapacity) {
+        final ByteBuffer buffer = ByteBuffer
+            .allocateDirect(HEADER_BYTES + faceCapacity * FACE_BYTES)
+            .order(ByteOrder.nativeOrder());
+        buffer.putInt(0, 0);
+        buffer.putInt(4, 0);
+
+        return buffer;
+    }
+}
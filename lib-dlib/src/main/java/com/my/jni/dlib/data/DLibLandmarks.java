@@ -0,0 +1,138 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.jni.dlib.data;
+
+import java.util.Arrays;
+
+/**
+ * The landmarks of a face packed in a single float array,
+ * [x0, y0, x1, y1, ...], so a face of 68 landmarks is one array instead of 68
+ * objects. The landmarks are read by the index, see {@link #getX(int)} and
+ * {@link #getY(int)}, and transformed in bulk.
+ * <br/>
+ * It doesn't depend on any platform type.
+ */
+public class DLibLandmarks {
+
+    private final float[] mPoints;
+
+    /**
+     * The given number of landmarks at the origin.
+     */
+    public DLibLandmarks(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("The count must not be negative.");
+        }
+
+        mPoints = new float[2 * count];
+    }
+
+    public DLibLandmarks(DLibLandmarks other) {
+        mPoints = other.mPoints.clone();
+    }
+
+    /**
+     * The number of landmarks.
+     */
+    public int size() {
+        return mPoints.length / 2;
+    }
+
+    public float getX(int index) {
+        return mPoints[2 * index];
+    }
+
+    public float getY(int index) {
+        return mPoints[2 * index + 1];
+    }
+
+    public void set(int index,
+                    float x,
+                    float y) {
+        mPoints[2 * index] = x;
+        mPoints[2 * index + 1] = y;
+    }
+
+    /**
+     * Copy the landmarks of the same size.
+     */
+    public void set(DLibLandmarks other) {
+        if (other.mPoints.length != mPoints.length) {
+            throw new IllegalArgumentException(
+                "The size " + other.size() + " is not " + size() + ".");
+        }
+
+        System.arraycopy(other.mPoints, 0, mPoints, 0, mPoints.length);
+    }
+
+    /**
+     * The backing array, [x0, y0, x1, y1, ...], e.g. for drawing the points
+     * at once; it's changed by the landmarks' changes and vice versa.
+     */
+    public float[] getPoints() {
+        return mPoints;
+    }
+
+    /**
+     * Scale the landmarks about the origin, e.g. from the normalized
+     * coordinates to the pixels.
+     */
+    public void scale(float scaleX,
+                      float scaleY) {
+        for (int i = 0; i < mPoints.length; i += 2) {
+            mPoints[i] *= scaleX;
+            mPoints[i + 1] *= scaleY;
+        }
+    }
+
+    public void translate(float dx,
+                          float dy) {
+        for (int i = 0; i < mPoints.length; i += 2) {
+            mPoints[i] += dx;
+            mPoints[i + 1] += dy;
+        }
+    }
+
+    /**
+     * Rotate the landmarks clockwise about the pivot in the coordinate whose
+     * y axis points down, e.g. a bitmap's.
+     */
+    public void rotate(float degrees,
+                       float pivotX,
+                       float pivotY) {
+        final double radians = Math.toRadians(degrees);
+        final float cos = (float) Math.cos(radians);
+        final float sin = (float) Math.sin(radians);
+        for (int i = 0; i < mPoints.length; i += 2) {
+            final float x = mPoints[i] - pivotX;
+            final float y = mPoints[i + 1] - pivotY;
+            mPoints[i] = pivotX + x * cos - y * sin;
+            mPoints[i + 1] = pivotY + x * sin + y * cos;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DLibLandmarks{" +
+               "mPoints=" + Arrays.toString(mPoints) +
+               '}';
+    }
+}
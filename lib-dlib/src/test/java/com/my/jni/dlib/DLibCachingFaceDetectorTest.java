@@ -0,0 +1,332 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.my.jni.dlib;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import com.my.jni.dlib.data.DLibFace;
+import com.my.jni.dlib.data.DLibFace68;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs with Robolectric for the real {@link Bitmap} and the bounds of the
+ * faces; the bitmap generations are set by the test, see
+ * {@link #modify(Bitmap)}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DLibCachingFaceDetectorTest {
+
+    private final Map<Bitmap, Integer> mGenerations = new IdentityHashMap<>();
+
+    private IDLibFaceDetector mDetector;
+
+    @Before
+    public void setUp() throws Exception {
+        mDetector = mock(IDLibFaceDetector.class);
+    }
+
+    @Test
+    public void findFaces_hitSkipsDetection() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        final Bitmap bitmap = newBitmap(0);
+        when(mDetector.findFaces(bitmap)).thenReturn(newFaces(0.1f));
+
+        final List<DLibFace> missed = cache.findFaces(bitmap);
+        final List<DLibFace> hit = cache.findFaces(bitmap);
+
+        verify(mDetector, times(1)).findFaces(bitmap);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+
+        // The hit is a copy of the cached faces.
+        assertNotSame(missed.get(0), hit.get(0));
+        assertEquals(missed.get(0).getBound().left, hit.get(0).getBound().left, 0f);
+    }
+
+    @Test
+    public void findFaces_missIfGenerationChanged() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        final Bitmap bitmap = newBitmap(0);
+        when(mDetector.findFaces(bitmap)).thenReturn(newFaces(0.1f));
+
+        cache.findFaces(bitmap);
+        modify(bitmap);
+        cache.findFaces(bitmap);
+        cache.findFaces(bitmap);
+
+        verify(mDetector, times(2)).findFaces(bitmap);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void findFaces_missForAnotherBitmap() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        final Bitmap bitmap = newBitmap(0);
+        final Bitmap copy = newBitmap(0);
+        when(mDetector.findFaces(bitmap)).thenReturn(newFaces(0.1f));
+        when(mDetector.findFaces(copy)).thenReturn(newFaces(0.1f));
+
+        cache.findFaces(bitmap);
+        cache.findFaces(copy);
+
+        // The same pixels but not the same bitmap.
+        verify(mDetector, times(1)).findFaces(bitmap);
+        verify(mDetector, times(1)).findFaces(copy);
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void findFaces_keyedByPixelHashIfEnabled() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        cache.setPixelHashEnabled(true);
+        final Bitmap bitmap = newBitmap(0);
+        final Bitmap copy = newBitmap(0);
+        final Bitmap other = newBitmap(0xff00ff00);
+        when(mDetector.findFaces(bitmap)).thenReturn(newFaces(0.1f));
+        when(mDetector.findFaces(other)).thenReturn(newFaces(0.2f));
+
+        cache.findFaces(bitmap);
+        final List<DLibFace> hit = cache.findFaces(copy);
+        cache.findFaces(other);
+
+        // The copy of the pixels shares the cached faces.
+        verify(mDetector, never()).findFaces(copy);
+        verify(mDetector, times(1)).findFaces(other);
+        assertEquals(0.1f, hit.get(0).getBound().left, 0f);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void findFaces_separateFromLandmarks() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        final Bitmap bitmap = newBitmap(0);
+        when(mDetector.findFaces(bitmap)).thenReturn(newFaces(0.1f));
+        when(mDetector.findFacesAndLandmarks(bitmap)).thenReturn(newFaces(0.2f));
+
+        cache.findFaces(bitmap);
+        assertEquals(0.2f, cache.findFacesAndLandmarks(bitmap).get(0).getBound().left, 0f);
+
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+        final DLibCachingFaceDetector cache = newCache(2, Long.MAX_VALUE);
+        final Bitmap first = newBitmap(0);
+        final Bitmap second = newBitmap(0);
+        final Bitmap third = newBitmap(0);
+        when(mDetector.findFaces(first)).thenReturn(newFaces(0.1f));
+        when(mDetector.findFaces(second)).thenReturn(newFaces(0.2f));
+        when(mDetector.findFaces(third)).thenReturn(newFaces(0.3f));
+
+        cache.findFaces(first);
+        cache.findFaces(second);
+        // The hit makes the first one the most recently used.
+        cache.findFaces(first);
+        cache.findFaces(third);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+
+        cache.findFaces(first);
+        cache.findFaces(second);
+        verify(mDetector, times(1)).findFaces(first);
+        verify(mDetector, times(2)).findFaces(second);
+    }
+
+    @Test
+    public void put_evictsOverByteLimit() {
+        final DLibCachingFaceDetector cache = newCache(4, 1);
+        final Bitmap bitmap = newBitmap(0);
+        when(mDetector.findFaces(bitmap)).thenReturn(newFaces(0.1f));
+
+        cache.findFaces(bitmap);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getByteCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void setFaceDetectorConfig_clears() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        final Bitmap bitmap = newBitmap(0);
+        when(mDetector.findFaces(bitmap)).thenReturn(newFaces(0.1f));
+
+        cache.findFaces(bitmap);
+        cache.setFaceDetectorConfig(DLibFaceDetectorConfig.DEFAULT);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getByteCount());
+        cache.findFaces(bitmap);
+        verify(mDetector, times(2)).findFaces(bitmap);
+        verify(mDetector).setFaceDetectorConfig(DLibFaceDetectorConfig.DEFAULT);
+    }
+
+    @Test
+    public void findFaces_notCachedIfReconfiguredWhileDetecting() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        final Bitmap bitmap = newBitmap(0);
+        when(mDetector.findFaces(bitmap)).thenAnswer(new Answer<List<DLibFace>>() {
+            @Override
+            public List<DLibFace> answer(InvocationOnMock invocation) {
+                // Detected by the previous configuration.
+                cache.setFaceDetectorConfig(DLibFaceDetectorConfig.DEFAULT);
+                return newFaces(0.1f);
+            }
+        });
+
+        assertEquals(1, cache.findFaces(bitmap).size());
+
+        assertEquals(0, cache.size());
+        cache.findFaces(bitmap);
+        verify(mDetector, times(2)).findFaces(bitmap);
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void findFacesAndLandmarks_detectsOnlyMissesInBatch() {
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        final Bitmap cached = newBitmap(0);
+        final Bitmap missed = newBitmap(0);
+        final List<List<DLibFace>> detected = new ArrayList<>();
+        detected.add(newFaces(0.2f));
+        when(mDetector.findFacesAndLandmarks(cached)).thenReturn(newFaces(0.1f));
+        when(mDetector.findFacesAndLandmarks(Arrays.asList(missed))).thenReturn(detected);
+
+        cache.findFacesAndLandmarks(cached);
+        final List<List<DLibFace>> batch =
+            cache.findFacesAndLandmarks(Arrays.asList(cached, missed));
+
+        verify(mDetector, times(1)).findFacesAndLandmarks(Arrays.asList(missed));
+        assertEquals(2, batch.size());
+        assertEquals(0.1f, batch.get(0).get(0).getBound().left, 0f);
+        assertEquals(0.2f, batch.get(1).get(0).getBound().left, 0f);
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void entriesDroppedWithCollectedBitmaps() throws Exception {
+        // Not a mock, which keeps the bitmap of the last invocation.
+        mDetector = (IDLibFaceDetector) Proxy.newProxyInstance(
+            IDLibFaceDetector.class.getClassLoader(),
+            new Class<?>[]{IDLibFaceDetector.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy,
+                                     Method method,
+                                     Object[] args) {
+                    return newFaces(0.1f);
+                }
+            });
+        final DLibCachingFaceDetector cache = newCache(4, Long.MAX_VALUE);
+        cacheUnreachableBitmap(cache);
+        assertEquals(1, cache.size());
+
+        for (int i = 0; i < 100 && cache.size() > 0; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getByteCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private DLibCachingFaceDetector newCache(int maxEntries,
+                                             long maxBytes) {
+        return new DLibCachingFaceDetector(mDetector, maxEntries, maxBytes) {
+            @Override
+            int getGenerationId(Bitmap bitmap) {
+                final Integer generation = mGenerations.get(bitmap);
+                return generation != null ? generation : 0;
+            }
+        };
+    }
+
+    /**
+     * A bitmap filled with the given color.
+     */
+    private static Bitmap newBitmap(int color) {
+        final Bitmap bitmap = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < bitmap.getHeight(); ++y) {
+            for (int x = 0; x < bitmap.getWidth(); ++x) {
+                bitmap.setPixel(x, y, color);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Bump the generation of the bitmap as modifying its pixels does.
+     */
+    private void modify(Bitmap bitmap) {
+        final Integer generation = mGenerations.get(bitmap);
+        mGenerations.put(bitmap, generation != null ? generation + 1 : 1);
+    }
+
+    /**
+     * Cache the faces of a bitmap which is unreachable once it returns.
+     */
+    private static void cacheUnreachableBitmap(DLibCachingFaceDetector cache) {
+        cache.findFaces(newBitmap(0));
+    }
+
+    private static List<DLibFace> newFaces(float left) {
+        final List<DLibFace> faces = new ArrayList<>();
+        faces.add(new DLibFace68(new RectF(left, 0.2f, left + 0.3f, 0.6f)));
+        return faces;
+    }
+}
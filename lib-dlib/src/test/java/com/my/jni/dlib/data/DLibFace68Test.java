@@ -0,0 +1,236 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.my.jni.dlib.data;
+
+import android.graphics.RectF;
+
+import com.my.jni.dlib.data.DLibFace.Landmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with Robolectric for the real {@link RectF} of the bound.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DLibFace68Test {
+
+    private static final float DELTA = 1e-5f;
+
+    @Test
+    public void getFace_readsPackedLayout() {
+        final DLibFaceBuffer buffer = newBuffer(2, DLibFaceBuffer.MAX_LANDMARKS);
+
+        for (int i = 0; i < 2; ++i) {
+            final DLibFace68 face = DLibFace68.getFace(buffer, i);
+            assertBound(newBound(i), face.getBound());
+            assertEquals(DLibFaceBuffer.MAX_LANDMARKS, face.getLandmarks().size());
+            for (int j = 0; j < DLibFaceBuffer.MAX_LANDMARKS; ++j) {
+                assertEquals(x(i, j), face.getLandmarks().getX(j), DELTA);
+                assertEquals(y(i, j), face.getLandmarks().getY(j), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void getFaces_appendsAvailableFaces() {
+        final DLibFaceBuffer buffer = newBuffer(2, DLibFaceBuffer.MAX_LANDMARKS);
+        final List<DLibFace> faces = new ArrayList<>();
+        faces.add(new DLibFace68(new RectF()));
+
+        DLibFace68.getFaces(buffer, faces);
+
+        assertEquals(3, faces.size());
+        assertBound(newBound(1), faces.get(2).getBound());
+    }
+
+    @Test
+    public void regions_sizesAndBounds() {
+        final DLibFace68 face = DLibFace68.getFace(
+            newBuffer(1, DLibFaceBuffer.MAX_LANDMARKS), 0);
+
+        assertRegion(face.getAllLandmarks(), 0, 67);
+        assertRegion(face.getChinLandmarks(),
+                     DLibFace68.CHIN_START, DLibFace68.CHIN_END);
+        assertRegion(face.getLeftEyebrowLandmarks(),
+                     DLibFace68.EYEBROW_L_START, DLibFace68.EYEBROW_L_END);
+        assertRegion(face.getRightEyebrowLandmarks(),
+                     DLibFace68.EYEBROW_R_START, DLibFace68.EYEBROW_R_END);
+        assertRegion(face.getNoseLandmarks(),
+                     DLibFace68.NOSE_START, DLibFace68.NOSE_END);
+        assertRegion(face.getLeftEyeLandmarks(),
+                     DLibFace68.EYE_L_START, DLibFace68.EYE_L_END);
+        assertRegion(face.getRightEyeLandmarks(),
+                     DLibFace68.EYE_R_START, DLibFace68.EYE_R_END);
+        assertRegion(face.getOuterLipsLandmarks(),
+                     DLibFace68.LIPS_OUTER_START, DLibFace68.LIPS_OUTER_END);
+        assertRegion(face.getInnerLipsLandmarks(),
+                     DLibFace68.LIPS_INNER_START, DLibFace68.LIPS_INNER_END);
+
+        assertEquals(68, face.getAllLandmarks().size());
+        assertEquals(17, face.getChinLandmarks().size());
+        assertEquals(5, face.getLeftEyebrowLandmarks().size());
+        assertEquals(8, face.getNoseLandmarks().size());
+        assertEquals(6, face.getRightEyeLandmarks().size());
+        assertEquals(12, face.getOuterLipsLandmarks().size());
+        assertEquals(8, face.getInnerLipsLandmarks().size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void regions_rejectOutOfRange() {
+        final DLibFace68 face = DLibFace68.getFace(
+            newBuffer(1, DLibFaceBuffer.MAX_LANDMARKS), 0);
+
+        face.getLeftEyeLandmarks().get(6);
+    }
+
+    @Test
+    public void regions_emptyForBoundsOnlyFace() {
+        final DLibFace68 face = DLibFace68.getFace(newBuffer(1, 0), 0);
+
+        assertBound(newBound(0), face.getBound());
+        assertEquals(0, face.getLandmarks().size());
+        assertTrue(face.getAllLandmarks().isEmpty());
+        assertTrue(face.getChinLandmarks().isEmpty());
+        assertTrue(face.getNoseLandmarks().isEmpty());
+        assertTrue(face.getInnerLipsLandmarks().isEmpty());
+    }
+
+    @Test
+    public void regions_followTheLandmarks() {
+        final DLibFace68 face = DLibFace68.getFace(
+            newBuffer(1, DLibFaceBuffer.MAX_LANDMARKS), 0);
+        final List<Landmark> nose = face.getNoseLandmarks();
+
+        face.translate(1f, 2f);
+
+        assertEquals(x(0, DLibFace68.NOSE_START) + 1f, nose.get(0).x, DELTA);
+        assertEquals(y(0, DLibFace68.NOSE_START) + 2f, nose.get(0).y, DELTA);
+    }
+
+    @Test
+    public void scaleAndTranslate_boundAndLandmarks() {
+        final DLibFace68 face = DLibFace68.getFace(
+            newBuffer(1, DLibFaceBuffer.MAX_LANDMARKS), 0);
+
+        face.scale(100f, 200f);
+        face.translate(-10f, 5f);
+
+        final float[] bound = newBound(0);
+        assertBound(new float[]{bound[0] * 100f - 10f,
+                                bound[1] * 200f + 5f,
+                                bound[2] * 100f - 10f,
+                                bound[3] * 200f + 5f},
+                    face.getBound());
+        assertEquals(x(0, 30) * 100f - 10f, face.getLandmarks().getX(30), 1e-3f);
+        assertEquals(y(0, 30) * 200f + 5f, face.getLandmarks().getY(30), 1e-3f);
+    }
+
+    @Test
+    public void copyConstructor_isIndependent() {
+        final DLibFace68 face = DLibFace68.getFace(
+            newBuffer(1, DLibFaceBuffer.MAX_LANDMARKS), 0);
+        final DLibFace68 copy = new DLibFace68(face);
+
+        face.scale(2f, 2f);
+
+        assertBound(newBound(0), copy.getBound());
+        assertEquals(DLibFaceBuffer.MAX_LANDMARKS, copy.getLandmarks().size());
+        assertEquals(x(0, 10), copy.getLandmarks().getX(10), DELTA);
+        assertEquals(y(0, 10), copy.getLandmarks().getY(10), DELTA);
+    }
+
+    @Test
+    public void copyConstructor_scales() {
+        final DLibFace68 face = DLibFace68.getFace(
+            newBuffer(1, DLibFaceBuffer.MAX_LANDMARKS), 0);
+        final DLibFace68 copy = new DLibFace68(face, 10f, 20f);
+
+        final float[] bound = newBound(0);
+        assertBound(new float[]{bound[0] * 10f,
+                                bound[1] * 20f,
+                                bound[2] * 10f,
+                                bound[3] * 20f},
+                    copy.getBound());
+        assertEquals(x(0, 10) * 10f, copy.getLandmarks().getX(10), DELTA);
+        assertEquals(y(0, 10) * 20f, copy.getLandmarks().getY(10), DELTA);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static DLibFaceBuffer newBuffer(int faceCount,
+                                            int landmarkCount) {
+        final DLibFaceBuffer buffer = new DLibFaceBuffer(faceCount);
+        buffer.setHeader(faceCount, landmarkCount);
+
+        for (int i = 0; i < faceCount; ++i) {
+            final float[] landmarks = new float[2 * landmarkCount];
+            for (int j = 0; j < landmarkCount; ++j) {
+                landmarks[2 * j] = x(i, j);
+                landmarks[2 * j + 1] = y(i, j);
+            }
+            buffer.setFace(i, newBound(i), landmarks);
+        }
+
+        return buffer;
+    }
+
+    private static float[] newBound(int face) {
+        return new float[]{0.1f * face, 0.2f, 0.1f * face + 0.3f, 0.6f};
+    }
+
+    private static float x(int face,
+                           int landmark) {
+        return 0.1f * face + landmark / 1000f;
+    }
+
+    private static float y(int face,
+                           int landmark) {
+        return 0.2f + landmark / 500f;
+    }
+
+    private static void assertBound(float[] expected,
+                                    RectF actual) {
+        assertEquals(expected[0], actual.left, DELTA);
+        assertEquals(expected[1], actual.top, DELTA);
+        assertEquals(expected[2], actual.right, DELTA);
+        assertEquals(expected[3], actual.bottom, DELTA);
+    }
+
+    private static void assertRegion(List<Landmark> region,
+                                     int start,
+                                     int end) {
+        assertEquals(end - start + 1, region.size());
+        assertEquals(x(0, start), region.get(0).x, DELTA);
+        assertEquals(y(0, start), region.get(0).y, DELTA);
+        assertEquals(x(0, end), region.get(region.size() - 1).x, DELTA);
+        assertEquals(y(0, end), region.get(region.size() - 1).y, DELTA);
+    }
+}
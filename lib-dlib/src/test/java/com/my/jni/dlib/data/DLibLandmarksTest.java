@@ -0,0 +1,107 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.my.jni.dlib.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class DLibLandmarksTest {
+
+    private static final float DELTA = 1e-5f;
+
+    @Test
+    public void scale_aboutOrigin() {
+        final DLibLandmarks landmarks = newLandmarks(1f, 2f, -3f, 4f);
+        landmarks.scale(2f, 0.5f);
+
+        assertArrayEquals(new float[]{2f, 1f, -6f, 2f},
+                          landmarks.getPoints(), DELTA);
+    }
+
+    @Test
+    public void translate() {
+        final DLibLandmarks landmarks = newLandmarks(1f, 2f, -3f, 4f);
+        landmarks.translate(10f, -1f);
+
+        assertArrayEquals(new float[]{11f, 1f, 7f, 3f},
+                          landmarks.getPoints(), DELTA);
+    }
+
+    @Test
+    public void rotate_clockwiseAboutPivot() {
+        // The y axis points down, so the right of the pivot goes below it.
+        final DLibLandmarks landmarks = newLandmarks(2f, 1f, 1f, 2f);
+        landmarks.rotate(90f, 1f, 1f);
+
+        assertArrayEquals(new float[]{1f, 2f, 0f, 1f},
+                          landmarks.getPoints(), DELTA);
+    }
+
+    @Test
+    public void rotate_fullTurnIsIdentity() {
+        final DLibLandmarks landmarks = newLandmarks(0.3f, 0.7f, 0.9f, 0.1f);
+        landmarks.rotate(360f, 0.5f, 0.5f);
+
+        assertArrayEquals(new float[]{0.3f, 0.7f, 0.9f, 0.1f},
+                          landmarks.getPoints(), DELTA);
+    }
+
+    @Test
+    public void copyConstructor_isIndependent() {
+        final DLibLandmarks landmarks = newLandmarks(1f, 2f, 3f, 4f);
+        final DLibLandmarks copy = new DLibLandmarks(landmarks);
+        landmarks.set(0, 9f, 9f);
+
+        assertEquals(2, copy.size());
+        assertEquals(1f, copy.getX(0), DELTA);
+        assertEquals(2f, copy.getY(0), DELTA);
+        assertEquals(3f, copy.getX(1), DELTA);
+        assertEquals(4f, copy.getY(1), DELTA);
+    }
+
+    @Test
+    public void set_copiesOther() {
+        final DLibLandmarks landmarks = new DLibLandmarks(2);
+        final float[] points = landmarks.getPoints();
+        landmarks.set(newLandmarks(1f, 2f, 3f, 4f));
+
+        assertSame(points, landmarks.getPoints());
+        assertArrayEquals(new float[]{1f, 2f, 3f, 4f}, points, DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void set_rejectsSizeMismatch() {
+        new DLibLandmarks(2).set(new DLibLandmarks(3));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static DLibLandmarks newLandmarks(float... points) {
+        final DLibLandmarks landmarks = new DLibLandmarks(points.length / 2);
+        for (int i = 0; i < points.length; i += 2) {
+            landmarks.set(i / 2, points[i], points[i + 1]);
+        }
+        return landmarks;
+    }
+}
@@ -0,0 +1,306 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <fstream>
+#include <functional>
+#include <iostream>
+#include <memory>
+#include <random>
+#include <string>
+#include <vector>
+#include <dlib/image_io.h>
+#include <dlib/image_transforms.h>
+#include <dlib/image_processing/frontal_face_detector.h>
+#include <my/worker_pool.h>
+#include <my/dlib/face_buffer.h>
+#include <my/dlib/image_util.h>
+#include <my/dlib/model_cache.h>
+#include <my/dlib/parallel_face_detector.h>
+
+/**
+ * Measure the native kernels behind the JNI entry points on the host:
+ * <ul>
+ *     <li>The bitmap and the luminance plane conversions.</li>
+ *     <li>The HOG face detection, serial and on the workers.</li>
+ *     <li>The shape predictor per face, with the dlib or the compact model.</li>
+ *     <li>The serialization of the faces to the output buffer.</li>
+ * </ul>
+ * Every kernel runs until the minimum time is spent and it reports ns/op
+ * and ops/s, where an op is a frame or a face. The faces are detected in the
+ * given images; without images the kernels run on a noise frame with fixed
+ * boxes, so the numbers are comparable but not realistic.
+ */
+
+struct Sample {
+    // The RGBA_8888 pixels as an Android bitmap holds them.
+    std::vector<uint8_t> rgba;
+    // The luminance plane as the camera's Y plane.
+    std::vector<uint8_t> luminance;
+    long width;
+    long height;
+
+    dlib::array2d<unsigned char> gray;
+    std::vector<dlib::rectangle> faces;
+};
+
+struct Result {
+    std::string name;
+    std::string unit;
+    unsigned long ops;
+    double nanosPerOp;
+};
+
+static double getNanosSince(const std::chrono::steady_clock::time_point& start) {
+    return std::chrono::duration<double, std::nano>(
+        std::chrono::steady_clock::now() - start).count();
+}
+
+static void setPixels(Sample& sample,
+                      const dlib::array2d<dlib::rgb_pixel>& image) {
+    sample.width = image.nc();
+    sample.height = image.nr();
+    sample.rgba.resize((size_t) (4 * sample.width * sample.height));
+    sample.luminance.resize((size_t) (sample.width * sample.height));
+    for (long y = 0; y < sample.height; ++y) {
+        for (long x = 0; x < sample.width; ++x) {
+            const dlib::rgb_pixel& p = image[y][x];
+            uint8_t* rgba = &sample.rgba[(size_t) (4 * (y * sample.width + x))];
+            rgba[0] = p.red;
+            rgba[1] = p.green;
+            rgba[2] = p.blue;
+            rgba[3] = 0xFF;
+            sample.luminance[(size_t) (y * sample.width + x)] =
+                (uint8_t) ((p.red * 77 + p.green * 150 + p.blue * 29) >> 8);
+        }
+    }
+    copyLuminanceToArray2d(sample.luminance.data(), sample.width, sample.height,
+                           sample.width, 1, 0, false, sample.gray);
+}
+
+static void loadSamples(const std::vector<std::string>& paths,
+                        dlib::frontal_face_detector& detector,
+                        std::vector<Sample>& samples) {
+    for (unsigned long i = 0; i < paths.size(); ++i) {
+        dlib::array2d<dlib::rgb_pixel> image;
+        dlib::load_image(image, paths[i]);
+
+        samples.push_back(Sample());
+        setPixels(samples.back(), image);
+        samples.back().faces = detector(samples.back().gray);
+        printf("%s: %ldx%ld, %lu faces\n", paths[i].c_str(),
+               image.nc(), image.nr(), (unsigned long) samples.back().faces.size());
+    }
+    if (!samples.empty()) return;
+
+    std::mt19937 random(0);
+    dlib::array2d<dlib::rgb_pixel> image(480, 640);
+    for (long y = 0; y < image.nr(); ++y) {
+        for (long x = 0; x < image.nc(); ++x) {
+            image[y][x] = dlib::rgb_pixel((unsigned char) (random() % 256),
+                                          (unsigned char) (random() % 256),
+                                          (unsigned char) (random() % 256));
+        }
+    }
+    samples.push_back(Sample());
+    setPixels(samples.back(), image);
+    for (long i = 0; i < 4; ++i) {
+        samples.back().faces.push_back(
+            dlib::rectangle(40 + 140 * i, 160, 160 + 140 * i, 280));
+    }
+    printf("noise: 640x480, %lu boxes\n", (unsigned long) samples.back().faces.size());
+}
+
+/**
+ * Run the kernel, which does the given number of ops per run, until the
+ * minimum time is spent.
+ */
+static Result measure(const std::string& name,
+                      const std::string& unit,
+                      unsigned long opsPerRun,
+                      double minNanos,
+                      const std::function<void()>& kernel) {
+    // Warm up the caches and the allocations.
+    kernel();
+
+    unsigned long runs = 0;
+    const std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+    double elapsed = 0;
+    do {
+        kernel();
+        ++runs;
+        elapsed = getNanosSince(start);
+    } while (elapsed < minNanos);
+
+    Result result;
+    result.name = name;
+    result.unit = unit;
+    result.ops = runs * opsPerRun;
+    result.nanosPerOp = result.ops > 0 ? elapsed / result.ops : 0;
+    return result;
+}
+
+static void printResults(const std::vector<Result>& results) {
+    printf("%-28s %12s %14s %14s\n", "kernel", "ops", "ns/op", "ops/s");
+    for (unsigned long i = 0; i < results.size(); ++i) {
+        const Result& result = results[i];
+        printf("%-28s %12lu %14.0f %10.1f %-6s\n",
+               result.name.c_str(), result.ops, result.nanosPerOp,
+               result.nanosPerOp > 0 ? 1e9 / result.nanosPerOp : 0,
+               result.unit.c_str());
+    }
+}
+
+static void writeJson(const std::string& path,
+                      const std::vector<Result>& results) {
+    std::ofstream out(path.c_str());
+    out << "[";
+    for (unsigned long i = 0; i < results.size(); ++i) {
+        const Result& result = results[i];
+        out << (i > 0 ? ",\n " : "\n ")
+            << "{\"name\":\"" << result.name << "\""
+            << ",\"unit\":\"" << result.unit << "\""
+            << ",\"ops\":" << result.ops
+            << ",\"ns_per_op\":" << result.nanosPerOp
+            << ",\"ops_per_sec\":" << (result.nanosPerOp > 0 ? 1e9 / result.nanosPerOp : 0)
+            << "}";
+    }
+    out << "\n]\n";
+}
+
+int main(int argc, char** argv) {
+    std::string modelPath;
+    std::string jsonPath;
+    double minNanos = 1e9;
+    std::vector<std::string> imagePaths;
+    for (int i = 1; i < argc; ++i) {
+        const std::string arg(argv[i]);
+        if (arg == "--json" && i + 1 < argc) {
+            jsonPath = argv[++i];
+        } else if (arg == "--min-time" && i + 1 < argc) {
+            minNanos = 1e6 * atof(argv[++i]);
+        } else if (modelPath.empty()) {
+            modelPath = arg;
+        } else {
+            imagePaths.push_back(arg);
+        }
+    }
+    if (modelPath.empty()) {
+        std::cerr << "Usage: " << argv[0]
+                  << " [--json <output>] [--min-time <ms>] <model.dat|model.csp> [image...]"
+                  << std::endl;
+        return 1;
+    }
+
+    try {
+        const std::shared_ptr<const ShapeModel> predictor =
+            ModelCache::getShapePredictor(modelPath);
+        const std::shared_ptr<const dlib::frontal_face_detector> baseDetector =
+            ModelCache::getFrontalFaceDetector();
+        // The detector owns the mutable scanner state.
+        dlib::frontal_face_detector detector = *baseDetector;
+        WorkerPool workers(WorkerPool::getCoreCount());
+
+        std::vector<Sample> samples;
+        loadSamples(imagePaths, detector, samples);
+
+        unsigned long faceCount = 0;
+        for (unsigned long i = 0; i < samples.size(); ++i) {
+            faceCount += samples[i].faces.size();
+        }
+        printf("%u threads, %s model\n", workers.parallelism(),
+               predictor->isCompact() ? "compact" : "dlib");
+
+        dlib::array2d<dlib::rgb_pixel> rgbImage;
+        dlib::array2d<unsigned char> grayImage;
+        std::vector<dlib::rect_detection> detections;
+        ParallelFaceDetector<unsigned char> parallelDetector;
+        std::vector<dlib::full_object_detection> shapes(faceCount);
+        std::vector<uint8_t> output((size_t) (FaceBuffer::HEADER_SIZE +
+                                              std::max(1UL, faceCount) * FaceBuffer::FACE_SIZE));
+
+        std::vector<Result> results;
+        results.push_back(measure(
+            "bitmapConversion", "frames", samples.size(), minNanos, [&]() {
+                for (unsigned long i = 0; i < samples.size(); ++i) {
+                    const Sample& sample = samples[i];
+                    copyRgbaToArray2d(sample.rgba.data(), sample.width, sample.height,
+                                      4 * sample.width, rgbImage);
+                }
+            }));
+        results.push_back(measure(
+            "luminanceConversion(90)", "frames", samples.size(), minNanos, [&]() {
+                for (unsigned long i = 0; i < samples.size(); ++i) {
+                    const Sample& sample = samples[i];
+                    copyLuminanceToArray2d(sample.luminance.data(), sample.width, sample.height,
+                                           sample.width, 1, 90, false, grayImage);
+                }
+            }));
+        results.push_back(measure(
+            "faceDetection", "frames", samples.size(), minNanos, [&]() {
+                for (unsigned long i = 0; i < samples.size(); ++i) {
+                    detector(samples[i].gray, detections);
+                }
+            }));
+        results.push_back(measure(
+            "faceDetectionParallel", "frames", samples.size(), minNanos, [&]() {
+                for (unsigned long i = 0; i < samples.size(); ++i) {
+                    parallelDetector.detect(*baseDetector, workers, samples[i].gray, detections);
+                }
+            }));
+        if (faceCount > 0) {
+            results.push_back(measure(
+                "shapePrediction", "faces", faceCount, minNanos, [&]() {
+                    unsigned long k = 0;
+                    for (unsigned long i = 0; i < samples.size(); ++i) {
+                        for (unsigned long j = 0; j < samples[i].faces.size(); ++j) {
+                            shapes[k++] = (*predictor)(samples[i].gray, samples[i].faces[j]);
+                        }
+                    }
+                }));
+            results.push_back(measure(
+                "serialization", "faces", faceCount, minNanos, [&]() {
+                    FaceBuffer out(output.data(), (int64_t) output.size());
+                    out.writeHeader((long) faceCount, predictor->num_parts());
+                    unsigned long k = 0;
+                    for (unsigned long i = 0; i < samples.size(); ++i) {
+                        for (unsigned long j = 0; j < samples[i].faces.size(); ++j, ++k) {
+                            out.writeFace((long) k, samples[i].faces[j],
+                                          (float) samples[i].width, (float) samples[i].height,
+                                          &shapes[k]);
+                        }
+                    }
+                }));
+        }
+
+        printResults(results);
+        if (!jsonPath.empty()) {
+            writeJson(jsonPath, results);
+        }
+    } catch (std::exception& error) {
+        std::cerr << error.what() << std::endl;
+        return 1;
+    }
+
+    return 0;
+}
@@ -0,0 +1,194 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+#include <chrono>
+#include <cstdio>
+#include <fstream>
+#include <iostream>
+#include <random>
+#include <string>
+#include <vector>
+#include <dlib/image_io.h>
+#include <dlib/image_processing/frontal_face_detector.h>
+#include <dlib/image_processing/shape_predictor.h>
+#include <my/mapped_file.h>
+#include <my/dlib/compact_shape_predictor.h>
+
+/**
+ * Convert a dlib shape predictor model to the compact model and report the
+ * size, the load time and the landmarks error of every leaf format against
+ * the dlib model.
+ * <br/>
+ * The error is measured on the faces detected in the given images; without
+ * images it's measured on random boxes in random noise, which is the worst
+ * case because every feature is near a split threshold.
+ */
+
+struct Sample {
+    dlib::array2d<unsigned char> image;
+    std::vector<dlib::rectangle> faces;
+};
+
+static const char* FORMAT_NAMES[] = {"f32", "f16", "i8"};
+
+static double getMillisSince(const std::chrono::steady_clock::time_point& start) {
+    return std::chrono::duration<double, std::milli>(
+        std::chrono::steady_clock::now() - start).count();
+}
+
+static long getFileSize(const std::string& path) {
+    std::ifstream in(path.c_str(), std::ios::binary | std::ios::ate);
+    return (long) in.tellg();
+}
+
+static void loadSamples(int argc,
+                        char** argv,
+                        std::vector<Sample>& samples) {
+    if (argc > 4) {
+        dlib::frontal_face_detector detector = dlib::get_frontal_face_detector();
+        for (int i = 4; i < argc; ++i) {
+            samples.push_back(Sample());
+            dlib::load_image(samples.back().image, argv[i]);
+            samples.back().faces = detector(samples.back().image);
+        }
+        return;
+    }
+
+    std::mt19937 random(0);
+    for (int i = 0; i < 20; ++i) {
+        samples.push_back(Sample());
+        Sample& sample = samples.back();
+        sample.image.set_size(480, 640);
+        for (long y = 0; y < sample.image.nr(); ++y) {
+            for (long x = 0; x < sample.image.nc(); ++x) {
+                sample.image[y][x] = (unsigned char) (random() % 256);
+            }
+        }
+        for (int j = 0; j < 5; ++j) {
+            const long size = 80 + (long) (random() % 240);
+            const long left = (long) (random() % (640 - size));
+            const long top = (long) (random() % (480 - size));
+            sample.faces.push_back(dlib::rectangle(left, top, left + size, top + size));
+        }
+    }
+}
+
+/**
+ * The landmarks error normalized by the inter-ocular distance of the
+ * reference shape for the 68 landmarks, or by the box width otherwise.
+ */
+static void measureError(const dlib::full_object_detection& reference,
+                         const dlib::full_object_detection& shape,
+                         double& sum,
+                         double& max) {
+    double norm = (double) reference.get_rect().width();
+    if (reference.num_parts() == 68) {
+        norm = dlib::length(reference.part(36) - reference.part(45));
+    }
+    for (unsigned long i = 0; i < reference.num_parts(); ++i) {
+        const double error = dlib::length(reference.part(i) - shape.part(i)) / norm;
+        sum += error;
+        max = std::max(max, error);
+    }
+}
+
+int main(int argc, char** argv) {
+    if (argc < 3) {
+        std::cerr << "Usage: " << argv[0]
+                  << " <model.dat> <output> [f32|f16|i8] [image...]" << std::endl;
+        return 1;
+    }
+
+    const std::string inputPath(argv[1]);
+    const std::string outputPath(argv[2]);
+    const std::string formatName(argc > 3 ? argv[3] : "i8");
+    int outputFormat = -1;
+    for (int f = 0; f < 3; ++f) {
+        if (formatName == FORMAT_NAMES[f]) outputFormat = f;
+    }
+    if (outputFormat < 0) {
+        std::cerr << "Unknown format " << formatName << std::endl;
+        return 1;
+    }
+
+    try {
+        std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+        dlib::shape_predictor reference;
+        dlib::deserialize(inputPath) >> reference;
+        const double referenceLoadTime = getMillisSince(start);
+
+        std::vector<Sample> samples;
+        loadSamples(argc, argv, samples);
+        std::vector<std::vector<dlib::full_object_detection> > referenceShapes(samples.size());
+        unsigned long faceCount = 0;
+        for (unsigned long i = 0; i < samples.size(); ++i) {
+            for (unsigned long j = 0; j < samples[i].faces.size(); ++j) {
+                referenceShapes[i].push_back(reference(samples[i].image, samples[i].faces[j]));
+                ++faceCount;
+            }
+        }
+
+        const long referenceSize = getFileSize(inputPath);
+        printf("%lu faces in %lu %s images\n", faceCount, (unsigned long) samples.size(),
+               argc > 4 ? "given" : "noise");
+        printf("%-6s %12s %8s %10s %12s %12s\n",
+               "format", "bytes", "size", "load(ms)", "mean error", "max error");
+        printf("%-6s %12ld %7.1f%% %10.1f %12s %12s\n",
+               "dat", referenceSize, 100.0, referenceLoadTime, "-", "-");
+
+        for (int f = 0; f < 3; ++f) {
+            // Keep the requested format as the output.
+            const std::string path = f == outputFormat ? outputPath : outputPath + ".report";
+            {
+                std::ifstream in(inputPath.c_str(), std::ios::binary);
+                std::ofstream out(path.c_str(), std::ios::binary);
+                CompactShapePredictor::convert(in, (CompactShapePredictor::LeafFormat) f, out);
+            }
+
+            start = std::chrono::steady_clock::now();
+            std::unique_ptr<MappedFile> file(new MappedFile(path, MappedFile::RANDOM));
+            const long size = (long) file->size();
+            CompactShapePredictor predictor(std::move(file));
+            const double loadTime = getMillisSince(start);
+
+            double sum = 0;
+            double max = 0;
+            for (unsigned long i = 0; i < samples.size(); ++i) {
+                for (unsigned long j = 0; j < samples[i].faces.size(); ++j) {
+                    measureError(referenceShapes[i][j],
+                                 predictor(samples[i].image, samples[i].faces[j]),
+                                 sum, max);
+                }
+            }
+            const double mean = faceCount > 0 ? sum / (faceCount * reference.num_parts()) : 0;
+            printf("%-6s %12ld %7.1f%% %10.1f %12.5f %12.5f\n",
+                   FORMAT_NAMES[f], size, 100.0 * size / referenceSize, loadTime, mean, max);
+
+            if (path != outputPath) {
+                std::remove(path.c_str());
+            }
+        }
+    } catch (std::exception& error) {
+        std::cerr << error.what() << std::endl;
+        return 1;
+    }
+
+    return 0;
+}
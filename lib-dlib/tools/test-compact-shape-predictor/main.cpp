@@ -0,0 +1,320 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+#include <cmath>
+#include <cstdio>
+#include <cstring>
+#include <fstream>
+#include <iostream>
+#include <limits>
+#include <random>
+#include <sstream>
+#include <string>
+#include <vector>
+#include <dlib/image_processing/shape_predictor.h>
+#include <my/mapped_file.h>
+#include <my/dlib/compact_shape_predictor.h>
+
+/**
+ * The host test of {@link CompactShapePredictor}: the half precision
+ * conversion of the FLOAT16 leaves, and that a truncated or corrupted compact
+ * model is rejected by the constructor instead of being read out of bounds.
+ * <br/>
+ * It exits with 1 if any check fails.
+ */
+
+static int sFailures = 0;
+
+#define CHECK(condition) check((condition), #condition, __LINE__)
+
+static void check(bool condition,
+                  const char* expression,
+                  int line) {
+    if (!condition) {
+        std::cerr << "line " << line << ": CHECK(" << expression << ") failed" << std::endl;
+        ++sFailures;
+    }
+}
+
+/**
+ * The byte offsets of the header fields of the compact model.
+ */
+static const size_t VERSION_OFFSET = 4;
+static const size_t PART_COUNT_OFFSET = 8;
+static const size_t TREE_DEPTH_OFFSET = 20;
+static const size_t LEAF_FORMAT_OFFSET = 28;
+static const size_t ANCHORS_OFFSET_OFFSET = 36;
+static const size_t LEAF_SCALES_OFFSET_OFFSET = 44;
+static const size_t SPLITS_OFFSET_OFFSET = 48;
+static const size_t LEAVES_OFFSET_OFFSET = 52;
+static const size_t FILE_SIZE_OFFSET = 56;
+
+static const char* MODEL_PATH = "test-compact-shape-predictor.csp";
+
+static uint32_t getBits(float value) {
+    uint32_t bits;
+    memcpy(&bits, &value, sizeof(bits));
+    return bits;
+}
+
+static void testHalfRoundTrip() {
+    // Every half but the NaNs survives the round trip through the float.
+    for (uint32_t half = 0; half <= 0xffff; ++half) {
+        const bool isNaN = (half & 0x7c00) == 0x7c00 && (half & 0x3ff) != 0;
+        if (isNaN) {
+            CHECK(std::isnan(CompactShapePredictor::halfToFloat((uint16_t) half)));
+            continue;
+        }
+
+        const float value = CompactShapePredictor::halfToFloat((uint16_t) half);
+        CHECK(CompactShapePredictor::floatToHalf(value) == half);
+    }
+}
+
+static void testHalfSubnormals() {
+    const float smallest = std::ldexp(1.f, -24);
+    CHECK(CompactShapePredictor::halfToFloat(0x0001) == smallest);
+    CHECK(CompactShapePredictor::halfToFloat(0x03ff) == 1023 * smallest);
+    CHECK(CompactShapePredictor::halfToFloat(0x8001) == -smallest);
+    CHECK(CompactShapePredictor::floatToHalf(smallest) == 0x0001);
+
+    // Half of the smallest subnormal is a tie, rounded to the even zero;
+    // anything above it rounds up.
+    CHECK(CompactShapePredictor::floatToHalf(0.5f * smallest) == 0x0000);
+    CHECK(CompactShapePredictor::floatToHalf(0.75f * smallest) == 0x0001);
+    CHECK(CompactShapePredictor::floatToHalf(1.5f * smallest) == 0x0002);
+    CHECK(CompactShapePredictor::floatToHalf(2.5f * smallest) == 0x0002);
+    CHECK(CompactShapePredictor::floatToHalf(std::ldexp(1.f, -30)) == 0x0000);
+    CHECK(CompactShapePredictor::floatToHalf(-std::ldexp(1.f, -30)) == 0x8000);
+
+    // The largest subnormal rounds up to the smallest normal.
+    CHECK(CompactShapePredictor::floatToHalf(std::ldexp(1.f, -14) - std::ldexp(1.f, -26)) == 0x0400);
+}
+
+static void testHalfRounding() {
+    CHECK(CompactShapePredictor::floatToHalf(1.f) == 0x3c00);
+    CHECK(CompactShapePredictor::floatToHalf(-2.f) == 0xc000);
+    CHECK(CompactShapePredictor::floatToHalf(-0.f) == 0x8000);
+
+    // The ties round to the even mantissa.
+    CHECK(CompactShapePredictor::floatToHalf(1.f + std::ldexp(1.f, -11)) == 0x3c00);
+    CHECK(CompactShapePredictor::floatToHalf(1.f + 3 * std::ldexp(1.f, -11)) == 0x3c02);
+
+    // The carry of the mantissa goes to the exponent.
+    CHECK(CompactShapePredictor::floatToHalf(2.f - std::ldexp(1.f, -12)) == 0x4000);
+    CHECK(CompactShapePredictor::floatToHalf(2.f - std::ldexp(1.f, -11)) == 0x4000);
+    CHECK(CompactShapePredictor::floatToHalf(2.f - std::ldexp(1.f, -10)) == 0x3fff);
+}
+
+static void testHalfInfinity() {
+    const float infinity = std::numeric_limits<float>::infinity();
+    CHECK(CompactShapePredictor::floatToHalf(infinity) == 0x7c00);
+    CHECK(CompactShapePredictor::floatToHalf(-infinity) == 0xfc00);
+    CHECK(CompactShapePredictor::halfToFloat(0x7c00) == infinity);
+    CHECK(CompactShapePredictor::halfToFloat(0xfc00) == -infinity);
+
+    // The largest half is 65504; the midpoint to the next power of two
+    // carries to infinity.
+    CHECK(CompactShapePredictor::floatToHalf(65504.f) == 0x7bff);
+    CHECK(CompactShapePredictor::floatToHalf(65519.f) == 0x7bff);
+    CHECK(CompactShapePredictor::floatToHalf(65520.f) == 0x7c00);
+    CHECK(CompactShapePredictor::floatToHalf(1e10f) == 0x7c00);
+    CHECK(CompactShapePredictor::floatToHalf(-1e10f) == 0xfc00);
+
+    // The NaN stays a NaN rather than becoming the infinity.
+    const uint16_t nan = CompactShapePredictor::floatToHalf(std::numeric_limits<float>::quiet_NaN());
+    CHECK((nan & 0x7c00) == 0x7c00 && (nan & 0x3ff) != 0);
+    CHECK(getBits(CompactShapePredictor::halfToFloat(0x7e00)) != getBits(infinity));
+}
+
+/**
+ * A small shape predictor of 2 parts, 2 cascades and 3 trees of depth 2 per
+ * cascade, with random splits and leaves.
+ */
+static dlib::shape_predictor createShapePredictor() {
+    using namespace dlib::impl;
+
+    std::mt19937 random(0);
+    std::uniform_real_distribution<float> value(-0.1f, 0.1f);
+
+    const unsigned long partCount = 2;
+    const unsigned long featureCount = 4;
+    dlib::matrix<float, 0, 1> initialShape(2 * partCount);
+    initialShape = -0.2f, -0.1f, 0.2f, 0.1f;
+
+    std::vector<std::vector<regression_tree> > forests(2);
+    std::vector<std::vector<dlib::vector<float, 2> > > pixelCoordinates(forests.size());
+    for (unsigned long c = 0; c < forests.size(); ++c) {
+        for (unsigned long f = 0; f < featureCount; ++f) {
+            pixelCoordinates[c].push_back(dlib::vector<float, 2>(value(random), value(random)));
+        }
+        for (unsigned long t = 0; t < 3; ++t) {
+            regression_tree tree;
+            for (unsigned long i = 0; i < 3; ++i) {
+                split_feature split;
+                split.idx1 = random() % featureCount;
+                split.idx2 = random() % featureCount;
+                split.thresh = 100 * value(random);
+                tree.splits.push_back(split);
+            }
+            for (unsigned long l = 0; l < 4; ++l) {
+                dlib::matrix<float, 0, 1> leaf(2 * partCount);
+                for (long k = 0; k < leaf.size(); ++k) {
+                    leaf(k) = value(random);
+                }
+                tree.leaf_values.push_back(leaf);
+            }
+            forests[c].push_back(tree);
+        }
+    }
+
+    return dlib::shape_predictor(initialShape, forests, pixelCoordinates);
+}
+
+static std::string convert(const dlib::shape_predictor& predictor,
+                           CompactShapePredictor::LeafFormat format) {
+    std::stringstream dlibModel;
+    dlib::serialize(predictor, dlibModel);
+
+    std::ostringstream out;
+    CompactShapePredictor::convert(dlibModel, format, out);
+    return out.str();
+}
+
+static void writeFile(const std::string& bytes) {
+    std::ofstream out(MODEL_PATH, std::ios::binary | std::ios::trunc);
+    out.write(bytes.data(), bytes.size());
+}
+
+static uint32_t getField(const std::string& model,
+                         size_t offset) {
+    uint32_t value;
+    memcpy(&value, model.data() + offset, sizeof(value));
+    return value;
+}
+
+static std::string setField(std::string model,
+                            size_t offset,
+                            uint32_t value) {
+    memcpy(&model[offset], &value, sizeof(value));
+    return model;
+}
+
+/**
+ * @return true if the constructor rejects the model with the
+ * dlib::serialization_error.
+ */
+static bool isRejected(const std::string& model) {
+    writeFile(model);
+    try {
+        std::unique_ptr<MappedFile> file(new MappedFile(MODEL_PATH, MappedFile::RANDOM));
+        CompactShapePredictor predictor(std::move(file));
+        return false;
+    } catch (const dlib::serialization_error&) {
+        return true;
+    }
+}
+
+static void testValidModel(const dlib::shape_predictor& predictor) {
+    dlib::array2d<unsigned char> image(64, 64);
+    std::mt19937 random(1);
+    for (long y = 0; y < image.nr(); ++y) {
+        for (long x = 0; x < image.nc(); ++x) {
+            image[y][x] = (unsigned char) (random() % 256);
+        }
+    }
+    const dlib::rectangle box(8, 8, 55, 55);
+    const dlib::full_object_detection expected = predictor(image, box);
+
+    writeFile(convert(predictor, CompactShapePredictor::FLOAT32));
+    std::unique_ptr<MappedFile> file(new MappedFile(MODEL_PATH, MappedFile::RANDOM));
+    CHECK(CompactShapePredictor::isCompact(*file));
+    const CompactShapePredictor compact(std::move(file));
+    CHECK(compact.num_parts() == 2);
+    CHECK(compact.getLeafFormat() == CompactShapePredictor::FLOAT32);
+
+    // The FLOAT32 leaves give the same shape as the dlib model.
+    const dlib::full_object_detection actual = compact(image, box);
+    CHECK(actual.num_parts() == expected.num_parts());
+    for (unsigned long i = 0; i < actual.num_parts(); ++i) {
+        CHECK(actual.part(i) == expected.part(i));
+    }
+
+    CHECK(!isRejected(convert(predictor, CompactShapePredictor::FLOAT16)));
+    CHECK(!isRejected(convert(predictor, CompactShapePredictor::INT8)));
+}
+
+static void testCorruptedModel(const dlib::shape_predictor& predictor) {
+    const std::string model = convert(predictor, CompactShapePredictor::FLOAT16);
+
+    // Truncated, within and after the header.
+    CHECK(isRejected(model.substr(0, 16)));
+    CHECK(isRejected(model.substr(0, 64)));
+    CHECK(isRejected(model.substr(0, model.size() - 1)));
+
+    // The header doesn't match the file.
+    CHECK(isRejected(setField(model, 0, 0)));
+    CHECK(isRejected(setField(model, VERSION_OFFSET, 2)));
+    CHECK(isRejected(setField(model, PART_COUNT_OFFSET, 0)));
+    CHECK(isRejected(setField(model, TREE_DEPTH_OFFSET, 0)));
+    CHECK(isRejected(setField(model, TREE_DEPTH_OFFSET, 17)));
+    CHECK(isRejected(setField(model, TREE_DEPTH_OFFSET, getField(model, TREE_DEPTH_OFFSET) + 1)));
+    CHECK(isRejected(setField(model, LEAF_FORMAT_OFFSET, 3)));
+    CHECK(isRejected(setField(model, LEAF_FORMAT_OFFSET, CompactShapePredictor::FLOAT32)));
+    CHECK(isRejected(setField(model, FILE_SIZE_OFFSET, (uint32_t) model.size() + 16)));
+    CHECK(isRejected(model + std::string(16, '\0')));
+
+    // The sections are misaligned, overlap the header or overrun the file.
+    CHECK(isRejected(setField(model, LEAF_SCALES_OFFSET_OFFSET, getField(model, LEAF_SCALES_OFFSET_OFFSET) + 4)));
+    CHECK(isRejected(setField(model, SPLITS_OFFSET_OFFSET, 0)));
+    CHECK(isRejected(setField(model, LEAVES_OFFSET_OFFSET, (uint32_t) model.size())));
+    CHECK(isRejected(setField(model, LEAVES_OFFSET_OFFSET, 0xfffffff0)));
+
+    // The split and the anchor indices are out of range.
+    std::string badSplit = model;
+    const uint16_t badFeature = 0xffff;
+    memcpy(&badSplit[getField(model, SPLITS_OFFSET_OFFSET)], &badFeature, sizeof(badFeature));
+    CHECK(isRejected(badSplit));
+
+    std::string badAnchor = model;
+    const uint16_t badPart = 2;
+    memcpy(&badAnchor[getField(model, ANCHORS_OFFSET_OFFSET)], &badPart, sizeof(badPart));
+    CHECK(isRejected(badAnchor));
+}
+
+int main(int argc,
+         char** argv) {
+    testHalfRoundTrip();
+    testHalfSubnormals();
+    testHalfRounding();
+    testHalfInfinity();
+
+    const dlib::shape_predictor predictor = createShapePredictor();
+    testValidModel(predictor);
+    testCorruptedModel(predictor);
+
+    std::remove(MODEL_PATH);
+    if (sFailures > 0) {
+        std::cerr << sFailures << " check(s) failed" << std::endl;
+        return 1;
+    }
+
+    std::cout << "All the checks passed" << std::endl;
+    return 0;
+}
@@ -0,0 +1,150 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.service.dlib;
+
+import com.my.jni.dlib.DLibFaceDetectorConfig;
+import com.my.jni.dlib.DLibLandmarks68Engine;
+import com.my.jni.dlib.data.DLibFaceBuffer;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed pool of {@link DLibLandmarks68Engine} prepared at the start, so the
+ * model is resident before the first request; it's deserialized once and
+ * shared by all the engines. Every engine is leased to one thread at a time
+ * and runs single-threaded natively because the pool already keeps the cores
+ * busy.
+ */
+public class EnginePool {
+
+    private final BlockingQueue<Entry> mIdleEntries;
+    private final Entry[] mEntries;
+
+    /**
+     * @param modelPath The shape predictor model file.
+     * @param config The face detector configuration of every engine.
+     * @param size The number of engines, 0 for the number of cores.
+     */
+    public EnginePool(String modelPath,
+                      DLibFaceDetectorConfig config,
+                      int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The size must not be negative.");
+        }
+
+        final int count = size > 0 ? size : Runtime.getRuntime().availableProcessors();
+        mIdleEntries = new ArrayBlockingQueue<>(count);
+        mEntries = new Entry[count];
+        try {
+            for (int i = 0; i < count; ++i) {
+                final DLibLandmarks68Engine engine = new DLibLandmarks68Engine();
+                mEntries[i] = new Entry(engine);
+                engine.setParallelism(1);
+                engine.prepareFaceDetector();
+                engine.setFaceDetectorConfig(config);
+                engine.prepareFaceLandmarksDetector(modelPath, null);
+
+                mIdleEntries.add(mEntries[i]);
+            }
+        } catch (RuntimeException error) {
+            close();
+            throw error;
+        }
+    }
+
+    public int getSize() {
+        return mEntries.length;
+    }
+
+    /**
+     * Lease an engine, blocking until one is released if all the engines are
+     * leased.
+     */
+    public Lease acquire() throws InterruptedException {
+        return new Lease(mIdleEntries.take());
+    }
+
+    /**
+     * Release all the engines; it must be called after the leases are closed.
+     */
+    public void close() {
+        for (Entry entry : mEntries) {
+            if (entry != null) {
+                entry.engine.close();
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    private static final class Entry {
+
+        final DLibLandmarks68Engine engine;
+        // The output buffer living with the engine.
+        final DLibFaceBuffer faceBuffer = new DLibFaceBuffer();
+
+        Entry(DLibLandmarks68Engine engine) {
+            this.engine = engine;
+        }
+    }
+
+    /**
+     * An engine leased to the thread acquiring it, with its output buffer.
+     */
+    public final class Lease implements Closeable {
+
+        private Entry mEntry;
+
+        private Lease(Entry entry) {
+            mEntry = entry;
+        }
+
+        public DLibLandmarks68Engine getEngine() {
+            return getEntry().engine;
+        }
+
+        public DLibFaceBuffer getFaceBuffer() {
+            return getEntry().faceBuffer;
+        }
+
+        /**
+         * Return the engine to the pool; closing a closed lease is no-op.
+         */
+        @Override
+        public void close() {
+            if (mEntry == null) return;
+
+            mIdleEntries.add(mEntry);
+            mEntry = null;
+        }
+
+        private Entry getEntry() {
+            if (mEntry == null) {
+                throw new IllegalStateException("The lease is closed.");
+            }
+
+            return mEntry;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.service.dlib;
+
+import com.my.jni.dlib.data.DLibFaceBuffer;
+
+/**
+ * The faces of an image in the pixels of the upright image, copied out of the
+ * engine's buffer so the engine is released before the response is written.
+ */
+public class FaceLandmarks {
+
+    private final int mWidth;
+    private final int mHeight;
+    // [left, top, right, bottom] for every face.
+    private final float[][] mBounds;
+    // [x, y] x landmarkCount for every face.
+    private final float[][] mLandmarks;
+
+    /**
+     * Copy the faces in the buffer and scale the normalized coordinates to the
+     * given upright dimension.
+     */
+    public FaceLandmarks(DLibFaceBuffer faceBuffer,
+                         int width,
+                         int height) {
+        mWidth = width;
+        mHeight = height;
+
+        final int count = faceBuffer.getAvailableFaceCount();
+        final int landmarkCount = faceBuffer.getLandmarkCount();
+        mBounds = new float[count][4];
+        mLandmarks = new float[count][2 * landmarkCount];
+        for (int i = 0; i < count; ++i) {
+            faceBuffer.getBound(i, mBounds[i]);
+            faceBuffer.getLandmarks(i, mLandmarks[i]);
+            scale(mBounds[i], width, height);
+            scale(mLandmarks[i], width, height);
+        }
+    }
+
+    public int getFaceCount() {
+        return mBounds.length;
+    }
+
+    /**
+     * Write the faces as the JSON object of the response:
+     * <pre>
+     * {"width":640,"height":480,"faces":[{"bound":[l,t,r,b],"landmarks":[x0,y0,...]}]}
+     * </pre>
+     */
+    public void toJson(StringBuilder out) {
+        out.append("{\"width\":").append(mWidth)
+           .append(",\"height\":").append(mHeight)
+           .append(",\"faces\":[");
+        for (int i = 0; i < mBounds.length; ++i) {
+            if (i > 0) out.append(',');
+            out.append("{\"bound\":");
+            appendArray(mBounds[i], out);
+            out.append(",\"landmarks\":");
+            appendArray(mLandmarks[i], out);
+            out.append('}');
+        }
+        out.append("]}");
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static void scale(float[] points,
+                              int width,
+                              int height) {
+        for (int i = 0; i + 1 < points.length; i += 2) {
+            points[i] *= width;
+            points[i + 1] *= height;
+        }
+    }
+
+    private static void appendArray(float[] values,
+                                    StringBuilder out) {
+        out.append('[');
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) out.append(',');
+            // Sub-pixel precision is enough.
+            out.append(Math.round(values[i] * 10f) / 10f);
+        }
+        out.append(']');
+    }
+}
@@ -0,0 +1,400 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.service.dlib;
+
+import com.my.jni.dlib.DLibFaceDetectorConfig;
+import com.my.jni.dlib.DLibImage;
+import com.my.jni.dlib.DLibInitializer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A local face landmarks service listening on the loopback interface only,
+ * for the batch jobs and the tools on the same host sharing one warm pool of
+ * the detectors:
+ * <pre>
+ * POST /v1/landmarks            An encoded image, e.g. JPEG or PNG.
+ * POST /v1/landmarks?width=640&height=480&format=gray
+ *                               The raw pixels, either "gray" or "rgba".
+ * GET  /v1/metrics              The queue depth and the latency percentiles.
+ * </pre>
+ * It responds 503 if the queue is full and 504 if the detection isn't done
+ * in the timeout, so the clients back off instead of piling up the queue.
+ */
+public class LandmarkService {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_BODY_BYTES = 32 * 1024 * 1024;
+
+    private final EnginePool mPool;
+    private final MicroBatcher mBatcher;
+    private final HttpServer mServer;
+    private final ExecutorService mHandlers;
+    private final long mTimeoutMillis;
+
+    public LandmarkService(Options options) throws IOException {
+        mTimeoutMillis = options.mTimeoutMillis;
+        mPool = new EnginePool(options.mModelPath,
+                               DLibFaceDetectorConfig.DEFAULT,
+                               options.mPoolSize);
+        mBatcher = new MicroBatcher(mPool,
+                                    options.mMaxBatchSize,
+                                    options.mMaxDelayMillis,
+                                    options.mQueueCapacity);
+
+        // The handlers mostly wait for the batches; enough of them to fill
+        // the batches of every engine twice over, and the rest of the
+        // connections wait in the backlog.
+        mHandlers = Executors.newFixedThreadPool(
+            Math.max(16, 2 * options.mMaxBatchSize * mPool.getSize()));
+        mServer = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), options.mPort), 0);
+        mServer.setExecutor(mHandlers);
+        mServer.createContext("/v1/landmarks", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleLandmarks(exchange);
+            }
+        });
+        mServer.createContext("/v1/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMetrics(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        mServer.start();
+    }
+
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    /**
+     * Stop taking the requests, finish the queued ones and release the
+     * detectors.
+     */
+    public void stop() throws InterruptedException {
+        mServer.stop(1);
+        mBatcher.close();
+        mHandlers.shutdown();
+        mHandlers.awaitTermination(mTimeoutMillis, TimeUnit.MILLISECONDS);
+        mPool.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException error) {
+            System.err.println(error.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        DLibInitializer.loadLibraries();
+
+        final LandmarkService service = new LandmarkService(options);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.stop();
+                } catch (InterruptedException ignored) {
+                    // Exiting anyway.
+                }
+            }
+        }, "service-shutdown"));
+        service.start();
+
+        System.err.println("Listening on 127.0.0.1:" + service.getPort());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private void handleLandmarks(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"POST only\"}");
+                return;
+            }
+
+            final DLibImage image;
+            try {
+                image = readImage(exchange);
+            } catch (IllegalArgumentException error) {
+                respond(exchange, 400, toErrorJson(error.getMessage()));
+                return;
+            }
+
+            final MicroBatcher.Job job = mBatcher.submit(image);
+            if (job == null) {
+                respond(exchange, 503, "{\"error\":\"queue is full\"}");
+                return;
+            }
+
+            final FaceLandmarks result;
+            try {
+                result = job.get(mTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException error) {
+                respond(exchange, 504, "{\"error\":\"timeout\"}");
+                return;
+            } catch (ExecutionException error) {
+                respond(exchange, 500, toErrorJson(String.valueOf(error.getCause())));
+                return;
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "{\"error\":\"shutting down\"}");
+                return;
+            }
+
+            final StringBuilder json = new StringBuilder();
+            result.toJson(json);
+            respond(exchange, 200, json.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            final StringBuilder json = new StringBuilder();
+            mBatcher.toJson(json);
+            respond(exchange, 200, json.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read the raw pixels if the dimension is in the query, or decode the
+     * image otherwise.
+     */
+    private static DLibImage readImage(HttpExchange exchange) throws IOException {
+        final byte[] body = readBody(exchange.getRequestBody());
+        final Map<String, String> query = parseQuery(exchange.getRequestURI());
+
+        if (query.containsKey("width") || query.containsKey("height")) {
+            final int width = parseInt(query, "width");
+            final int height = parseInt(query, "height");
+            final String format = query.containsKey("format") ?
+                query.get("format") : "gray";
+            final int bytesPerPixel;
+            final int pixelFormat;
+            if ("gray".equals(format)) {
+                bytesPerPixel = 1;
+                pixelFormat = DLibImage.FORMAT_GRAY_8;
+            } else if ("rgba".equals(format)) {
+                bytesPerPixel = 4;
+                pixelFormat = DLibImage.FORMAT_RGBA_8888;
+            } else {
+                throw new IllegalArgumentException("Unknown format " + format + ".");
+            }
+            if ((long) width * height * bytesPerPixel != body.length) {
+                throw new IllegalArgumentException(
+                    "The body isn't " + width + "x" + height + " " + format + " pixels.");
+            }
+
+            return new DLibImage(ByteBuffer.wrap(body), width, height,
+                                 width * bytesPerPixel, pixelFormat);
+        }
+
+        final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(body));
+        if (decoded == null) {
+            throw new IllegalArgumentException("Unknown image type.");
+        }
+
+        return toGrayImage(decoded);
+    }
+
+    /**
+     * The detectors only see the luminance, so the decoded image is converted
+     * to gray here and only a quarter of the bytes is queued.
+     */
+    private static DLibImage toGrayImage(BufferedImage decoded) {
+        final int width = decoded.getWidth();
+        final int height = decoded.getHeight();
+        final byte[] gray = new byte[width * height];
+        final int[] row = new int[width];
+        for (int y = 0; y < height; ++y) {
+            decoded.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; ++x) {
+                final int argb = row[x];
+                final int r = (argb >> 16) & 0xFF;
+                final int g = (argb >> 8) & 0xFF;
+                final int b = argb & 0xFF;
+                // The same weights as dlib's rgb to gray conversion.
+                gray[y * width + x] = (byte) ((r * 77 + g * 150 + b * 29) >> 8);
+            }
+        }
+
+        return new DLibImage(ByteBuffer.wrap(gray), width, height, width,
+                             DLibImage.FORMAT_GRAY_8);
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            if (out.size() + read > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("The body is too large.");
+            }
+            out.write(chunk, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(URI uri) {
+        final Map<String, String> query = new HashMap<>();
+        final String raw = uri.getRawQuery();
+        if (raw == null) return query;
+
+        for (String pair : raw.split("&")) {
+            final int separator = pair.indexOf('=');
+            if (separator > 0) {
+                query.put(pair.substring(0, separator), pair.substring(separator + 1));
+            }
+        }
+
+        return query;
+    }
+
+    private static int parseInt(Map<String, String> query,
+                                String key) {
+        try {
+            return Integer.parseInt(query.get(key));
+        } catch (NumberFormatException error) {
+            throw new IllegalArgumentException("Invalid " + key + ".");
+        }
+    }
+
+    private static String toErrorJson(String message) {
+        return "{\"error\":\"" +
+               String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"") +
+               "\"}";
+    }
+
+    private static void respond(HttpExchange exchange,
+                                int status,
+                                String json) throws IOException {
+        final byte[] bytes = json.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * The command line options.
+     */
+    public static final class Options {
+
+        static final String USAGE =
+            "Usage: LandmarkService --model <shape predictor> [--port 8765]\n" +
+            "       [--pool <engines, 0 for the cores>] [--max-batch 8]\n" +
+            "       [--max-delay-ms 5] [--queue 256] [--timeout-ms 10000]";
+
+        String mModelPath;
+        int mPort = 8765;
+        int mPoolSize = 0;
+        int mMaxBatchSize = 8;
+        long mMaxDelayMillis = 5;
+        int mQueueCapacity = 256;
+        long mTimeoutMillis = 10000;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing the value of " + args[i] + ".");
+                }
+
+                final String value = args[i + 1];
+                try {
+                    switch (args[i]) {
+                        case "--model":
+                            options.mModelPath = value;
+                            break;
+                        case "--port":
+                            options.mPort = Integer.parseInt(value);
+                            break;
+                        case "--pool":
+                            options.mPoolSize = Integer.parseInt(value);
+                            break;
+                        case "--max-batch":
+                            options.mMaxBatchSize = Integer.parseInt(value);
+                            break;
+                        case "--max-delay-ms":
+                            options.mMaxDelayMillis = Long.parseLong(value);
+                            break;
+                        case "--queue":
+                            options.mQueueCapacity = Integer.parseInt(value);
+                            break;
+                        case "--timeout-ms":
+                            options.mTimeoutMillis = Long.parseLong(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+                    }
+                } catch (NumberFormatException error) {
+                    throw new IllegalArgumentException("Invalid " + args[i] + " " + value + ".");
+                }
+            }
+            if (options.mModelPath == null) {
+                throw new IllegalArgumentException("The model is required.");
+            }
+
+            return options;
+        }
+    }
+}
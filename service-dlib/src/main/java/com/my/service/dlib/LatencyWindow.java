@@ -0,0 +1,86 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.service.dlib;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recent requests for the percentiles. The window
+ * is a ring, so a reading reflects the current load instead of the whole
+ * uptime.
+ */
+public class LatencyWindow {
+
+    private final long[] mSamples;
+    private int mNext = 0;
+    private int mCount = 0;
+    private long mTotalCount = 0;
+
+    /**
+     * @param capacity The number of the most recent samples kept.
+     */
+    public LatencyWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive.");
+        }
+
+        mSamples = new long[capacity];
+    }
+
+    public synchronized void record(long nanos) {
+        mSamples[mNext] = nanos;
+        mNext = (mNext + 1) % mSamples.length;
+        mCount = Math.min(mCount + 1, mSamples.length);
+        ++mTotalCount;
+    }
+
+    /**
+     * The number of the samples ever recorded.
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * The percentiles of the samples in the window.
+     *
+     * @param percentiles The percentiles in [0, 100].
+     * @return The latencies in nanoseconds in the order of the percentiles, 0
+     * if there is no sample.
+     */
+    public long[] getPercentiles(double... percentiles) {
+        final long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(mSamples, mCount);
+        }
+        Arrays.sort(sorted);
+
+        final long[] out = new long[percentiles.length];
+        if (sorted.length == 0) return out;
+        for (int i = 0; i < percentiles.length; ++i) {
+            // The nearest rank.
+            final int rank = (int) Math.ceil(percentiles[i] / 100.0 * sorted.length);
+            out[i] = sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+        }
+
+        return out;
+    }
+}
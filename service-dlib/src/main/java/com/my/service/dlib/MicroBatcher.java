@@ -0,0 +1,440 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.service.dlib;
+
+import com.my.jni.dlib.DLibImage;
+import com.my.jni.dlib.DLibLandmarks68Engine;
+import com.my.jni.dlib.data.DLibFaceBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue the images of the incoming requests and run them in micro-batches
+ * over the {@link EnginePool}:
+ * <ul>
+ *     <li>The dispatcher waits for a free engine, and then closes a batch when
+ *     it's full or when the oldest image has waited for the maximum delay,
+ *     whichever comes first. So a busy service takes bigger batches.</li>
+ *     <li>Every batch runs serially on one leased engine, so the lease and
+ *     the warm scratch area are shared by the images of the batch. While the
+ *     other engines are free, a batch takes only its share of the queued
+ *     images, so an idle service answers a request at once and the images
+ *     are spread over the engines rather than piled onto one.</li>
+ *     <li>The queue is bounded; {@link #submit(DLibImage)} rejects the image
+ *     when it's full instead of letting the latency grow unbounded.</li>
+ * </ul>
+ */
+public class MicroBatcher {
+
+    private final EnginePool mPool;
+    private final int mMaxBatchSize;
+    private final long mMaxDelayNanos;
+
+    private final BlockingQueue<Job> mQueue;
+    // The engines not running a batch.
+    private final Semaphore mFreeEngines;
+    private final ExecutorService mWorkers;
+    private final Thread mDispatcher;
+    private volatile boolean mIsClosed = false;
+
+    // Statistics.
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mCancelledCount = new AtomicLong();
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mBatchedJobCount = new AtomicLong();
+    private final AtomicInteger mRunningCount = new AtomicInteger();
+    private final LatencyWindow mLatencies;
+    private final LatencyWindow mQueueLatencies;
+
+    /**
+     * @param pool The engines running the batches.
+     * @param maxBatchSize The maximum number of images in a batch.
+     * @param maxDelayMillis The maximum time an image waits for its batch to
+     *                       fill up.
+     * @param queueCapacity The maximum number of the queued images.
+     */
+    public MicroBatcher(EnginePool pool,
+                        int maxBatchSize,
+                        long maxDelayMillis,
+                        int queueCapacity) {
+        this(pool, pool.getSize(), maxBatchSize, maxDelayMillis, queueCapacity);
+    }
+
+    /**
+     * @param pool The engines running the batches; it's null if
+     *             {@link #acquireLease()} is overridden, e.g. by the tests.
+     * @param engineCount The number of the batches running at a time.
+     */
+    MicroBatcher(EnginePool pool,
+                 int engineCount,
+                 int maxBatchSize,
+                 long maxDelayMillis,
+                 int queueCapacity) {
+        if (maxBatchSize <= 0 || maxDelayMillis < 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException(
+                "The batch size and the queue capacity must be positive and " +
+                "the delay must not be negative.");
+        }
+
+        mPool = pool;
+        mMaxBatchSize = maxBatchSize;
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mFreeEngines = new Semaphore(engineCount);
+        mLatencies = new LatencyWindow(4096);
+        mQueueLatencies = new LatencyWindow(4096);
+
+        mWorkers = Executors.newFixedThreadPool(engineCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(
+                    runnable, "batch-worker-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mDispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "batch-dispatcher");
+        mDispatcher.setDaemon(true);
+        mDispatcher.start();
+    }
+
+    /**
+     * Queue the image for the face and landmarks detection.
+     *
+     * @return The job to wait for, or null if the queue is full.
+     */
+    public Job submit(DLibImage image) {
+        if (mIsClosed) {
+            throw new IllegalStateException("The batcher is closed.");
+        }
+
+        final Job job = new Job(image);
+        if (!mQueue.offer(job)) {
+            mRejectedCount.incrementAndGet();
+            return null;
+        }
+
+        return job;
+    }
+
+    /**
+     * Stop taking the queued images and wait for the running batches.
+     */
+    public void close() throws InterruptedException {
+        mIsClosed = true;
+        mDispatcher.interrupt();
+        mDispatcher.join();
+
+        mWorkers.shutdown();
+        mWorkers.awaitTermination(1, TimeUnit.MINUTES);
+
+        // Fail the images never dispatched.
+        Job job;
+        while ((job = mQueue.poll()) != null) {
+            job.fail(new IllegalStateException("The batcher is closed."));
+        }
+    }
+
+    /**
+     * Write the statistics as a JSON object:
+     * <pre>
+     * {"queue_depth":3,"queue_capacity":256,"running":2,"requests":1024,
+     *  "rejected":0,"failed":0,"cancelled":0,"batches":300,
+     *  "mean_batch_size":3.41,
+     *  "latency_ms":{"p50":12.5,"p99":48.1,"max":60.2},
+     *  "queue_wait_ms":{"p50":2.1,"p99":9.9,"max":12.0}}
+     * </pre>
+     * The latency is from the submission to the result; the percentiles are
+     * of the most recent requests. The cancelled are the images timed out
+     * before their batch ran, which are skipped.
+     */
+    public void toJson(StringBuilder out) {
+        final long batchCount = mBatchCount.get();
+        out.append("{\"queue_depth\":").append(mQueue.size())
+           .append(",\"queue_capacity\":").append(mQueue.size() + mQueue.remainingCapacity())
+           .append(",\"running\":").append(mRunningCount.get())
+           .append(",\"requests\":").append(mLatencies.getTotalCount())
+           .append(",\"rejected\":").append(mRejectedCount.get())
+           .append(",\"failed\":").append(mFailedCount.get())
+           .append(",\"cancelled\":").append(mCancelledCount.get())
+           .append(",\"batches\":").append(batchCount)
+           .append(",\"mean_batch_size\":")
+           .append(batchCount > 0 ? (double) mBatchedJobCount.get() / batchCount : 0)
+           .append(",\"latency_ms\":");
+        appendPercentiles(mLatencies, out);
+        out.append(",\"queue_wait_ms\":");
+        appendPercentiles(mQueueLatencies, out);
+        out.append('}');
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private void dispatch() {
+        try {
+            while (!mIsClosed) {
+                mFreeEngines.acquire();
+                final List<Job> batch;
+                try {
+                    batch = takeBatch();
+                } catch (InterruptedException error) {
+                    mFreeEngines.release();
+                    throw error;
+                }
+
+                mBatchCount.incrementAndGet();
+                mBatchedJobCount.addAndGet(batch.size());
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runBatch(batch);
+                        } finally {
+                            mFreeEngines.release();
+                        }
+                    }
+                });
+            }
+        } catch (InterruptedException error) {
+            // Closed.
+        }
+    }
+
+    /**
+     * Take the oldest image and then the images coming until the batch is
+     * full or the oldest image's deadline. The images taken are failed if
+     * it's interrupted, i.e. the batcher is closed.
+     */
+    private List<Job> takeBatch() throws InterruptedException {
+        final List<Job> batch = new ArrayList<>(mMaxBatchSize);
+        final Job first = mQueue.take();
+        batch.add(first);
+
+        try {
+            final long deadline = first.mSubmittedNanos + mMaxDelayNanos;
+            int limit;
+            while (batch.size() < (limit = getBatchLimit(batch.size()))) {
+                // Take what is already queued without waiting.
+                if (mQueue.drainTo(batch, limit - batch.size()) > 0) continue;
+
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+
+                final Job next = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) break;
+                batch.add(next);
+            }
+        } catch (InterruptedException error) {
+            for (Job job : batch) {
+                job.fail(new IllegalStateException("The batcher is closed."));
+            }
+            throw error;
+        }
+
+        return batch;
+    }
+
+    /**
+     * The maximum size of the batch being taken. A batch runs serially on one
+     * engine, so while the other engines are free, the batch takes only its
+     * share of the queued images and leaves the rest to the next batches.
+     *
+     * @param taken The number of the images taken by the batch.
+     */
+    private int getBatchLimit(int taken) {
+        // The engine of the batch being taken is not counted as free.
+        final int otherFreeEngines = mFreeEngines.availablePermits();
+        if (otherFreeEngines == 0) return mMaxBatchSize;
+
+        final int engines = otherFreeEngines + 1;
+        final int share = (taken + mQueue.size() + engines - 1) / engines;
+        return Math.max(1, Math.min(mMaxBatchSize, share));
+    }
+
+    /**
+     * Run the images of the batch one after another on a leased engine. The
+     * images nobody waits for, i.e. timed out, are skipped.
+     */
+    void runBatch(List<Job> batch) {
+        mRunningCount.addAndGet(batch.size());
+        try (EnginePool.Lease lease = acquireLease()) {
+            for (Job job : batch) {
+                if (job.isCancelled()) {
+                    mCancelledCount.incrementAndGet();
+                    job.fail(new CancellationException("The detection is timed out."));
+                    continue;
+                }
+
+                final long start = System.nanoTime();
+                mQueueLatencies.record(start - job.mSubmittedNanos);
+                try {
+                    job.complete(detect(job.mImage, lease));
+                } catch (Throwable error) {
+                    // A bad image fails alone; so does an error of the engine,
+                    // e.g. out of memory, which the next image may not hit.
+                    mFailedCount.incrementAndGet();
+                    job.fail(error);
+                }
+                mLatencies.record(System.nanoTime() - job.mSubmittedNanos);
+            }
+        } catch (InterruptedException error) {
+            for (Job job : batch) {
+                job.fail(error);
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            // The images not done yet if the lease failed, so their requests
+            // don't wait until their timeouts.
+            for (Job job : batch) {
+                if (!job.isDone()) {
+                    mFailedCount.incrementAndGet();
+                    job.fail(new IllegalStateException("The batch is aborted."));
+                }
+            }
+            mRunningCount.addAndGet(-batch.size());
+        }
+    }
+
+    /**
+     * Lease an engine for a batch; it's overridden by the tests.
+     */
+    EnginePool.Lease acquireLease() throws InterruptedException {
+        return mPool.acquire();
+    }
+
+    /**
+     * Detect the image on the leased engine; it's overridden by the tests.
+     */
+    FaceLandmarks detect(DLibImage image,
+                         EnginePool.Lease lease) {
+        final DLibLandmarks68Engine engine = lease.getEngine();
+        final DLibFaceBuffer faceBuffer = lease.getFaceBuffer();
+        engine.findFacesAndLandmarks(image, faceBuffer);
+
+        return new FaceLandmarks(faceBuffer,
+                                 image.getUprightWidth(),
+                                 image.getUprightHeight());
+    }
+
+    private static void appendPercentiles(LatencyWindow window,
+                                          StringBuilder out) {
+        final long[] nanos = window.getPercentiles(50, 99, 100);
+        out.append("{\"p50\":").append(toMillis(nanos[0]))
+           .append(",\"p99\":").append(toMillis(nanos[1]))
+           .append(",\"max\":").append(toMillis(nanos[2]))
+           .append('}');
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * An image waiting for its result.
+     */
+    public static final class Job {
+
+        private final DLibImage mImage;
+        private final long mSubmittedNanos = System.nanoTime();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mIsCancelled = false;
+        private FaceLandmarks mResult;
+        private Throwable mError;
+
+        private Job(DLibImage image) {
+            mImage = image;
+        }
+
+        /**
+         * Wait for the result. The job is cancelled if it times out, so the
+         * image is skipped if its batch hasn't run it yet.
+         *
+         * @throws ExecutionException Fired if the detection failed.
+         * @throws TimeoutException Fired if the result isn't ready in time.
+         */
+        public FaceLandmarks get(long timeout,
+                                 TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                mIsCancelled = true;
+                throw new TimeoutException("The detection is not done in time.");
+            }
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+
+            return mResult;
+        }
+
+        boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * Complete the job unless it's done already.
+         */
+        synchronized void complete(FaceLandmarks result) {
+            if (isDone()) return;
+
+            mResult = result;
+            mDone.countDown();
+        }
+
+        /**
+         * Fail the job unless it's done already.
+         */
+        synchronized void fail(Throwable error) {
+            if (isDone()) return;
+
+            mError = error;
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.service.dlib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LatencyWindowTest {
+
+    @Test
+    public void getPercentiles_nearestRank() throws Exception {
+        final LatencyWindow window = new LatencyWindow(100);
+        // Recorded out of order.
+        for (int i = 100; i >= 1; --i) {
+            window.record(i);
+        }
+
+        assertArrayEquals(new long[] {1, 50, 99, 100},
+                          window.getPercentiles(0, 50, 99, 100));
+        // The rank is rounded up.
+        assertArrayEquals(new long[] {1, 51},
+                          window.getPercentiles(0.5, 50.5));
+    }
+
+    @Test
+    public void getPercentiles_fewSamples() throws Exception {
+        final LatencyWindow window = new LatencyWindow(10);
+        window.record(30);
+        window.record(10);
+        window.record(20);
+
+        // The ranks of 3 samples: ceil(0.5 * 3) = 2, ceil(0.99 * 3) = 3.
+        assertArrayEquals(new long[] {20, 30, 30},
+                          window.getPercentiles(50, 99, 100));
+    }
+
+    @Test
+    public void getPercentiles_empty() throws Exception {
+        final LatencyWindow window = new LatencyWindow(10);
+
+        assertArrayEquals(new long[] {0, 0}, window.getPercentiles(50, 99));
+        assertEquals(0, window.getTotalCount());
+    }
+
+    @Test
+    public void record_keepsMostRecentSamples() throws Exception {
+        final LatencyWindow window = new LatencyWindow(4);
+        for (int i = 1; i <= 6; ++i) {
+            window.record(100 * i);
+        }
+
+        // The window holds 300, 400, 500 and 600.
+        assertArrayEquals(new long[] {300, 400, 600},
+                          window.getPercentiles(25, 50, 100));
+        assertEquals(6, window.getTotalCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsZeroCapacity() throws Exception {
+        new LatencyWindow(0);
+    }
+}
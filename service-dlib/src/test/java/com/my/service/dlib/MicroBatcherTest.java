@@ -0,0 +1,347 @@
+// Copyright (c) 2017-present boyw165
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+//    The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+//    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.my.service.dlib;
+
+import com.my.jni.dlib.DLibImage;
+import com.my.jni.dlib.data.DLibFaceBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MicroBatcherTest {
+
+    private static final DLibImage IMAGE = new DLibImage(
+        ByteBuffer.allocate(4), 1, 1, 4, DLibImage.FORMAT_RGBA_8888);
+    private static final DLibFaceBuffer NO_FACES = new DLibFaceBuffer(0);
+
+    private FakeBatcher mBatcher;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mBatcher != null) {
+            mBatcher.release();
+            mBatcher.close();
+        }
+    }
+
+    @Test
+    public void takeBatch_closesAtDeadline() throws Exception {
+        mBatcher = new FakeBatcher(1, 10, 200, 16, false);
+
+        final long start = System.nanoTime();
+        final List<MicroBatcher.Job> jobs = submit(3);
+        for (MicroBatcher.Job job : jobs) {
+            job.get(5, TimeUnit.SECONDS);
+        }
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The batch waits for the deadline of the oldest image to fill up.
+        assertEquals(Collections.singletonList(3), mBatcher.getBatchSizes());
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 150);
+    }
+
+    @Test
+    public void takeBatch_closesWhenFull() throws Exception {
+        mBatcher = new FakeBatcher(1, 2, 60 * 1000, 16, false);
+
+        final List<MicroBatcher.Job> jobs = submit(2);
+        for (MicroBatcher.Job job : jobs) {
+            // Way before the deadline.
+            job.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(Collections.singletonList(2), mBatcher.getBatchSizes());
+    }
+
+    @Test
+    public void takeBatch_doesNotWaitWithFreeEngines() throws Exception {
+        mBatcher = new FakeBatcher(2, 8, 60 * 1000, 16, false);
+
+        // Another engine is free, so the image isn't held for a batch.
+        submit(1).get(0).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Collections.singletonList(1), mBatcher.getBatchSizes());
+    }
+
+    @Test
+    public void submit_rejectsWhenQueueIsFull() throws Exception {
+        mBatcher = new FakeBatcher(1, 1, 0, 2, true);
+
+        // The only engine is busy with the first image.
+        final MicroBatcher.Job running = submit(1).get(0);
+        mBatcher.awaitRunning();
+        final List<MicroBatcher.Job> queued = submit(2);
+
+        assertNull(mBatcher.submit(IMAGE));
+
+        mBatcher.release();
+        running.get(5, TimeUnit.SECONDS);
+        for (MicroBatcher.Job job : queued) {
+            assertNotNull(job.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void close_failsQueuedJobs() throws Exception {
+        mBatcher = new FakeBatcher(1, 1, 0, 4, true);
+
+        final MicroBatcher.Job running = submit(1).get(0);
+        mBatcher.awaitRunning();
+        final MicroBatcher.Job queued = submit(1).get(0);
+
+        // The running batch is done while the batcher is closing.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException error) {
+                    // IGNORED.
+                }
+                mBatcher.release();
+            }
+        }).start();
+        mBatcher.close();
+
+        assertNotNull(running.get(0, TimeUnit.SECONDS));
+        assertClosed(queued);
+    }
+
+    @Test
+    public void close_failsBatchBeingTaken() throws Exception {
+        mBatcher = new FakeBatcher(1, 10, 60 * 1000, 16, false);
+
+        // The dispatcher holds the image while waiting for the batch to fill.
+        final MicroBatcher.Job job = submit(1).get(0);
+        Thread.sleep(100);
+        mBatcher.close();
+
+        assertClosed(job);
+        assertTrue(mBatcher.getBatchSizes().isEmpty());
+    }
+
+    @Test
+    public void runBatch_errorFailsOnlyItsImage() throws Exception {
+        mBatcher = new FakeBatcher(1, 3, 60 * 1000, 16, false);
+        final DLibImage bad = newImage();
+        mBatcher.setFailingImage(bad);
+
+        final MicroBatcher.Job first = mBatcher.submit(IMAGE);
+        final MicroBatcher.Job failed = mBatcher.submit(bad);
+        final MicroBatcher.Job last = mBatcher.submit(IMAGE);
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("The job should fail.");
+        } catch (ExecutionException error) {
+            assertTrue(error.getCause() instanceof UnsatisfiedLinkError);
+        }
+        assertNotNull(last.get(5, TimeUnit.SECONDS));
+        assertTrue(toJson().contains("\"failed\":1,"));
+    }
+
+    @Test
+    public void runBatch_failsImagesIfLeaseFails() throws Exception {
+        mBatcher = new FakeBatcher(1, 2, 60 * 1000, 16, false);
+        mBatcher.setLeaseError(new OutOfMemoryError("No memory for the lease."));
+
+        for (MicroBatcher.Job job : submit(2)) {
+            try {
+                job.get(5, TimeUnit.SECONDS);
+                fail("The job should fail.");
+            } catch (ExecutionException error) {
+                assertTrue(error.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertTrue(toJson().contains("\"failed\":2,"));
+    }
+
+    @Test
+    public void runBatch_skipsTimedOutImages() throws Exception {
+        mBatcher = new FakeBatcher(1, 1, 0, 4, true);
+
+        // The only engine is busy with the first image.
+        final MicroBatcher.Job running = submit(1).get(0);
+        mBatcher.awaitRunning();
+        final DLibImage timedOut = newImage();
+        final MicroBatcher.Job queued = mBatcher.submit(timedOut);
+        try {
+            queued.get(50, TimeUnit.MILLISECONDS);
+            fail("The job should time out.");
+        } catch (TimeoutException error) {
+            // EXPECTED.
+        }
+
+        mBatcher.release();
+        assertNotNull(running.get(5, TimeUnit.SECONDS));
+        try {
+            queued.get(5, TimeUnit.SECONDS);
+            fail("The job should be cancelled.");
+        } catch (ExecutionException error) {
+            assertTrue(error.getCause() instanceof CancellationException);
+        }
+        assertEquals(Collections.singletonList(IMAGE), mBatcher.getDetectedImages());
+        assertTrue(toJson().contains("\"cancelled\":1,"));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected / Private Methods ////////////////////////////////////////////
+
+    private static DLibImage newImage() {
+        return new DLibImage(ByteBuffer.allocate(4), 1, 1, 4, DLibImage.FORMAT_RGBA_8888);
+    }
+
+    private String toJson() {
+        final StringBuilder json = new StringBuilder();
+        mBatcher.toJson(json);
+        return json.toString();
+    }
+
+    private List<MicroBatcher.Job> submit(int count) {
+        final List<MicroBatcher.Job> jobs = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final MicroBatcher.Job job = mBatcher.submit(IMAGE);
+            assertNotNull(job);
+            jobs.add(job);
+        }
+
+        return jobs;
+    }
+
+    private static void assertClosed(MicroBatcher.Job job) throws Exception {
+        try {
+            job.get(5, TimeUnit.SECONDS);
+            fail("The job should fail.");
+        } catch (ExecutionException error) {
+            assertTrue(error.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Clazz //////////////////////////////////////////////////////////////////
+
+    /**
+     * A batcher completing the images without an engine and recording the
+     * batch sizes and the detected images; it optionally blocks the batches
+     * until it's released.
+     */
+    private static final class FakeBatcher extends MicroBatcher {
+
+        private final boolean mIsBlocking;
+        private final CountDownLatch mRunning = new CountDownLatch(1);
+        private final CountDownLatch mReleased = new CountDownLatch(1);
+        private final List<Integer> mBatchSizes = new ArrayList<>();
+        private final List<DLibImage> mDetectedImages = new ArrayList<>();
+        private volatile DLibImage mFailingImage;
+        private volatile Error mLeaseError;
+
+        FakeBatcher(int engineCount,
+                    int maxBatchSize,
+                    long maxDelayMillis,
+                    int queueCapacity,
+                    boolean isBlocking) {
+            super(null, engineCount, maxBatchSize, maxDelayMillis, queueCapacity);
+            mIsBlocking = isBlocking;
+        }
+
+        @Override
+        void runBatch(List<Job> batch) {
+            synchronized (mBatchSizes) {
+                mBatchSizes.add(batch.size());
+            }
+            if (mIsBlocking) {
+                mRunning.countDown();
+                try {
+                    mReleased.await();
+                } catch (InterruptedException error) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            super.runBatch(batch);
+        }
+
+        @Override
+        EnginePool.Lease acquireLease() {
+            if (mLeaseError != null) throw mLeaseError;
+
+            return null;
+        }
+
+        @Override
+        FaceLandmarks detect(DLibImage image,
+                             EnginePool.Lease lease) {
+            synchronized (mDetectedImages) {
+                mDetectedImages.add(image);
+            }
+            if (image == mFailingImage) {
+                throw new UnsatisfiedLinkError("The engine is not loaded.");
+            }
+
+            return new FaceLandmarks(NO_FACES, 1, 1);
+        }
+
+        void setFailingImage(DLibImage image) {
+            mFailingImage = image;
+        }
+
+        void setLeaseError(Error error) {
+            mLeaseError = error;
+        }
+
+        void awaitRunning() throws InterruptedException {
+            assertTrue(mRunning.await(5, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            mReleased.countDown();
+        }
+
+        List<Integer> getBatchSizes() {
+            synchronized (mBatchSizes) {
+                return new ArrayList<>(mBatchSizes);
+            }
+        }
+
+        List<DLibImage> getDetectedImages() {
+            synchronized (mDetectedImages) {
+                return new ArrayList<>(mDetectedImages);
+            }
+        }
+    }
+}